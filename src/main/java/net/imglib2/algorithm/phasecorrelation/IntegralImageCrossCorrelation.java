@@ -0,0 +1,426 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
+
+/**
+ * Cross correlation of two images for many different shifts. Both images are copied to flat float arrays once and
+ * summed-area tables (integral images) of the values and squared values are computed, so the means and variances of
+ * any overlap are O(1). Only the sum of products needs a pass over the overlapping pixels.
+ *
+ * The result is the same as {@link PhaseCorrelation2Util#getCorrelation(RandomAccessibleInterval, RandomAccessibleInterval)}
+ * (up to floating point precision).
+ */
+public class IntegralImageCrossCorrelation
+{
+	final int n;
+	final long[] dims1, dims2;
+	final float[] img1, img2;
+
+	// global means, subtracted before summing to keep the tables precise
+	final double mean1, mean2;
+
+	// summed-area tables (size dims+1 in every dimension) of (value - global mean) and its square
+	final double[] sum1, sumSq1, sum2, sumSq2;
+
+	/**
+	 * @param img1 first image (zero-min)
+	 * @param img2 second image (zero-min)
+	 * @param service thread pool
+	 * @param <T> pixel type of image 1
+	 * @param <S> pixel type of image 2
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > IntegralImageCrossCorrelation(
+			final RandomAccessibleInterval< T > img1,
+			final RandomAccessibleInterval< S > img2,
+			final ExecutorService service )
+	{
+		this.n = img1.numDimensions();
+		this.dims1 = Intervals.dimensionsAsLongArray( img1 );
+		this.dims2 = Intervals.dimensionsAsLongArray( img2 );
+		this.img1 = toFloatArray( img1, service );
+		this.img2 = toFloatArray( img2, service );
+		this.mean1 = mean( this.img1 );
+		this.mean2 = mean( this.img2 );
+
+		final List< Callable< double[] > > tasks = new ArrayList<>();
+		tasks.add( () -> summedAreaTable( this.img1, dims1, mean1, false ) );
+		tasks.add( () -> summedAreaTable( this.img1, dims1, mean1, true ) );
+		tasks.add( () -> summedAreaTable( this.img2, dims2, mean2, false ) );
+		tasks.add( () -> summedAreaTable( this.img2, dims2, mean2, true ) );
+
+		final List< double[] > tables = invokeAll( tasks, service );
+		this.sum1 = tables.get( 0 );
+		this.sumSq1 = tables.get( 1 );
+		this.sum2 = tables.get( 2 );
+		this.sumSq2 = tables.get( 3 );
+	}
+
+	/**
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @return true if both images are small enough to be handled (flat arrays and tables must fit into int indices)
+	 */
+	public static boolean isSupported( final Interval img1, final Interval img2 )
+	{
+		return tableSize( Intervals.dimensionsAsLongArray( img1 ) ) < Integer.MAX_VALUE &&
+				tableSize( Intervals.dimensionsAsLongArray( img2 ) ) < Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param interval1 overlap in image 1
+	 * @param interval2 overlap in image 2 (same size)
+	 * @return the Pearson correlation of the two intervals, 0 if one of them is constant
+	 */
+	public double getCorrelation( final Interval interval1, final Interval interval2 )
+	{
+		final long[] min1 = Intervals.minAsLongArray( interval1 );
+		final long[] max1 = Intervals.maxAsLongArray( interval1 );
+		final long[] min2 = Intervals.minAsLongArray( interval2 );
+		final long[] max2 = Intervals.maxAsLongArray( interval2 );
+
+		final double numPixels = Intervals.numElements( interval1 );
+
+		final double s1 = boxSum( sum1, dims1, min1, max1 );
+		final double s2 = boxSum( sum2, dims2, min2, max2 );
+		final double sq1 = boxSum( sumSq1, dims1, min1, max1 );
+		final double sq2 = boxSum( sumSq2, dims2, min2, max2 );
+		final double sum11 = sq1 - s1 * s1 / numPixels;
+		final double sum22 = sq2 - s2 * s2 / numPixels;
+
+		// all pixels had the same color (up to the precision of the tables), like getCorrelation() we return 0
+		if ( isConstant( sum11, sq1 ) || isConstant( sum22, sq2 ) )
+			return 0;
+
+		final double sum12 = crossSum( min1, max1, min2, min1[ n - 1 ], max1[ n - 1 ] + 1 ) - s1 * s2 / numPixels;
+
+		return sum12 / Math.sqrt( sum11 * sum22 );
+	}
+
+	/**
+	 * Same as {@link #getCorrelation(Interval, Interval)}, but stops summing up the products slab by slab (along the last
+	 * dimension) as soon as an upper bound of the correlation drops below the current best. The bound assumes that the
+	 * remaining slabs correlate perfectly (Cauchy-Schwarz), their sums and variances come from the integral images.
+	 *
+	 * @param interval1 overlap in image 1
+	 * @param interval2 overlap in image 2 (same size)
+	 * @param best the best correlation found so far (by this or other threads), queried after every slab
+	 * @return the Pearson correlation of the two intervals, 0 if one of them is constant, or NaN if it cannot
+	 * be higher than best
+	 */
+	public double getCorrelation( final Interval interval1, final Interval interval2, final DoubleSupplier best )
+	{
+		final long[] min1 = Intervals.minAsLongArray( interval1 );
+		final long[] max1 = Intervals.maxAsLongArray( interval1 );
+		final long[] min2 = Intervals.minAsLongArray( interval2 );
+		final long[] max2 = Intervals.maxAsLongArray( interval2 );
+
+		final double numPixels = Intervals.numElements( interval1 );
+
+		final double s1 = boxSum( sum1, dims1, min1, max1 );
+		final double s2 = boxSum( sum2, dims2, min2, max2 );
+		final double sq1 = boxSum( sumSq1, dims1, min1, max1 );
+		final double sq2 = boxSum( sumSq2, dims2, min2, max2 );
+		final double sum11 = sq1 - s1 * s1 / numPixels;
+		final double sum22 = sq2 - s2 * s2 / numPixels;
+
+		if ( isConstant( sum11, sq1 ) || isConstant( sum22, sq2 ) )
+			return 0;
+
+		final double norm = Math.sqrt( sum11 * sum22 );
+
+		// means of the overlap (relative to the global means)
+		final double mu1 = s1 / numPixels;
+		final double mu2 = s2 / numPixels;
+
+		final int last = n - 1;
+		final long slabSize = (long)numPixels / ( max1[ last ] - min1[ last ] + 1 );
+
+		// the remaining slabs
+		final long[] rest1 = min1.clone();
+		final long[] rest2 = min2.clone();
+
+		double sum12 = 0;
+
+		for ( long z = min1[ last ]; z <= max1[ last ]; ++z )
+		{
+			sum12 += crossSum( min1, max1, min2, z, z + 1 );
+
+			if ( z == max1[ last ] )
+				break;
+
+			rest1[ last ] = z + 1;
+			rest2[ last ] = min2[ last ] + ( z + 1 - min1[ last ] );
+
+			final double restPixels = slabSize * ( max1[ last ] - z );
+			final double r1 = boxSum( sum1, dims1, rest1, max1 );
+			final double r2 = boxSum( sum2, dims2, rest2, max2 );
+			final double var1 = Math.max( 0, boxSum( sumSq1, dims1, rest1, max1 ) - 2 * mu1 * r1 + restPixels * mu1 * mu1 );
+			final double var2 = Math.max( 0, boxSum( sumSq2, dims2, rest2, max2 ) - 2 * mu2 * r2 + restPixels * mu2 * mu2 );
+
+			// sum of (a - mu1) * (b - mu2) over the rest is at most sqrt(var1 * var2)
+			final double maxRest = mu2 * r1 + mu1 * r2 - restPixels * mu1 * mu2 + Math.sqrt( var1 * var2 );
+			final double upperBound = ( sum12 + maxRest - s1 * s2 / numPixels ) / norm;
+
+			if ( upperBound + 1e-6 < best.getAsDouble() )
+				return Double.NaN;
+		}
+
+		return ( sum12 - s1 * s2 / numPixels ) / norm;
+	}
+
+	static boolean isConstant( final double centeredSumSq, final double sumSq )
+	{
+		return centeredSumSq <= 1e-9 * sumSq;
+	}
+
+	/*
+	 * sum of (img1 - mean1) * (img2 - mean2) (global means) for the overlap [min1, max1] in img1 starting at min2 in img2,
+	 * but only for the slabs [from, to) along the last dimension of img1
+	 */
+	double crossSum( final long[] min1, final long[] max1, final long[] min2, final long from, final long to )
+	{
+		if ( from >= to )
+			return 0;
+
+		final long[] pos1 = min1.clone();
+		final long[] pos2 = min2.clone();
+		pos1[ n - 1 ] = from;
+		pos2[ n - 1 ] = min2[ n - 1 ] + ( from - min1[ n - 1 ] );
+
+		// in 1d, the slabs are the row
+		final int rowLength = (int) ( n == 1 ? to - from : max1[ 0 ] - min1[ 0 ] + 1 );
+
+		double sum = 0;
+
+		while ( true )
+		{
+			final int offset1 = (int) index( pos1, dims1 );
+			final int offset2 = (int) index( pos2, dims2 );
+
+			for ( int i = 0; i < rowLength; ++i )
+				sum += ( img1[ offset1 + i ] - mean1 ) * ( img2[ offset2 + i ] - mean2 );
+
+			// next row
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				++pos1[ d ];
+				++pos2[ d ];
+
+				if ( pos1[ d ] <= ( d == n - 1 ? to - 1 : max1[ d ] ) )
+					break;
+
+				pos2[ d ] -= pos1[ d ] - min1[ d ];
+				pos1[ d ] = min1[ d ];
+			}
+
+			if ( d >= n )
+				return sum;
+		}
+	}
+
+	/*
+	 * sum of the values within [min, max] from a summed-area table of an image with dimensions dims
+	 */
+	static double boxSum( final double[] table, final long[] dims, final long[] min, final long[] max )
+	{
+		final int n = dims.length;
+		final long[] corner = new long[ n ];
+		double sum = 0;
+
+		for ( int c = 0; c < ( 1 << n ); ++c )
+		{
+			int numLower = 0;
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ( ( c >> d ) & 1 ) == 1 )
+					corner[ d ] = max[ d ] + 1;
+				else
+				{
+					corner[ d ] = min[ d ];
+					++numLower;
+				}
+			}
+
+			final double v = table[ (int) tableIndex( corner, dims ) ];
+			sum += ( numLower % 2 == 0 ) ? v : -v;
+		}
+
+		return sum;
+	}
+
+	static long index( final long[] pos, final long[] dims )
+	{
+		long idx = pos[ dims.length - 1 ];
+		for ( int d = dims.length - 2; d >= 0; --d )
+			idx = idx * dims[ d ] + pos[ d ];
+		return idx;
+	}
+
+	static long tableIndex( final long[] pos, final long[] dims )
+	{
+		long idx = pos[ dims.length - 1 ];
+		for ( int d = dims.length - 2; d >= 0; --d )
+			idx = idx * ( dims[ d ] + 1 ) + pos[ d ];
+		return idx;
+	}
+
+	static long tableSize( final long[] dims )
+	{
+		long size = 1;
+		for ( final long d : dims )
+			size *= d + 1;
+		return size;
+	}
+
+	/*
+	 * summed-area table of (img - offset) or (img - offset)^2, entry (p+1) is the sum over [0, p]
+	 */
+	static double[] summedAreaTable( final float[] img, final long[] dims, final double offset, final boolean squared )
+	{
+		final int n = dims.length;
+		final long[] tableDims = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			tableDims[ d ] = dims[ d ] + 1;
+
+		final double[] table = new double[ (int) tableSize( dims ) ];
+
+		// copy to the table, shifted by one in every dimension
+		final long[] pos = new long[ n ];
+		final long[] tablePos = new long[ n ];
+		for ( int i = 0; i < img.length; ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				tablePos[ d ] = pos[ d ] + 1;
+
+			final double v = img[ i ] - offset;
+			table[ (int) tableIndex( tablePos, dims ) ] = squared ? v * v : v;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++pos[ d ] < dims[ d ] )
+					break;
+				pos[ d ] = 0;
+			}
+		}
+
+		// separable prefix sums
+		long stride = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			final int s = (int) stride;
+			for ( int i = 0; i < table.length; ++i )
+				if ( ( i / s ) % tableDims[ d ] != 0 )
+					table[ i ] += table[ i - s ];
+
+			stride *= tableDims[ d ];
+		}
+
+		return table;
+	}
+
+	static double mean( final float[] img )
+	{
+		double sum = 0;
+		for ( final float v : img )
+			sum += v;
+		return img.length == 0 ? 0 : sum / img.length;
+	}
+
+	/*
+	 * copy a (zero-min) image to a flat float array (dimension 0 is the fastest), in parallel,
+	 * float ArrayImgs are already stored like that and are used directly (the arrays are only read)
+	 */
+	static < T extends RealType< T > > float[] toFloatArray( final RandomAccessibleInterval< T > img, final ExecutorService service )
+	{
+		if ( ArrayImg.class.isInstance( img ) && FloatType.class.isInstance( ( (ArrayImg< T, ? >) img ).firstElement() ) )
+		{
+			final Object access = ( (ArrayImg< T, ? >) img ).update( null );
+
+			if ( FloatArray.class.isInstance( access ) )
+				return ( (FloatArray) access ).getCurrentStorageArray();
+		}
+
+		final float[] data = new float[ (int) Intervals.numElements( img ) ];
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( data.length );
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( () ->
+			{
+				final Cursor< T > c = Views.flatIterable( img ).cursor();
+				c.jumpFwd( portion.getStartPosition() );
+
+				final int start = (int) portion.getStartPosition();
+				final int end = start + (int) portion.getLoopSize();
+
+				for ( int i = start; i < end; ++i )
+					data[ i ] = c.next().getRealFloat();
+
+				return null;
+			} );
+		}
+
+		invokeAll( tasks, service );
+
+		return data;
+	}
+
+	static < T > List< T > invokeAll( final List< Callable< T > > tasks, final ExecutorService service )
+	{
+		final List< T > results = new ArrayList<>();
+
+		try
+		{
+			for ( final Future< T > f : service.invokeAll( tasks ) )
+				results.add( f.get() );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to compute integral images: " + e, e );
+		}
+
+		return results;
+	}
+}
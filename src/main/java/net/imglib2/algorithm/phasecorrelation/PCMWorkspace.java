@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Dimensions;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * The buffers needed to compute one phase correlation matrix (two Fourier transforms and the PCM itself) for a given
+ * padded size. Workspaces are pooled, so that pairs with identical overlap sizes (the common case for regular grids)
+ * do not allocate (and garbage collect) new buffers for every pair.
+ *
+ * Use {@link #acquire(Dimensions)} to get a workspace and {@link #release()} (or try-with-resources) to return it to the pool.
+ * The content of the buffers is undefined after acquiring.
+ */
+public class PCMWorkspace implements AutoCloseable
+{
+	// default maximal size of all workspaces kept in the pool that are not in use
+	public static long maxPooledBytes = Runtime.getRuntime().maxMemory() / 8;
+
+	private static final ConcurrentHashMap< List< Long >, ConcurrentLinkedQueue< PCMWorkspace > > pool = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap< List< Long >, long[][] > paddingCache = new ConcurrentHashMap<>();
+	private static final AtomicLong pooledBytes = new AtomicLong();
+
+	private final List< Long > key;
+	private final long[] paddedDimensions;
+	private final long[] fftSize;
+	private final ArrayImg< ComplexFloatType, FloatArray > fft1, fft2;
+	private final ArrayImg< FloatType, FloatArray > pcm;
+	private long poolBytes;
+	private boolean inUse;
+
+	private PCMWorkspace( final List< Long > key, final long[] paddedDimensions, final long[] fftSize )
+	{
+		this.key = key;
+		this.paddedDimensions = paddedDimensions;
+		this.fftSize = fftSize;
+		this.fft1 = ArrayImgs.complexFloats( fftSize );
+		this.fft2 = ArrayImgs.complexFloats( fftSize );
+		this.pcm = ArrayImgs.floats( paddedDimensions );
+	}
+
+	/**
+	 * get the padded (real) size and the size of the Fourier transform for an extended image size,
+	 * see FFTMethods.dimensionsRealToComplexFast(). Results are memoized.
+	 * @param extSize the size of the extended image
+	 * @return { paddedDimensions, fftSize }, do not modify
+	 */
+	public static long[][] getPaddedDimensions( final Dimensions extSize )
+	{
+		return paddingCache.computeIfAbsent( toKey( Intervals.dimensionsAsLongArray( extSize ) ), k -> {
+			final long[] paddedDimensions = new long[ extSize.numDimensions() ];
+			final long[] fftSize = new long[ extSize.numDimensions() ];
+			FFTMethods.dimensionsRealToComplexFast( extSize, paddedDimensions, fftSize );
+			return new long[][] { paddedDimensions, fftSize };
+		} );
+	}
+
+	/**
+	 * get a workspace for images of the given (extended) size, from the pool if possible
+	 * @param extSize the size of the extended image
+	 * @return workspace, call {@link #release()} when done
+	 */
+	public static PCMWorkspace acquire( final Dimensions extSize )
+	{
+		return acquire( extSize, -1 );
+	}
+
+	/**
+	 * get a workspace for images of the given (extended) size, from the pool if possible
+	 * @param extSize the size of the extended image
+	 * @param poolBytes the workspace is only returned to the pool on {@link #release()} if the pool stays below this size,
+	 * negative = {@link #maxPooledBytes}
+	 * @return workspace, call {@link #release()} when done
+	 */
+	public static PCMWorkspace acquire( final Dimensions extSize, final long poolBytes )
+	{
+		final long[][] padding = getPaddedDimensions( extSize );
+		final List< Long > key = toKey( padding[ 0 ] );
+
+		final ConcurrentLinkedQueue< PCMWorkspace > queue = pool.get( key );
+		PCMWorkspace ws = queue == null ? null : queue.poll();
+
+		if ( ws == null )
+			ws = new PCMWorkspace( key, padding[ 0 ], padding[ 1 ] );
+		else
+			pooledBytes.addAndGet( -ws.getBytes() );
+
+		ws.poolBytes = poolBytes;
+		ws.inUse = true;
+		return ws;
+	}
+
+	/**
+	 * return this workspace to the pool (it is dropped if the pool is full, see {@link #acquire(Dimensions, long)}), it must not be used afterwards
+	 */
+	public void release()
+	{
+		if ( !inUse )
+			return;
+
+		inUse = false;
+
+		if ( pooledBytes.addAndGet( getBytes() ) <= ( poolBytes < 0 ? maxPooledBytes : poolBytes ) )
+			pool.computeIfAbsent( key, k -> new ConcurrentLinkedQueue<>() ).add( this );
+		else
+			pooledBytes.addAndGet( -getBytes() );
+	}
+
+	@Override
+	public void close()
+	{
+		release();
+	}
+
+	/**
+	 * drop all pooled workspaces
+	 */
+	public static void clearPool()
+	{
+		for ( final ConcurrentLinkedQueue< PCMWorkspace > queue : pool.values() )
+		{
+			PCMWorkspace ws;
+			while ( ( ws = queue.poll() ) != null )
+				pooledBytes.addAndGet( -ws.getBytes() );
+		}
+	}
+
+	public static long getPooledBytes() { return pooledBytes.get(); }
+
+	public long getBytes()
+	{
+		return ( 2 * Intervals.numElements( fftSize ) * 2 + Intervals.numElements( paddedDimensions ) ) * 4;
+	}
+
+	public long[] getPaddedDimensions() { return paddedDimensions; }
+	public long[] getFFTSize() { return fftSize; }
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT1() { return fft1; }
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT2() { return fft2; }
+	public ArrayImg< FloatType, FloatArray > getPCM() { return pcm; }
+
+	private static List< Long > toKey( final long[] dims )
+	{
+		final ArrayList< Long > key = new ArrayList<>( dims.length );
+		for ( final long d : dims )
+			key.add( d );
+		return key;
+	}
+}
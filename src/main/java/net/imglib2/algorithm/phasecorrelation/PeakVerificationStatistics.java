@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many candidate shifts were checked by cross correlation and how many could be skipped,
+ * see {@link PhaseCorrelation2Util#calculateCrossCorrOrdered}.
+ */
+public class PeakVerificationStatistics
+{
+	// all candidate shifts (PCM peaks expanded to the possible shifts)
+	public final AtomicLong candidates = new AtomicLong();
+
+	// candidates skipped without touching pixels because of the minimal overlap
+	public final AtomicLong skippedOverlap = new AtomicLong();
+
+	// candidates where the cross correlation was aborted early since they could not beat the best
+	public final AtomicLong pruned = new AtomicLong();
+
+	// candidates where the full cross correlation was computed
+	public final AtomicLong verified = new AtomicLong();
+
+	public PeakVerificationStatistics() {}
+
+	public PeakVerificationStatistics( final PeakVerificationStatistics src )
+	{
+		candidates.set( src.candidates.get() );
+		skippedOverlap.set( src.skippedOverlap.get() );
+		pruned.set( src.pruned.get() );
+		verified.set( src.verified.get() );
+	}
+
+	/**
+	 * @param before an earlier copy of these statistics
+	 * @return the counts since the copy was made
+	 */
+	public PeakVerificationStatistics since( final PeakVerificationStatistics before )
+	{
+		final PeakVerificationStatistics diff = new PeakVerificationStatistics();
+		diff.candidates.set( candidates.get() - before.candidates.get() );
+		diff.skippedOverlap.set( skippedOverlap.get() - before.skippedOverlap.get() );
+		diff.pruned.set( pruned.get() - before.pruned.get() );
+		diff.verified.set( verified.get() - before.verified.get() );
+		return diff;
+	}
+
+	public void reset()
+	{
+		candidates.set( 0 );
+		skippedOverlap.set( 0 );
+		pruned.set( 0 );
+		verified.set( 0 );
+	}
+
+	@Override
+	public String toString()
+	{
+		return candidates.get() + " candidate shifts, " + skippedOverlap.get() + " skipped (overlap too small), "
+				+ pruned.get() + " aborted early, " + verified.get() + " fully verified";
+	}
+}
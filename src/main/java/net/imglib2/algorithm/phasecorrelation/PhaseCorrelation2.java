@@ -65,7 +65,7 @@ public class PhaseCorrelation2 {
 	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends RealType<R>> void calculatePCMInPlace(
 			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<R> pcm, ExecutorService service)
 	{
-		calculatePCM( fft1, fft1, fft2, fft2, pcm , service);
+		calculatePCM( fft1, fft1, fft2, pcm , service);
 	}
 	
 	/*
@@ -74,25 +74,35 @@ public class PhaseCorrelation2 {
 	 * @param fft1
 	 * @param fft1Copy - a temporary image same size as fft1 and fft2
 	 * @param fft2
-	 * @param fft2Copy - a temporary image same size as fft1 and fft2
 	 * @param pcm
 	 */
 	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends RealType<R>> void calculatePCM(
-			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<T> fft1Copy, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<S> fft2Copy, RandomAccessibleInterval<R> pcm,
+			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<T> fft1Copy, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<R> pcm,
 			ExecutorService service)
 	{
-		// TODO: multithreaded & check for cursor vs randomaccess
-		
-		// normalize, save to copies
-		PhaseCorrelation2Util.normalizeInterval(fft1, fft1Copy, service);
-		PhaseCorrelation2Util.normalizeInterval(fft2, fft2Copy, service);
-		// conjugate
-		PhaseCorrelation2Util.complexConjInterval(fft2Copy, fft2Copy, service);
-		// in-place multiplication
-		PhaseCorrelation2Util.multiplyComplexIntervals(fft1Copy, fft2Copy, fft1Copy, service);
+		// normalize both, conjugate fft2 and multiply in one pass, save to the copy of fft1
+		PhaseCorrelation2Util.normalizeConjugateMultiplyInterval(fft1, fft2, fft1Copy, service);
 		FFT.complexToReal(fft1Copy, pcm, service);
 	}
 	
+	/*
+	 * calculate the phase correlation of fft1 and fft2, save result to res
+	 * fft1 and fft2 will NOT be altered by the function
+	 * @param fft1
+	 * @param fft1Copy - a temporary image same size as fft1 and fft2
+	 * @param fft2
+	 * @param fft2Copy - not used anymore
+	 * @param pcm
+	 * @deprecated use {@link #calculatePCM(RandomAccessibleInterval, RandomAccessibleInterval, RandomAccessibleInterval, RandomAccessibleInterval, ExecutorService)}
+	 */
+	@Deprecated
+	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends RealType<R>> void calculatePCM(
+			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<T> fft1Copy, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<S> fft2Copy, RandomAccessibleInterval<R> pcm,
+			ExecutorService service)
+	{
+		calculatePCM( fft1, fft1Copy, fft2, pcm, service );
+	}
+	
 	
 	/*
 	 * calculate phase correlation of fft1 and fft2, return result in a new Img
@@ -130,22 +140,19 @@ public class PhaseCorrelation2 {
 		RandomAccessibleInterval<R> res = factory.create(realSize, type);
 		
 		final T typeT = Views.iterable(fft1).firstElement().createVariable();
-		final S typeS = Views.iterable(fft2).firstElement().createVariable();
 		RandomAccessibleInterval< T > fft1Copy;
-		RandomAccessibleInterval< S > fft2Copy;
 
 		try
 		{
 			fft1Copy = factory.imgFactory( typeT ).create(fft1, typeT );
-			fft2Copy = factory.imgFactory( typeS ).create(fft2, typeS );
 		}
 		catch ( IncompatibleTypeException e )
 		{
-			throw new RuntimeException( "Cannot instantiate Img for type " + typeS.getClass().getSimpleName() + " or " + typeT.getClass().getSimpleName() );
+			throw new RuntimeException( "Cannot instantiate Img for type " + typeT.getClass().getSimpleName() );
 		}
 		
 		
-		calculatePCM(fft1, fft1Copy, fft2, fft2Copy, res, service);
+		calculatePCM(fft1, fft1Copy, fft2, res, service);
 		
 		return res;
 	}
@@ -182,6 +189,60 @@ public class PhaseCorrelation2 {
 		
 	}
 
+	/**
+	 * calculate the phase correlation matrix of two images, using pooled buffers for the Fourier transforms and the PCM
+	 * (see {@link PCMWorkspace}), which avoids allocating new images for every pair of images of the same size
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @param extension number of pixels to extend the images by (on each side, mirrored)
+	 * @param service thread pool
+	 * @param <T> pixel type of image 1
+	 * @param <S> pixel type of image 2
+	 * @return the workspace holding the PCM ({@link PCMWorkspace#getPCM()}), call {@link PCMWorkspace#release()} when done with the PCM
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> PCMWorkspace calculatePCMPooled(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension, ExecutorService service)
+	{
+		return calculatePCMPooled(img1, img2, extension, -1, service);
+	}
+
+	/**
+	 * calculate the phase correlation matrix of two images, using pooled buffers for the Fourier transforms and the PCM,
+	 * see {@link #calculatePCMPooled(RandomAccessibleInterval, RandomAccessibleInterval, int[], ExecutorService)}
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @param extension number of pixels to extend the images by (on each side, mirrored)
+	 * @param poolBytes maximal size of the pool the buffers are returned to (see {@link PCMWorkspace#acquire(Dimensions, long)})
+	 * @param service thread pool
+	 * @param <T> pixel type of image 1
+	 * @param <S> pixel type of image 2
+	 * @return the workspace holding the PCM ({@link PCMWorkspace#getPCM()}), call {@link PCMWorkspace#release()} when done with the PCM
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> PCMWorkspace calculatePCMPooled(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension, long poolBytes, ExecutorService service)
+	{
+		final Dimensions extSize = PhaseCorrelation2Util.getExtendedSize(img1, img2, extension);
+		final PCMWorkspace ws = PCMWorkspace.acquire( extSize, poolBytes );
+		final FinalInterval padded = new FinalInterval( ws.getPaddedDimensions() );
+
+		try
+		{
+			FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img1, extension),
+					FFTMethods.paddingIntervalCentered(img1, padded)), ws.getFFT1(), service);
+			FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img2, extension),
+					FFTMethods.paddingIntervalCentered(img2, padded)), ws.getFFT2(), service);
+
+			calculatePCMInPlace(ws.getFFT1(), ws.getFFT2(), ws.getPCM(), service);
+		}
+		catch ( RuntimeException e )
+		{
+			ws.release();
+			throw e;
+		}
+
+		return ws;
+	}
+
 	/*
 	 * calculate PCM with default extension
 	 * @param img1
@@ -215,6 +276,83 @@ public class PhaseCorrelation2 {
 	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
 			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, ExecutorService service)
+	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, false, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param useIntegralImages whether to compute the cross. corr. using integral images (see {@link IntegralImageCrossCorrelation})
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, boolean useIntegralImages, ExecutorService service)
+	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, useIntegralImages, false, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param useIntegralImages whether to compute the cross. corr. using integral images (see {@link IntegralImageCrossCorrelation})
+	 * @param orderedVerification check the shifts in descending PCM order and (with integral images) stop the cross. corr.
+	 * of a shift once it cannot be the best anymore (see {@link PhaseCorrelation2Util#calculateCrossCorrOrdered})
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, boolean useIntegralImages,
+			boolean orderedVerification, ExecutorService service)
+	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, useIntegralImages,
+				orderedVerification, null, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param useIntegralImages whether to compute the cross. corr. using integral images (see {@link IntegralImageCrossCorrelation})
+	 * @param orderedVerification check the shifts in descending PCM order and (with integral images) stop the cross. corr.
+	 * of a shift once it cannot be the best anymore (see {@link PhaseCorrelation2Util#calculateCrossCorrOrdered})
+	 * @param stats counts of the ordered verification are added here (may be null)
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, boolean useIntegralImages,
+			boolean orderedVerification, PeakVerificationStatistics stats, ExecutorService service)
 	{
 		if ( PairwiseStitching.debug )
 			System.out.println( "PCM" );
@@ -232,7 +370,11 @@ public class PhaseCorrelation2 {
 
 		long t = System.currentTimeMillis();
 
-		PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
+		if ( orderedVerification )
+			PhaseCorrelation2Util.calculateCrossCorrOrdered(peaks, img1, img2, minOverlap, service, interpolateSubpixel,
+					useIntegralImages, stats);
+		else
+			PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel, useIntegralImages);
 
 		if ( PairwiseStitching.debug )
 		{
@@ -31,6 +31,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
 
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
@@ -45,13 +47,17 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -64,7 +70,10 @@ import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 
 
 public class PhaseCorrelation2Util {
-	
+
+	// find the PCM maxima using TopKExtrema (parallel, bounded heaps on the float[]) if possible
+	public static boolean useTopKExtrema = true;
+
 	/*
 	 * copy source to dest. they do not have to be of the same size, but source must fit in dest
 	 * @param source
@@ -191,6 +200,117 @@ public class PhaseCorrelation2Util {
 	}
 
 
+	/*
+	 * calculate the crosscorrelation of img1 and img2 for the shifts represented by a PhasecorrelationPeak List, checking them in
+	 * descending order of their PCM value. Shifts with less than minOverlapPx overlapping pixels are skipped without looking at the
+	 * images, and if useIntegralImages is set, the correlation sum of a shift is aborted as soon as it cannot beat the best one found so far
+	 * (otherwise all remaining shifts are checked completely).
+	 * Aborted and skipped peaks get a crossCorr of -Infinity, so the best peak is the same as with calculateCrossCorrParallel
+	 * (without subpixel interpolation, which always checks all peaks completely).
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx
+	 * @param service
+	 * @param interpolateSubpixel
+	 * @param useIntegralImages - build integral images of img1 and img2 to abort the cross correlation of a shift early
+	 * @param stats - counts of skipped and aborted peaks are added here (may be null)
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrOrdered(
+			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long minOverlapPx, ExecutorService service, boolean interpolateSubpixel, boolean useIntegralImages,
+			final PeakVerificationStatistics stats)
+	{
+		final ArrayList<PhaseCorrelationPeak2> ordered = new ArrayList<>( peaks );
+		Collections.sort( ordered, Collections.reverseOrder( new PhaseCorrelationPeak2.ComparatorByPhaseCorrelation() ) );
+
+		// skip all shifts with too little overlap before touching any pixels
+		final ArrayList<PhaseCorrelationPeak2> candidates = new ArrayList<>();
+		final ArrayList<Pair<Interval, Interval>> overlaps = new ArrayList<>();
+
+		for ( final PhaseCorrelationPeak2 p : ordered )
+		{
+			final Pair<Interval, Interval> intervals = getOverlapIntervals( img1, img2, p.getShift() );
+			final long nPixel = intervals == null ? 0 : Intervals.numElements( intervals.getA() );
+
+			if ( nPixel == 0 || nPixel < minOverlapPx )
+			{
+				p.setCrossCorr( Double.NEGATIVE_INFINITY );
+				p.setnPixel( 0 );
+			}
+			else
+			{
+				candidates.add( p );
+				overlaps.add( intervals );
+			}
+		}
+
+		if ( stats != null )
+		{
+			stats.candidates.addAndGet( peaks.size() );
+			stats.skippedOverlap.addAndGet( peaks.size() - candidates.size() );
+		}
+
+		if ( !useIntegralImages || interpolateSubpixel || candidates.size() < 2 || !IntegralImageCrossCorrelation.isSupported( img1, img2 ) )
+		{
+			calculateCrossCorrParallel( candidates, img1, img2, minOverlapPx, service, interpolateSubpixel );
+
+			if ( stats != null )
+				stats.verified.addAndGet( candidates.size() );
+
+			return;
+		}
+
+		final IntegralImageCrossCorrelation integralImages = new IntegralImageCrossCorrelation( Views.zeroMin( img1 ), Views.zeroMin( img2 ), service );
+
+		// best correlation so far, shared by all threads
+		final AtomicLong best = new AtomicLong( Double.doubleToLongBits( Double.NEGATIVE_INFINITY ) );
+		final DoubleSupplier bestSupplier = () -> Double.longBitsToDouble( best.get() );
+
+		// tasks are submitted (and thus picked up) in descending PCM order
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for ( int i = 0; i < candidates.size(); ++i )
+		{
+			final PhaseCorrelationPeak2 p = candidates.get( i );
+			final Pair<Interval, Interval> intervals = overlaps.get( i );
+
+			futures.add( service.submit( () ->
+			{
+				p.setnPixel( Intervals.numElements( intervals.getA() ) );
+
+				final double crossCorr = integralImages.getCorrelation( intervals.getA(), intervals.getB(), bestSupplier );
+
+				if ( Double.isNaN( crossCorr ) )
+				{
+					p.setCrossCorr( Double.NEGATIVE_INFINITY );
+
+					if ( stats != null )
+						stats.pruned.incrementAndGet();
+
+					return;
+				}
+
+				p.setCrossCorr( crossCorr );
+
+				if ( stats != null )
+					stats.verified.incrementAndGet();
+
+				long current = best.get();
+				while ( crossCorr > Double.longBitsToDouble( current ) && !best.compareAndSet( current, Double.doubleToLongBits( crossCorr ) ) )
+					current = best.get();
+			}));
+		}
+
+		for (Future<?> f: futures){
+			try {
+				f.get();
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrParallel(
 			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
 			final long minOverlapPx, ExecutorService service)
@@ -211,13 +331,41 @@ public class PhaseCorrelation2Util {
 			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
 			final long minOverlapPx, ExecutorService service, boolean interpolateSubpixel)
 	{
+		calculateCrossCorrParallel( peaks, img1, img2, minOverlapPx, service, interpolateSubpixel, false );
+	}
+
+	/*
+	 * calculate the crosscorrelation of img1 and img2 for all shifts represented by a PhasecorrelationPeak List in parallel using a specified
+	 * ExecutorService. service remains functional after the call
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx minimal number of overlapping pixels in each Dimension, may be null to indicate no minimum
+	 * @param service
+	 * @param interpolateSubpixel
+	 * @param useIntegralImages - precompute integral images of img1 and img2 so that only the sum of products has to be computed per peak
+	 * (not possible when interpolating subpixel shifts, we fall back to the normal computation then)
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrParallel(
+			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long minOverlapPx, ExecutorService service, boolean interpolateSubpixel, boolean useIntegralImages)
+	{
+		final IntegralImageCrossCorrelation integralImages;
+		if ( useIntegralImages && !interpolateSubpixel && peaks.size() > 1 && IntegralImageCrossCorrelation.isSupported( img1, img2 ) )
+			integralImages = new IntegralImageCrossCorrelation( Views.zeroMin( img1 ), Views.zeroMin( img2 ), service );
+		else
+			integralImages = null;
+
 		List<Future<?>> futures = new ArrayList<Future<?>>();
 
 		for (final PhaseCorrelationPeak2 p : peaks){
 			futures.add(service.submit(new Runnable() {
 				@Override
 				public void run() {
-					p.calculateCrossCorr(img1, img2, minOverlapPx, interpolateSubpixel);
+					if ( integralImages == null )
+						p.calculateCrossCorr(img1, img2, minOverlapPx, interpolateSubpixel);
+					else
+						p.calculateCrossCorr(integralImages, img1, img2, minOverlapPx);
 				}
 			}));
 		}
@@ -243,10 +391,28 @@ public class PhaseCorrelation2Util {
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy){
+		return getPCMMaxima( pcm, service, maxN, subpixelAccuracy, useTopKExtrema );
+	}
+
+	/*
+	 * find local maxima in PCM
+	 * @param pcm
+	 * @param service
+	 * @param maxN
+	 * @param subpixelAccuracy
+	 * @param topK - use the heap-based TopKExtrema (if pcm is a FloatType ArrayImg) instead of FourNeighborhoodExtrema.findMaxMT
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy, boolean topK){
 		
 		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
 		
-		ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(pcm), pcm, maxN, service);
+		final ArrayList<Pair<Localizable, Double>> maxima;
+		if ( topK && TopKExtrema.isSupported( pcm ) )
+			maxima = TopKExtrema.findMax( (RandomAccessibleInterval< FloatType >) pcm, maxN, service );
+		else
+			maxima = FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(pcm), pcm, maxN, service);
 		//ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMax(Views.extendPeriodic(pcm), pcm, maxN);
 		
 		
@@ -728,6 +894,164 @@ public class PhaseCorrelation2Util {
 		normalizeInterval(img, res, 1E-5, service);
 	}
 	
+	/**
+	 * Fused kernel for the phase correlation: normalize fft1 and fft2 to length 1 (pixels with a length below
+	 * normalizationThreshold are set to 0), multiply fft1 with the complex conjugate of fft2 and save the result to res
+	 * in a single pass. This is equivalent to {@link #normalizeInterval(RandomAccessibleInterval, RandomAccessibleInterval, double, ExecutorService)} of both,
+	 * {@link #complexConjInterval(RandomAccessibleInterval, RandomAccessibleInterval, ExecutorService)} and
+	 * {@link #multiplyComplexIntervals(RandomAccessibleInterval, RandomAccessibleInterval, RandomAccessibleInterval, ExecutorService)}.
+	 *
+	 * If all images are ArrayImgs of ComplexFloatType, it works directly on the float[] arrays, otherwise on cursors.
+	 * res may be the same image as fft1 or fft2.
+	 *
+	 * @param fft1 first Fourier transform
+	 * @param fft2 second Fourier transform
+	 * @param res result
+	 * @param normalizationThreshold pixels with a smaller length are set to 0
+	 * @param service thread pool
+	 * @param <T> complex type of fft1
+	 * @param <S> complex type of fft2
+	 * @param <R> complex type of res
+	 */
+	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends ComplexType<R>> void normalizeConjugateMultiplyInterval(
+			final RandomAccessibleInterval<T> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<R> res,
+			final double normalizationThreshold, final ExecutorService service)
+	{
+		final float[] a1 = getComplexFloatArray( fft1 );
+		final float[] a2 = getComplexFloatArray( fft2 );
+		final float[] ar = getComplexFloatArray( res );
+
+		final boolean primitive = a1 != null && a2 != null && ar != null && a1.length == a2.length && a1.length == ar.length;
+
+		final boolean sameIterationOrder = Views.iterable( fft1 ).iterationOrder().equals( Views.iterable( fft2 ).iterationOrder() ) &&
+				Views.iterable( fft1 ).iterationOrder().equals( Views.iterable( res ).iterationOrder() );
+
+		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( Views.iterable( res ).size() );
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for ( final ImagePortion ip : portions )
+		{
+			futures.add( service.submit( () ->
+			{
+				if ( primitive )
+				{
+					final int start = (int) ip.getStartPosition() * 2;
+					final int end = start + (int) ip.getLoopSize() * 2;
+
+					for ( int i = start; i < end; i += 2 )
+						normalizeConjugateMultiply( a1[ i ], a1[ i + 1 ], a2[ i ], a2[ i + 1 ], normalizationThreshold, ar, i );
+				}
+				else
+				{
+					final float[] tmp = new float[ 2 ];
+					final long loopSize = ip.getLoopSize();
+
+					if ( sameIterationOrder )
+					{
+						final Cursor<T> c1 = Views.iterable( fft1 ).cursor();
+						final Cursor<S> c2 = Views.iterable( fft2 ).cursor();
+						final Cursor<R> cRes = Views.iterable( res ).cursor();
+
+						c1.jumpFwd( ip.getStartPosition() );
+						c2.jumpFwd( ip.getStartPosition() );
+						cRes.jumpFwd( ip.getStartPosition() );
+
+						for ( long l = 0; l < loopSize; ++l )
+						{
+							final T v1 = c1.next();
+							final S v2 = c2.next();
+							normalizeConjugateMultiply( v1.getRealFloat(), v1.getImaginaryFloat(), v2.getRealFloat(), v2.getImaginaryFloat(), normalizationThreshold, tmp, 0 );
+							cRes.next().setComplexNumber( tmp[ 0 ], tmp[ 1 ] );
+						}
+					}
+					else
+					{
+						final RandomAccess<T> ra1 = fft1.randomAccess();
+						final RandomAccess<S> ra2 = fft2.randomAccess();
+						final Cursor<R> cRes = Views.iterable( res ).localizingCursor();
+
+						cRes.jumpFwd( ip.getStartPosition() );
+
+						for ( long l = 0; l < loopSize; ++l )
+						{
+							cRes.fwd();
+							ra1.setPosition( cRes );
+							ra2.setPosition( cRes );
+							final T v1 = ra1.get();
+							final S v2 = ra2.get();
+							normalizeConjugateMultiply( v1.getRealFloat(), v1.getImaginaryFloat(), v2.getRealFloat(), v2.getImaginaryFloat(), normalizationThreshold, tmp, 0 );
+							cRes.get().setComplexNumber( tmp[ 0 ], tmp[ 1 ] );
+						}
+					}
+				}
+			}));
+		}
+
+		for ( final Future<?> f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to compute the normalized complex product: " + e, e );
+			}
+		}
+	}
+
+	/*
+	 * fused kernel with default threshold
+	 */
+	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends ComplexType<R>> void normalizeConjugateMultiplyInterval(
+			final RandomAccessibleInterval<T> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<R> res, final ExecutorService service)
+	{
+		normalizeConjugateMultiplyInterval( fft1, fft2, res, 1E-5, service );
+	}
+
+	/*
+	 * normalize (r1,i1) and (r2,i2), multiply the first with the conjugate of the second and write it to res[i], res[i+1].
+	 * rounds to float in between like the separate passes on ComplexFloatType images do.
+	 */
+	private static void normalizeConjugateMultiply( final float r1, final float i1, final float r2, final float i2,
+			final double normalizationThreshold, final float[] res, final int i )
+	{
+		final double len1 = Math.sqrt( (double) r1 * r1 + (double) i1 * i1 );
+		final double len2 = Math.sqrt( (double) r2 * r2 + (double) i2 * i2 );
+
+		if ( len1 > normalizationThreshold && len2 > normalizationThreshold )
+		{
+			final double a = (float) ( r1 / len1 );
+			final double b = (float) ( i1 / len1 );
+			final double c = (float) ( r2 / len2 );
+			final double d = -(float) ( i2 / len2 );
+
+			res[ i ] = (float) ( a * c - b * d );
+			res[ i + 1 ] = (float) ( a * d + b * c );
+		}
+		else
+		{
+			res[ i ] = 0;
+			res[ i + 1 ] = 0;
+		}
+	}
+
+	/*
+	 * the float[] backing a ComplexFloatType ArrayImg (interleaved real and imaginary parts) or null if img is something else
+	 */
+	private static float[] getComplexFloatArray( final RandomAccessibleInterval< ? > img )
+	{
+		if ( !ArrayImg.class.isInstance( img ) || !ComplexFloatType.class.isInstance( Views.iterable( img ).firstElement() ) )
+			return null;
+
+		final Object access = ( (ArrayImg< ?, ? >) img ).update( null );
+
+		if ( !FloatArray.class.isInstance( access ) )
+			return null;
+
+		return ( (FloatArray) access ).getCurrentStorageArray();
+	}
+
 	/*
 	 * get the mean pixel intensity of an img
 	 * @param img
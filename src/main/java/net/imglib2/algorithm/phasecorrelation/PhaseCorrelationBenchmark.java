@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.util.BenchmarkHelper;
+
+/**
+ * Benchmarks for the building blocks of the phase correlation.
+ *
+ * Run with the edge length of the (real) test volume as first argument (default: 512, needs ~2GB of heap).
+ */
+public class PhaseCorrelationBenchmark
+{
+	public static void main( String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 512;
+		final ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		// size of the Fourier transform of a size^3 real image
+		final long[] fftSize = new long[] { size / 2 + 1, size, size };
+
+		final ArrayImg< ComplexFloatType, FloatArray > fft1 = randomComplex( fftSize, 1 );
+		final ArrayImg< ComplexFloatType, FloatArray > fft2 = randomComplex( fftSize, 2 );
+		final ArrayImg< ComplexFloatType, FloatArray > fft1Copy = ArrayImgs.complexFloats( fftSize );
+		final ArrayImg< ComplexFloatType, FloatArray > fft2Copy = ArrayImgs.complexFloats( fftSize );
+
+		System.out.println( "normalize, conjugate and multiply " + fftSize[ 0 ] + "x" + fftSize[ 1 ] + "x" + fftSize[ 2 ] + " complex pixels" );
+
+		System.out.println( "separate passes:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			PhaseCorrelation2Util.normalizeInterval( fft1, fft1Copy, service );
+			PhaseCorrelation2Util.normalizeInterval( fft2, fft2Copy, service );
+			PhaseCorrelation2Util.complexConjInterval( fft2Copy, fft2Copy, service );
+			PhaseCorrelation2Util.multiplyComplexIntervals( fft1Copy, fft2Copy, fft1Copy, service );
+		} );
+
+		System.out.println( "fused kernel:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			PhaseCorrelation2Util.normalizeConjugateMultiplyInterval( fft1, fft2, fft1Copy, service );
+		} );
+
+		service.shutdown();
+	}
+
+	public static ArrayImg< ComplexFloatType, FloatArray > randomComplex( final long[] dims, final long seed )
+	{
+		final ArrayImg< ComplexFloatType, FloatArray > img = ArrayImgs.complexFloats( dims );
+		final Random rnd = new Random( seed );
+
+		for ( final ComplexFloatType t : img )
+			t.setComplexNumber( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+
+		return img;
+	}
+}
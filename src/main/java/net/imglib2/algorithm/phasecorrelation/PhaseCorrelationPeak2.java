@@ -229,6 +229,39 @@ public class PhaseCorrelationPeak2 {
 		
 	}
 	
+	/*
+	 * checks the cross correlation of two images shifted as indicated by this phaseCorrelationPeak using precomputed
+	 * integral images (no subpixel interpolation), update the values of crossCor and nPixels accordingly
+	 * @param integralImages
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx
+	 */
+	public void calculateCrossCorr(IntegralImageCrossCorrelation integralImages, Dimensions img1, Dimensions img2, long minOverlapPx)
+	{
+		Pair<Interval, Interval> intervals = PhaseCorrelation2Util.getOverlapIntervals(img1, img2, shift);
+
+		// no overlap found
+		if (intervals == null) {
+			crossCorr = Double.NEGATIVE_INFINITY;
+			nPixel = 0;
+			return;
+		}
+
+		nPixel = 1;
+		for (int i = 0; i< intervals.getA().numDimensions(); i++){
+			nPixel *= intervals.getA().dimension(i);
+		}
+
+		if (nPixel < minOverlapPx){
+			crossCorr = Double.NEGATIVE_INFINITY;
+			nPixel = 0;
+			return;
+		}
+
+		crossCorr = integralImages.getCorrelation( intervals.getA(), intervals.getB() );
+	}
+
 	/*
 	 * calculate cross correlation of two images with no minimal overlap size
 	 * @param img1
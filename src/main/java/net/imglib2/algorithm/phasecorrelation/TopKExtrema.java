@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+
+/**
+ * Parallel search for the maxN highest local maxima of a float image with periodic boundary conditions
+ * (e.g. a phase correlation matrix). Like {@link FourNeighborhoodExtrema#findMax(net.imglib2.RandomAccessible, net.imglib2.Interval, int)},
+ * a pixel is a maximum if no direct neighbor (+-1 in each dimension) is larger.
+ *
+ * Works directly on the float[] of an ArrayImg: the image is split into slabs along the last dimension, each task keeps
+ * its best maxN maxima in a bounded min-heap of primitive values and indices, and the heaps are merged at the end.
+ * If multiple maxima have the same value, it is not defined which of them are returned.
+ */
+public class TopKExtrema
+{
+	/**
+	 * bounded min-heap of (value, index), the smallest of the kept values is at position 0
+	 */
+	private static class Heap
+	{
+		final float[] values;
+		final long[] indices;
+		int size = 0;
+
+		Heap( final int capacity )
+		{
+			this.values = new float[ capacity ];
+			this.indices = new long[ capacity ];
+		}
+
+		void offer( final float value, final long index )
+		{
+			if ( size < values.length )
+			{
+				// sift up
+				int i = size++;
+				while ( i > 0 )
+				{
+					final int parent = ( i - 1 ) / 2;
+					if ( values[ parent ] <= value )
+						break;
+					values[ i ] = values[ parent ];
+					indices[ i ] = indices[ parent ];
+					i = parent;
+				}
+				values[ i ] = value;
+				indices[ i ] = index;
+			}
+			else if ( value > values[ 0 ] )
+			{
+				// replace the smallest, sift down
+				int i = 0;
+				while ( true )
+				{
+					int child = 2 * i + 1;
+					if ( child >= size )
+						break;
+					if ( child + 1 < size && values[ child + 1 ] < values[ child ] )
+						++child;
+					if ( values[ child ] >= value )
+						break;
+					values[ i ] = values[ child ];
+					indices[ i ] = indices[ child ];
+					i = child;
+				}
+				values[ i ] = value;
+				indices[ i ] = index;
+			}
+		}
+
+		// only check the value if the heap is full, saves the neighborhood test for most pixels
+		boolean accepts( final float value )
+		{
+			return size < values.length || value > values[ 0 ];
+		}
+	}
+
+	/**
+	 * @param img the image (e.g. the PCM)
+	 * @return true if {@link #findMax(RandomAccessibleInterval, int, ExecutorService)} can work on img directly
+	 */
+	public static boolean isSupported( final RandomAccessibleInterval< ? > img )
+	{
+		return getFloatArray( img ) != null;
+	}
+
+	/**
+	 * find the maxN highest local maxima (periodic boundary), falls back to {@link FourNeighborhoodExtrema#findMaxMT(net.imglib2.RandomAccessible, net.imglib2.Interval, int, ExecutorService)}
+	 * if img is not a FloatType ArrayImg
+	 *
+	 * @param img the image
+	 * @param maxN maximal number of maxima to return
+	 * @param service thread pool
+	 * @return list of (location, value), sorted by descending value
+	 */
+	public static ArrayList< Pair< Localizable, Double > > findMax( final RandomAccessibleInterval< FloatType > img, final int maxN, final ExecutorService service )
+	{
+		// nothing to look for (the heaps need at least one slot)
+		if ( maxN <= 0 )
+			return new ArrayList<>();
+
+		final float[] data = getFloatArray( img );
+
+		if ( data == null )
+			return FourNeighborhoodExtrema.findMaxMT( Views.extendPeriodic( img ), img, maxN, service );
+
+		final int n = img.numDimensions();
+		final long[] dims = new long[ n ];
+		img.dimensions( dims );
+
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * dims[ d - 1 ];
+
+		// split into slabs along the last dimension (contiguous in memory)
+		final long lastDim = dims[ n - 1 ];
+		final int nTasks = (int) Math.min( lastDim, Runtime.getRuntime().availableProcessors() * 4 );
+		final ArrayList< Future< Heap > > futures = new ArrayList<>();
+
+		for ( int t = 0; t < nTasks; ++t )
+		{
+			final long from = lastDim * t / nTasks;
+			final long to = lastDim * ( t + 1 ) / nTasks;
+
+			futures.add( service.submit( () -> findMax( data, dims, strides, from * strides[ n - 1 ], to * strides[ n - 1 ], maxN ) ) );
+		}
+
+		final List< Heap > heaps = new ArrayList<>();
+		for ( final Future< Heap > f : futures )
+		{
+			try
+			{
+				heaps.add( f.get() );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to find maxima: " + e, e );
+			}
+		}
+
+		// merge
+		final Heap all = new Heap( maxN );
+		for ( final Heap h : heaps )
+			for ( int i = 0; i < h.size; ++i )
+				all.offer( h.values[ i ], h.indices[ i ] );
+
+		final ArrayList< Pair< Localizable, Double > > res = new ArrayList<>( all.size );
+		final long[] pos = new long[ n ];
+
+		// sort descending (by value, then index for reproducible results)
+		final Integer[] order = new Integer[ all.size ];
+		for ( int i = 0; i < all.size; ++i )
+			order[ i ] = i;
+		Arrays.sort( order, ( a, b ) -> all.values[ a ] != all.values[ b ] ?
+				Float.compare( all.values[ b ], all.values[ a ] ) : Long.compare( all.indices[ a ], all.indices[ b ] ) );
+
+		for ( final int i : order )
+		{
+			long idx = all.indices[ i ];
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				pos[ d ] = idx / strides[ d ] + img.min( d );
+				idx %= strides[ d ];
+			}
+			res.add( new ValuePair<>( new Point( pos ), (double) all.values[ i ] ) );
+		}
+
+		return res;
+	}
+
+	private static Heap findMax( final float[] data, final long[] dims, final long[] strides, final long fromIndex, final long toIndex, final int maxN )
+	{
+		final int n = dims.length;
+		final Heap heap = new Heap( maxN );
+
+		// position of fromIndex
+		final long[] pos = new long[ n ];
+		long tmp = fromIndex;
+		for ( int d = n - 1; d >= 0; --d )
+		{
+			pos[ d ] = tmp / strides[ d ];
+			tmp %= strides[ d ];
+		}
+
+A:		for ( long i = fromIndex; i < toIndex; ++i )
+		{
+			final float value = data[ (int) i ];
+
+			if ( heap.accepts( value ) )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					// periodic neighbors
+					final long fwd = pos[ d ] == dims[ d ] - 1 ? i - ( dims[ d ] - 1 ) * strides[ d ] : i + strides[ d ];
+					final long bck = pos[ d ] == 0 ? i + ( dims[ d ] - 1 ) * strides[ d ] : i - strides[ d ];
+
+					if ( value < data[ (int) fwd ] || value < data[ (int) bck ] )
+					{
+						increment( pos, dims );
+						continue A;
+					}
+				}
+
+				heap.offer( value, i );
+			}
+
+			increment( pos, dims );
+		}
+
+		return heap;
+	}
+
+	private static void increment( final long[] pos, final long[] dims )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			if ( ++pos[ d ] < dims[ d ] )
+				return;
+			pos[ d ] = 0;
+		}
+	}
+
+	private static float[] getFloatArray( final RandomAccessibleInterval< ? > img )
+	{
+		if ( !ArrayImg.class.isInstance( img ) || !FloatType.class.isInstance( Views.iterable( img ).firstElement() ) )
+			return null;
+
+		final Object access = ( (ArrayImg< ?, ? >) img ).update( null );
+
+		if ( !FloatArray.class.isInstance( access ) )
+			return null;
+
+		return ( (FloatArray) access ).getCurrentStorageArray();
+	}
+}
@@ -38,6 +38,7 @@ import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
@@ -56,6 +57,7 @@ import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -71,13 +73,39 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 
 public class GroupedViewAggregator
 {
+	// average the views of a group once into an image (see MaterializedAverage) instead of on every pixel access
+	public static boolean materializeAverage = true;
+
 	private final List<Action> actions;
+	private ImageCache< RAIProxy.Key > imageCache;
+	private final Map< ViewId, Double > averageWeights;
+
+	// weight the views by their inverse mean intensity when averaging (e.g. so a bright channel does not dominate)
+	public boolean normalizeAverageByIntensity = false;
 
 	public GroupedViewAggregator()
 	{
 		this.actions = new ArrayList<>();
+		this.imageCache = null;
+		this.averageWeights = new HashMap<>();
 	}
 
+	/**
+	 * set a cache that is shared by all images loaded in {@link #aggregate(Group, AbstractSequenceDescription, long[], AffineTransform3D, ExecutorService)},
+	 * so that views that are part of multiple pairs are only loaded and downsampled once
+	 * @param imageCache the cache, null to disable caching
+	 */
+	public void setImageCache( final ImageCache< RAIProxy.Key > imageCache ) { this.imageCache = imageCache; }
+	public ImageCache< RAIProxy.Key > getImageCache() { return imageCache; }
+
+	/**
+	 * set the weight of a view when averaging (default: 1), e.g. to compensate for channels that differ in intensity
+	 * @param viewId the view
+	 * @param weight the weight
+	 */
+	public void setAverageWeight( final ViewId viewId, final double weight ) { averageWeights.put( new ViewId( viewId.getTimePointId(), viewId.getViewSetupId() ), weight ); }
+	public Map< ViewId, Double > getAverageWeights() { return averageWeights; }
+
 	public class Action {
 		ActionType actionType;
 		final List<Class<? extends Entity>> entityClasses;
@@ -93,6 +121,13 @@ public class GroupedViewAggregator
 
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
 				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
+		{
+			return aggregate( input, StitchingExecutors.getComputePool() );
+		}
+
+		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
+				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input,
+				final ExecutorService service)
 		{
 			Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> res = new HashMap<>();
 
@@ -101,7 +136,7 @@ public class GroupedViewAggregator
 			else if (actionType == ActionType.PICK_BRIGHTEST)
 				res = pickBrightest(input);
 			else //if (actionType == ActionType.AVERAGE)
-				res = average(input);
+				res = average(input, service);
 
 			return res;
 		}
@@ -151,8 +186,7 @@ public class GroupedViewAggregator
 					if (rais.get( i ) == null)
 						continue;
 
-					IterableInterval< T > iterableImg = Views.iterable( rais.get( i ) );
-					double mean = AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+					final double mean = getMeanIntensity( rais.get( i ) );
 					if (mean > max)
 					{
 						max = mean;
@@ -169,6 +203,40 @@ public class GroupedViewAggregator
 			return res;
 		}
 
+		/**
+		 * for views that are not loaded yet (proxies), the mean intensity of the view is computed at low resolution
+		 * and remembered (see {@link ViewBrightness}), so only the view that is picked is loaded
+		 */
+		protected <T extends RealType<T>> double getMeanIntensity(final RandomAccessibleInterval<T> rai)
+		{
+			if ( RAIProxy.class.isInstance( rai ) )
+			{
+				final RAIProxy< T > proxy = (RAIProxy< T >) rai;
+				return ViewBrightness.getMeanIntensity( proxy.getImgLoader(), proxy.getViewId() );
+			}
+
+			IterableInterval< T > iterableImg = Views.iterable( rai );
+			return AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+		}
+
+		/**
+		 * weight of a view in the average (see {@link GroupedViewAggregator#setAverageWeight(ViewId, double)}),
+		 * divided by its mean intensity if {@link GroupedViewAggregator#normalizeAverageByIntensity} is set
+		 */
+		protected <T extends RealType<T>> double getAverageWeight(final BasicViewDescription< ? > vd, final RandomAccessibleInterval<T> rai)
+		{
+			double weight = averageWeights.getOrDefault( new ViewId( vd.getTimePointId(), vd.getViewSetupId() ), 1.0 );
+
+			if ( normalizeAverageByIntensity )
+			{
+				final double mean = getMeanIntensity( rai );
+				if ( mean > 0 )
+					weight /= mean;
+			}
+
+			return weight;
+		}
+
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> pickSpecific(Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
 		{
 			final HashMap< BasicViewDescription<?>, RandomAccessibleInterval<T>> res = new HashMap<>();
@@ -219,6 +287,17 @@ public class GroupedViewAggregator
 		}
 
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> average(Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
+		{
+			return average( input, StitchingExecutors.getComputePool() );
+		}
+
+		/**
+		 * @param input the views
+		 * @param service executor service for computing a materialized average (see {@link GroupedViewAggregator#materializeAverage})
+		 * @param <T> pixel type
+		 * @return the average of every group of views
+		 */
+		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> average(Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input, final ExecutorService service)
 		{
 
 			// only one view left -> nothing to average
@@ -259,6 +338,30 @@ public class GroupedViewAggregator
 					continue;
 				}
 
+				if ( materializeAverage )
+				{
+					final List< RandomAccessibleInterval< T > > present = new ArrayList<>();
+					final List< Double > presentWeights = new ArrayList<>();
+
+					for (int i = 0; i< rais.size(); i++)
+					{
+						if (rais.get( i ) == null)
+							continue;
+
+						present.add( rais.get( i ) );
+						presentWeights.add( getAverageWeight( vds.get( i ), rais.get( i ) ) );
+					}
+
+					final RandomAccessibleInterval< T > avg = MaterializedAverage.average(
+							present, presentWeights.stream().mapToDouble( Double::doubleValue ).toArray(), service );
+
+					if ( avg != null )
+					{
+						res.put( vds.get( 0 ), avg );
+						continue;
+					}
+				}
+
 				AveragedRandomAccessible< T > avg = null;
 				int nPresent = 0;
 				int firstNonNull = -1;
@@ -329,6 +432,49 @@ public class GroupedViewAggregator
 		}
 	}
 
+	/**
+	 * @return a description of all actions (type, entity classes and instances, in the order they are applied),
+	 * two aggregators with the same description produce the same images
+	 */
+	public String getDescription()
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final Action ac : actions)
+		{
+			sb.append( ac.actionType ).append( "[" );
+			for (int i = 0; i < ac.entityClasses.size(); ++i)
+			{
+				if (i > 0)
+					sb.append( "," );
+				sb.append( ac.entityClasses.get( i ) == null ? "null" : ac.entityClasses.get( i ).getSimpleName() );
+				if (ac.instances.get( i ) != null)
+					sb.append( "=" ).append( ac.instances.get( i ).getId() );
+			}
+			sb.append( "]" );
+		}
+
+		if ( normalizeAverageByIntensity )
+			sb.append( "normalizedByIntensity" );
+
+		if ( !averageWeights.isEmpty() )
+		{
+			final List< ViewId > weighted = new ArrayList<>( averageWeights.keySet() );
+			Collections.sort( weighted );
+			sb.append( "weights[" );
+			for (final ViewId vid : weighted)
+				sb.append( Group.pvid( vid ) ).append( "=" ).append( averageWeights.get( vid ) ).append( ";" );
+			sb.append( "]" );
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GroupedViewAggregator " + getDescription();
+	}
+
 	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(
 			List<RandomAccessibleInterval< T >> rais,
 			List<? extends ViewId> vids,
@@ -360,6 +506,34 @@ public class GroupedViewAggregator
 												long[] downsampleFactors,
 												final AffineTransform3D dsCorrectionT,
 												final ExecutorService service){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, null, null, 0, null, service );
+	}
+
+	/**
+	 * aggregate the views of a group, only loading the part of each view that is within a global interval
+	 * (e.g. the overlap with another group), see {@link RAIProxy#openAndDownsampleRestricted(mpicbg.spim.data.generic.sequence.BasicImgLoader, ViewId, long[], net.imglib2.Interval)}
+	 *
+	 * @param gv the group
+	 * @param sd the sequence description
+	 * @param downsampleFactors the downsampling factors
+	 * @param dsCorrectionT will be set to the transformation from downsampled to original pixel coordinates
+	 * @param restrictToGlobal global interval to load (null to load everything)
+	 * @param vrs view registrations (only needed if restrictToGlobal != null)
+	 * @param margin number of pixels to load around the restriction
+	 * @param createdProxies if not null, all proxies that were created are added so they can be released once the result is not needed anymore
+	 * @param service executor service
+	 * @param <T> pixel type
+	 * @return aggregated image, null if all views are missing
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												final RealInterval restrictToGlobal,
+												final ViewRegistrations vrs,
+												final long margin,
+												final List< RAIProxy< ? > > createdProxies,
+												final ExecutorService service){
 
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
 		boolean dsAdjusted = false;
@@ -373,7 +547,18 @@ public class GroupedViewAggregator
 			// if view is not present, add null as the RAIProxy
 			if ( vd.isPresent() )
 			{
-				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
+				final RAIProxy< T > proxy;
+				if ( restrictToGlobal == null )
+					proxy = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, imageCache );
+				else
+					proxy = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, imageCache,
+							RAIProxy.getLocalInterval( restrictToGlobal, vrs.getViewRegistration( vid ),
+									DownsampleTools.getMipMapTransform( sd.getImgLoader(), vid, downsampleFactors ), margin ) );
+
+				if ( createdProxies != null )
+					createdProxies.add( proxy );
+
+				rai = proxy;
 
 				if ( !dsAdjusted )
 				{
@@ -393,7 +578,7 @@ public class GroupedViewAggregator
 
 		for (Action action : actions)
 		{
-			map = action.aggregate( map );
+			map = action.aggregate( map, service );
 			// we filtered out all the views
 			if (map.size() < 1)
 				return null;
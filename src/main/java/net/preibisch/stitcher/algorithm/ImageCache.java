@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexDoubleType;
+import net.imglib2.util.Intervals;
+
+/**
+ * A size-bounded cache for (downsampled) images that are needed by more than one computation,
+ * e.g. a tile that is part of several pairwise comparisons. The least recently used images are
+ * evicted once the estimated size of all cached images exceeds the given number of bytes.
+ *
+ * @param <K> key type, needs to implement equals() and hashCode()
+ */
+public class ImageCache< K >
+{
+	private final long maxBytes;
+	private final LinkedHashMap< K, Entry > cache;
+	private long currentBytes;
+
+	// images that are being loaded right now, other threads asking for them wait instead of loading them again
+	private final HashMap< K, CompletableFuture< RandomAccessibleInterval< ? > > > loading = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry
+	{
+		final RandomAccessibleInterval< ? > img;
+		final long bytes;
+
+		Entry( final RandomAccessibleInterval< ? > img, final long bytes )
+		{
+			this.img = img;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @param maxBytes maximum (estimated) size of all cached images in bytes
+	 */
+	public ImageCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		this.cache = new LinkedHashMap<>( 16, 0.75f, true );
+		this.currentBytes = 0;
+	}
+
+	/**
+	 * create a cache that may use the given fraction of the maximum heap size
+	 * @param fraction fraction of Runtime.maxMemory() to use
+	 * @param <K> key type
+	 * @return new cache
+	 */
+	public static < K > ImageCache< K > withMemoryFraction( final double fraction )
+	{
+		return new ImageCache<>( (long) ( Runtime.getRuntime().maxMemory() * fraction ) );
+	}
+
+	/**
+	 * get the image for key from the cache or load it (and cache it if it is not too big).
+	 * Only one thread loads a missing image, concurrent requests for the same key wait for it.
+	 * @param key the key
+	 * @param loader to load the image if it is not cached yet
+	 * @param <T> pixel type
+	 * @return the (cached) image
+	 */
+	@SuppressWarnings("unchecked")
+	public < T > RandomAccessibleInterval< T > get( final K key, final Supplier< RandomAccessibleInterval< T > > loader )
+	{
+		final CompletableFuture< RandomAccessibleInterval< ? > > future;
+		final boolean load;
+
+		synchronized ( this )
+		{
+			final RandomAccessibleInterval< T > cached = getIfPresent( key );
+			if ( cached != null )
+				return cached;
+
+			final CompletableFuture< RandomAccessibleInterval< ? > > inFlight = loading.get( key );
+
+			if ( inFlight != null )
+			{
+				// another thread is loading it already
+				hits.incrementAndGet();
+				future = inFlight;
+				load = false;
+			}
+			else
+			{
+				misses.incrementAndGet();
+				future = new CompletableFuture<>();
+				loading.put( key, future );
+				load = true;
+			}
+		}
+
+		if ( !load )
+		{
+			try
+			{
+				return (RandomAccessibleInterval< T >) future.join();
+			}
+			catch ( final CompletionException e )
+			{
+				if ( e.getCause() instanceof RuntimeException )
+					throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
+
+		try
+		{
+			final RandomAccessibleInterval< T > img = loader.get();
+
+			synchronized ( this )
+			{
+				if ( img != null )
+					put( key, img );
+
+				loading.remove( key );
+			}
+
+			future.complete( img );
+			return img;
+		}
+		catch ( final RuntimeException | Error e )
+		{
+			synchronized ( this )
+			{
+				loading.remove( key );
+			}
+
+			future.completeExceptionally( e );
+			throw e;
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @param <T> pixel type
+	 * @return the cached image or null if it is not cached (counts as a hit if present)
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized < T > RandomAccessibleInterval< T > getIfPresent( final K key )
+	{
+		final Entry e = cache.get( key );
+
+		if ( e == null )
+			return null;
+
+		hits.incrementAndGet();
+		return (RandomAccessibleInterval< T >) e.img;
+	}
+
+	public synchronized void put( final K key, final RandomAccessibleInterval< ? > img )
+	{
+		final long bytes = estimateBytes( img );
+
+		// never cache something that would evict everything else (and still not fit)
+		if ( bytes > maxBytes )
+			return;
+
+		final Entry old = cache.put( key, new Entry( img, bytes ) );
+		if ( old != null )
+			currentBytes -= old.bytes;
+		currentBytes += bytes;
+
+		// evict least recently used images
+		final Iterator< Map.Entry< K, Entry > > it = cache.entrySet().iterator();
+		while ( currentBytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< K, Entry > eldest = it.next();
+			if ( eldest.getKey().equals( key ) )
+				continue;
+
+			currentBytes -= eldest.getValue().bytes;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void remove( final K key )
+	{
+		final Entry e = cache.remove( key );
+		if ( e != null )
+			currentBytes -= e.bytes;
+	}
+
+	public synchronized void clear()
+	{
+		cache.clear();
+		currentBytes = 0;
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+	public long getMaxBytes() { return maxBytes; }
+	public synchronized long getCurrentBytes() { return currentBytes; }
+	public synchronized int size() { return cache.size(); }
+
+	public String getStatistics()
+	{
+		final long h = getHits();
+		final long m = getMisses();
+		return h + " hits, " + m + " misses (" + ( h + m > 0 ? Math.round( 100.0 * h / ( h + m ) ) : 0 ) + "% hit rate), " +
+				getEvictions() + " evictions, " + size() + " images (" + getCurrentBytes() / ( 1024 * 1024 ) + " of " +
+				maxBytes / ( 1024 * 1024 ) + " MB) cached";
+	}
+
+	/**
+	 * estimate the memory footprint of an image, assuming it is fully loaded
+	 * @param img the image
+	 * @return estimated size in bytes
+	 */
+	public static long estimateBytes( final RandomAccessibleInterval< ? > img )
+	{
+		final Object type = img.getType();
+		final long bytesPerPixel;
+
+		if ( RealType.class.isInstance( type ) )
+			bytesPerPixel = Math.max( 1, ( (RealType< ? >) type ).getBitsPerPixel() / 8 );
+		else if ( ComplexDoubleType.class.isInstance( type ) )
+			bytesPerPixel = 16;
+		else if ( ComplexType.class.isInstance( type ) )
+			bytesPerPixel = 8;
+		else
+			bytesPerPixel = 4;
+
+		return Intervals.numElements( img ) * bytesPerPixel;
+	}
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * (Weighted) average of the views of a group (e.g. channels and illuminations), computed once into an {@link ArrayImg}
+ * instead of per pixel on every access like {@link AveragedRandomAccessible}. The views are read in blocks (slabs along the
+ * last dimension) from their primitive arrays (see {@link PrimitiveImgTools}), the blocks are averaged in parallel.
+ *
+ * Like {@link AveragedRandomAccessible}, all views are zero-min and zero outside of their interval, the result has the
+ * size of the first view. If all views are {@link RAIProxy}s that only load a restricted interval, only the union
+ * of these intervals is computed (and the result is zero outside, like the proxies).
+ */
+public class MaterializedAverage
+{
+	// approximate number of pixels per block
+	public static int blockSize = 1 << 20;
+
+	/**
+	 * @param rais the views (none of them null)
+	 * @param weights the weight of each view (null for the plain average)
+	 * @param service executor service
+	 * @param <T> pixel type
+	 * @return the average with the same pixel type as the views (stored as float[] for {@link FloatType} and short[] for
+	 * {@link UnsignedShortType}), null if it is too large for an {@link ArrayImg} or all views are empty
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > average(
+			final List< RandomAccessibleInterval< T > > rais,
+			final double[] weights,
+			final ExecutorService service )
+	{
+		final int n = rais.get( 0 ).numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( rais.get( 0 ) );
+		final Interval region = getRegion( rais, dims );
+
+		if ( region == null || Intervals.numElements( region ) >= Integer.MAX_VALUE )
+			return null;
+
+		final float[] w = new float[ rais.size() ];
+		double sumWeights = 0;
+		for ( int i = 0; i < rais.size(); ++i )
+		{
+			w[ i ] = weights == null ? 1.0f : (float) weights[ i ];
+			sumWeights += w[ i ];
+		}
+
+		for ( int i = 0; i < rais.size(); ++i )
+			w[ i ] = sumWeights > 0 ? (float) ( w[ i ] / sumWeights ) : 1.0f / rais.size();
+
+		final List< RandomAccessibleInterval< T > > extended = new ArrayList<>();
+		for ( final RandomAccessibleInterval< T > rai : rais )
+			extended.add( Views.interval( Views.extendZero( Views.zeroMin( rai ) ), region ) );
+
+		final T type = Util.getTypeFromInterval( rais.get( 0 ) ).createVariable();
+		final long[] regionDims = Intervals.dimensionsAsLongArray( region );
+		final int size = (int) Intervals.numElements( regionDims );
+
+		final RandomAccessibleInterval< T > output;
+		final float[] floats;
+		final short[] shorts;
+
+		if ( FloatType.class.isInstance( type ) )
+		{
+			floats = new float[ size ];
+			shorts = null;
+			output = (RandomAccessibleInterval< T >) (Object) ArrayImgs.floats( floats, regionDims );
+		}
+		else if ( UnsignedShortType.class.isInstance( type ) )
+		{
+			floats = null;
+			shorts = new short[ size ];
+			output = (RandomAccessibleInterval< T >) (Object) ArrayImgs.unsignedShorts( shorts, regionDims );
+		}
+		else
+		{
+			floats = null;
+			shorts = null;
+			output = new ArrayImgFactory<>( type ).create( regionDims );
+		}
+
+		// slabs of whole hyperplanes along the last dimension are contiguous in memory
+		final long planeSize = size / regionDims[ n - 1 ];
+		final long planesPerBlock = Math.max( 1, blockSize / planeSize );
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long p = 0; p < regionDims[ n - 1 ]; p += planesPerBlock )
+		{
+			final long[] min = Intervals.minAsLongArray( region );
+			final long[] max = Intervals.maxAsLongArray( region );
+			min[ n - 1 ] = region.min( n - 1 ) + p;
+			max[ n - 1 ] = Math.min( region.max( n - 1 ), min[ n - 1 ] + planesPerBlock - 1 );
+
+			final FinalInterval block = new FinalInterval( min, max );
+			final int offset = (int) ( p * planeSize );
+
+			tasks.add( () ->
+			{
+				final float[] sum = new float[ (int) Intervals.numElements( block ) ];
+
+				for ( int i = 0; i < extended.size(); ++i )
+				{
+					final float[] data = PrimitiveImgTools.copyToFloat( extended.get( i ), block, null ).update( null ).getCurrentStorageArray();
+					final float wi = w[ i ];
+
+					for ( int j = 0; j < sum.length; ++j )
+						sum[ j ] += wi * data[ j ];
+				}
+
+				if ( floats != null )
+				{
+					System.arraycopy( sum, 0, floats, offset, sum.length );
+				}
+				else if ( shorts != null )
+				{
+					// like UnsignedShortType.setReal()
+					for ( int j = 0; j < sum.length; ++j )
+						shorts[ offset + j ] = (short) Util.round( sum[ j ] );
+				}
+				else
+				{
+					final Cursor< T > c = Views.flatIterable( output ).cursor();
+					c.jumpFwd( offset );
+
+					for ( int j = 0; j < sum.length; ++j )
+						c.next().setReal( sum[ j ] );
+				}
+
+				return null;
+			} );
+		}
+
+		PrimitiveImgTools.invokeAll( tasks, service );
+
+		if ( Intervals.equals( region, new FinalInterval( dims ) ) )
+			return output;
+		else
+			return Views.interval( Views.extendZero( Views.translate( output, Intervals.minAsLongArray( region ) ) ), new FinalInterval( dims ) );
+	}
+
+	/*
+	 * the (zero-min) part of the views that can be non-zero: the union of the restrictions if all views are restricted proxies,
+	 * always within the first view, null if it is empty
+	 */
+	protected static < T extends RealType< T > > Interval getRegion( final List< RandomAccessibleInterval< T > > rais, final long[] dims )
+	{
+		final Interval all = new FinalInterval( dims );
+		Interval union = null;
+
+		for ( final RandomAccessibleInterval< T > rai : rais )
+		{
+			if ( !RAIProxy.class.isInstance( rai ) || ( (RAIProxy< ? >) rai ).getRestriction() == null )
+				return all;
+
+			// restriction relative to the min of the view
+			final Interval r = ( (RAIProxy< ? >) rai ).getRestriction();
+			final long[] min = new long[ dims.length ];
+			final long[] max = new long[ dims.length ];
+			for ( int d = 0; d < dims.length; ++d )
+			{
+				min[ d ] = r.min( d ) - rai.min( d );
+				max[ d ] = r.max( d ) - rai.min( d );
+			}
+
+			final Interval restriction = new FinalInterval( min, max );
+
+			union = union == null ? restriction : Intervals.union( union, restriction );
+		}
+
+		final Interval region = Intervals.intersect( union, all );
+
+		return Intervals.isEmpty( region ) ? null : region;
+	}
+}
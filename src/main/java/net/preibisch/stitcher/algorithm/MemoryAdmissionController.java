@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Arrays;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.algorithm.phasecorrelation.PCMWorkspace;
+
+/**
+ * Admits tasks (e.g. pairwise stitching of two tiles) against a memory budget: a task is only started
+ * if its estimated peak memory fits into what is left of the budget. A task that is larger than
+ * the whole budget is started alone (when nothing else is running), so it is never starved.
+ */
+public class MemoryAdmissionController
+{
+	// the extension of the images before the FFT, see PairwiseStitching.getShift()
+	public static int pcmExtension = 10;
+
+	final long budget;
+
+	long used = 0;
+	long peakUsed = 0;
+	int running = 0;
+
+	/**
+	 * @param budget - maximal number of bytes used by all admitted tasks together
+	 */
+	public MemoryAdmissionController( final long budget )
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * @param fraction - fraction of the maximal heap size to use as budget
+	 * @return admission controller with a budget relative to the heap size
+	 */
+	public static MemoryAdmissionController withHeapFraction( final double fraction )
+	{
+		return new MemoryAdmissionController( (long) ( Runtime.getRuntime().maxMemory() * fraction ) );
+	}
+
+	/**
+	 * admit a task if it fits into the budget (or if nothing else is running)
+	 * @param bytes - estimated memory of the task
+	 * @return true if the task was admitted, {@link #release(long)} has to be called when it is done
+	 */
+	public synchronized boolean tryAcquire( final long bytes )
+	{
+		if ( running > 0 && used + bytes > budget )
+			return false;
+
+		used += bytes;
+		++running;
+		peakUsed = Math.max( peakUsed, used );
+
+		return true;
+	}
+
+	/**
+	 * wait until a task fits into the budget (or nothing else is running) and admit it
+	 * @param bytes - estimated memory of the task
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire( final long bytes ) throws InterruptedException
+	{
+		while ( !tryAcquire( bytes ) )
+			wait();
+	}
+
+	/**
+	 * @param bytes - estimated memory of a finished task (as passed to acquire)
+	 */
+	public synchronized void release( final long bytes )
+	{
+		used -= bytes;
+		--running;
+		notifyAll();
+	}
+
+	public long getBudget() { return budget; }
+	public synchronized long getUsed() { return used; }
+	public synchronized long getPeakUsed() { return peakUsed; }
+	public synchronized int getRunning() { return running; }
+
+	/**
+	 * Estimate the peak memory of a phase correlation of two (aggregated) tiles: the loaded views of both groups,
+	 * the aggregated float images, the float copies of the overlaps, the Fourier transforms and PCM of the extended and
+	 * padded overlap and, if used, the integral images for the peak verification. The loaded views are always counted, even if they are kept in the
+	 * tile cache, because the cache can evict them while the pair still holds them.
+	 *
+	 * @param overlapSize - size of the overlap in (downsampled) pixels
+	 * @param loadedSizeA - size of the part of each view of group A that is loaded (downsampled)
+	 * @param loadedSizeB - size of the part of each view of group B that is loaded (downsampled)
+	 * @param numViewsA - number of views in group A
+	 * @param numViewsB - number of views in group B
+	 * @param bytesPerPixel - bytes per pixel of the input images
+	 * @param params - stitching parameters
+	 * @return estimated bytes
+	 */
+	public static long estimatePairBytes(
+			final long[] overlapSize,
+			final long[] loadedSizeA,
+			final long[] loadedSizeB,
+			final int numViewsA,
+			final int numViewsB,
+			final int bytesPerPixel,
+			final PairwiseStitchingParameters params )
+	{
+		final long overlapPixels = numElements( overlapSize );
+
+		// input images (views of a group are combined into a float image)
+		final long viewBytesA = numElements( loadedSizeA ) * bytesPerPixel;
+		final long viewBytesB = numElements( loadedSizeB ) * bytesPerPixel;
+		long bytes = numViewsA * viewBytesA + numViewsB * viewBytesB;
+		if ( numViewsA > 1 )
+			bytes += numElements( loadedSizeA ) * 4;
+		if ( numViewsB > 1 )
+			bytes += numElements( loadedSizeB ) * 4;
+
+		// block-wise, every block (up to all at once) needs its own buffers of the block size
+		final boolean blockwise = params.numBlocks > 1 && !params.useWholeImage;
+		final long[] pcmSize = blockwise ? Arrays.stream( overlapSize ).map( s -> Math.min( s, params.blockSize ) ).toArray() : overlapSize;
+		final long pcmPixels = blockwise ? numElements( pcmSize ) : overlapPixels;
+		final int numPCMs = blockwise ? params.numBlocks : 1;
+
+		// two Fourier transforms (complex float) and the PCM (float)
+		// (singleton dimensions are dropped)
+		final long[] extSize = Arrays.stream( pcmSize ).filter( s -> s > 1 ).map( s -> s + 2 * Math.min( s, pcmExtension ) ).toArray();
+		if ( extSize.length == 0 )
+			return bytes;
+
+		final long[][] padding = PCMWorkspace.getPaddedDimensions( new FinalDimensions( extSize ) );
+		bytes += numPCMs * ( 2 * numElements( padding[ 1 ] ) * 8 + numElements( padding[ 0 ] ) * 4 );
+
+		// float copies of both overlaps (see PairwiseStitching.floatFastPath, the integral images use the same copies)
+		if ( PairwiseStitching.floatFastPath || params.useIntegralImages )
+			bytes += numPCMs * 2 * pcmPixels * 4;
+
+		// four double summed-area tables
+		if ( params.useIntegralImages )
+			bytes += numPCMs * 2 * pcmPixels * 2 * 8;
+
+		return bytes;
+	}
+
+	static long numElements( final long[] size )
+	{
+		long n = 1;
+		for ( final long s : size )
+			n *= Math.max( 1, s );
+		return n;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "budget " + budget / ( 1024 * 1024 ) + " MB, peak " + peakUsed / ( 1024 * 1024 ) + " MB";
+	}
+}
@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
+import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
+
+/**
+ * Cheap check whether the overlap of two groups contains anything to register, done on the coarsest
+ * mipmap level (if the views have mipmaps). The signal is measured as the relative standard deviation
+ * (standard deviation / mean) of the overlap, the smaller value of both groups counts. Overlaps that only
+ * contain background (camera offset and noise) have a low relative standard deviation and would only
+ * produce a low cross correlation after the full phase correlation.
+ *
+ * The overlap is loaded with the same restriction and margin as for the pairwise registration when it only loads the
+ * overlap (see {@link TransformationTools#computeStitching}), so if the check ends up at the same downsampling, the
+ * loaded views can be shared through the tile cache of the aggregator.
+ */
+public class OverlapSignalCheck
+{
+	// the overlap is not downsampled to fewer pixels than this in any dimension for the check
+	public static int minCheckSize = 8;
+
+	/**
+	 * @param viewIdsA first group
+	 * @param viewIdsB second group
+	 * @param vrs view registrations
+	 * @param sd sequence description
+	 * @param gva aggregator to combine the views of a group into one image
+	 * @param downsampleFactors the downsampling selected for the pairwise registration
+	 * @param service executor service
+	 * @param <T> pixel type
+	 * @return the signal (relative standard deviation) of the group with less signal in the overlap, NaN if it is unknown
+	 * (no overlap or a view could not be loaded)
+	 */
+	public static < T extends RealType< T > > double getSignal(
+			final Group< ? extends ViewId > viewIdsA,
+			final Group< ? extends ViewId > viewIdsB,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final ExecutorService service )
+	{
+		final List< List< ViewId > > views = new ArrayList<>();
+		views.add( new ArrayList<>( viewIdsA.getViews() ) );
+		views.add( new ArrayList<>( viewIdsB.getViews() ) );
+		final BoundingBox bbOverlap = new BoundingBoxMaximalGroupOverlap< ViewId >( views, sd, vrs ).estimate( "Max Overlap" );
+
+		if ( bbOverlap == null )
+			return Double.NaN;
+
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+
+		try
+		{
+			// the aggregated images have the size of the whole (downsampled) views and are zero outside of the overlap,
+			// so the statistics are only computed within the part that was loaded (the restriction of the proxies)
+			final RandomAccessibleInterval< T > img1 = gva.aggregate( viewIdsA, sd, getCoarsestDownsampling( viewIdsA, sd, downsampleFactors, bbOverlap ),
+					new AffineTransform3D(), bbOverlap, vrs, TransformationTools.overlapLoadingMargin, proxies, service );
+			final Interval overlap1 = getRestriction( proxies );
+
+			final int numProxiesA = proxies.size();
+			final RandomAccessibleInterval< T > img2 = gva.aggregate( viewIdsB, sd, getCoarsestDownsampling( viewIdsB, sd, downsampleFactors, bbOverlap ),
+					new AffineTransform3D(), bbOverlap, vrs, TransformationTools.overlapLoadingMargin, proxies, service );
+			final Interval overlap2 = getRestriction( proxies.subList( numProxiesA, proxies.size() ) );
+
+			if ( img1 == null || img2 == null )
+				return Double.NaN;
+
+			return Math.min( relativeStandardDeviation( img1, overlap1 ), relativeStandardDeviation( img2, overlap2 ) );
+		}
+		finally
+		{
+			proxies.forEach( RAIProxy::release );
+		}
+	}
+
+	/**
+	 * @param views the views of a group
+	 * @param sd sequence description
+	 * @param downsampleFactors the downsampling selected for the pairwise registration
+	 * @param bbOverlap the overlap (global coordinates)
+	 * @return the downsampling of the coarsest mipmap level all views have (at least downsampleFactors),
+	 * dimensions where the overlap would get smaller than {@link #minCheckSize} are downsampled less
+	 */
+	public static long[] getCoarsestDownsampling(
+			final Group< ? extends ViewId > views,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsampleFactors,
+			final RealInterval bbOverlap )
+	{
+		final long[] ds = downsampleFactors.clone();
+		final BasicImgLoader imgLoader = sd.getImgLoader();
+
+		if ( !MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+			return ds;
+
+		// the coarsest level that all views of the group have
+		final long[] coarsest = new long[ ds.length ];
+		Arrays.fill( coarsest, Long.MAX_VALUE );
+
+		for ( final ViewId viewId : views )
+		{
+			final double[][] resolutions = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( viewId.getViewSetupId() ).getMipmapResolutions();
+			final double[] factors = resolutions[ resolutions.length - 1 ];
+
+			for ( int d = 0; d < ds.length; ++d )
+				coarsest[ d ] = Math.min( coarsest[ d ], Math.round( factors[ d ] ) );
+		}
+
+		for ( int d = 0; d < ds.length; ++d )
+		{
+			long f = Math.max( ds[ d ], coarsest[ d ] );
+
+			// mipmap factors are powers of two
+			while ( f > ds[ d ] && ( bbOverlap.realMax( d ) - bbOverlap.realMin( d ) ) / f < minCheckSize )
+				f /= 2;
+
+			ds[ d ] = Math.max( ds[ d ], f );
+		}
+
+		return ds;
+	}
+
+	/**
+	 * @param proxies the proxies of the views of one group
+	 * @return the union of their restrictions, null if any of them loads the whole view (or there are none)
+	 */
+	public static Interval getRestriction( final List< RAIProxy< ? > > proxies )
+	{
+		Interval union = null;
+
+		for ( final RAIProxy< ? > proxy : proxies )
+		{
+			if ( proxy.getRestriction() == null )
+				return null;
+
+			union = union == null ? proxy.getRestriction() : Intervals.union( union, proxy.getRestriction() );
+		}
+
+		return union;
+	}
+
+	/**
+	 * @param img the image
+	 * @param overlap the part of the image to look at (null for the whole image)
+	 * @param <T> pixel type
+	 * @return standard deviation / mean of the pixels of img within overlap (0 if they do not intersect)
+	 */
+	public static < T extends RealType< T > > double relativeStandardDeviation( final RandomAccessibleInterval< T > img, final Interval overlap )
+	{
+		if ( overlap == null )
+			return relativeStandardDeviation( img );
+
+		final Interval crop = Intervals.intersect( img, overlap );
+
+		if ( Intervals.isEmpty( crop ) )
+			return 0;
+
+		return relativeStandardDeviation( Views.interval( img, crop ) );
+	}
+
+	/**
+	 * @param img the image
+	 * @param <T> pixel type
+	 * @return standard deviation / mean of all pixels (0 for an empty or constant image)
+	 */
+	public static < T extends RealType< T > > double relativeStandardDeviation( final RandomAccessibleInterval< T > img )
+	{
+		long n = 0;
+		double sum = 0, sumSq = 0;
+
+		for ( final T t : Views.flatIterable( img ) )
+		{
+			final double v = t.getRealDouble();
+			sum += v;
+			sumSq += v * v;
+			++n;
+		}
+
+		if ( n == 0 )
+			return 0;
+
+		final double mean = sum / n;
+		final double std = Math.sqrt( Math.max( 0, sumSq / n - mean * mean ) );
+
+		if ( std == 0 )
+			return 0;
+
+		return mean > 0 ? std / mean : Double.POSITIVE_INFINITY;
+	}
+}
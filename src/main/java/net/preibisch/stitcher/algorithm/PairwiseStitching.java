@@ -34,7 +34,9 @@ import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import net.imglib2.Cursor;
@@ -44,9 +46,12 @@ import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
+import net.imglib2.algorithm.phasecorrelation.PCMWorkspace;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
@@ -55,7 +60,6 @@ import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.realtransform.TranslationGet;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
@@ -71,6 +75,8 @@ import net.preibisch.mvrecon.process.interestpointregistration.TransformationToo
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.lucaskanade.Align;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeShift;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeStitchingResult;
 import net.preibisch.stitcher.input.FractalImgLoader;
 import net.preibisch.stitcher.input.FractalSpimDataGenerator;
 
@@ -79,7 +85,13 @@ public class PairwiseStitching
 {
 	public static boolean debug = false;
 
-	public static <T extends RealType< T >, S extends RealType< S >> Pair< AffineTransform, Double > getShiftLucasKanade(
+	// shifts of two blocks (see getShiftBlockwise) agree if they differ by at most this much in every dimension (in pixels)
+	public static double blockConsensusTolerance = 2.0;
+
+	// copy the overlaps into float images from the primitive arrays (see PrimitiveImgTools) before the phase correlation
+	public static boolean floatFastPath = true;
+
+	public static <T extends RealType< T >, S extends RealType< S >> LucasKanadeShift< AffineTransform > getShiftLucasKanade(
 			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< T > input2,
 			final TranslationGet t1, final TranslationGet t2, final LucasKanadeParameters params,
 			final ExecutorService service)
@@ -156,16 +168,46 @@ public class PairwiseStitching
 		}
 
 		// do the alignment
-		Align< T > lkAlign = new Align< T >( Views.zeroMin( Views.interval( img1, interval1 ) ),
-				new ArrayImgFactory< FloatType >( new FloatType() ), params.getWarpFunctionInstance( img1.numDimensions() ) );
+		final AffineTransform res;
+		final boolean converged;
+		final double correlation;
+		final Align.StopReason stopReason;
+		final int numIterations;
 
-		AffineTransform res = lkAlign.align( Views.zeroMin( Views.interval( img2, interval2 ) ), params.maxNumIterations,
-				params.minParameterChange, service );
+		if ( params.numPyramidLevels > 1 )
+		{
+			// coarse-to-fine on float copies of the overlaps
+			final ArrayImg< FloatType, FloatArray > template = PrimitiveImgTools.copyToFloat( img1, interval1, service );
+			final ArrayImg< FloatType, FloatArray > image = PrimitiveImgTools.copyToFloat( img2, interval2, service );
+
+			final Align< FloatType > lkAlign = Align.alignMultiResolution( template, image, params.getWarpFunctionInstance( img1.numDimensions() ),
+					params.numPyramidLevels, params.maxNumIterations, params.minParameterChange, params.memoryLean, params.earlyTermination, service );
+
+			res = lkAlign.getCurrentTransform();
+			converged = lkAlign.didConverge();
+			stopReason = lkAlign.getStopReason();
+			numIterations = lkAlign.getNumIterations();
+			correlation = converged ? lkAlign.getCurrentCorrelation( image ) : 0.0;
+		}
+		else
+		{
+			final Align< T > lkAlign = new Align< T >( Views.zeroMin( Views.interval( img1, interval1 ) ),
+					new ArrayImgFactory< FloatType >( new FloatType() ), params.getWarpFunctionInstance( img1.numDimensions() ), params.memoryLean );
+			lkAlign.setMonitoring( params.earlyTermination );
 
-		if (lkAlign.didConverge())
+			res = lkAlign.align( Views.zeroMin( Views.interval( img2, interval2 ) ), params.maxNumIterations,
+					params.minParameterChange, service );
+
+			converged = lkAlign.didConverge();
+			stopReason = lkAlign.getStopReason();
+			numIterations = lkAlign.getNumIterations();
+			correlation = converged ? lkAlign.getCurrentCorrelation( Views.zeroMin( Views.interval( img2, interval2 ) ) ) : 0.0;
+		}
+
+		if (converged)
 			IOFunctions.println("(" + new Date( System.currentTimeMillis() ) + ") determined transformation:" +  Util.printCoordinates( res.getRowPackedCopy() ) );
 		else
-			IOFunctions.println("(" + new Date( System.currentTimeMillis() ) + ") registration did not converge" );
+			IOFunctions.println("(" + new Date( System.currentTimeMillis() ) + ") registration did not converge (" + stopReason + " after " + numIterations + " iterations)" );
 
 		final int nFull =  input1.numDimensions();
 		AffineTransform resFull = new AffineTransform( nFull );
@@ -214,7 +256,7 @@ public class PairwiseStitching
 			subpixelT.set( subpixelOffset[d], d, nFull );
 		resFull.preConcatenate( subpixelT );
 
-		return new ValuePair<>( resFull, lkAlign.didConverge() ? lkAlign.getCurrentCorrelation(  Views.zeroMin( Views.interval( img2, interval2 ) ) ) : 0.0 );
+		return new LucasKanadeShift<>( resFull, correlation, stopReason, numIterations );
 	}
 	/**
 	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
@@ -236,6 +278,92 @@ public class PairwiseStitching
 			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
 			final ExecutorService service)
 	{
+		return getShift( input1, input2, t1, t2, params, service, null, null, null );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), reusing the Fourier transforms of the inputs
+	 * if they were already computed for another pair
+	 *
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param service - executor service to use
+	 * @param fftCache - cache of Fourier transforms (null to not cache)
+	 * @param tile1 - key identifying input1 in the cache (e.g. views and downsampling)
+	 * @param tile2 - key identifying input2 in the cache
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final ExecutorService service,
+			final TileFFTCache fftCache, final Object tile1, final Object tile2 )
+	{
+		return getShift( input1, input2, t1, t2, params, service, fftCache, tile1, tile2, 0 );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), optionally only looking at a window
+	 * in the center of the overlap (e.g. to refine a shift that is already approximately known)
+	 *
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param service - executor service to use
+	 * @param fftCache - cache of Fourier transforms (null to not cache)
+	 * @param tile1 - key identifying input1 in the cache (e.g. views and downsampling)
+	 * @param tile2 - key identifying input2 in the cache
+	 * @param windowSize - maximal size of the overlap in every dimension, larger overlaps are cropped to their center (0 = whole overlap)
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final ExecutorService service,
+			final TileFFTCache fftCache, final Object tile1, final Object tile2,
+			final int windowSize )
+	{
+		return getShift( input1, input2, t1, t2, params, service, fftCache, tile1, tile2,
+				windowSize > 0 ? overlap -> cropToCenter( overlap, windowSize ) : null );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), only looking at a part of the overlap
+	 *
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param service - executor service to use
+	 * @param fftCache - cache of Fourier transforms (null to not cache)
+	 * @param tile1 - key identifying input1 in the cache (e.g. views and downsampling)
+	 * @param tile2 - key identifying input2 in the cache
+	 * @param crop - selects the part of the overlap (in the coordinates of either image) to use,
+	 * it has to return the same relative part for both images (null = whole overlap, crop returns null = nothing to compute)
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final ExecutorService service,
+			final TileFFTCache fftCache, final Object tile1, final Object tile2,
+			final Function< Interval, Interval > crop )
+	{
 
 		// check if we have singleton dimensions
 		boolean[] singletonDims = new boolean[input1.numDimensions()];
@@ -284,8 +412,8 @@ public class PairwiseStitching
 		final RealInterval localOverlap2 = TransformTools.getLocalOverlap( transformed2, overlap );
 
 		// round to integer interval
-		final Interval interval1 = TransformTools.getLocalRasterOverlap( localOverlap1 );
-		final Interval interval2 = TransformTools.getLocalRasterOverlap( localOverlap2 );
+		Interval interval1 = TransformTools.getLocalRasterOverlap( localOverlap1 );
+		Interval interval2 = TransformTools.getLocalRasterOverlap( localOverlap2 );
 
 		if ( debug )
 		{
@@ -317,6 +445,16 @@ public class PairwiseStitching
 			}
 		}
 
+		// only use a part of the overlap (both intervals move by the same offset, so the subpixel correction below stays the same)
+		if ( crop != null )
+		{
+			interval1 = crop.apply( interval1 );
+			interval2 = crop.apply( interval2 );
+
+			if ( interval1 == null || interval2 == null )
+				return null;
+		}
+
 		//
 		// call the phase correlation
 		//
@@ -339,16 +477,22 @@ public class PairwiseStitching
 		// full image,
 		// so we feed it RandomAccessible + an Interval we want to use for the
 		// PCM > also zero-min inside
-		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				extension, new ArrayImgFactory< FloatType >(), new FloatType(),
-				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
-
-		normalizePCM( pcm, service );
+		// the FFT and PCM buffers are pooled and returned once we found the peaks
+		final PhaseCorrelationPeak2 shiftPeak;
 
-		final PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm,
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, service );
+		if ( floatFastPath )
+		{
+			// copy both overlaps once from the primitive arrays, FFTs and cross correlation then run on plain float images
+			shiftPeak = getShiftPeak(
+					PrimitiveImgTools.copyToFloat( img1, interval1, service ), PrimitiveImgTools.copyToFloat( img2, interval2, service ),
+					interval1, interval2, extension, minOverlap, params, service, fftCache, tile1, tile2 );
+		}
+		else
+		{
+			shiftPeak = getShiftPeak(
+					Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
+					interval1, interval2, extension, minOverlap, params, service, fftCache, tile1, tile2 );
+		}
 
 		//System.out.println( "Actual overlap of best shift is: " + shiftPeak.getnPixel() );
 
@@ -398,9 +542,229 @@ public class PairwiseStitching
 		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
 	}
 
+	private static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeak(
+			final RandomAccessibleInterval< T > overlap1, final RandomAccessibleInterval< S > overlap2,
+			final Interval interval1, final Interval interval2,
+			final int[] extension, final long minOverlap,
+			final PairwiseStitchingParameters params,
+			final ExecutorService service,
+			final TileFFTCache fftCache, final Object tile1, final Object tile2 )
+	{
+		try ( final PCMWorkspace ws = fftCache == null ?
+				PhaseCorrelation2.calculatePCMPooled( overlap1, overlap2, extension, params.pcmPoolBytes, service ) :
+				fftCache.calculatePCM( tile1, interval1, overlap1, tile2, interval2, overlap2, extension, params.pcmPoolBytes, service ) )
+		{
+			final RandomAccessibleInterval< FloatType > pcm = ws.getPCM();
+
+			normalizePCM( pcm, service );
+
+			return PhaseCorrelation2.getShift( pcm, overlap1, overlap2,
+					params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, params.useIntegralImages,
+					params.orderedPeakVerification, params.peakVerificationStatistics, service );
+		}
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), computed independently on up to
+	 * {@link PairwiseStitchingParameters#numBlocks} blocks of the overlap that are spread evenly over it.
+	 * The shift that most blocks agree on (within {@link #blockConsensusTolerance} pixels, weighted by their
+	 * cross correlation) wins, the result is the weighted average of these blocks. The whole overlap is still
+	 * loaded (input1 and input2), only the Fourier transforms and PCMs are computed per block, which bounds their
+	 * size for very large overlaps. Blocks of empty regions are simply outvoted.
+	 *
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param service - executor service to use, blocks are computed in parallel if it is a {@link ForkJoinPool}
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShiftBlockwise(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final ExecutorService service )
+	{
+		final List< Callable< Pair< Translation, Double > > > tasks = new ArrayList<>();
+		for ( int b = 0; b < params.numBlocks; ++b )
+		{
+			final int block = b;
+			tasks.add( () -> getShift( input1, input2, t1, t2, params, service, null, null, null,
+					overlap -> getBlock( overlap, params.blockSize, params.numBlocks, block ) ) );
+		}
+
+		final List< Pair< Translation, Double > > results = new ArrayList<>();
+
+		try
+		{
+			// nested tasks are safe in a work-stealing pool (waiting threads help), in other pools they could deadlock
+			if ( service instanceof ForkJoinPool )
+			{
+				for ( final Future< Pair< Translation, Double > > f : service.invokeAll( tasks ) )
+					results.add( f.get() );
+			}
+			else
+			{
+				for ( final Callable< Pair< Translation, Double > > task : tasks )
+					results.add( task.call() );
+			}
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to compute block-wise shift: " + e, e );
+		}
+
+		// only blocks that found a positively correlated shift vote
+		results.removeIf( r -> r == null || !( r.getB() > 0 ) );
+
+		return consensus( results, blockConsensusTolerance );
+	}
+
+	/**
+	 * Combine the shifts of blocks: the shift with the largest support (sum of the correlations of all blocks that
+	 * agree with it) wins, the result is the average of all blocks that agree with it, weighted by their correlation.
+	 *
+	 * @param results - shifts and (positive) cross correlations of the blocks
+	 * @param tolerance - shifts agree if they differ by at most this much in every dimension
+	 * @return combined shift and cross correlation or null if there are no results
+	 */
+	protected static Pair< Translation, Double > consensus( final List< Pair< Translation, Double > > results, final double tolerance )
+	{
+		if ( results.size() == 0 )
+			return null;
+
+		// the shift with the largest support (sum of correlations of all blocks that agree with it)
+		Pair< Translation, Double > best = null;
+		double bestSupport = -1;
+
+		for ( final Pair< Translation, Double > candidate : results )
+		{
+			double support = 0;
+			for ( final Pair< Translation, Double > other : results )
+				if ( agree( candidate.getA(), other.getA(), tolerance ) )
+					support += other.getB();
+
+			if ( support > bestSupport )
+			{
+				bestSupport = support;
+				best = candidate;
+			}
+		}
+
+		// weighted average of all blocks that agree with it
+		final int n = best.getA().numDimensions();
+		final double[] shift = new double[ n ];
+		double sumR = 0, sumR2 = 0;
+		int numAgreeing = 0;
+
+		for ( final Pair< Translation, Double > other : results )
+			if ( agree( best.getA(), other.getA(), tolerance ) )
+			{
+				for ( int d = 0; d < n; ++d )
+					shift[ d ] += other.getB() * other.getA().getTranslation( d );
+
+				sumR += other.getB();
+				sumR2 += other.getB() * other.getB();
+				++numAgreeing;
+			}
+
+		for ( int d = 0; d < n; ++d )
+			shift[ d ] /= sumR;
+
+		if ( debug )
+			System.out.println( numAgreeing + " of " + results.size() + " blocks agree on shift " + Util.printCoordinates( shift ) );
+
+		return new ValuePair<>( new Translation( shift ), sumR2 / sumR );
+	}
+
+	protected static boolean agree( final TranslationGet a, final TranslationGet b, final double tolerance )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( Math.abs( a.getTranslation( d ) - b.getTranslation( d ) ) > tolerance )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param interval - the interval (e.g. overlap) to divide into blocks
+	 * @param blockSize - size of the blocks in every dimension (smaller if the interval is smaller)
+	 * @param numBlocks - how many blocks are used, they are spread evenly over the interval
+	 * @param index - which of the blocks
+	 * @return the block, null if the interval is divided into fewer blocks than index
+	 */
+	public static Interval getBlock( final Interval interval, final long blockSize, final int numBlocks, final int index )
+	{
+		final int n = interval.numDimensions();
+
+		// number of blocks along each dimension to cover the interval
+		final long[] numCells = new long[ n ];
+		long numTotal = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			numCells[ d ] = Math.max( 1, ( interval.dimension( d ) + blockSize - 1 ) / blockSize );
+			numTotal *= numCells[ d ];
+		}
+
+		if ( index >= Math.min( numBlocks, numTotal ) )
+			return null;
+
+		// pick evenly spread blocks if there are more than we use
+		long cell = numTotal <= numBlocks ? index : ( index * numTotal ) / numBlocks;
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final long pos = cell % numCells[ d ];
+			cell /= numCells[ d ];
+
+			final long size = Math.min( blockSize, interval.dimension( d ) );
+			final long free = interval.dimension( d ) - size;
+
+			// first and last block touch the borders of the interval
+			min[ d ] = interval.min( d ) + ( numCells[ d ] > 1 ? Math.round( (double) pos * free / ( numCells[ d ] - 1 ) ) : free / 2 );
+			max[ d ] = min[ d ] + size - 1;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @param interval - the interval
+	 * @param size - maximal size in every dimension
+	 * @return the centered part of the interval that is at most size in every dimension
+	 */
+	public static Interval cropToCenter( final Interval interval, final long size )
+	{
+		final long[] min = new long[ interval.numDimensions() ];
+		final long[] max = new long[ interval.numDimensions() ];
+
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+		{
+			final long dim = Math.min( size, interval.dimension( d ) );
+			min[ d ] = interval.min( d ) + ( interval.dimension( d ) - dim ) / 2;
+			max[ d ] = min[ d ] + dim - 1;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
 	public static void normalizePCM( final RandomAccessibleInterval< FloatType > pcm, final ExecutorService service )
 	{
 		// so that the peak doesn't stick out too much, that interferes with the subpixel detection
+		final float[] data = PrimitiveImgTools.getFloatStorage( pcm );
+
+		if ( data != null )
+		{
+			PrimitiveImgTools.sqrtAdjust( data, PrimitiveImgTools.min( data, service ), service );
+			return;
+		}
+
 		final float min = min( pcm, service );
 
 		adjustPCM( pcm, min, service );
@@ -514,7 +878,7 @@ public class PairwiseStitching
 		{
 			for ( int j = i + 1; j < indexes.size(); j++ )
 			{
-				Pair< AffineTransform, Double > resT = getShiftLucasKanade( rais.get( indexes.get( i ) ), rais.get( indexes.get( j ) ),
+				LucasKanadeShift< AffineTransform > resT = getShiftLucasKanade( rais.get( indexes.get( i ) ), rais.get( indexes.get( j ) ),
 						translations.get( indexes.get( i ) ), translations.get( indexes.get( j ) ), params, service );
 
 				if ( resT != null )
@@ -524,7 +888,7 @@ public class PairwiseStitching
 					Set<C> setB = new HashSet<>();
 					setA.add( indexes.get( j ) );
 					Pair< Group<C>, Group<C> > key = new ValuePair<>(new Group<>(setA), new Group<>(setB));
-					result.add( new PairwiseStitchingResult< C >( key, null, resT.getA() , resT.getB(), 0.0 ) );
+					result.add( new LucasKanadeStitchingResult< C >( key, null, resT.getA() , resT.getB(), 0.0, resT.getStopReason(), resT.getNumIterations() ) );
 				}
 				
 			}
@@ -22,6 +22,7 @@
 package net.preibisch.stitcher.algorithm;
 
 import ij.gui.GenericDialog;
+import net.imglib2.algorithm.phasecorrelation.PeakVerificationStatistics;
 import net.preibisch.mvrecon.Threads;
 
 public class PairwiseStitchingParameters
@@ -35,6 +36,38 @@ public class PairwiseStitchingParameters
 	public boolean manualNumTasks;
 	public int numTasks;
 
+	// compute the Fourier transform of each tile (overlap) only once and reuse it for all its pairs
+	public boolean cacheTileFFTs = false;
+
+	// verify the PCM peaks using integral images of the overlaps (faster for many peaks, needs more memory)
+	public boolean useIntegralImages = false;
+
+	// check the PCM peaks in descending order, skip the ones with too little overlap and,
+	// if useIntegralImages is set, stop the cross correlation of a peak once it cannot win
+	public boolean orderedPeakVerification = false;
+
+	// counts of the ordered peak verification of one run (set by the caller, not a parameter of the result)
+	public PeakVerificationStatistics peakVerificationStatistics = null;
+
+	// maximal size of the pooled FFT and PCM buffers of one run (set by the caller, see PCMWorkspace), negative = PCMWorkspace.maxPooledBytes
+	public long pcmPoolBytes = -1;
+
+	// find the shift on an image pyramid (each level downsampled 2x more), 1 = only at the selected downsampling
+	public int coarseToFineLevels = 1;
+
+	// size of the window (in pixels per dimension) around the predicted shift used to refine it at the finer pyramid levels
+	public int refinementWindowSize = 64;
+
+	// compute the shift independently on this many blocks of the overlap and combine them by consensus, 1 = whole overlap at once
+	// (the whole overlap is still loaded, only the Fourier transforms are computed per block)
+	public int numBlocks = 1;
+
+	// size of the blocks (in pixels per dimension)
+	public int blockSize = 256;
+
+	// skip pairs whose overlap has less signal (relative standard deviation on the coarsest mipmap level, see OverlapSignalCheck), 0 = off
+	public double minOverlapSignal = 0;
+
 	public PairwiseStitchingParameters()
 	{
 		this(0, 5, true, false, false, false, false, (int) Math.max( 2, Threads.numThreads() / 6 ));
@@ -60,13 +93,35 @@ public class PairwiseStitchingParameters
 		this.numTasks = numTasks;
 	}
 
+	/**
+	 * @return all parameters that can change the result of a pairwise registration
+	 * (not the ones that only change how fast or with how much memory it is computed)
+	 */
+	public String getResultSignature()
+	{
+		return "minOverlap=" + minOverlap + ",peaksToCheck=" + peaksToCheck + ",doSubpixel=" + doSubpixel +
+				",interpolateCrossCorrelation=" + interpolateCrossCorrelation + ",useWholeImage=" + useWholeImage +
+				",useIntegralImages=" + useIntegralImages + ",orderedPeakVerification=" + orderedPeakVerification +
+				( coarseToFineLevels > 1 ? ",coarseToFineLevels=" + coarseToFineLevels + ",refinementWindowSize=" + refinementWindowSize : "" ) +
+				( numBlocks > 1 ? ",numBlocks=" + numBlocks + ",blockSize=" + blockSize : "" ) +
+				( minOverlapSignal > 0 ? ",minOverlapSignal=" + minOverlapSignal : "" );
+	}
+
 	public static void addQueriesToGD(final GenericDialog gd)
 	{
 		gd.addNumericField( "number_of_peaks_to_check", 5, 0 );
 		gd.addNumericField( "minimal_overlap (percent of current overlap)", 0, 0 );
 		gd.addCheckbox( "subpixel_accuracy", true );
 		gd.addCheckbox( "interpolate_subpixel_cross_correlation (warning: slow!)", false );
+		gd.addCheckbox( "verify_peaks_using_integral_images (faster for many peaks)", false );
+		gd.addCheckbox( "verify_peaks_in_order_and_stop_early (faster for many peaks, stops early only with integral images)", false );
 		gd.addCheckbox( "use_whole_image (warning: slow!)", false );
+		gd.addNumericField( "coarse_to_fine_levels (1 = off, each level downsampled 2x)", 1, 0 );
+		gd.addNumericField( "refinement_window_size (px)", 64, 0 );
+		gd.addNumericField( "number_of_blocks (1 = whole overlap, for very large overlaps)", 1, 0 );
+		gd.addNumericField( "block_size (px)", 256, 0 );
+		gd.addNumericField( "skip_overlaps_with_low_signal (min. relative std. dev., 0 = off)", 0, 2 );
+		gd.addCheckbox( "reuse_Fourier_transforms_of_tiles (needs more memory)", false );
 		gd.addCheckbox( "manually_set_number_of_parallel_tasks", false );
 		gd.addNumericField( "number_of_parallel_tasks", (int) Math.max( 2, Threads.numThreads() / 6 ), 0 );
 		gd.addCheckbox( "show_expert_grouping_options", false );
@@ -81,12 +136,30 @@ public class PairwiseStitchingParameters
 		double minOverlap =  Math.min( Math.max( gd.getNextNumber()/100 , 0), 1);
 		boolean doSubpixel = gd.getNextBoolean();
 		boolean interpolateSubpixel = gd.getNextBoolean();
+		boolean useIntegralImages = gd.getNextBoolean();
+		boolean orderedPeakVerification = gd.getNextBoolean();
 		boolean useWholeImage = gd.getNextBoolean();
+		int coarseToFineLevels = Math.max( 1, (int) gd.getNextNumber() );
+		int refinementWindowSize = Math.max( 8, (int) gd.getNextNumber() );
+		int numBlocks = Math.max( 1, (int) gd.getNextNumber() );
+		int blockSize = Math.max( 16, (int) gd.getNextNumber() );
+		double minOverlapSignal = Math.max( 0, gd.getNextNumber() );
+		boolean cacheTileFFTs = gd.getNextBoolean();
 		boolean manualNumTasks = gd.getNextBoolean();
 		int numTasks = (int) (manualNumTasks ? gd.getNextNumber() : Math.max( 2, Threads.numThreads() / 6 ));
 		boolean showExpertGrouping = gd.getNextBoolean();
 
-		return new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage, manualNumTasks, numTasks);
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage, manualNumTasks, numTasks);
+		params.cacheTileFFTs = cacheTileFFTs;
+		params.useIntegralImages = useIntegralImages;
+		params.orderedPeakVerification = orderedPeakVerification;
+		params.coarseToFineLevels = coarseToFineLevels;
+		params.refinementWindowSize = refinementWindowSize;
+		params.numBlocks = numBlocks;
+		params.blockSize = blockSize;
+		params.minOverlapSignal = minOverlapSignal;
+
+		return params;
 	}
 
 	public static PairwiseStitchingParameters askUserForParameters()
@@ -0,0 +1,481 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
+
+/**
+ * Loops on primitive arrays for the common case of images that are backed by {@link ArrayImg}s or
+ * {@link AbstractCellImg}s of {@link UnsignedShortType} or {@link FloatType}. They avoid the per-pixel virtual calls
+ * of (stacked) views, cursors and types, so the JIT can compile them into tight (vectorized) loops.
+ * Everything else falls back to the generic path.
+ */
+public class PrimitiveImgTools
+{
+	/**
+	 * copy an interval of an image into a new float image, views (intervals, translations, zero-extension that
+	 * is not used, {@link RAIProxy}) on top of an {@link ArrayImg} or {@link AbstractCellImg} of
+	 * {@link UnsignedShortType} or {@link FloatType} are copied line by line from the primitive arrays
+	 *
+	 * @param img the image
+	 * @param interval the interval to copy (in the coordinates of img)
+	 * @param service executor service (null to copy in the calling thread)
+	 * @param <T> pixel type
+	 * @return zero-min copy of the interval
+	 */
+	public static < T extends RealType< T > > ArrayImg< FloatType, FloatArray > copyToFloat(
+			final RandomAccessibleInterval< T > img,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( interval );
+		final float[] data = new float[ (int) Intervals.numElements( dims ) ];
+
+		if ( !copyPrimitive( img, interval, data, service ) )
+			copyGeneric( Views.interval( img, interval ), data, service );
+
+		return ArrayImgs.floats( data, dims );
+	}
+
+	/**
+	 * @param img the image
+	 * @return the array that stores the pixels of a float {@link ArrayImg} (null for any other image)
+	 */
+	public static float[] getFloatStorage( final RandomAccessibleInterval< ? > img )
+	{
+		if ( !ArrayImg.class.isInstance( img ) || !FloatType.class.isInstance( ( (ArrayImg< ?, ? >) img ).firstElement() ) )
+			return null;
+
+		final Object access = ( (ArrayImg< ?, ? >) img ).update( null );
+
+		return FloatArray.class.isInstance( access ) ? ( (FloatArray) access ).getCurrentStorageArray() : null;
+	}
+
+	/**
+	 * @param data the pixels
+	 * @param service executor service
+	 * @return the minimum
+	 */
+	public static float min( final float[] data, final ExecutorService service )
+	{
+		final List< Callable< Float > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( data.length ) )
+		{
+			tasks.add( () ->
+			{
+				final int start = (int) portion.getStartPosition();
+				final int end = start + (int) portion.getLoopSize();
+
+				float min = Float.MAX_VALUE;
+				for ( int i = start; i < end; ++i )
+					min = Math.min( min, data[ i ] );
+
+				return min;
+			} );
+		}
+
+		float min = Float.MAX_VALUE;
+		for ( final float m : invokeAll( tasks, service ) )
+			min = Math.min( min, m );
+
+		return min;
+	}
+
+	/**
+	 * replace every value v by sqrt( v - min + 0.01 ) (see {@link PairwiseStitching#adjustPCM})
+	 * @param data the pixels
+	 * @param min the minimum
+	 * @param service executor service
+	 */
+	public static void sqrtAdjust( final float[] data, final float min, final ExecutorService service )
+	{
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( data.length ) )
+		{
+			tasks.add( () ->
+			{
+				final int start = (int) portion.getStartPosition();
+				final int end = start + (int) portion.getLoopSize();
+
+				for ( int i = start; i < end; ++i )
+					data[ i ] = (float) Math.sqrt( data[ i ] - min + 0.01 );
+
+				return null;
+			} );
+		}
+
+		invokeAll( tasks, service );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static boolean copyPrimitive( final RandomAccessibleInterval< ? > img, final Interval interval, final float[] data, final ExecutorService service )
+	{
+		final int n = img.numDimensions();
+
+		// find the image below the views, the interval in its coordinates is interval + offset
+		final long[] offset = new long[ n ];
+		final Object base = unwrap( img, interval, offset );
+
+		if ( base == null )
+			return false;
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = interval.min( d ) + offset[ d ];
+			max[ d ] = interval.max( d ) + offset[ d ];
+		}
+
+		final Interval source = (Interval) base;
+		for ( int d = 0; d < n; ++d )
+			if ( min[ d ] < source.min( d ) || max[ d ] > source.max( d ) )
+				return false;
+
+		final Object type = ( (IterableInterval< ? >) base ).firstElement();
+		if ( !UnsignedShortType.class.isInstance( type ) && !FloatType.class.isInstance( type ) )
+			return false;
+
+		final long[] dims = Intervals.dimensionsAsLongArray( new FinalInterval( min, max ) );
+
+		if ( ArrayImg.class.isInstance( base ) )
+		{
+			final Object array = storage( ( (ArrayImg< ?, ? >) base ).update( null ) );
+			if ( array == null )
+				return false;
+
+			final long[] blockMin = new long[ n ];
+			final long[] blockDims = Intervals.dimensionsAsLongArray( source );
+
+			// split into parts of lines
+			final long numLines = Intervals.numElements( dims ) / dims[ 0 ];
+			final List< Callable< Void > > tasks = new ArrayList<>();
+
+			for ( final ImagePortion portion : FusionTools.divideIntoPortions( numLines ) )
+				tasks.add( () ->
+				{
+					copyLines( array, blockMin, blockDims, min, max, data, portion.getStartPosition(), portion.getLoopSize() );
+					return null;
+				} );
+
+			invokeAll( tasks, service );
+			return true;
+		}
+		else
+		{
+			final AbstractCellImg< ?, ?, ? extends Cell< ? >, ? > cellImg = (AbstractCellImg< ?, ?, ? extends Cell< ? >, ? >) base;
+			final CellGrid grid = cellImg.getCellGrid();
+			final int[] cellDims = new int[ n ];
+			grid.cellDimensions( cellDims );
+
+			// all cells that intersect the interval
+			final long[] gridMin = new long[ n ];
+			final long[] gridMax = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				gridMin[ d ] = min[ d ] / cellDims[ d ];
+				gridMax[ d ] = max[ d ] / cellDims[ d ];
+			}
+
+			final List< Callable< Void > > tasks = new ArrayList<>();
+			final Cursor< ? > gridCursor = Views.interval( Views.extendBorder( cellImg.getCells() ), gridMin, gridMax ).localizingCursor();
+
+			while ( gridCursor.hasNext() )
+			{
+				gridCursor.fwd();
+
+				final long[] gridPos = new long[ n ];
+				gridCursor.localize( gridPos );
+
+				tasks.add( () ->
+				{
+					final RandomAccess< ? extends Cell< ? > > cellAccess = cellImg.getCells().randomAccess();
+					cellAccess.setPosition( gridPos );
+					final Object array = storage( cellAccess.get().getData() );
+
+					if ( array == null )
+						throw new IllegalStateException( "unsupported cell data" );
+
+					final long[] cellMin = new long[ n ];
+					final int[] dimsOfCell = new int[ n ];
+					grid.getCellDimensions( gridPos, cellMin, dimsOfCell );
+
+					final long[] blockDims = new long[ n ];
+					final long[] isMin = new long[ n ];
+					final long[] isMax = new long[ n ];
+					for ( int d = 0; d < n; ++d )
+					{
+						blockDims[ d ] = dimsOfCell[ d ];
+						isMin[ d ] = Math.max( min[ d ], cellMin[ d ] );
+						isMax[ d ] = Math.min( max[ d ], cellMin[ d ] + dimsOfCell[ d ] - 1 );
+					}
+
+					copyLines( array, cellMin, blockDims, isMin, isMax, data, min, dims );
+					return null;
+				} );
+			}
+
+			try
+			{
+				invokeAll( tasks, service );
+			}
+			catch ( final RuntimeException e )
+			{
+				// e.g. volatile or otherwise unsupported cells, fall back to the generic path
+				return false;
+			}
+
+			return true;
+		}
+	}
+
+	/*
+	 * copy the lines [firstLine, firstLine + numLines) of the interval [min, max], which has to be within the block, into data (which has the size of the interval)
+	 */
+	protected static void copyLines(
+			final Object array, final long[] blockMin, final long[] blockDims,
+			final long[] min, final long[] max,
+			final float[] data, final long firstLine, final long numLines )
+	{
+		final long[] dims = new long[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			dims[ d ] = max[ d ] - min[ d ] + 1;
+
+		final long[] pos = new long[ min.length ];
+		long line = firstLine;
+		for ( int d = 1; d < min.length; ++d )
+		{
+			pos[ d ] = min[ d ] + line % dims[ d ];
+			line /= dims[ d ];
+		}
+
+		for ( long l = 0; l < numLines; ++l )
+		{
+			pos[ 0 ] = min[ 0 ];
+			copyLine( array, index( pos, blockMin, blockDims ), data, index( pos, min, dims ), (int) dims[ 0 ] );
+			next( pos, min, max );
+		}
+	}
+
+	/*
+	 * copy all lines of the part [isMin, isMax] of the interval that starts at dataMin and has dataDims (the size of data), the part has to be within the block
+	 */
+	protected static void copyLines(
+			final Object array, final long[] blockMin, final long[] blockDims,
+			final long[] isMin, final long[] isMax,
+			final float[] data, final long[] dataMin, final long[] dataDims )
+	{
+		for ( int d = 0; d < isMin.length; ++d )
+			if ( isMax[ d ] < isMin[ d ] )
+				return;
+
+		final long[] pos = isMin.clone();
+		final int length = (int) ( isMax[ 0 ] - isMin[ 0 ] + 1 );
+
+		do
+		{
+			copyLine( array, index( pos, blockMin, blockDims ), data, index( pos, dataMin, dataDims ), length );
+		}
+		while ( next( pos, isMin, isMax ) );
+	}
+
+	protected static void copyLine( final Object array, final int srcIndex, final float[] data, final int dstIndex, final int length )
+	{
+		if ( array instanceof float[] )
+		{
+			System.arraycopy( (float[]) array, srcIndex, data, dstIndex, length );
+		}
+		else
+		{
+			final short[] src = (short[]) array;
+			for ( int i = 0; i < length; ++i )
+				data[ dstIndex + i ] = src[ srcIndex + i ] & 0xffff;
+		}
+	}
+
+	/*
+	 * move to the next line (dimensions > 0), false if there is none
+	 */
+	protected static boolean next( final long[] pos, final long[] min, final long[] max )
+	{
+		for ( int d = 1; d < pos.length; ++d )
+		{
+			if ( pos[ d ] < max[ d ] )
+			{
+				++pos[ d ];
+				return true;
+			}
+
+			pos[ d ] = min[ d ];
+		}
+
+		return false;
+	}
+
+	protected static int index( final long[] pos, final long[] min, final long[] dims )
+	{
+		long index = 0;
+		for ( int d = pos.length - 1; d >= 0; --d )
+			index = index * dims[ d ] + pos[ d ] - min[ d ];
+
+		return (int) index;
+	}
+
+	protected static Object storage( final Object access )
+	{
+		if ( !ArrayDataAccess.class.isInstance( access ) )
+			return null;
+
+		final Object array = ( (ArrayDataAccess< ? >) access ).getCurrentStorageArray();
+
+		return array instanceof float[] || array instanceof short[] ? array : null;
+	}
+
+	/*
+	 * go through the views on top of an ArrayImg or AbstractCellImg, accumulate their translation in offset
+	 * and return the image (null if there is any other view or image)
+	 */
+	protected static Object unwrap( final RandomAccessibleInterval< ? > img, final Interval interval, final long[] offset )
+	{
+		final int n = img.numDimensions();
+		Object current = img;
+
+		while ( true )
+		{
+			if ( ArrayImg.class.isInstance( current ) || AbstractCellImg.class.isInstance( current ) )
+				return ( (Interval) current ).numDimensions() == n ? current : null;
+			else if ( RAIProxy.class.isInstance( current ) )
+				current = ( (RAIProxy< ? >) current ).getSource();
+			else if ( IntervalView.class.isInstance( current ) )
+				current = ( (IntervalView< ? >) current ).getSource();
+			else if ( MixedTransformView.class.isInstance( current ) )
+			{
+				final MixedTransform t = ( (MixedTransformView< ? >) current ).getTransformToSource();
+
+				if ( t.numSourceDimensions() != n || t.numTargetDimensions() != n )
+					return null;
+
+				for ( int d = 0; d < n; ++d )
+					if ( t.getComponentZero( d ) || t.getComponentInversion( d ) || t.getComponentMapping( d ) != d )
+						return null;
+
+				for ( int d = 0; d < n; ++d )
+					offset[ d ] += t.getTranslation( d );
+
+				current = ( (MixedTransformView< ? >) current ).getSource();
+			}
+			else if ( ExtendedRandomAccessibleInterval.class.isInstance( current ) )
+			{
+				// only if none of the extended (out of bounds) values are needed
+				final RandomAccessibleInterval< ? > source = ( (ExtendedRandomAccessibleInterval< ?, ? >) current ).getSource();
+
+				for ( int d = 0; d < n; ++d )
+					if ( interval.min( d ) + offset[ d ] < source.min( d ) || interval.max( d ) + offset[ d ] > source.max( d ) )
+						return null;
+
+				current = source;
+			}
+			else
+				return null;
+		}
+	}
+
+	protected static < T extends RealType< T > > void copyGeneric( final RandomAccessibleInterval< T > img, final float[] data, final ExecutorService service )
+	{
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( data.length ) )
+		{
+			tasks.add( () ->
+			{
+				final Cursor< T > c = Views.flatIterable( img ).cursor();
+				c.jumpFwd( portion.getStartPosition() );
+
+				final int start = (int) portion.getStartPosition();
+				final int end = start + (int) portion.getLoopSize();
+
+				for ( int i = start; i < end; ++i )
+					data[ i ] = c.next().getRealFloat();
+
+				return null;
+			} );
+		}
+
+		invokeAll( tasks, service );
+	}
+
+	protected static < T > List< T > invokeAll( final List< Callable< T > > tasks, final ExecutorService service )
+	{
+		final List< T > results = new ArrayList<>();
+
+		try
+		{
+			if ( service == null )
+			{
+				for ( final Callable< T > task : tasks )
+					results.add( task.call() );
+			}
+			else
+			{
+				for ( final Future< T > f : service.invokeAll( tasks ) )
+					results.add( f.get() );
+			}
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to process image: " + e, e );
+		}
+
+		return results;
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the primitive-array fast path of {@link PrimitiveImgTools} to the generic (view and cursor based) path
+ * for copying an overlap, normalizing the PCM and the whole {@link PairwiseStitching#getShift}.
+ *
+ * Run with the edge length of the overlap as first argument (default: 256).
+ */
+public class PrimitiveImgToolsBenchmark
+{
+	public static void main( String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 256;
+		final ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		// a 16 bit tile stored in cells, the overlap is in its center
+		final CellImg< UnsignedShortType, ? > tile = new CellImgFactory<>( new UnsignedShortType(), 64 ).create( 2 * size, 2 * size, 2 * size );
+		final Random rnd = new Random( 42 );
+		for ( final UnsignedShortType t : tile )
+			t.set( rnd.nextInt( 4096 ) );
+
+		final FinalInterval overlap = FinalInterval.createMinSize( size / 2, size / 2, size / 2, size, size, size );
+		final RandomAccessibleInterval< UnsignedShortType > view = Views.zeroMin( Views.interval( Views.extendZero( tile ), overlap ) );
+
+		System.out.println( "copy " + size + "^3 pixels of a 16 bit CellImg to float" );
+
+		System.out.println( "generic:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			final float[] data = new float[ size * size * size ];
+			PrimitiveImgTools.copyGeneric( view, data, service );
+		} );
+
+		System.out.println( "primitive arrays:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			PrimitiveImgTools.copyToFloat( view, view, service );
+		} );
+
+		final ArrayImg< FloatType, FloatArray > pcm = ArrayImgs.floats( 2 * size, 2 * size, 2 * size );
+		for ( final FloatType t : pcm )
+			t.set( rnd.nextFloat() );
+
+		System.out.println( "normalize a " + ( 2 * size ) + "^3 PCM" );
+
+		System.out.println( "generic:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			PairwiseStitching.adjustPCM( pcm, PairwiseStitching.min( pcm, service ), service );
+		} );
+
+		System.out.println( "primitive arrays:" );
+		BenchmarkHelper.benchmarkAndPrint( 10, true, () ->
+		{
+			PairwiseStitching.normalizePCM( pcm, service );
+		} );
+
+		// the same tile shifted by a few pixels
+		final RandomAccessibleInterval< UnsignedShortType > img1 = Views.zeroMin( Views.interval( tile, FinalInterval.createMinSize( 0, 0, 0, size, size, size ) ) );
+		final RandomAccessibleInterval< UnsignedShortType > img2 = Views.zeroMin( Views.interval( tile, FinalInterval.createMinSize( 5, 3, 2, size, size, size ) ) );
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+
+		System.out.println( "getShift of two " + size + "^3 images" );
+
+		for ( final boolean fastPath : new boolean[] { false, true } )
+		{
+			System.out.println( fastPath ? "primitive arrays:" : "generic:" );
+			PairwiseStitching.floatFastPath = fastPath;
+			BenchmarkHelper.benchmarkAndPrint( 5, true, () ->
+			{
+				PairwiseStitching.getShift( img1, img2, new Translation3D(), new Translation3D( 5, 3, 2 ), params, service );
+			} );
+		}
+
+		PairwiseStitching.floatFastPath = true;
+		service.shutdown();
+	}
+}
@@ -21,170 +21,488 @@
  */
 package net.preibisch.stitcher.algorithm;
 
-import java.util.concurrent.ExecutorService;
+import java.util.Arrays;
 
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Positionable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.downsampling.Downsample;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 
-public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterval< T >
+/**
+ * A RandomAccessibleInterval that loads (and downsamples) a view lazily on first access. Concurrent first accesses
+ * wait for a single load. The loaded pixels can be dropped via {@link #release()} (or {@link #close()}),
+ * the next access will load them again.
+ *
+ * @param <T> pixel type
+ */
+public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterval< T >, AutoCloseable
 {
-	private RandomAccessibleInterval< T > rai;
+	private volatile RandomAccessibleInterval< T > rai;
 	private BasicImgLoader imgLoader;
 	private ViewId vid;
 	private long[] downsampleFactors;
+	private ImageCache< Key > cache;
+	private Interval restriction;
+
+	/**
+	 * key for caching the (downsampled) image of one view, optionally restricted to an interval
+	 */
+	public static class Key
+	{
+		private final ViewId vid;
+		private final long[] downsampleFactors;
+		private final long[] min, max;
+
+		public Key( final ViewId vid, final long[] downsampleFactors )
+		{
+			this( vid, downsampleFactors, null );
+		}
+
+		public Key( final ViewId vid, final long[] downsampleFactors, final Interval restriction )
+		{
+			this.vid = new ViewId( vid.getTimePointId(), vid.getViewSetupId() );
+			this.downsampleFactors = downsampleFactors.clone();
+			this.min = restriction == null ? null : Intervals.minAsLongArray( restriction );
+			this.max = restriction == null ? null : Intervals.maxAsLongArray( restriction );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * ( 31 * vid.hashCode() + Arrays.hashCode( downsampleFactors ) ) + Arrays.hashCode( min ) ) + Arrays.hashCode( max );
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = (Key) obj;
+			return vid.equals( other.vid ) && Arrays.equals( downsampleFactors, other.downsampleFactors ) &&
+					Arrays.equals( min, other.min ) && Arrays.equals( max, other.max );
+		}
+	}
 
 	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors )
+	{
+		this( imgLoader, vid, downsampleFactors, null );
+	}
+
+	/**
+	 * @param imgLoader the image loader
+	 * @param vid the view to load
+	 * @param downsampleFactors downsampling to apply after loading
+	 * @param cache cache to share loaded images with other proxies (may be null)
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, ImageCache< Key > cache )
+	{
+		this( imgLoader, vid, downsampleFactors, cache, null );
+	}
+
+	/**
+	 * @param imgLoader the image loader
+	 * @param vid the view to load
+	 * @param downsampleFactors downsampling to apply after loading
+	 * @param cache cache to share loaded images with other proxies (may be null)
+	 * @param restriction only load the pixels within this interval (in downsampled pixel coordinates, may be null),
+	 * the proxy still has the dimensions of the whole downsampled image, but is zero outside of the restriction
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, ImageCache< Key > cache, Interval restriction )
 	{
 		this.rai = null;
 		this.downsampleFactors = downsampleFactors;
 		this.imgLoader = imgLoader;
 		this.vid = vid;
+		this.cache = cache;
+		this.restriction = restriction;
 	}
-	
+
+	public Interval getRestriction() { return restriction; }
+
+	/**
+	 * @return the image this proxy stands for (loads it if necessary)
+	 */
+	public RandomAccessibleInterval< T > getSource() { return loadIfNecessary(); }
+
+	public BasicImgLoader getImgLoader() { return imgLoader; }
+	public ViewId getViewId() { return vid; }
+
+	/**
+	 * @return the loaded image (loads it if necessary)
+	 */
+	private RandomAccessibleInterval< T > loadIfNecessary()
+	{
+		RandomAccessibleInterval< T > img = rai;
+
+		if ( img != null )
+			return img;
+
+		// only one thread loads, the others wait for it
+		synchronized ( this )
+		{
+			img = rai;
+
+			if ( img != null )
+				return img;
+
+			if ( cache == null )
+				img = restriction == null ? load() : loadRestricted();
+			else if ( restriction == null )
+				img = cache.get( new Key( vid, downsampleFactors ), this::load );
+			else
+			{
+				// if another pair already loaded the whole view, use it
+				final RandomAccessibleInterval< T > full = cache.getIfPresent( new Key( vid, downsampleFactors ) );
+				img = full != null ? full : cache.get( new Key( vid, downsampleFactors, restriction ), this::loadRestricted );
+			}
+
+			rai = img;
+			return img;
+		}
+	}
+
+	/**
+	 * drop the reference to the loaded pixels (they stay in the cache if there is one), the next access loads them again
+	 */
+	public synchronized void release()
+	{
+		rai = null;
+	}
+
+	public boolean isLoaded()
+	{
+		return rai != null;
+	}
+
+	@Override
+	public void close()
+	{
+		release();
+	}
+
 	@SuppressWarnings("unchecked")
-	private void loadIfNecessary()
+	private RandomAccessibleInterval< T > load()
+	{
+		return DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors, false ).getA();
+	}
+
+	private RandomAccessibleInterval< T > loadRestricted()
 	{
-		if (rai == null)
-			rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors, false ).getA();
+		final RandomAccessibleInterval< T > restricted = openAndDownsampleRestricted( imgLoader, vid, downsampleFactors, restriction );
+		return restricted != null ? restricted : load();
+	}
+
+	/**
+	 * Open a view downsampled by the given factors, but only read and downsample the pixels within an interval of
+	 * the downsampled image. The mipmap level is the one DownsampleTools.openAndDownsample() picks (identified via
+	 * DownsampleTools.getMipMapTransform()), only the remaining downsampling (power of two) is done by simple2x on
+	 * the cropped part, so the result has the same values as the crop of the whole downsampled image. If the level
+	 * cannot be identified, null is returned and the caller should load the whole view.
+	 *
+	 * @param imgLoader the image loader
+	 * @param vid the view
+	 * @param downsampleFactors the downsampling factors
+	 * @param restriction interval in downsampled pixel coordinates
+	 * @param <T> pixel type
+	 * @return image with the dimensions of the whole downsampled view, zero outside of the restriction or null if restricted loading is not possible
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > openAndDownsampleRestricted(
+			final BasicImgLoader imgLoader,
+			final ViewId vid,
+			final long[] downsampleFactors,
+			final Interval restriction )
+	{
+		final int n = downsampleFactors.length;
+		final long[] levelFactors = new long[ n ];
+		final RandomAccessibleInterval< T > levelImg;
+
+		if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > sil = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( vid.getViewSetupId() );
+			final AffineTransform3D[] mipmapTransforms = sil.getMipmapTransforms();
+
+			// the level DownsampleTools.openAndDownsample() uses, identified by the transform it reports for it
+			if ( n != 3 )
+				return null;
+
+			final int bestLevel = findMipmapLevel( mipmapTransforms, DownsampleTools.getMipMapTransform( imgLoader, vid, downsampleFactors ) );
+
+			if ( bestLevel < 0 )
+				return null;
+
+			for ( int d = 0; d < n; ++d )
+				levelFactors[ d ] = Math.round( mipmapTransforms[ bestLevel ].get( d, d ) );
+
+			levelImg = (RandomAccessibleInterval< T >) sil.getImage( vid.getTimePointId(), bestLevel );
+		}
+		else
+		{
+			Arrays.fill( levelFactors, 1 );
+			levelImg = (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vid.getViewSetupId() ).getImage( vid.getTimePointId() );
+		}
+
+		if ( levelImg.numDimensions() != n || restriction.numDimensions() != n )
+			return null;
+
+		final long[] remaining = new long[ n ];
+		final long[] fullDims = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			remaining[ d ] = downsampleFactors[ d ] / levelFactors[ d ];
+
+			// we can only do powers of two with simple2x
+			if ( remaining[ d ] < 1 || ( remaining[ d ] & ( remaining[ d ] - 1 ) ) != 0 )
+				return null;
+
+			// every simple2x step rounds down
+			fullDims[ d ] = levelImg.dimension( d ) / remaining[ d ];
+
+			min[ d ] = Math.max( 0, restriction.min( d ) );
+			max[ d ] = Math.min( fullDims[ d ] - 1, restriction.max( d ) );
+
+			if ( max[ d ] < min[ d ] )
+				return null;
+		}
+
+		// the part of the mipmap level that covers the restriction (aligned to the remaining downsampling)
+		final long[] levelMin = new long[ n ];
+		final long[] levelMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			levelMin[ d ] = levelImg.min( d ) + min[ d ] * remaining[ d ];
+			levelMax[ d ] = levelImg.min( d ) + ( max[ d ] + 1 ) * remaining[ d ] - 1;
+		}
+
+		RandomAccessibleInterval< T > img = Views.zeroMin( Views.interval( levelImg, levelMin, levelMax ) );
+
+		for ( int d = 0; d < n; ++d )
+			for ( long f = remaining[ d ]; f > 1; f /= 2 )
+			{
+				final boolean[] dsDim = new boolean[ n ];
+				dsDim[ d ] = true;
+				img = Downsample.simple2x( img, dsDim );
+			}
+
+		return Views.interval( Views.extendZero( Views.translate( img, min ) ), new FinalInterval( fullDims ) );
+	}
+
+	/**
+	 * Find the mipmap level that, followed by an additional integer downsampling, gives the transform mvrecon
+	 * reports for the downsampled image.
+	 *
+	 * @param mipmapTransforms the transforms of all mipmap levels
+	 * @param dsTransform the transform of the downsampled image (from DownsampleTools.getMipMapTransform())
+	 * @return the coarsest matching level or -1 if there is none
+	 */
+	protected static int findMipmapLevel( final AffineTransform3D[] mipmapTransforms, final AffineTransform3D dsTransform )
+	{
+		for ( int level = mipmapTransforms.length - 1; level >= 0; --level )
+		{
+			final AffineTransform3D candidate = mipmapTransforms[ level ].copy();
+			final AffineTransform3D additionalDS = new AffineTransform3D();
+			boolean fits = true;
+
+			for ( int d = 0; d < 3 && fits; ++d )
+			{
+				final double f = dsTransform.get( d, d ) / candidate.get( d, d );
+				fits = f >= 1 - 1e-6 && Math.abs( f - Math.round( f ) ) < 1e-6;
+				additionalDS.set( Math.round( f ), d, d );
+			}
+
+			if ( !fits )
+				continue;
+
+			candidate.concatenate( additionalDS );
+
+			for ( int r = 0; r < 3 && fits; ++r )
+				for ( int c = 0; c < 4 && fits; ++c )
+					fits = Math.abs( candidate.get( r, c ) - dsTransform.get( r, c ) ) < 1e-6;
+
+			if ( fits )
+				return level;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Get the bounding box of a global interval in the downsampled pixel coordinates of a view.
+	 *
+	 * @param global the interval in global coordinates (e.g. the overlap of two views)
+	 * @param vr the registration of the view
+	 * @param dsCorrectionT the transformation from downsampled to original pixel coordinates
+	 * @param margin number of pixels to add on each side
+	 * @return the interval in downsampled pixel coordinates
+	 */
+	public static Interval getLocalInterval( final RealInterval global, final ViewRegistration vr, final AffineGet dsCorrectionT, final long margin )
+	{
+		final AffineTransform3D toLocal = vr.getModel().copy();
+		toLocal.concatenate( dsCorrectionT );
+
+		final int n = global.numDimensions();
+		final double[] corner = new double[ 3 ];
+		final double[] localMin = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] localMax = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		for ( int c = 0; c < ( 1 << n ); ++c )
+		{
+			Arrays.fill( corner, 0 );
+			for ( int d = 0; d < n; ++d )
+				corner[ d ] = ( ( c >> d ) & 1 ) == 0 ? global.realMin( d ) : global.realMax( d );
+
+			toLocal.applyInverse( corner, corner );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				localMin[ d ] = Math.min( localMin[ d ], corner[ d ] );
+				localMax[ d ] = Math.max( localMax[ d ], corner[ d ] );
+			}
+		}
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = (long) Math.floor( localMin[ d ] ) - margin;
+			max[ d ] = (long) Math.ceil( localMax[ d ] ) + margin;
+		}
+
+		return new FinalInterval( min, max );
 	}
 	
 	@Override
 	public RandomAccess< T > randomAccess()
 	{
-		loadIfNecessary();
-		return rai.randomAccess();
+		return loadIfNecessary().randomAccess();
 	}
 
 	@Override
 	public RandomAccess< T > randomAccess(Interval interval)
 	{
-		loadIfNecessary();
-		return rai.randomAccess( interval );
+		return loadIfNecessary().randomAccess( interval );
 	}
 
 	@Override
 	public int numDimensions()
 	{
-		loadIfNecessary();
-		return rai.numDimensions();
+		return loadIfNecessary().numDimensions();
 	}
 
 	@Override
 	public long min(int d)
 	{
-		loadIfNecessary();
-		return rai.min( d );
+		return loadIfNecessary().min( d );
 	}
 
 	@Override
 	public void min(long[] min)
 	{
-		loadIfNecessary();
-		rai.min( min );
+		loadIfNecessary().min( min );
 		
 	}
 
 	@Override
 	public void min(Positionable min)
 	{
-		loadIfNecessary();
-		rai.min( min );
+		loadIfNecessary().min( min );
 		
 	}
 
 	@Override
 	public long max(int d)
 	{
-		loadIfNecessary();
-		return rai.max( d );
+		return loadIfNecessary().max( d );
 	}
 
 	@Override
 	public void max(long[] max)
 	{
-		loadIfNecessary();
-		rai.max( max );
+		loadIfNecessary().max( max );
 		
 	}
 
 	@Override
 	public void max(Positionable max)
 	{
-		loadIfNecessary();
-		rai.max( max );		
+		loadIfNecessary().max( max );		
 	}
 
 	@Override
 	public double realMin(int d)
 	{
-		loadIfNecessary();
-		return rai.realMin( d );
+		return loadIfNecessary().realMin( d );
 	}
 
 	@Override
 	public void realMin(double[] min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
+		loadIfNecessary().realMin( min );
 		
 	}
 
 	@Override
 	public void realMin(RealPositionable min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
+		loadIfNecessary().realMin( min );
 		
 	}
 
 	@Override
 	public double realMax(int d)
 	{
-		loadIfNecessary();
-		return rai.realMax( d );
+		return loadIfNecessary().realMax( d );
 	}
 
 	@Override
 	public void realMax(double[] max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
+		loadIfNecessary().realMax( max );
 	}
 
 	@Override
 	public void realMax(RealPositionable max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
+		loadIfNecessary().realMax( max );
 		
 	}
 
 	@Override
 	public void dimensions(long[] dimensions)
 	{
-		loadIfNecessary();
-		rai.dimensions( dimensions );
+		loadIfNecessary().dimensions( dimensions );
 		
 	}
 
 	@Override
 	public long dimension(int d)
 	{
-		loadIfNecessary();
-		return rai.dimension( d );
+		return loadIfNecessary().dimension( d );
 	}
 
 	@Override
 	public T getType()
 	{
-		loadIfNecessary();
-		return rai.getType();
+		return loadIfNecessary().getType();
 	}
 }
@@ -0,0 +1,314 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Uniform grid over the (axis-aligned) bounds of a set of items, e.g. the transformed bounding boxes of tiles.
+ * Finds all pairs of items whose bounds intersect without testing every pair: each item is put into all grid
+ * cells it touches (cell size is the median item size), and only items sharing a cell are compared.
+ *
+ * Items without bounds (null) are treated as infinitely large, i.e. they intersect everything.
+ */
+public class SpatialGridIndex
+{
+	// tolerance when testing bounds for intersection (in global units), the index must never miss a pair
+	public static double tolerance = 1.0;
+
+	final List< ? extends RealInterval > bounds;
+	final List< Integer > unbounded = new ArrayList<>();
+	final HashMap< Long, List< Integer > > cells = new HashMap<>();
+
+	int n;
+	double[] origin, cellSize;
+	long[] gridSize;
+
+	/**
+	 * @param bounds - bounds of all items (null for unknown bounds)
+	 */
+	public SpatialGridIndex( final List< ? extends RealInterval > bounds )
+	{
+		this.bounds = bounds;
+
+		final List< RealInterval > known = new ArrayList<>();
+		for ( int i = 0; i < bounds.size(); ++i )
+			if ( bounds.get( i ) == null )
+				unbounded.add( i );
+			else
+				known.add( bounds.get( i ) );
+
+		if ( known.size() == 0 )
+			return;
+
+		this.n = known.get( 0 ).numDimensions();
+		this.origin = new double[ n ];
+		this.cellSize = new double[ n ];
+		this.gridSize = new long[ n ];
+
+		// cell size is the median size of the items along each dimension, at least 1
+		final double[] extent = new double[ known.size() ];
+		for ( int d = 0; d < n; ++d )
+		{
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+
+			for ( int i = 0; i < known.size(); ++i )
+			{
+				extent[ i ] = known.get( i ).realMax( d ) - known.get( i ).realMin( d );
+				min = Math.min( min, known.get( i ).realMin( d ) );
+				max = Math.max( max, known.get( i ).realMax( d ) );
+			}
+
+			Arrays.sort( extent );
+			origin[ d ] = min;
+			cellSize[ d ] = Math.max( 1.0, extent[ extent.length / 2 ] );
+			gridSize[ d ] = (long) Math.floor( ( max - min ) / cellSize[ d ] ) + 1;
+		}
+
+		// keep the linear cell index in a long and the number of cells reasonable (coarsen the largest grid dimension)
+		while ( Intervals.numElements( new FinalInterval( gridSize ) ) > Math.max( 1024, 8L * known.size() ) )
+		{
+			int maxD = 0;
+			for ( int d = 1; d < n; ++d )
+				if ( gridSize[ d ] > gridSize[ maxD ] )
+					maxD = d;
+
+			cellSize[ maxD ] *= 2;
+			gridSize[ maxD ] = gridSize[ maxD ] / 2 + 1;
+		}
+
+		for ( int i = 0; i < bounds.size(); ++i )
+		{
+			final RealInterval b = bounds.get( i );
+			if ( b == null )
+				continue;
+
+			final long[] minCell = getCell( b, true );
+			final long[] maxCell = getCell( b, false );
+			final long[] cell = minCell.clone();
+
+			// all cells touched by the item
+			while ( true )
+			{
+				cells.computeIfAbsent( cellIndex( cell ), k -> new ArrayList<>() ).add( i );
+
+				int d = 0;
+				for ( ; d < n; ++d )
+				{
+					if ( ++cell[ d ] <= maxCell[ d ] )
+						break;
+					cell[ d ] = minCell[ d ];
+				}
+
+				if ( d == n )
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @param service - used to search the pairs in parallel
+	 * @return all pairs { i, j } (i &lt; j) of items whose bounds intersect, sorted by i, then j
+	 */
+	public List< int[] > getIntersectingPairs( final ExecutorService service )
+	{
+		final int numItems = bounds.size();
+		final int numTasks = Math.max( 1, Math.min( numItems, 4 * Runtime.getRuntime().availableProcessors() ) );
+		final List< Callable< List< int[] > > > tasks = new ArrayList<>();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int start = (int) ( (long) numItems * t / numTasks );
+			final int end = (int) ( (long) numItems * ( t + 1 ) / numTasks );
+
+			tasks.add( () ->
+			{
+				final List< int[] > pairs = new ArrayList<>();
+				for ( int i = start; i < end; ++i )
+					for ( final int j : getIntersecting( i ) )
+						if ( j > i )
+							pairs.add( new int[] { i, j } );
+				return pairs;
+			} );
+		}
+
+		final List< int[] > pairs = new ArrayList<>();
+
+		try
+		{
+			for ( final Future< List< int[] > > f : service.invokeAll( tasks ) )
+				pairs.addAll( f.get() );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to find intersecting bounds: " + e, e );
+		}
+
+		pairs.sort( Comparator.< int[] >comparingInt( p -> p[ 0 ] ).thenComparingInt( p -> p[ 1 ] ) );
+		return pairs;
+	}
+
+	/**
+	 * @param i - index of an item
+	 * @return indices of all other items whose bounds intersect the bounds of item i (in ascending order)
+	 */
+	public int[] getIntersecting( final int i )
+	{
+		final RealInterval b = bounds.get( i );
+
+		// unknown bounds intersect everything
+		if ( b == null )
+			return IntStream.range( 0, bounds.size() ).filter( j -> j != i ).toArray();
+
+		final TreeSet< Integer > result = new TreeSet<>( unbounded );
+		result.remove( i );
+
+		final long[] minCell = getCell( b, true );
+		final long[] maxCell = getCell( b, false );
+		final long[] cell = minCell.clone();
+
+		while ( true )
+		{
+			final List< Integer > items = cells.get( cellIndex( cell ) );
+			if ( items != null )
+				for ( final int j : items )
+					if ( j != i && !result.contains( j ) && intersect( b, bounds.get( j ), tolerance ) )
+						result.add( j );
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( ++cell[ d ] <= maxCell[ d ] )
+					break;
+				cell[ d ] = minCell[ d ];
+			}
+
+			if ( d == n )
+				break;
+		}
+
+		return result.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	/**
+	 * @param a - first interval
+	 * @param b - second interval
+	 * @param tolerance - intervals closer than that are considered intersecting
+	 * @return true if the two intervals intersect
+	 */
+	public static boolean intersect( final RealInterval a, final RealInterval b, final double tolerance )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMin( d ) > b.realMax( d ) + tolerance || b.realMin( d ) > a.realMax( d ) + tolerance )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param views - views (e.g. of a group)
+	 * @param sd - sequence description
+	 * @param vrs - view registrations (their models are not updated, call ViewRegistration.updateModel() first if needed)
+	 * @return the bounding box of all views in global coordinates, or null if it is unknown for one of them
+	 */
+	public static RealInterval getBounds(
+			final Collection< ? extends ViewId > views,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		double[] min = null, max = null;
+
+		for ( final ViewId view : views )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( view );
+			final ViewRegistration vr = vrs.getViewRegistration( view );
+
+			if ( vd == null || vr == null || vd.getViewSetup().getSize() == null )
+				return null;
+
+			final Dimensions size = vd.getViewSetup().getSize();
+			final long[] max0 = new long[ size.numDimensions() ];
+			for ( int d = 0; d < max0.length; ++d )
+				max0[ d ] = size.dimension( d ) - 1;
+
+			final RealInterval b = vr.getModel().estimateBounds( new FinalInterval( new long[ max0.length ], max0 ) );
+
+			if ( min == null )
+			{
+				min = Intervals.minAsDoubleArray( b );
+				max = Intervals.maxAsDoubleArray( b );
+			}
+			else
+			{
+				for ( int d = 0; d < min.length; ++d )
+				{
+					min[ d ] = Math.min( min[ d ], b.realMin( d ) );
+					max[ d ] = Math.max( max[ d ], b.realMax( d ) );
+				}
+			}
+		}
+
+		return min == null ? null : new FinalRealInterval( min, max );
+	}
+
+	long[] getCell( final RealInterval b, final boolean min )
+	{
+		final long[] cell = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final double pos = ( min ? b.realMin( d ) - tolerance : b.realMax( d ) + tolerance ) - origin[ d ];
+			cell[ d ] = Math.max( 0, Math.min( gridSize[ d ] - 1, (long) Math.floor( pos / cellSize[ d ] ) ) );
+		}
+		return cell;
+	}
+
+	long cellIndex( final long[] cell )
+	{
+		long idx = cell[ n - 1 ];
+		for ( int d = n - 2; d >= 0; --d )
+			idx = idx * gridSize[ d ] + cell[ d ];
+		return idx;
+	}
+}
@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import fiji.util.gui.GenericDialogPlus;
 import mpicbg.spim.data.generic.base.Entity;
@@ -41,6 +42,8 @@ import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
 import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RealInterval;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.datasetmanager.FileListDatasetDefinition;
@@ -185,15 +188,73 @@ public class SpimDataFilteringAndGrouping < AS extends SpimData2 >
 		for (int i = 0; i < groupedElements.size(); ++i)
 			for(int j = i+1; j < groupedElements.size(); ++j)
 			{
-				// we will want to process the pair if:
-				// the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
-				// but they differ along an axis that we want to register (e.g Tile)
-				if (!groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfApplication ) 
-						&& groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfComparison ))
+				if ( isComparison( groupedElements.get( i ), groupedElements.get( j ) ) )
 					res.add(new ValuePair<>(groupedElements.get( i ), groupedElements.get( j )));
 			}
 		return res;
 	}
+
+	/**
+	 * get the same comparisons as {@link #getComparisons()}, but only for pairs of groups whose bounding boxes
+	 * (transformed by the current registrations) overlap. The candidate pairs come from a {@link SpatialGridIndex}
+	 * instead of testing all pairs of groups.
+	 * @return overlapping comparisons
+	 */
+	public List<Pair<? extends Group< ? extends BasicViewDescription< ? > >, ? extends Group< ? extends BasicViewDescription< ? >>>> getOverlappingComparisons()
+	{
+		final List<Pair<? extends Group< ? extends BasicViewDescription< ? > >, ? extends Group< ? extends BasicViewDescription< ? >>>> res = new ArrayList<>();
+
+		// filter first
+		final List<BasicViewDescription< ? > > ungroupedElements =
+				SpimDataTools.getFilteredViewDescriptions( data.getSequenceDescription(), filters);
+		// then group
+		final List< Group< BasicViewDescription< ?  > >> groupedElements = 
+				Group.combineBy(ungroupedElements, groupingFactors);
+
+		final List< RealInterval > bounds = new ArrayList<>();
+		for ( final Group< BasicViewDescription< ? > > group : groupedElements )
+			bounds.add( SpatialGridIndex.getBounds( group.getViews(), data.getSequenceDescription(), data.getViewRegistrations() ) );
+
+		// only group pairs with overlapping bounding boxes
+		for ( final int[] candidate : new SpatialGridIndex( bounds ).getIntersectingPairs( StitchingExecutors.getComputePool() ) )
+			if ( isComparison( groupedElements.get( candidate[ 0 ] ), groupedElements.get( candidate[ 1 ] ) ) )
+				res.add(new ValuePair<>(groupedElements.get( candidate[ 0 ] ), groupedElements.get( candidate[ 1 ] )));
+
+		return res;
+	}
+
+	/**
+	 * @return a predicate that is true for all pairs of groups that are comparisons as returned by {@link #getComparisons()}
+	 * (in any order of the groups), e.g. to find old results for them
+	 */
+	public Predicate< Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > getComparisonPredicate()
+	{
+		final List<BasicViewDescription< ? > > ungroupedElements =
+				SpimDataTools.getFilteredViewDescriptions( data.getSequenceDescription(), filters);
+		final List< Group< BasicViewDescription< ?  > >> groupedElements = 
+				Group.combineBy(ungroupedElements, groupingFactors);
+
+		// the groups by the views they contain
+		final Map< Set< ViewId >, Group< BasicViewDescription< ? > > > groups = new HashMap<>();
+		for ( final Group< BasicViewDescription< ? > > group : groupedElements )
+			groups.put( new HashSet<>( group.getViews() ), group );
+
+		return pair -> {
+			final Group< BasicViewDescription< ? > > groupA = groups.get( new HashSet< ViewId >( pair.getA().getViews() ) );
+			final Group< BasicViewDescription< ? > > groupB = groups.get( new HashSet< ViewId >( pair.getB().getViews() ) );
+			return groupA != null && groupB != null && groupA != groupB && isComparison( groupA, groupB );
+		};
+	}
+
+	/*
+	 * we will want to process the pair if:
+	 * the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
+	 * but they differ along an axis that we want to register (e.g Tile)
+	 */
+	private boolean isComparison( final Group< BasicViewDescription< ? > > groupA, final Group< BasicViewDescription< ? > > groupB )
+	{
+		return !groupsDifferByAny( groupA, groupB, axesOfApplication ) && groupsDifferByAny( groupA, groupB, axesOfComparison );
+	}
 	
 	private static boolean groupsDifferByAny(Iterable< BasicViewDescription< ?  > > vds1, Iterable< BasicViewDescription< ?  > > vds2, Set<Class<? extends Entity>> entities)
 	{
@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.preibisch.mvrecon.Threads;
+
+/**
+ * One long-lived, work-stealing compute pool that is shared by all pairs of a pairwise stitching run and
+ * across plugin invocations (instead of a new thread pool for every pair). Tasks may wait for subtasks
+ * they submitted to the same pool (e.g. a pair waiting for its FFTs), the waiting worker then helps
+ * executing queued tasks.
+ */
+public class StitchingExecutors
+{
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	private static int numThreads = -1;
+	private static ForkJoinPool computePool = null;
+
+	/**
+	 * @return the shared compute pool, created with {@link #getNumThreads()} threads on first use
+	 */
+	public static synchronized ForkJoinPool getComputePool()
+	{
+		if ( computePool == null || computePool.isShutdown() )
+			computePool = createPool( getNumThreads() );
+
+		return computePool;
+	}
+
+	/**
+	 * @return the number of threads of the compute pool (default: {@link Threads#numThreads()})
+	 */
+	public static synchronized int getNumThreads()
+	{
+		return numThreads > 0 ? numThreads : Threads.numThreads();
+	}
+
+	/**
+	 * Change the number of threads of the compute pool. Tasks already running on the current pool
+	 * finish there, new tasks go to a new pool.
+	 *
+	 * @param numThreads - number of threads, &lt;= 0 to use {@link Threads#numThreads()}
+	 */
+	public static synchronized void setNumThreads( final int numThreads )
+	{
+		StitchingExecutors.numThreads = numThreads;
+
+		if ( computePool != null && computePool.getParallelism() != getNumThreads() )
+		{
+			computePool.shutdown();
+			computePool = null;
+		}
+	}
+
+	/**
+	 * @return number of tasks waiting to be executed by the compute pool
+	 */
+	public static synchronized long getQueueDepth()
+	{
+		if ( computePool == null )
+			return 0;
+
+		return computePool.getQueuedSubmissionCount() + computePool.getQueuedTaskCount();
+	}
+
+	/**
+	 * @return number of threads of the compute pool that are currently executing (or stealing) tasks
+	 */
+	public static synchronized int getActiveCount()
+	{
+		if ( computePool == null )
+			return 0;
+
+		return computePool.getActiveThreadCount();
+	}
+
+	public static String getStatus()
+	{
+		return "compute pool: " + getNumThreads() + " threads, " + getActiveCount() + " active, " + getQueueDepth() + " queued tasks";
+	}
+
+	/**
+	 * Run tasks on the pool with at most maxInFlight of them running at the same time, starting a new one as soon as
+	 * another one finishes (no batches that wait for their slowest task). Results are passed to the consumer in the
+	 * order the tasks finish, on the calling thread.
+	 *
+	 * @param tasks - the tasks
+	 * @param maxInFlight - maximal number of tasks running at the same time
+	 * @param pool - the pool to use
+	 * @param consumer - consumer of the results
+	 * @param <T> result type
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if one of the tasks failed
+	 */
+	public static < T > void invokeBounded(
+			final List< ? extends Callable< T > > tasks,
+			final int maxInFlight,
+			final ForkJoinPool pool,
+			final ResultConsumer< T > consumer ) throws InterruptedException, ExecutionException
+	{
+		invokeBounded( tasks, maxInFlight, null, null, pool, consumer );
+	}
+
+	/**
+	 * Run tasks on the pool with at most maxInFlight of them running at the same time and only as many as fit into the
+	 * memory budget of an admission controller. Tasks are started in order, as soon as there is room. Results are passed
+	 * to the consumer in the order the tasks finish, on the calling thread.
+	 *
+	 * @param tasks - the tasks
+	 * @param maxInFlight - maximal number of tasks running at the same time
+	 * @param bytes - estimated memory of each task (may be null if admission is null)
+	 * @param admission - memory admission controller (may be null to only limit the number of tasks)
+	 * @param pool - the pool to use
+	 * @param consumer - consumer of the results
+	 * @param <T> result type
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if one of the tasks failed
+	 */
+	public static < T > void invokeBounded(
+			final List< ? extends Callable< T > > tasks,
+			final int maxInFlight,
+			final long[] bytes,
+			final MemoryAdmissionController admission,
+			final ForkJoinPool pool,
+			final ResultConsumer< T > consumer ) throws InterruptedException, ExecutionException
+	{
+		final Semaphore inFlight = new Semaphore( Math.max( 1, maxInFlight ) );
+		final ExecutorCompletionService< T > completionService = new ExecutorCompletionService<>( pool );
+
+		int numSubmitted = 0;
+		int numCollected = 0;
+
+		while ( numCollected < tasks.size() )
+		{
+			// start as many tasks as we are allowed to
+			while ( numSubmitted < tasks.size() && inFlight.tryAcquire() )
+			{
+				final long taskBytes = admission == null ? 0 : bytes[ numSubmitted ];
+
+				// the next task does not fit into memory, wait for others to finish
+				if ( admission != null && !admission.tryAcquire( taskBytes ) )
+				{
+					inFlight.release();
+					break;
+				}
+
+				final Callable< T > task = tasks.get( numSubmitted++ );
+
+				completionService.submit( () ->
+				{
+					try
+					{
+						return task.call();
+					}
+					finally
+					{
+						if ( admission != null )
+							admission.release( taskBytes );
+
+						inFlight.release();
+					}
+				});
+			}
+
+			// collect the next finished task
+			final T result = completionService.take().get();
+			++numCollected;
+
+			consumer.accept( result );
+		}
+	}
+
+	@FunctionalInterface
+	public static interface ResultConsumer< T >
+	{
+		public void accept( T result );
+	}
+
+	protected static ForkJoinPool createPool( final int numThreads )
+	{
+		final int poolId = poolCount.incrementAndGet();
+
+		return new ForkJoinPool( numThreads, pool ->
+		{
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+			thread.setName( "stitching-compute-" + poolId + "-" + thread.getPoolIndex() );
+			return thread;
+		}, null, false );
+	}
+}
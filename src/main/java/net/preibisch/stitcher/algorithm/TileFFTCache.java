@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.algorithm.phasecorrelation.PCMWorkspace;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Caches the Fourier transforms of tiles (or of parts of them), so that a tile that takes part in several pairs with
+ * the same geometry (e.g. whole-image stitching of equally sized tiles) is only transformed once. Per pair only the
+ * normalization, complex multiplication and inverse transform are computed.
+ *
+ * A cached transform is identified by a key for the tile (e.g. the views of a group and the downsampling), the
+ * interval of the tile that was transformed, the extension and the padded size.
+ */
+public class TileFFTCache
+{
+	private final ImageCache< Key > cache;
+
+	private static class Key
+	{
+		final Object tile;
+		final long[] min, max;
+		final int[] extension;
+		final long[] paddedDimensions;
+
+		Key( final Object tile, final Interval interval, final int[] extension, final long[] paddedDimensions )
+		{
+			this.tile = tile;
+			this.min = Intervals.minAsLongArray( interval );
+			this.max = Intervals.maxAsLongArray( interval );
+			this.extension = extension.clone();
+			this.paddedDimensions = paddedDimensions.clone();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.deepHashCode( new Object[] { tile, min, max, extension, paddedDimensions } );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = (Key) obj;
+			return tile.equals( other.tile ) && Arrays.equals( min, other.min ) && Arrays.equals( max, other.max ) &&
+					Arrays.equals( extension, other.extension ) && Arrays.equals( paddedDimensions, other.paddedDimensions );
+		}
+	}
+
+	/**
+	 * @param maxBytes maximal size of all cached Fourier transforms
+	 */
+	public TileFFTCache( final long maxBytes )
+	{
+		this.cache = new ImageCache<>( maxBytes );
+	}
+
+	/**
+	 * calculate the phase correlation matrix of two images, using cached Fourier transforms if available
+	 * (see {@link PhaseCorrelation2#calculatePCMPooled(RandomAccessibleInterval, RandomAccessibleInterval, int[], ExecutorService)})
+	 *
+	 * @param tile1 key of the first tile
+	 * @param interval1 the interval of the first tile that img1 shows
+	 * @param img1 the zero-min image of interval1
+	 * @param tile2 key of the second tile
+	 * @param interval2 the interval of the second tile that img2 shows
+	 * @param img2 the zero-min image of interval2
+	 * @param extension number of pixels to extend the images by (on each side, mirrored)
+	 * @param service thread pool
+	 * @param <T> pixel type of image 1
+	 * @param <S> pixel type of image 2
+	 * @return the workspace holding the PCM, call {@link PCMWorkspace#release()} when done with the PCM
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > PCMWorkspace calculatePCM(
+			final Object tile1, final Interval interval1, final RandomAccessibleInterval< T > img1,
+			final Object tile2, final Interval interval2, final RandomAccessibleInterval< S > img2,
+			final int[] extension,
+			final ExecutorService service )
+	{
+		return calculatePCM( tile1, interval1, img1, tile2, interval2, img2, extension, -1, service );
+	}
+
+	/**
+	 * Compute the phase correlation matrix of two images, see
+	 * {@link #calculatePCM(Object, Interval, RandomAccessibleInterval, Object, Interval, RandomAccessibleInterval, int[], ExecutorService)}.
+	 *
+	 * @param tile1 key of the first tile
+	 * @param interval1 the interval of the first tile that img1 shows
+	 * @param img1 the zero-min image of interval1
+	 * @param tile2 key of the second tile
+	 * @param interval2 the interval of the second tile that img2 shows
+	 * @param img2 the zero-min image of interval2
+	 * @param extension number of pixels to extend the images by (on each side, mirrored)
+	 * @param poolBytes maximal size of the pool the workspace is returned to (see {@link PCMWorkspace#acquire(net.imglib2.Dimensions, long)})
+	 * @param service thread pool
+	 * @param <T> pixel type of image 1
+	 * @param <S> pixel type of image 2
+	 * @return the workspace holding the PCM, call {@link PCMWorkspace#release()} when done with the PCM
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > PCMWorkspace calculatePCM(
+			final Object tile1, final Interval interval1, final RandomAccessibleInterval< T > img1,
+			final Object tile2, final Interval interval2, final RandomAccessibleInterval< S > img2,
+			final int[] extension,
+			final long poolBytes,
+			final ExecutorService service )
+	{
+		final PCMWorkspace ws = PCMWorkspace.acquire( PhaseCorrelation2Util.getExtendedSize( img1, img2, extension ), poolBytes );
+
+		try
+		{
+			final RandomAccessibleInterval< ComplexFloatType > fft1 = getFFT( tile1, interval1, img1, extension, ws, service );
+			final RandomAccessibleInterval< ComplexFloatType > fft2 = getFFT( tile2, interval2, img2, extension, ws, service );
+
+			// the cached transforms are not modified, the workspace FFT buffers are used as temporary images
+			PhaseCorrelation2.calculatePCM( fft1, ws.getFFT1(), fft2, ws.getPCM(), service );
+		}
+		catch ( RuntimeException e )
+		{
+			ws.release();
+			throw e;
+		}
+
+		return ws;
+	}
+
+	private < T extends RealType< T > > RandomAccessibleInterval< ComplexFloatType > getFFT(
+			final Object tile, final Interval interval, final RandomAccessibleInterval< T > img,
+			final int[] extension, final PCMWorkspace ws, final ExecutorService service )
+	{
+		return cache.get( new Key( tile, interval, extension, ws.getPaddedDimensions() ), () ->
+		{
+			final ArrayImg< ComplexFloatType, FloatArray > fft = ArrayImgs.complexFloats( ws.getFFTSize() );
+
+			FFT.realToComplex( Views.interval( PhaseCorrelation2Util.extendImageByFactor( img, extension ),
+					FFTMethods.paddingIntervalCentered( img, new FinalInterval( ws.getPaddedDimensions() ) ) ), fft, service );
+
+			return fft;
+		} );
+	}
+
+	public String getStatistics() { return cache.getStatistics(); }
+
+	public void clear() { cache.clear(); }
+}
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.RealSum;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.deconvolution.normalization.AdjustInput;
+
+/**
+ * Mean intensity of views (e.g. to pick the brightest channel or illumination, see {@link GroupedViewAggregator}),
+ * computed on the coarsest mipmap level (or a regular sample of the pixels if there are no mipmaps) and
+ * remembered for every view of an image loader, so it is computed only once per run no matter how many pairs a view is part of.
+ */
+public class ViewBrightness
+{
+	// number of pixels to look at if there is no mipmap pyramid
+	public static int maxSamples = 1 << 20;
+
+	private static final Map< BasicImgLoader, Map< ViewId, Double > > brightness = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	/**
+	 * @param imgLoader the image loader
+	 * @param viewId the view
+	 * @return mean intensity of the view
+	 */
+	public static double getMeanIntensity( final BasicImgLoader imgLoader, final ViewId viewId )
+	{
+		final Map< ViewId, Double > views = brightness.computeIfAbsent( imgLoader, l -> new ConcurrentHashMap<>() );
+		final Double known = views.get( viewId );
+
+		if ( known != null )
+			return known;
+
+		// computed outside of the map, two threads might compute the same view which is harmless
+		final double mean = computeMeanIntensity( imgLoader, viewId );
+		views.put( viewId, mean );
+
+		return mean;
+	}
+
+	/**
+	 * forget all intensities (e.g. when the images changed)
+	 */
+	public static void clear()
+	{
+		brightness.clear();
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static < T extends RealType< T > > double computeMeanIntensity( final BasicImgLoader imgLoader, final ViewId viewId )
+	{
+		if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( viewId.getViewSetupId() );
+			final RandomAccessibleInterval< T > image = (RandomAccessibleInterval< T >) setupImgLoader.getImage(
+					viewId.getTimePointId(), setupImgLoader.getMipmapResolutions().length - 1 );
+
+			final IterableInterval< T > iterableImg = Views.iterable( image );
+			return AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+		}
+		else
+		{
+			final RandomAccessibleInterval< T > image = (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( viewId.getViewSetupId() ).getImage( viewId.getTimePointId() );
+
+			return getSampledMean( image, maxSamples );
+		}
+	}
+
+	/**
+	 * @param img the image
+	 * @param numSamples number of pixels (evenly spaced in memory order) to average
+	 * @param <T> pixel type
+	 * @return the mean of the sampled pixels
+	 */
+	public static < T extends RealType< T > > double getSampledMean( final RandomAccessibleInterval< T > img, final long numSamples )
+	{
+		final IterableInterval< T > iterableImg = Views.flatIterable( img );
+		final long size = iterableImg.size();
+
+		if ( size <= numSamples )
+			return AdjustInput.sumImg( iterableImg ) / (double)size;
+
+		final long step = size / numSamples;
+		final RealSum sum = new RealSum();
+		final Cursor< T > c = iterableImg.cursor();
+
+		c.fwd();
+		sum.add( c.get().getRealDouble() );
+
+		for ( long i = 1; i < numSamples; ++i )
+		{
+			c.jumpFwd( step );
+			sum.add( c.get().getRealDouble() );
+		}
+
+		return sum.getSum() / numSamples;
+	}
+}
@@ -93,27 +93,34 @@ public class GlobalOptStitcher
 			@Override
 			protected List< Pair< ViewId, ViewId > > definePairsAbstract()
 			{
-				List< Pair< ViewId, ViewId > > res = new ArrayList<>();
+				// all pairs of views that do not differ in an axis of application, so we bucket the views
+				// by these attributes and only pair views within a bucket (instead of testing all pairs)
+				final Map< List< Object >, List< Integer > > buckets = new HashMap<>();
 				for ( int i = 0; i < views.size(); i++ )
-					for ( int j = i + 1; j < views.size(); j++ )
-					{
-						boolean differInApplicationAxis = false;
-						for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
-						{
-							// ugly, but just undoes the casting to
-							// ViewId in constructor
-							BasicViewDescription< ? > vdA = (BasicViewDescription< ? >) views.get( i );
-							BasicViewDescription< ? > vdB = (BasicViewDescription< ? >) views.get( j );
-
-							if ( cl == TimePoint.class )
-								differInApplicationAxis |= !vdA.getTimePoint().equals( vdB.getTimePoint() );
-							else
-								differInApplicationAxis |= !vdA.getViewSetup().getAttribute( cl )
-										.equals( vdB.getViewSetup().getAttribute( cl ) );
-						}
-						if ( !differInApplicationAxis )
-							res.add( new ValuePair<>( views.get( i ), views.get( j ) ) );
-					}
+				{
+					// ugly, but just undoes the casting to
+					// ViewId in constructor
+					final BasicViewDescription< ? > vd = (BasicViewDescription< ? >) views.get( i );
+
+					final List< Object > key = new ArrayList<>();
+					for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
+						key.add( cl == TimePoint.class ? vd.getTimePoint() : vd.getViewSetup().getAttribute( cl ) );
+
+					buckets.computeIfAbsent( key, k -> new ArrayList<>() ).add( i );
+				}
+
+				final List< int[] > pairIndices = new ArrayList<>();
+				for ( final List< Integer > bucket : buckets.values() )
+					for ( int i = 0; i < bucket.size(); i++ )
+						for ( int j = i + 1; j < bucket.size(); j++ )
+							pairIndices.add( new int[] { bucket.get( i ), bucket.get( j ) } );
+
+				// same order as testing all pairs
+				pairIndices.sort( Comparator.< int[] >comparingInt( p -> p[ 0 ] ).thenComparingInt( p -> p[ 1 ] ) );
+
+				final List< Pair< ViewId, ViewId > > res = new ArrayList<>();
+				for ( final int[] p : pairIndices )
+					res.add( new ValuePair<>( views.get( p[ 0 ] ), views.get( p[ 1 ] ) ) );
 
 				return res;
 			}
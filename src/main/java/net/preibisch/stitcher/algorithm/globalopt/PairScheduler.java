@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Orders pairs of groups so that pairs sharing a tile are computed close together in time.
+ * The groups are sorted along a Morton (Z-order) curve over their positions in global space,
+ * then the pairs of each group (that have not been scheduled yet) are emitted in that order.
+ * Like this, the set of tiles needed at any time (and thus the memory required for caching them)
+ * is bounded by the local neighborhood rather than the whole dataset.
+ */
+public class PairScheduler
+{
+	// bits per dimension in the Morton code (3 * 21 = 63 bits)
+	private static final int BITS = 21;
+
+	/**
+	 * @param pairs the pairs to order (not modified)
+	 * @param vrs the view registrations
+	 * @param sd the sequence description
+	 * @param <V> view id type
+	 * @return a new list containing all pairs, ordered for locality
+	 */
+	public static < V extends ViewId > List< Pair< Group< V >, Group< V > > > orderSpatially(
+			final List< Pair< Group< V >, Group< V > > > pairs,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		if ( pairs.size() < 3 )
+			return new ArrayList<>( pairs );
+
+		// all pairs each group is part of
+		final HashMap< Group< V >, List< Integer > > pairsPerGroup = new HashMap<>();
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			pairsPerGroup.computeIfAbsent( pairs.get( i ).getA(), g -> new ArrayList<>() ).add( i );
+			pairsPerGroup.computeIfAbsent( pairs.get( i ).getB(), g -> new ArrayList<>() ).add( i );
+		}
+
+		// center of every group in global coordinates
+		final HashMap< Group< V >, double[] > centers = new HashMap<>();
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		for ( final Group< V > group : pairsPerGroup.keySet() )
+		{
+			final double[] center = getCenter( group, vrs, sd );
+			centers.put( group, center );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], center[ d ] );
+				max[ d ] = Math.max( max[ d ], center[ d ] );
+			}
+		}
+
+		// sort groups by Morton code
+		final ArrayList< Group< V > > groups = new ArrayList<>( centers.keySet() );
+		final Map< Group< V >, Long > codes = new HashMap<>();
+		for ( final Group< V > group : groups )
+			codes.put( group, mortonCode( centers.get( group ), min, max ) );
+
+		groups.sort( ( g1, g2 ) -> Long.compare( codes.get( g1 ), codes.get( g2 ) ) );
+
+		// emit all remaining pairs of a group before moving on to the next group along the curve
+		final List< Pair< Group< V >, Group< V > > > ordered = new ArrayList<>( pairs.size() );
+		final Set< Integer > scheduled = new HashSet<>();
+
+		for ( final Group< V > group : groups )
+			for ( final int i : pairsPerGroup.get( group ) )
+				if ( scheduled.add( i ) )
+					ordered.add( pairs.get( i ) );
+
+		return ordered;
+	}
+
+	/**
+	 * @param group the group
+	 * @param vrs the view registrations
+	 * @param sd the sequence description
+	 * @param <V> view id type
+	 * @return mean center of all views of the group in global coordinates
+	 */
+	public static < V extends ViewId > double[] getCenter(
+			final Group< V > group,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		final double[] sum = new double[ 3 ];
+		final double[] center = new double[ 3 ];
+		int n = 0;
+
+		for ( final V vid : group.getViews() )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+			final Dimensions size = vd == null || vd.getViewSetup() == null ? null : vd.getViewSetup().getSize();
+
+			Arrays.fill( center, 0 );
+			if ( size != null )
+				for ( int d = 0; d < Math.min( 3, size.numDimensions() ); ++d )
+					center[ d ] = ( size.dimension( d ) - 1 ) / 2.0;
+
+			vrs.getViewRegistration( vid ).getModel().apply( center, center );
+
+			for ( int d = 0; d < 3; ++d )
+				sum[ d ] += center[ d ];
+			++n;
+		}
+
+		for ( int d = 0; d < 3; ++d )
+			sum[ d ] /= Math.max( 1, n );
+
+		return sum;
+	}
+
+	/**
+	 * @param p position
+	 * @param min minimum of all positions
+	 * @param max maximum of all positions
+	 * @return Morton code of the position quantized to 2^21 steps per dimension
+	 */
+	public static long mortonCode( final double[] p, final double[] min, final double[] max )
+	{
+		long code = 0;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double range = max[ d ] - min[ d ];
+			final long q = range > 0 ? Math.min( ( 1L << BITS ) - 1, (long) ( ( p[ d ] - min[ d ] ) / range * ( ( 1L << BITS ) - 1 ) ) ) : 0;
+
+			for ( int b = 0; b < BITS; ++b )
+				code |= ( ( q >> b ) & 1L ) << ( 3 * b + d );
+		}
+
+		return code;
+	}
+}
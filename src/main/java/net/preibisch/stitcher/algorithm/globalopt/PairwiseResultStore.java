@@ -0,0 +1,592 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+
+/**
+ * Persistent store of pairwise stitching results, saved as an append-only text file next to the XML.
+ * There is (at most) one result per pair of groups (identified by their views, see {@link #getPairId(Pair)}), stored
+ * together with a key that is a hash over everything the result depends on: the views of both groups, their registrations,
+ * the downsampling, the aggregation of the groups and the parameters. If any of those change, the key changes
+ * and the pair is computed again (replacing the old result), otherwise the stored result is reused.
+ * 
+ * The file also serves as checkpoint of long runs: results are appended as soon as a pair is done and written
+ * to disk at least every {@link #checkpointIntervalMillis}, so after a crash a run can be resumed
+ * and only computes the pairs that are not in the file yet.
+ * 
+ * One line per pair (tab-separated), later lines replace earlier ones of the same pair:
+ * "R pair key r hash transform(12) min max" for a result, "N pair key" for a pair where no shift was found,
+ * "F pair message" for a pair that failed (it is computed again in the next run).
+ */
+public class PairwiseResultStore
+{
+	public static String fileExtension = ".pairwise";
+
+	// how often finished results are written to disk at the latest
+	public static long checkpointIntervalMillis = 30 * 1000;
+
+	// if false, results are only written (checkpointed), but stored results are not reused
+	public boolean reuseResults = true;
+
+	private final File file;
+	private final HashMap< String, Entry > entries;
+	private final HashMap< String, String > failures;
+
+	private BufferedWriter writer;
+	private int numLines;
+	private long lastFlush;
+
+	// set after the first failed write, the results of this run are then only kept in memory
+	private boolean writeFailed;
+
+	public PairwiseResultStore( final File file )
+	{
+		this.file = file;
+		this.entries = new HashMap<>();
+		this.failures = new HashMap<>();
+		this.writer = null;
+		this.numLines = 0;
+		this.lastFlush = System.currentTimeMillis();
+		this.writeFailed = false;
+
+		load();
+	}
+
+	/**
+	 * @param xmlFileName the XML the results belong to
+	 * @return the store next to the XML, or null if the XML is not a local file
+	 */
+	public static PairwiseResultStore forXML( final String xmlFileName )
+	{
+		if ( xmlFileName == null || ( xmlFileName.contains( "://" ) && !xmlFileName.startsWith( "file:" ) ) )
+			return null;
+
+		final String path = xmlFileName.startsWith( "file:" ) ? xmlFileName.replaceFirst( "^file:(//)?", "" ) : xmlFileName;
+		return new PairwiseResultStore( new File( path + fileExtension ) );
+	}
+
+	public File getFile() { return file; }
+
+	public synchronized int size() { return entries.size(); }
+
+	/**
+	 * @return true if writing to the file failed, nothing is written anymore after that
+	 */
+	public synchronized boolean writeFailed() { return writeFailed; }
+
+	/**
+	 * @param pairId the pair (see {@link #getPairId(Pair)})
+	 * @param key the key of the pair (see {@link #getKey(Pair, ViewRegistrations, PairwiseStitchingParameters, GroupedViewAggregator, long[])})
+	 * @return true if there is a result for the pair that was computed with the same key
+	 */
+	public synchronized boolean contains( final String pairId, final String key )
+	{
+		final Entry entry = entries.get( pairId );
+		return entry != null && entry.key.equals( key );
+	}
+
+	/**
+	 * @return the error messages of all pairs that failed (and did not succeed later), by pair
+	 */
+	public synchronized HashMap< String, String > getFailures() { return new HashMap<>( failures ); }
+
+	/**
+	 * @param pairId the pair (see {@link #getPairId(Pair)})
+	 * @param key the key of the pair
+	 * @param pair the pair the result is for
+	 * @return the stored result, null if no shift was found or there is no result for the key (see {@link #contains(String, String)})
+	 */
+	public synchronized PairwiseStitchingResult< ViewId > get( final String pairId, final String key, final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		final Entry entry = entries.get( pairId );
+
+		if ( entry == null || !entry.key.equals( key ) || entry.isEmpty() )
+			return null;
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set( entry.transform );
+
+		final RealInterval bb = entry.min == null ? null : new FinalRealInterval( entry.min, entry.max );
+
+		return new PairwiseStitchingResult<>( pair, bb, transform, entry.r, entry.hash );
+	}
+
+	/**
+	 * store (and append to the file) the result of a pair, replaces the previous result of the pair
+	 * @param pairId the pair (see {@link #getPairId(Pair)})
+	 * @param key the key of the pair
+	 * @param result the result, null if no shift was found
+	 */
+	public synchronized void put( final String pairId, final String key, final PairwiseStitchingResult< ViewId > result )
+	{
+		final Entry entry;
+
+		if ( result == null )
+			entry = new Entry( key, Double.NaN, 0, null, null, null );
+		else
+		{
+			final RealInterval bb = result.getBoundingBox();
+			entry = new Entry(
+					key,
+					result.r(),
+					result.getHash(),
+					result.getTransform().getRowPackedCopy(),
+					bb == null ? null : bb.minAsDoubleArray(),
+					bb == null ? null : bb.maxAsDoubleArray() );
+		}
+
+		entries.put( pairId, entry );
+		failures.remove( pairId );
+		append( toLine( pairId, entry ) );
+
+		if ( System.currentTimeMillis() - lastFlush >= checkpointIntervalMillis )
+			flush();
+	}
+
+	/**
+	 * store (and immediately write to the file) that a pair failed, it will not be reused
+	 * @param pairId the pair (see {@link #getPairId(Pair)})
+	 * @param error what went wrong
+	 */
+	public synchronized void putFailure( final String pairId, final Throwable error )
+	{
+		// keep the line format intact
+		final String message = String.valueOf( error ).replaceAll( "[\\t\\r\\n]+", " " );
+
+		failures.put( pairId, message );
+		append( "F\t" + pairId + "\t" + message );
+		flush();
+	}
+
+	/**
+	 * write all pending lines to disk
+	 */
+	public synchronized void flush()
+	{
+		lastFlush = System.currentTimeMillis();
+
+		if ( writer == null )
+			return;
+
+		try
+		{
+			writer.flush();
+		}
+		catch ( final IOException e )
+		{
+			disableWriting( e );
+		}
+	}
+
+	/**
+	 * write all pending lines and close the file, it is reopened on the next {@link #put(String, PairwiseStitchingResult)}
+	 */
+	public synchronized void close()
+	{
+		flush();
+
+		if ( writer == null )
+			return;
+
+		try
+		{
+			writer.close();
+		}
+		catch ( final IOException e ) {}
+
+		writer = null;
+	}
+
+	/**
+	 * @param pair the pair of groups
+	 * @return identifies the pair by the views of both groups (independent of registrations and parameters)
+	 */
+	public static String getPairId( final Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > pair )
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		appendViews( sb, pair.getA() );
+		sb.append( "|" );
+		appendViews( sb, pair.getB() );
+
+		return sb.toString();
+	}
+
+	protected static void appendViews( final StringBuilder sb, final Group< ? extends ViewId > group )
+	{
+		final List< ViewId > views = new ArrayList<>( group.getViews() );
+		Collections.sort( views );
+
+		for ( int i = 0; i < views.size(); ++i )
+		{
+			if ( i > 0 )
+				sb.append( ";" );
+			sb.append( views.get( i ).getTimePointId() ).append( "," ).append( views.get( i ).getViewSetupId() );
+		}
+	}
+
+	/**
+	 * @param pair the pair of groups
+	 * @param vrs the view registrations
+	 * @param params the parameters
+	 * @param gva how the views of a group are combined
+	 * @param downsamplingFactors the downsampling
+	 * @return a hash over everything the pairwise result depends on
+	 */
+	public static String getKey(
+			final Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > pair,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final GroupedViewAggregator gva,
+			final long[] downsamplingFactors )
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append( "PC;" );
+		appendGroup( sb, pair.getA(), vrs );
+		sb.append( "|" );
+		appendGroup( sb, pair.getB(), vrs );
+		sb.append( ";" ).append( Arrays.toString( downsamplingFactors ) );
+		sb.append( ";" ).append( params.getResultSignature() );
+		sb.append( ";" ).append( gva == null ? "" : gva.getDescription() );
+
+		return sha1( sb.toString() );
+	}
+
+	protected static void appendGroup( final StringBuilder sb, final Group< ? extends ViewId > group, final ViewRegistrations vrs )
+	{
+		final List< ViewId > views = new ArrayList<>( group.getViews() );
+		Collections.sort( views );
+
+		for ( final ViewId viewId : views )
+		{
+			sb.append( viewId.getTimePointId() ).append( "," ).append( viewId.getViewSetupId() ).append( ":" );
+			for ( final double v : vrs.getViewRegistration( viewId ).getModel().getRowPackedCopy() )
+				sb.append( Double.doubleToLongBits( v ) ).append( "," );
+			sb.append( " " );
+		}
+	}
+
+	protected static String sha1( final String s )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : digest )
+				hex.append( String.format( "%02x", b ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// every JVM has SHA-1
+			throw new RuntimeException( e );
+		}
+	}
+
+	protected void load()
+	{
+		if ( !file.exists() )
+			return;
+
+		final List< String > lines = new ArrayList<>();
+
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			String line;
+			while ( ( line = in.readLine() ) != null )
+				lines.add( line );
+
+			// e.g. after a crash while writing, the last line might be cut anywhere (even within a number)
+			if ( lines.size() > 0 && endsWithIncompleteLine( file ) )
+				lines.remove( lines.size() - 1 );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to read pairwise results from '" + file + "': " + e );
+			return;
+		}
+
+		for ( final String line : lines )
+		{
+			++numLines;
+
+			if ( line.startsWith( "F\t" ) )
+			{
+				final String[] fields = line.split( "\t", 3 );
+				if ( fields.length == 3 )
+					failures.put( fields[ 1 ], fields[ 2 ] );
+			}
+			else
+			{
+				final Pair< String, Entry > parsed = parseLine( line );
+
+				// null for lines that cannot be parsed (e.g. written by a different version)
+				if ( parsed != null )
+				{
+					entries.put( parsed.getA(), parsed.getB() );
+					failures.remove( parsed.getA() );
+				}
+			}
+		}
+
+		IOFunctions.println( "Loaded " + entries.size() + " stored pairwise results from '" + file + "'" +
+				( failures.size() > 0 ? " (" + failures.size() + " failed pairs will be computed again)." : "." ) );
+
+		// most lines are outdated, rewrite the file with only the current ones
+		if ( numLines > 2 * ( entries.size() + failures.size() ) + 100 )
+			compact();
+	}
+
+	protected void compact()
+	{
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+
+		try ( final BufferedWriter out = new BufferedWriter( new FileWriter( tmp ) ) )
+		{
+			for ( final java.util.Map.Entry< String, Entry > e : entries.entrySet() )
+			{
+				out.write( toLine( e.getKey(), e.getValue() ) );
+				out.newLine();
+			}
+
+			for ( final java.util.Map.Entry< String, String > e : failures.entrySet() )
+			{
+				out.write( "F\t" + e.getKey() + "\t" + e.getValue() );
+				out.newLine();
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to compact '" + file + "': " + e );
+			tmp.delete();
+			return;
+		}
+
+		try
+		{
+			try
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+
+			numLines = entries.size() + failures.size();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to compact '" + file + "': " + e );
+			tmp.delete();
+		}
+	}
+
+	protected void append( final String line )
+	{
+		if ( writeFailed )
+			return;
+
+		try
+		{
+			if ( writer == null )
+			{
+				final boolean incompleteLastLine = endsWithIncompleteLine( file );
+				writer = new BufferedWriter( new FileWriter( file, true ) );
+
+				// e.g. after a crash while writing, do not continue that line
+				if ( incompleteLastLine )
+					writer.newLine();
+			}
+
+			writer.write( line );
+			writer.newLine();
+			++numLines;
+		}
+		catch ( final IOException e )
+		{
+			disableWriting( e );
+		}
+	}
+
+	/**
+	 * stop writing after an error (e.g. disk full or no write permission), so it is not retried (and logged) for every pair
+	 * @param e what went wrong
+	 */
+	protected void disableWriting( final IOException e )
+	{
+		IOFunctions.println( "Failed to write pairwise results to '" + file + "', not storing any more results of this run: " + e );
+		writeFailed = true;
+
+		if ( writer != null )
+		{
+			try
+			{
+				writer.close();
+			}
+			catch ( final IOException ce ) {}
+
+			writer = null;
+		}
+	}
+
+	protected static boolean endsWithIncompleteLine( final File file ) throws IOException
+	{
+		if ( !file.exists() || file.length() == 0 )
+			return false;
+
+		try ( final RandomAccessFile raf = new RandomAccessFile( file, "r" ) )
+		{
+			raf.seek( raf.length() - 1 );
+			return raf.read() != '\n';
+		}
+	}
+
+	protected static String toLine( final String pairId, final Entry entry )
+	{
+		if ( entry.isEmpty() )
+			return "N\t" + pairId + "\t" + entry.key;
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append( "R\t" ).append( pairId ).append( "\t" ).append( entry.key ).append( "\t" );
+		sb.append( entry.r ).append( "\t" ).append( entry.hash ).append( "\t" );
+		appendArray( sb, entry.transform );
+		sb.append( "\t" );
+		appendArray( sb, entry.min );
+		sb.append( "\t" );
+		appendArray( sb, entry.max );
+
+		return sb.toString();
+	}
+
+	protected static Pair< String, Entry > parseLine( final String line )
+	{
+		final String[] fields = line.split( "\t" );
+
+		try
+		{
+			if ( fields.length == 3 && fields[ 0 ].equals( "N" ) )
+				return new ValuePair<>( fields[ 1 ], new Entry( fields[ 2 ], Double.NaN, 0, null, null, null ) );
+
+			if ( fields.length == 8 && fields[ 0 ].equals( "R" ) )
+			{
+				final double[] transform = parseArray( fields[ 5 ] );
+				if ( transform == null || transform.length != 12 )
+					return null;
+
+				return new ValuePair<>( fields[ 1 ], new Entry(
+						fields[ 2 ],
+						Double.parseDouble( fields[ 3 ] ),
+						Double.parseDouble( fields[ 4 ] ),
+						transform,
+						parseArray( fields[ 6 ] ),
+						parseArray( fields[ 7 ] ) ) );
+			}
+		}
+		catch ( final NumberFormatException e ) {}
+
+		return null;
+	}
+
+	protected static void appendArray( final StringBuilder sb, final double[] a )
+	{
+		if ( a == null )
+		{
+			sb.append( "-" );
+			return;
+		}
+
+		for ( int d = 0; d < a.length; ++d )
+		{
+			if ( d > 0 )
+				sb.append( "," );
+			sb.append( a[ d ] );
+		}
+	}
+
+	protected static double[] parseArray( final String s )
+	{
+		if ( s.equals( "-" ) )
+			return null;
+
+		final String[] values = s.split( "," );
+		final double[] a = new double[ values.length ];
+		for ( int d = 0; d < a.length; ++d )
+			a[ d ] = Double.parseDouble( values[ d ] );
+
+		return a;
+	}
+
+	protected static class Entry
+	{
+		final String key;
+		final double r, hash;
+		final double[] transform, min, max;
+
+		Entry( final String key, final double r, final double hash, final double[] transform, final double[] min, final double[] max )
+		{
+			this.key = key;
+			this.r = r;
+			this.hash = hash;
+			this.transform = transform;
+			this.min = min;
+			this.max = max;
+		}
+
+		/**
+		 * @return true if the pair was computed, but no shift was found
+		 */
+		boolean isEmpty() { return transform == null; }
+	}
+}
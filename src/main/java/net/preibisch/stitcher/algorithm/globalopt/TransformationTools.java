@@ -23,14 +23,21 @@ package net.preibisch.stitcher.algorithm.globalopt;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -45,8 +52,11 @@ import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.algorithm.phasecorrelation.PCMWorkspace;
+import net.imglib2.algorithm.phasecorrelation.PeakVerificationStatistics;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -54,6 +64,7 @@ import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.TranslationGet;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -68,11 +79,21 @@ import net.preibisch.mvrecon.process.interestpointregistration.global.convergenc
 import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.ImageCache;
+import net.preibisch.stitcher.algorithm.MemoryAdmissionController;
+import net.preibisch.stitcher.algorithm.OverlapSignalCheck;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.RAIProxy;
+import net.preibisch.stitcher.algorithm.SpatialGridIndex;
+import net.preibisch.stitcher.algorithm.StitchingExecutors;
+import net.preibisch.stitcher.algorithm.TileFFTCache;
 import net.preibisch.stitcher.algorithm.TransformTools;
+import net.preibisch.stitcher.algorithm.lucaskanade.Align;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeShift;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeStitchingResult;
 import net.preibisch.stitcher.gui.popup.DisplayOverlapTestPopup;
 import net.preibisch.stitcher.input.GenerateSpimData;
 
@@ -80,11 +101,38 @@ public class TransformationTools
 {
 	public static int maxNumOutputLines = 200;
 
+	// fraction of the maximal heap size that computing pairwise shifts may use in total: the caches below are reserved first,
+	// the pairs computed in parallel get the rest (see MemoryAdmissionController)
+	public static double pairwiseMemoryFraction = 0.75;
+
+	// fraction of the maximal heap size that may be used to cache (downsampled) tiles while computing pairwise shifts
+	// (shared with the cache of their Fourier transforms, if enabled)
+	public static double tileCacheMemoryFraction = 0.25;
+
+	// fraction of the maximal heap size used to keep FFT/PCM buffers for reuse between pairs (see PCMWorkspace)
+	public static double pcmPoolMemoryFraction = 0.0625;
+
+	// only load the overlapping part of the views when computing pairwise shifts (unless the whole image is used)
+	public static boolean loadOverlapOnly = true;
+
+	// pixels loaded around the overlap, covers the rounding of the overlap interval and the extension of the phase correlation
+	public static int overlapLoadingMargin = 12;
+
+	// a dimension is only downsampled further for a coarser pyramid level if the overlap stays at least this large (in pixels)
+	public static int minPyramidOverlapSize = 16;
+
 	public static < A > Pair< A, A > reversePair( final Pair< A, A > pair )
 	{
 		return new ValuePair< A, A >( pair.getB(), pair.getA() );
 	}
 
+	public static < V extends ViewId > Pair< Group< ViewId >, Group< ViewId > > toViewIdPair( final Pair< Group< V >, Group< V > > pair )
+	{
+		return new ValuePair<>(
+				new Group< ViewId >( pair.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) ),
+				new Group< ViewId >( pair.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) ) );
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingNonEqualTransformations(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -219,7 +267,7 @@ public class TransformationTools
 		final RandomAccessibleInterval< FloatType > img2 = raiOverlaps.get(1);
 		
 		// compute phase correlation shift (passing (0,0,..) translations prevents any overlap correction inside)
-		final Pair< AffineTransform, Double > result = PairwiseStitching.getShiftLucasKanade(
+		final LucasKanadeShift< AffineTransform > result = PairwiseStitching.getShiftLucasKanade(
 				img1,
 				img2,
 				new Translation( img1.numDimensions() ),
@@ -244,7 +292,7 @@ public class TransformationTools
 		if ( PairwiseStitching.debug )
 			IOFunctions.println("resulting transformation: " + Util.printCoordinates(result.getA().getRowPackedCopy()));
 
-		return new ValuePair<>( new ValuePair<>( resCorrected, result.getB() ), bbOverlap );
+		return new ValuePair<>( new LucasKanadeShift< AffineGet >( resCorrected, result.getB(), result.getStopReason(), result.getNumIterations() ), bbOverlap );
 	}
 	
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
@@ -257,6 +305,34 @@ public class TransformationTools
 			final long[] downsampleFactors,
 			final ExecutorService service )
 	{
+		return computeStitching( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, null, service );
+	}
+
+	/**
+	 * compute the shift between two groups of views by phase correlation
+	 * @param viewIdsA first group
+	 * @param viewIdsB second group
+	 * @param vrs view registrations
+	 * @param params stitching parameters
+	 * @param sd sequence description
+	 * @param gva aggregator to combine the views of a group into one image
+	 * @param downsampleFactors downsampling
+	 * @param fftCache cache for Fourier transforms of the groups that is shared between pairs (may be null)
+	 * @param service executor service
+	 * @param <T> pixel type
+	 * @return (shift in global coordinates, correlation) and the overlap bounding box, or null if no shift could be determined
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final TileFFTCache fftCache,
+			final ExecutorService service )
+	{
 
 		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
 		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
@@ -273,9 +349,41 @@ public class TransformationTools
 		if (bbOverlap == null)
 			return null;
 
-		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, service );
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, service );
+		if ( params.coarseToFineLevels > 1 && !params.useWholeImage )
+			return computeStitchingCoarseToFine( viewIdsA, viewIdsB, bbOverlap, vrs, params, sd, gva, downsampleFactors, service );
+
+		// get one image per group (only the overlapping part is loaded, the phase correlation does not look at the rest)
+		final RealInterval restriction = loadOverlapOnly && !params.useWholeImage ? bbOverlap : null;
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+
+		try
+		{
+			final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, restriction, vrs, overlapLoadingMargin, proxies, service );
+			final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, restriction, vrs, overlapLoadingMargin, proxies, service );
+
+			return computeStitching( img1, img2, viewIdsA, viewIdsB, bbOverlap, dsCorrectionT1, dsCorrectionT2, vrs, params, downsampleFactors, fftCache, service );
+		}
+		finally
+		{
+			// drop the pixels as soon as we are done with this pair (they might still be in the tile cache)
+			proxies.forEach( RAIProxy::release );
+		}
+	}
+
+	private static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final RandomAccessibleInterval<T> img1,
+			final RandomAccessibleInterval<T> img2,
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final RealInterval bbOverlap,
+			final AffineTransform3D dsCorrectionT1,
+			final AffineTransform3D dsCorrectionT2,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final long[] downsampleFactors,
+			final TileFFTCache fftCache,
+			final ExecutorService service )
+	{
 
 		if (img1 == null || img2 == null)
 		{
@@ -291,7 +399,14 @@ public class TransformationTools
 		Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
 		Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
 
-		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service );
+		// the groups (and the downsampling) identify the images for caching their Fourier transforms
+		final Pair< Translation, Double > result;
+
+		if ( params.numBlocks > 1 && !params.useWholeImage )
+			result = PairwiseStitching.getShiftBlockwise( img1, img2, t1.getB(), t2.getB(), params, service );
+		else
+			result = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service,
+				fftCache, getTileKey( viewIdsA, downsampleFactors ), getTileKey( viewIdsB, downsampleFactors ) );
 
 		if (result == null)
 			return null;
@@ -302,6 +417,165 @@ public class TransformationTools
 		// TODO (?): Different translational part of downsample Transformations should be considered via TransformTools.getInitialTransforms
 		// we probalbly do not have to correct for them ?
 
+		return toGlobalResult( result, viewIdsB, vrs, bbOverlap );
+	}
+
+	/**
+	 * compute the shift between two groups of views by phase correlation on an image pyramid: the shift is found at the
+	 * coarsest level (downsampled 2^(levels-1)x more than requested, using the mipmaps of the views if there are any)
+	 * and refined at each finer level on a small window in the center of the overlap after applying the shift found so far,
+	 * so the Fourier transforms at the finer levels only have the size of that window
+	 * @param viewIdsA first group
+	 * @param viewIdsB second group
+	 * @param bbOverlap the overlap of both groups
+	 * @param vrs view registrations
+	 * @param params stitching parameters
+	 * @param sd sequence description
+	 * @param gva aggregator to combine the views of a group into one image
+	 * @param downsampleFactors downsampling of the finest level
+	 * @param service executor service
+	 * @param <T> pixel type
+	 * @return (shift in global coordinates, correlation) and the overlap bounding box, or null if no shift could be determined
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingCoarseToFine(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final RealInterval bbOverlap,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final ExecutorService service )
+	{
+		final int n = downsampleFactors.length;
+		final RealInterval restriction = loadOverlapOnly ? bbOverlap : null;
+
+		// shift of B relative to A found so far, in full resolution pixels
+		final double[] shift = new double[ n ];
+		double r = 0;
+		long[] lastDs = null;
+
+		for ( int level = params.coarseToFineLevels - 1; level >= 0; --level )
+		{
+			final long[] ds = getPyramidDownsampling( downsampleFactors, level, bbOverlap );
+
+			// the overlap is too small to downsample further
+			if ( Arrays.equals( ds, lastDs ) )
+				continue;
+
+			final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
+			final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
+			final List< RAIProxy< ? > > proxies = new ArrayList<>();
+
+			// B is moved by the shift found so far, so the overlap moves as well (in both images)
+			final long margin = getCoarseToFineMargin( shift, ds );
+
+			try
+			{
+				final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, ds, dsCorrectionT1, restriction, vrs, margin, proxies, service );
+				final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, ds, dsCorrectionT2, restriction, vrs, margin, proxies, service );
+
+				if (img1 == null || img2 == null)
+				{
+					IOFunctions.println( "WARNING: Tried to open missing View when computing Stitching for " + viewIdsA + " and " + 
+								viewIdsB + ". No link between those could be determined");
+					return null;
+				}
+
+				final boolean is2d = img1.numDimensions() == 2;
+				final TranslationGet t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 ).getB();
+				final TranslationGet t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 ).getB();
+
+				// move B by the shift found at the coarser levels (in pixels of this level)
+				final double[] t2Shifted = new double[ t2.numDimensions() ];
+				for ( int d = 0; d < t2Shifted.length; ++d )
+					t2Shifted[ d ] = t2.getTranslation( d ) + ( d < n ? shift[ d ] / ds[ d ] : 0 );
+
+				final Pair< Translation, Double > result = PairwiseStitching.getShift( img1, img2, t1, new Translation( t2Shifted ), params, service,
+						null, null, null, lastDs == null ? 0 : params.refinementWindowSize );
+
+				if ( result == null )
+				{
+					// nothing found at the coarsest level
+					if ( lastDs == null )
+						return null;
+
+					// keep the (less precise) shift of the coarser level
+					if ( PairwiseStitching.debug )
+						System.out.println( "could not refine shift at downsampling " + Util.printCoordinates( ds ) );
+
+					break;
+				}
+
+				for ( int d = 0; d < n; ++d )
+					shift[ d ] += result.getA().getTranslation( d ) * ds[ d ];
+
+				r = result.getB();
+				lastDs = ds;
+
+				if ( PairwiseStitching.debug )
+					System.out.println( "shift at downsampling " + Util.printCoordinates( ds ) + ": " + Util.printCoordinates( shift ) + ", r=" + r );
+			}
+			finally
+			{
+				proxies.forEach( RAIProxy::release );
+			}
+		}
+
+		if ( lastDs == null )
+			return null;
+
+		return toGlobalResult( new ValuePair<>( new Translation( shift ), r ), viewIdsB, vrs, bbOverlap );
+	}
+
+	/**
+	 * @param shift the shift of B found at the coarser levels (in full resolution pixels)
+	 * @param ds downsampling of the current level
+	 * @return number of (downsampled) pixels to load around the overlap, so that the overlap after applying the shift
+	 * (and the refinement window in its center) is loaded completely
+	 */
+	public static long getCoarseToFineMargin( final double[] shift, final long[] ds )
+	{
+		long maxShift = 0;
+
+		for ( int d = 0; d < shift.length; ++d )
+			maxShift = Math.max( maxShift, (long) Math.ceil( Math.abs( shift[ d ] ) / ds[ d ] ) );
+
+		return overlapLoadingMargin + maxShift;
+	}
+
+	/**
+	 * @param downsampleFactors downsampling of the finest level
+	 * @param level the pyramid level (0 = finest)
+	 * @param bbOverlap the overlap
+	 * @return downsampling of the level, dimensions where the overlap would get smaller than {@link #minPyramidOverlapSize} are not downsampled further
+	 */
+	public static long[] getPyramidDownsampling( final long[] downsampleFactors, final int level, final RealInterval bbOverlap )
+	{
+		final long[] ds = downsampleFactors.clone();
+
+		for ( int d = 0; d < ds.length; ++d )
+			for ( int l = 0; l < level; ++l )
+				if ( ( bbOverlap.realMax( d ) - bbOverlap.realMin( d ) ) / ( ds[ d ] * 2 ) >= minPyramidOverlapSize )
+					ds[ d ] *= 2;
+
+		return ds;
+	}
+
+	/**
+	 * @param result shift (in full resolution pixels of the views) and correlation
+	 * @param viewIdsB the group that was shifted
+	 * @param vrs view registrations
+	 * @param bbOverlap the overlap
+	 * @return (shift in global coordinates, correlation) and the overlap
+	 */
+	private static Pair<Pair< AffineGet, Double >, RealInterval> toGlobalResult(
+			final Pair< Translation, Double > result,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final RealInterval bbOverlap )
+	{
 		// NB: as we will deal in global coordinates, not pixel coordinates in global optimization,
 		// calculate global R' = VT^-1 * R * VT from pixel transformation R 
 		ViewRegistration vrOld = vrs.getViewRegistration(viewIdsB.iterator().next());
@@ -320,6 +594,15 @@ public class TransformationTools
 		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
 	}
 	
+	private static Object getTileKey( final Group<? extends ViewId> views, final long[] downsampleFactors )
+	{
+		final ArrayList< Object > key = new ArrayList<>();
+		key.add( new HashSet< ViewId >( views.getViews() ) );
+		for ( final long f : downsampleFactors )
+			key.add( f );
+		return key;
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingLucasKanade(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -363,7 +646,7 @@ public class TransformationTools
 		Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
 		Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
 
-		final Pair< AffineTransform, Double > result  = PairwiseStitching.getShiftLucasKanade(  img1, img2, t1.getB(), t2.getB(), params, service );
+		final LucasKanadeShift< AffineTransform > result  = PairwiseStitching.getShiftLucasKanade(  img1, img2, t1.getB(), t2.getB(), params, service );
 
 		if (result == null)
 			return null;
@@ -386,7 +669,94 @@ public class TransformationTools
 		IOFunctions.println("resulting transformation (pixel coordinates): " + Util.printCoordinates(result.getA().getRowPackedCopy()));
 		IOFunctions.println("resulting transformation (global coordinates): " + Util.printCoordinates(resTransform.getRowPackedCopy()));
 
-		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
+		return new ValuePair<>( new LucasKanadeShift< AffineGet >( resTransform, result.getB(), result.getStopReason(), result.getNumIterations() ), bbOverlap );
+	}
+
+	/**
+	 * estimate the peak memory needed to compute the shift of a pair of view groups by phase correlation
+	 * (see {@link MemoryAdmissionController#estimatePairBytes})
+	 * @param viewIdsA first group
+	 * @param viewIdsB second group
+	 * @param vrs view registrations
+	 * @param params stitching parameters
+	 * @param sd sequence description
+	 * @param downsampleFactors downsampling
+	 * @return estimated bytes, 0 if the groups do not overlap
+	 */
+	public static long estimatePairBytes(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final long[] downsampleFactors )
+	{
+		final List<List<ViewId>> views = new ArrayList<>();
+		views.add( new ArrayList<>(viewIdsA.getViews()) );
+		views.add( new ArrayList<>(viewIdsB.getViews()) );
+		final BoundingBox bbOverlap = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs ).estimate( "Max Overlap" );
+
+		if ( bbOverlap == null )
+			return 0;
+
+		final ViewId firstVdA = viewIdsA.iterator().next();
+		final ViewId firstVdB = viewIdsB.iterator().next();
+
+		// size of the overlap in downsampled pixels (the scaling of the registration maps pixels to global units)
+		final AffineTransform3D model = vrs.getViewRegistration( firstVdA ).getModel();
+		final long[] overlapSize = new long[ bbOverlap.numDimensions() ];
+		for ( int d = 0; d < overlapSize.length; ++d )
+		{
+			final double scale = Math.sqrt( Math.pow( model.get( 0, d ), 2 ) + Math.pow( model.get( 1, d ), 2 ) + Math.pow( model.get( 2, d ), 2 ) );
+			overlapSize[ d ] = (long) Math.ceil( bbOverlap.dimension( d ) / Math.max( scale, 1e-10 ) / downsampleFactors[ d ] );
+		}
+
+		final boolean overlapOnly = loadOverlapOnly && !params.useWholeImage;
+		final long[] loadedSizeA = overlapOnly ? getLoadedOverlapSize( overlapSize, downsampleFactors ) : getDownsampledSize( sd, firstVdA, overlapSize, downsampleFactors );
+		final long[] loadedSizeB = overlapOnly ? getLoadedOverlapSize( overlapSize, downsampleFactors ) : getDownsampledSize( sd, firstVdB, overlapSize, downsampleFactors );
+
+		return MemoryAdmissionController.estimatePairBytes(
+				overlapSize, loadedSizeA, loadedSizeB, viewIdsA.getViews().size(), viewIdsB.getViews().size(), getBytesPerPixel( sd, firstVdA ), params );
+	}
+
+	private static long[] getLoadedOverlapSize( final long[] overlapSize, final long[] downsampleFactors )
+	{
+		final long[] size = new long[ overlapSize.length ];
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = overlapSize[ d ] + 2 * ( overlapLoadingMargin / downsampleFactors[ d ] + 1 );
+		return size;
+	}
+
+	private static long[] getDownsampledSize( final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd, final ViewId viewId,
+			final long[] overlapSize, final long[] downsampleFactors )
+	{
+		final Dimensions setupSize = sd.getViewDescriptions().get( viewId ).getViewSetup().getSize();
+
+		// no size known, at least the overlap is loaded
+		if ( setupSize == null )
+			return overlapSize;
+
+		final long[] size = Intervals.dimensionsAsLongArray( setupSize );
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = ( size[ d ] + downsampleFactors[ d ] - 1 ) / downsampleFactors[ d ];
+		return size;
+	}
+
+	private static int getBytesPerPixel( final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd, final ViewId viewId )
+	{
+		try
+		{
+			final Object type = sd.getImgLoader().getSetupImgLoader( viewId.getViewSetupId() ).getImageType();
+			if ( type instanceof RealType )
+				return Math.max( 1, ( (RealType< ? >) type ).getBitsPerPixel() / 8 );
+		}
+		catch ( final RuntimeException e )
+		{
+			IOFunctions.println( "Cannot determine the pixel type of " + Group.pvid( viewId ) + ", assuming float: " + e );
+		}
+
+		// unknown, assume float
+		return 4;
 	}
 
 	/**
@@ -404,24 +774,54 @@ public class TransformationTools
 			)
 	{
 		
-		final List< Pair<  Group< V >,  Group< V > > > removedPairs = new ArrayList<>();
-		
-		for (int i = pairs.size() - 1; i >= 0; i--)
+		// bounding boxes of all groups, computed once
+		final Map< Group< V >, RealInterval > bounds = new HashMap<>();
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
 		{
-			final List<Set<V>> pairAsGroups = new ArrayList<>();
-			pairAsGroups.add( pairs.get( i ).getA().getViews() );
-			pairAsGroups.add( pairs.get( i ).getB().getViews() );
-			
-			final BoundingBoxMaximalGroupOverlap< V > ibbd = new BoundingBoxMaximalGroupOverlap< V >(pairAsGroups, sd, vrs);
-			BoundingBox bb = ibbd.estimate( "max overlap" );
-			
-			if (bb == null)
+			bounds.computeIfAbsent( pair.getA(), g -> SpatialGridIndex.getBounds( g.getViews(), sd, vrs ) );
+			bounds.computeIfAbsent( pair.getB(), g -> SpatialGridIndex.getBounds( g.getViews(), sd, vrs ) );
+		}
+
+		// cheap test of the bounding boxes first, the exact overlap only for pairs that pass it (in parallel)
+		final List< Callable< Boolean > > tasks = new ArrayList<>();
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
+			tasks.add( () ->
 			{
-				removedPairs.add( pairs.get( i ) );
-				pairs.remove( i );
-			}
-			
+				final RealInterval boundsA = bounds.get( pair.getA() );
+				final RealInterval boundsB = bounds.get( pair.getB() );
+
+				if ( boundsA != null && boundsB != null && !SpatialGridIndex.intersect( boundsA, boundsB, SpatialGridIndex.tolerance ) )
+					return false;
+
+				final List<Set<V>> pairAsGroups = new ArrayList<>();
+				pairAsGroups.add( pair.getA().getViews() );
+				pairAsGroups.add( pair.getB().getViews() );
+
+				final BoundingBoxMaximalGroupOverlap< V > ibbd = new BoundingBoxMaximalGroupOverlap< V >(pairAsGroups, sd, vrs);
+				return ibbd.estimate( "max overlap" ) != null;
+			} );
+
+		final List< Pair<  Group< V >,  Group< V > > > keptPairs = new ArrayList<>();
+		final List< Pair<  Group< V >,  Group< V > > > removedPairs = new ArrayList<>();
+
+		try
+		{
+			final List< Future< Boolean > > overlapping = StitchingExecutors.getComputePool().invokeAll( tasks );
+
+			for ( int i = 0; i < pairs.size(); ++i )
+				if ( overlapping.get( i ).get() )
+					keptPairs.add( pairs.get( i ) );
+				else
+					removedPairs.add( pairs.get( i ) );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to determine overlapping pairs: " + e, e );
 		}
+
+		// modify the list in one go (instead of removing elements one by one)
+		pairs.clear();
+		pairs.addAll( keptPairs );
 		
 		return removedPairs;
 		
@@ -446,6 +846,9 @@ public class TransformationTools
 
 		IJ.showProgress( 0.0 );
 
+		// shared pool for the pairs and their internal parallelism
+		final ForkJoinPool pool = StitchingExecutors.getComputePool();
+
 		for ( final Pair< Group< V >, Group< V > > p : pairs )
 		{
 			tasks.add(
@@ -460,9 +863,6 @@ public class TransformationTools
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
 									+ p.getA() + " <> " + p.getB() );
 
-							final ExecutorService serviceLocal = Executors.newFixedThreadPool(
-									Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
-
 							final ViewId firstVdA = p.getA().iterator().next();
 							final ViewId firstVdB = p.getB().iterator().next();
 
@@ -473,16 +873,14 @@ public class TransformationTools
 							{
 
 								result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
-										downsamplingFactors, serviceLocal );
+										downsamplingFactors, pool );
 							}
 							else
 							{
 								result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
-										gva, downsamplingFactors, serviceLocal );
+										gva, downsamplingFactors, pool );
 							}
 
-							serviceLocal.shutdown();
-
 							int nCompletedI = nCompleted.incrementAndGet();
 							if (progressWriter != null)							
 								progressWriter.setProgress( (double) nCompletedI / nComparisions );
@@ -498,21 +896,18 @@ public class TransformationTools
 
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
 
-		// set up executor service
+		// how many pairs stopped for which reason (to tune the stopping rules)
+		final Map< Align.StopReason, Integer > stopReasons = new EnumMap<>( Align.StopReason.class );
+
+		// how many pairs we run in parallel
 		final int batchSize = params.manualNumTasks ? params.numTasks : Math.max( 2, Threads.numThreads() / 6 );
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( batchSize );
 
 		try
 		{
-			for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > future : serviceGlobal
-					.invokeAll( tasks ) )
+			StitchingExecutors.invokeBounded( tasks, batchSize, pool, result ->
 			{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > result = future
-						.get();
-
 				if ( result.getB() == null )
-					continue;
+					return;
 
 				AffineTransform3D resT = new AffineTransform3D();
 				resT.preConcatenate( result.getB().getA().getA() );
@@ -529,9 +924,21 @@ public class TransformationTools
 						vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
 				// TODO: when does that really happen?
 				if ( result.getB() != null )
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>( groupA, groupB ), result.getB().getB(),
-							resT, result.getB().getA().getB(), oldTransformHash ) );
-			}
+				{
+					if ( LucasKanadeShift.class.isInstance( result.getB().getA() ) )
+					{
+						final LucasKanadeShift< ? > shift = (LucasKanadeShift< ? >) result.getB().getA();
+						stopReasons.merge( shift.getStopReason(), 1, Integer::sum );
+						results.add( new LucasKanadeStitchingResult<>( new ValuePair<>( groupA, groupB ), result.getB().getB(),
+								resT, shift.getB(), oldTransformHash, shift.getStopReason(), shift.getNumIterations() ) );
+					}
+					else
+					{
+						results.add( new PairwiseStitchingResult<>( new ValuePair<>( groupA, groupB ), result.getB().getB(),
+								resT, result.getB().getA().getB(), oldTransformHash ) );
+					}
+				}
+			});
 		}
 		catch ( final Exception e )
 		{
@@ -540,6 +947,8 @@ public class TransformationTools
 			return null;
 		}
 
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Lucas-Kanade stop reasons: " + stopReasons );
+
 		return results;
 	}
 	
@@ -550,6 +959,31 @@ public class TransformationTools
 																		final GroupedViewAggregator gva,
 																		final long[] downsamplingFactors)
 	{
+		return computePairs( pairs, params, vrs, sd, gva, downsamplingFactors, null );
+	}
+
+	/**
+	 * compute the pairwise shifts of all overlapping pairs
+	 * 
+	 * @param pairs list of potentially overlapping pairs of view groups, non-overlapping pairs are removed from it
+	 * @param params the pairwise stitching parameters
+	 * @param vrs the view registrations
+	 * @param sd the sequence description
+	 * @param gva how the views of a group are combined
+	 * @param downsamplingFactors the downsampling
+	 * @param store persistent store (checkpoint) of results, new results and failures are added to it, if {@link PairwiseResultStore#reuseResults}
+	 * pairs with a stored result are not computed again (can be null)
+	 * @param <V> view id type
+	 * @return the results of all pairs where a shift was found (pairs that failed are missing), null if the computation was interrupted
+	 */
+	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
+																		final PairwiseStitchingParameters params, 
+																		final ViewRegistrations vrs,
+																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
+																		final GroupedViewAggregator gva,
+																		final long[] downsamplingFactors,
+																		final PairwiseResultStore store )
+	{
 
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Identifying overlapping image pairs ..." );
 
@@ -559,13 +993,52 @@ public class TransformationTools
 		final List< Pair< Group< V >, Group< V > > > removedPairs = filterNonOverlappingPairs( pairs, vrs, sd );
 		//removedPairs.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 
-		final int nComparisions = pairs.size();
 		final AtomicInteger nCompleted = new AtomicInteger();
+		final AtomicInteger nLowSignal = new AtomicInteger();
+		final AtomicInteger nUnknownSignal = new AtomicInteger();
 		final Random rnd = new Random( 345 );
-		final double rndThres = (double)maxNumOutputLines / (double)nComparisions;
 
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Removed " + removedPairs.size() + " non-overlapping view-pairs for computing." );
 
+		// reuse stored results of pairs where nothing changed, only compute the others
+		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		final IdentityHashMap< Pair< Group< V >, Group< V > >, String > storeKeys = new IdentityHashMap<>();
+		final Map< Pair< Group< V >, Group< V > >, Throwable > failures = Collections.synchronizedMap( new IdentityHashMap<>() );
+		final List< Pair< Group< V >, Group< V > > > pairsToCompute = new ArrayList<>();
+
+		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		{
+			if ( store == null )
+			{
+				pairsToCompute.add( p );
+				continue;
+			}
+
+			final String key = PairwiseResultStore.getKey( p, vrs, params, gva, downsamplingFactors );
+			final String pairId = PairwiseResultStore.getPairId( p );
+
+			if ( store.reuseResults && store.contains( pairId, key ) )
+			{
+				final PairwiseStitchingResult< ViewId > stored = store.get( pairId, key, toViewIdPair( p ) );
+				if ( stored != null )
+					results.add( stored );
+			}
+			else
+			{
+				storeKeys.put( p, key );
+				pairsToCompute.add( p );
+			}
+		}
+
+		if ( store != null && store.reuseResults )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Reusing " + ( pairs.size() - pairsToCompute.size() ) +
+					" unchanged pairs stored in '" + store.getFile() + "', computing " + pairsToCompute.size() + "." );
+		else if ( store != null )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Writing results to '" + store.getFile() + "' while computing." );
+
+		final int nComparisions = pairsToCompute.size();
+		final double rndThres = (double)maxNumOutputLines / (double)nComparisions;
+
 		if ( nComparisions > maxNumOutputLines )
 			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Total number of comparisons: " + nComparisions + " (this is a lot, logging results in ImageJ log only for ~"+maxNumOutputLines+" randomly selected ones.");
 		else
@@ -573,15 +1046,48 @@ public class TransformationTools
 
 		IJ.showProgress( 0.0 );
 
-		// how many pairs of Phase Correlations we run in parallel
-		// it should not be more than max(Threads.numThreads() / 2, 1)
-		// so we can dedicate two threads per PCM pair
-		final int batchSize = 
-				Math.min(
-						Math.max( 1, Threads.numThreads() / 2 ), // Threads.numThreads() could be 1
-						params.manualNumTasks ? params.numTasks : Math.max( 2, Threads.numThreads() / 6 ) );
+		// order the pairs so that pairs sharing a tile are computed close together in time (cache reuse)
+		final List< Pair< Group< V >, Group< V > > > orderedPairs = PairScheduler.orderSpatially( pairsToCompute, vrs, sd );
 
-		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		// one memory budget for everything: the caches are reserved first, the pairs computed in parallel get the rest
+		final long maxMemory = Runtime.getRuntime().maxMemory();
+		final long tileCacheBytes = (long) ( maxMemory * tileCacheMemoryFraction );
+
+		// reuse the Fourier transforms of tiles between pairs (half of the tile cache budget)
+		final TileFFTCache fftCache = params.cacheTileFFTs ? new TileFFTCache( tileCacheBytes / 2 ) : null;
+		final long fftCacheBytes = fftCache == null ? 0 : tileCacheBytes / 2;
+
+		// share loaded tiles between pairs (a tile is typically part of up to 6 pairs in 3d)
+		final ImageCache< RAIProxy.Key > previousCache = gva.getImageCache();
+		final ImageCache< RAIProxy.Key > imageCache = previousCache != null ? previousCache : new ImageCache<>( tileCacheBytes - fftCacheBytes );
+		gva.setImageCache( imageCache );
+
+		// reuse FFT and PCM buffers between pairs (the pool size of this run only, see PCMWorkspace)
+		final long previousPcmPoolBytes = params.pcmPoolBytes;
+		final long pcmPoolBytes = (long) ( maxMemory * pcmPoolMemoryFraction );
+		params.pcmPoolBytes = pcmPoolBytes;
+
+		// how many pairs of Phase Correlations we run in parallel: as many as fit into the memory budget,
+		// but not more than the number of tasks (set by the user or the default of PairwiseStitchingParameters)
+		final int maxPairsInFlight = params.manualNumTasks ? params.numTasks : Math.max( 2, Threads.numThreads() / 6 );
+		final MemoryAdmissionController admission = new MemoryAdmissionController(
+				Math.max( 0, (long) ( maxMemory * pairwiseMemoryFraction ) - imageCache.getMaxBytes() - fftCacheBytes - pcmPoolBytes ) );
+
+		// the loaded tiles are counted for every pair that holds them, the tile cache can evict them while they are in use
+		final long[] pairBytes = new long[ orderedPairs.size() ];
+		for ( int i = 0; i < pairBytes.length; ++i )
+			pairBytes[ i ] = estimatePairBytes( orderedPairs.get( i ).getA(), orderedPairs.get( i ).getB(), vrs, params, sd, downsamplingFactors );
+
+		// count the ordered peak verification of this run only
+		final PeakVerificationStatistics previousPeakStats = params.peakVerificationStatistics;
+		final PeakVerificationStatistics peakStats = new PeakVerificationStatistics();
+		params.peakVerificationStatistics = peakStats;
+
+		// one shared work-stealing pool for the pairs and everything they compute in parallel (FFTs, PCM, cross correlation),
+		// pairs are started as soon as there is enough memory and threads
+		final ForkJoinPool pool = StitchingExecutors.getComputePool();
+
+		for ( final Pair< Group< V >, Group< V > > p : orderedPairs )
 		{
 			tasks.add( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
 			{
@@ -590,54 +1096,89 @@ public class TransformationTools
 				{
 					Pair<Pair< AffineGet, Double >, RealInterval> result = null;
 
-					final int numLocalThreads = Threads.numThreads() / batchSize; //Math.max( 2, Threads.numThreads() / 4 );
-					final ExecutorService serviceLocal = Executors.newFixedThreadPool( numLocalThreads );
-
 					// TODO: do non-equal transformation registration when views within a group have differing transformations
 					final ViewId firstVdA = p.getA().iterator().next();
 					final ViewId firstVdB = p.getB().iterator().next();
 					
 					boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
-					
-					if (nonTranslationsEqual)
+
+					double signal = Double.NaN;
+					boolean unknownSignal = false;
+
+					try
 					{
-						if ( PairwiseStitching.debug )
-							System.out.println( "non translations equal" );
-						result = computeStitching(
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
+						// cheap check on the coarsest mipmap level first, do not compute overlaps that only contain background
+						if ( params.minOverlapSignal > 0 )
+						{
+							signal = OverlapSignalCheck.getSignal( p.getA(), p.getB(), vrs, sd, gva, downsamplingFactors, pool );
+							unknownSignal = Double.isNaN( signal );
+						}
+
+						// no overlap or a view is missing, there is nothing to compute either
+						if ( unknownSignal )
+						{
+							nUnknownSignal.incrementAndGet();
+						}
+						else if ( signal < params.minOverlapSignal )
+						{
+							nLowSignal.incrementAndGet();
+						}
+						else if (nonTranslationsEqual)
+						{
+							if ( PairwiseStitching.debug )
+								System.out.println( "non translations equal" );
+							result = computeStitching(
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									fftCache,
+									pool );
+						}
+						else
+						{
+							result = computeStitchingNonEqualTransformations( 
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									pool );
+							if ( PairwiseStitching.debug )
+								System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
+						}
 					}
-					else
+					catch ( final Exception | OutOfMemoryError e )
 					{
-						result = computeStitchingNonEqualTransformations( 
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
+						// one failing pair (e.g. unreadable image, out of memory) does not abort the others
+						failures.put( p, e );
+						IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": FAILED: " + e );
 						if ( PairwiseStitching.debug )
-							System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
+							e.printStackTrace();
 					}
 
-					serviceLocal.shutdown();
-
 					// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
 					int nCompletedI = nCompleted.incrementAndGet();
 					IJ.showProgress( (double) nCompletedI / nComparisions );
 
+					if ( failures.containsKey( p ) )
+						return new ValuePair<>( p, null );
+
 					if ( nComparisions <= maxNumOutputLines || rnd.nextDouble() < rndThres )
 					{
 						if (result != null)
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": r=" + result.getA().getB() );
+						else if ( unknownSignal )
+							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() +
+									": Skipped, no overlap or a view is missing." );
+						else if ( signal < params.minOverlapSignal )
+							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() +
+									": Skipped, low signal in overlap (" + signal + " < " + params.minOverlapSignal + ")." );
 						else
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": No shift found." );
 					}
@@ -647,39 +1188,27 @@ public class TransformationTools
 			});
 		}
 
-		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
-
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( batchSize );
-
-		IOFunctions.println( "Computing overlap for: " + batchSize + " pairs of images at once, each " + (Threads.numThreads() / batchSize) + " threads, (in total <=" + Threads.numThreads() + " threads)" );
+		IOFunctions.println( "Computing overlap for up to " + maxPairsInFlight + " pairs of images at once (memory " + admission +
+				", largest pair ~" + Arrays.stream( pairBytes ).max().orElse( 0 ) / ( 1024 * 1024 ) + " MB), sharing " + pool.getParallelism() + " threads" );
 		IOFunctions.println( "Total num CPUs: " + Runtime.getRuntime().availableProcessors() );
 
 		try
 		{
-			for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( tasks, batchSize ) )
-				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
-				{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
-
+			StitchingExecutors.invokeBounded( tasks, maxPairsInFlight, pairBytes, admission, pool, result ->
+			{
 				if (result.getB() == null)
-					continue;
-				
-				/*
-				final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
-				final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
-				
-				// get non-translation transform between the initial location of groupA
-				Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
-
-				// apply to shift vector
-				// FIXME: this only works for scaling, we need to do something different about rotations, etc.
-				boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
-				if (nonTranslationsEqual)
-					initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
+				{
+					if ( store != null )
+					{
+						final Throwable failure = failures.get( result.getA() );
+						if ( failure != null )
+							store.putFailure( PairwiseResultStore.getPairId( result.getA() ), failure );
+						else
+							store.put( PairwiseResultStore.getPairId( result.getA() ), storeKeys.get( result.getA() ), null );
+					}
+					return;
+				}
 
-				 */
-				
 				AffineTransform3D resT = new AffineTransform3D();
 				resT.preConcatenate( result.getB().getA().getA() );
 
@@ -694,9 +1223,13 @@ public class TransformationTools
 							vrs.getViewRegistration( groupA.getViews().iterator().next() ),
 							vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
 
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash ) );
+					final PairwiseStitchingResult< ViewId > psr = new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash );
+					results.add( psr );
+
+					if ( store != null )
+						store.put( PairwiseResultStore.getPairId( result.getA() ), storeKeys.get( result.getA() ), psr );
 				}
-			}
+			});
 		}
 		catch ( final Exception e )
 		{
@@ -704,6 +1237,48 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			if ( params.minOverlapSignal > 0 )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Skipped " + nLowSignal.get() + " of " + nComparisions +
+						" pairs with low signal in the overlap (relative std. dev. < " + params.minOverlapSignal + ")." );
+
+			if ( nUnknownSignal.get() > 0 )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Skipped " + nUnknownSignal.get() + " of " + nComparisions +
+						" pairs whose overlap could not be checked (no overlap or a view is missing)." );
+
+			if ( failures.size() > 0 )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": WARNING: computing " + failures.size() + " of " + nComparisions +
+						" pairs failed, they are missing in the results" + ( store != null ? " (and will be computed again when resuming)." : "." ) );
+
+			if ( store != null )
+				store.close();
+
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Pair admission: " + admission );
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Tile cache: " + imageCache.getStatistics() );
+
+			if ( fftCache != null )
+			{
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Tile FFT cache: " + fftCache.getStatistics() );
+				fftCache.clear();
+			}
+
+			if ( params.orderedPeakVerification )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Peak verification: " + peakStats );
+
+			params.peakVerificationStatistics = previousPeakStats;
+
+			// do not keep the buffers of this run alive
+			PCMWorkspace.clearPool();
+			params.pcmPoolBytes = previousPcmPoolBytes;
+
+			// only release the images if we created the cache
+			if ( previousCache == null )
+			{
+				imageCache.clear();
+				gva.setImageCache( null );
+			}
+		}
 
 		return results;
 	}
@@ -23,19 +23,20 @@ package net.preibisch.stitcher.algorithm.lucaskanade;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import Jama.Matrix;
 
 import ij.ImageJ;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -45,7 +46,10 @@ import net.imglib2.algorithm.phasecorrelation.ImgLib2Util;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.iterator.LocalizingIntervalIterator;
@@ -64,6 +68,7 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.downsampling.Downsample;
@@ -94,6 +99,7 @@ public class Align<T extends RealType< T >>
 	 * index the parameters of the warp function. For example, the partial
 	 * derivative of the template image intensity by parameter 2 of the warp
 	 * function at pixel <em>(x,y)</em> is stored at position <em>(x,y,1)</em>.
+	 * Null in memory-lean mode.
 	 */
 	final Img< FloatType > descent;
 
@@ -103,12 +109,69 @@ public class Align<T extends RealType< T >>
 	double[][] Hinv;
 
 	/**
-	 * The error image for the last iteration shows the difference between the
-	 * template and the warped (with {@link #currentTransform}) image.
+	 * In memory-lean mode no gradient or steepest descent images are stored, the steepest descent
+	 * values are computed on the fly from the template gradients and the pixel coordinates whenever they
+	 * are needed (for the Hessian and in every iteration).
 	 */
-	final Img< FloatType > error;
+	final boolean memoryLean;
 	
 	boolean lastAlignConverged;
+
+	int lastNumIterations;
+
+	/**
+	 * Why align() stopped iterating.
+	 */
+	public enum StopReason
+	{
+		/** the parameter update got smaller than the minimal parameter change */
+		CONVERGED,
+		/** the maximal number of iterations was reached */
+		MAX_ITERATIONS,
+		/** the correlation got worse (by more than {@link Align#divergenceTolerance}) for {@link Align#divergenceIterations} iterations */
+		DIVERGED,
+		/** the correlation did not improve for {@link Align#stagnationIterations} iterations */
+		STAGNATED,
+		/** the transform moved the center of the template outside of the image, the best transform is kept */
+		OUT_OF_BOUNDS
+	}
+
+	StopReason lastStopReason;
+
+	/**
+	 * Check the correlation (see {@link #getSubsampledCorrelation}) and the bounds after every iteration
+	 * and stop early if the alignment diverges, stagnates or leaves the image.
+	 */
+	boolean monitor = false;
+
+	/**
+	 * Number of pixels per dimension used to monitor the correlation.
+	 */
+	public static int monitorSampleSize = 32;
+
+	/**
+	 * Stop if the correlation is more than this below the best correlation so far ...
+	 */
+	public static double divergenceTolerance = 0.05;
+
+	/**
+	 * ... for this many iterations in a row, the best transform is kept.
+	 */
+	public static int divergenceIterations = 3;
+
+	/**
+	 * Stop if the correlation did not improve by at least {@link #minCorrelationImprovement} for this many iterations,
+	 * the best transform is kept and counts as converged.
+	 */
+	public static int stagnationIterations = 10;
+
+	public static double minCorrelationImprovement = 1e-4;
+
+	/**
+	 * Minimal size (in pixels) of a dimension at the coarsest level of {@link #alignMultiResolution},
+	 * dimensions that would get smaller are not downsampled any further.
+	 */
+	public static int minPyramidSize = 16;
 	
 	/**
 	 * returns true if the last align() call did not run for the maximum allowed number of iterations
@@ -119,21 +182,70 @@ public class Align<T extends RealType< T >>
 		return lastAlignConverged;
 	}
 	
+	/**
+	 * @return why the last align() call stopped
+	 */
+	public StopReason getStopReason()
+	{
+		return lastStopReason;
+	}
+
+	/**
+	 * @param monitor check the progress after every iteration and stop early (see {@link StopReason})
+	 */
+	public void setMonitoring(final boolean monitor)
+	{
+		this.monitor = monitor;
+	}
+
+	/**
+	 * @return the number of iterations of the last align() call
+	 */
+	public int getNumIterations()
+	{
+		return lastNumIterations;
+	}
+
 	public void setCurrentTransform(AffineGet tr)
 	{
 		this.currentTransform.set( tr );
 	}
 
+	public AffineTransform getCurrentTransform()
+	{
+		return currentTransform;
+	}
+
 	public Align(final RandomAccessibleInterval< T > template, final ImgFactory< FloatType > factory, WarpFunction model)
+	{
+		this( template, factory, model, false );
+	}
+
+	/**
+	 * @param template the template
+	 * @param factory factory for the gradient and steepest descent images
+	 * @param model the warp function
+	 * @param memoryLean do not store any images, but compute the steepest descent values on the fly
+	 * (slower, but only needs the memory of the template and the image)
+	 */
+	public Align(final RandomAccessibleInterval< T > template, final ImgFactory< FloatType > factory, WarpFunction model, final boolean memoryLean)
 	{
 		this.template = template;
+		this.memoryLean = memoryLean;
 
 		n = template.numDimensions();
 		warpFunction = model;
 		numParameters = warpFunction.numParameters();
 		
 		currentTransform = new AffineTransform( n );
-		
+
+		if ( memoryLean )
+		{
+			descent = null;
+			Hinv = computeInverseHessian( template, warpFunction );
+			return;
+		}
+
 		final long[] dim = new long[n + 1];
 		for ( int d = 0; d < n; ++d )
 			dim[d] = template.dimension( d );
@@ -146,8 +258,6 @@ public class Align<T extends RealType< T >>
 		computeSteepestDescents( gradients, warpFunction, descent );
 
 		Hinv = computeInverseHessian( descent );
-
-		error = factory.create( template, new FloatType() );
 	}
 
 	/**
@@ -234,6 +344,70 @@ public class Align<T extends RealType< T >>
 		return new Matrix( H ).inverse().getArray();
 	}
 
+	/**
+	 * Compute the inverse Hessian matrix directly from the template, computing the
+	 * steepest descent values of every pixel on the fly (see {@link #steepestDescent}).
+	 * @param template the template
+	 * @param warpFunction the warp function
+	 * @param <T> pixel type
+	 * @return Hessian
+	 */
+	public static <T extends RealType< T >> double[][] computeInverseHessian(
+			final RandomAccessibleInterval< T > template, final WarpFunction warpFunction )
+	{
+		final int numParameters = warpFunction.numParameters();
+		final RandomAccess< T > r = Views.extendBorder( template ).randomAccess();
+		final double[] gradient = new double[template.numDimensions()];
+		final double[] deriv = new double[numParameters];
+		final double[][] H = new double[numParameters][numParameters];
+
+		final Cursor< T > c = Views.flatIterable( template ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			steepestDescent( c, r, warpFunction, gradient, deriv );
+			for ( int i = 0; i < numParameters; ++i )
+				for ( int j = 0; j < numParameters; ++j )
+					H[i][j] += deriv[i] * deriv[j];
+		}
+		return new Matrix( H ).inverse().getArray();
+	}
+
+	/**
+	 * Compute the steepest descent values of one pixel of the template (its partial derivatives by every
+	 * parameter of the warp function at the identity warp) from the central differences of the template.
+	 *
+	 * @param pos the pixel
+	 * @param template access to the border-extended template (will be moved)
+	 * @param warpFunction the warp function
+	 * @param gradient temporary array (one entry per dimension)
+	 * @param deriv the steepest descent values (one entry per parameter)
+	 * @param <T> pixel type
+	 */
+	public static <T extends RealType< T >> void steepestDescent(
+			final Localizable pos, final RandomAccess< T > template, final WarpFunction warpFunction,
+			final double[] gradient, final double[] deriv )
+	{
+		final int n = gradient.length;
+		template.setPosition( pos );
+		for ( int d = 0; d < n; ++d )
+		{
+			template.fwd( d );
+			final double front = template.get().getRealDouble();
+			template.move( -2, d );
+			gradient[d] = 0.5 * ( front - template.get().getRealDouble() );
+			template.fwd( d );
+		}
+
+		for ( int p = 0; p < deriv.length; ++p )
+		{
+			double v = 0;
+			for ( int d = 0; d < n; ++d )
+				v += gradient[d] * warpFunction.partial( pos, d, p );
+			deriv[p] = v;
+		}
+	}
+
 	public double getCurrentCorrelation(final RandomAccessibleInterval< T > image)
 	{
 		final RealRandomAccessible< T > interpolated = Views.interpolate( Views.extendBorder( image ), new NLinearInterpolatorFactory< T >() );
@@ -249,10 +423,32 @@ public class Align<T extends RealType< T >>
 			final int maxIterations,
 			final double minParameterChange,
 			final ExecutorService service )
+	{
+		return align( image, new AffineTransform( n ), maxIterations, minParameterChange, service );
+	}
+
+	/*
+	 * Computed and return the affine transform that aligns image to template, starting from an initial transform.
+	 */
+	public AffineTransform align(
+			final RandomAccessibleInterval< T > image,
+			final AffineGet initialTransform,
+			final int maxIterations,
+			final double minParameterChange,
+			final ExecutorService service )
 	{
 		lastAlignConverged = false;
+		lastStopReason = StopReason.MAX_ITERATIONS;
+
+		currentTransform.set( initialTransform );
+
+		// best transform (by correlation) so far, only used with monitoring,
+		// the initial transform counts as well (e.g. already good when propagated from a coarser level)
+		final AffineTransform bestTransform = currentTransform.copy();
+		double bestCorrelation = monitor ? getSubsampledCorrelation( image ) : -Double.MAX_VALUE;
+		int itsWithoutImprovement = 0;
+		int itsWorse = 0;
 
-		currentTransform.set( new AffineTransform( n ) );
 		int i = 0;
 		while ( i < maxIterations )
 		{
@@ -260,51 +456,318 @@ public class Align<T extends RealType< T >>
 			if ( alignStep( image, service ) < minParameterChange )
 			{
 				lastAlignConverged = true;
+				lastStopReason = StopReason.CONVERGED;
+				break;
+			}
+
+			if ( !monitor )
+				continue;
+
+			if ( isOutOfBounds( image ) )
+			{
+				lastStopReason = StopReason.OUT_OF_BOUNDS;
+				currentTransform.set( bestTransform );
+				break;
+			}
+
+			final double correlation = getSubsampledCorrelation( image );
+
+			if ( correlation > bestCorrelation + minCorrelationImprovement )
+			{
+				bestCorrelation = correlation;
+				bestTransform.set( currentTransform );
+				itsWithoutImprovement = 0;
+			}
+			else
+			{
+				++itsWithoutImprovement;
+			}
+
+			if ( correlation < bestCorrelation - divergenceTolerance )
+				++itsWorse;
+			else
+				itsWorse = 0;
+
+			if ( itsWorse >= divergenceIterations )
+			{
+				lastStopReason = StopReason.DIVERGED;
+				currentTransform.set( bestTransform );
+				break;
+			}
+
+			if ( itsWithoutImprovement >= stagnationIterations )
+			{
+				// the correlation does not get any better, the best transform is as good as it gets
+				lastAlignConverged = true;
+				lastStopReason = StopReason.STAGNATED;
+				currentTransform.set( bestTransform );
 				break;
 			}
 		}
 		System.out.println( "computed " + i + " iterations." );
+		lastNumIterations = i;
 		return currentTransform;
 	}
 
-	double alignStep(final RandomAccessibleInterval< T > image, ExecutorService service)
+	/**
+	 * @param image the image
+	 * @return the correlation of the template and the warped image on a regular subsample of
+	 * at most {@link #monitorSampleSize} pixels per dimension
+	 */
+	public double getSubsampledCorrelation(final RandomAccessibleInterval< T > image)
 	{
-		// compute error image = warped image - template
-		computeDifference( Views.extendBorder( image ), currentTransform, template, error, service, Runtime.getRuntime().availableProcessors() * 2 );
+		final long[] steps = new long[n];
+		for ( int d = 0; d < n; ++d )
+			steps[d] = Math.max( 1, template.dimension( d ) / monitorSampleSize );
 
-		// compute transform parameter update
-		final double[] gradient = new double[numParameters];
+		final RealRandomAccessible< T > interpolated = Views.interpolate( Views.extendBorder( image ), new NLinearInterpolatorFactory< T >() );
+		final RandomAccessible< T > warped = RealViews.affine( interpolated, currentTransform );
+		return PhaseCorrelation2Util.getCorrelation(
+				Views.subsample( Views.interval( warped, template ), steps ), Views.subsample( template, steps ) );
+	}
 
-		ArrayList< Callable< Void > > calls =  new ArrayList< Callable<Void> >();
-		for ( int p = 0; p < numParameters; ++p )
+	/**
+	 * @param image the image
+	 * @return true if the center of the template is mapped outside of the image by the current transform
+	 */
+	public boolean isOutOfBounds(final Interval image)
+	{
+		final double[] center = new double[n];
+		for ( int d = 0; d < n; ++d )
+			center[d] = ( template.min( d ) + template.max( d ) ) / 2.0;
+
+		// the warped image at x is the image at transform^-1(x)
+		currentTransform.applyInverse( center, center );
+
+		for ( int d = 0; d < n; ++d )
+			if ( center[d] < image.min( d ) - 0.5 || center[d] > image.max( d ) + 0.5 )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Align image to template on an image pyramid: solve at the coarsest level (each level is downsampled 2x in
+	 * every dimension that stays at least {@link #minPyramidSize} pixels), then propagate the transform to the
+	 * next finer level and refine it there. Pixel x_c of a coarse level is at 2 * x_c + 0.5 in the next finer level
+	 * (it is the mean of pixels 2 * x_c and 2 * x_c + 1), the transform is scaled accordingly.
+	 * Logs the number of iterations and the time of every level.
+	 *
+	 * @param template the template (zero-min)
+	 * @param image the image to align to the template (zero-min, same size)
+	 * @param warpFunction the warp function
+	 * @param numLevels number of pyramid levels (1 = only full resolution)
+	 * @param maxIterations maximum number of iterations per level
+	 * @param minParameterChange the iterations of a level stop once the parameter update is smaller
+	 * @param memoryLean compute the steepest descent values on the fly (see {@link #Align(RandomAccessibleInterval, ImgFactory, WarpFunction, boolean)})
+	 * @param monitor stop the iterations of a level early (see {@link #setMonitoring(boolean)})
+	 * @param service executor service
+	 * @return the aligner of the full resolution level (see {@link #getCurrentTransform()} and {@link #didConverge()})
+	 */
+	public static Align< FloatType > alignMultiResolution(
+			final ArrayImg< FloatType, FloatArray > template,
+			final ArrayImg< FloatType, FloatArray > image,
+			final WarpFunction warpFunction,
+			final int numLevels,
+			final int maxIterations,
+			final double minParameterChange,
+			final boolean memoryLean,
+			final boolean monitor,
+			final ExecutorService service )
+	{
+		final int n = template.numDimensions();
+
+		// build the pyramids, level 0 is full resolution
+		final List< ArrayImg< FloatType, FloatArray > > templates = new ArrayList<>();
+		final List< ArrayImg< FloatType, FloatArray > > images = new ArrayList<>();
+		final List< boolean[] > downsampled = new ArrayList<>();
+		templates.add( template );
+		images.add( image );
+
+		while ( templates.size() < numLevels )
 		{
-			final int pInner = p;
-			Callable< Void > callable = new Callable< Void >()
+			final ArrayImg< FloatType, FloatArray > last = templates.get( templates.size() - 1 );
+			final boolean[] dims = new boolean[ n ];
+			boolean any = false;
+
+			for ( int d = 0; d < n; ++d )
 			{
-				@Override
-				public Void call() throws Exception
+				dims[ d ] = last.dimension( d ) / 2 >= minPyramidSize;
+				any |= dims[ d ];
+			}
+
+			if ( !any )
+				break;
+
+			templates.add( downsample2x( last, dims ) );
+			images.add( downsample2x( images.get( images.size() - 1 ), dims ) );
+			downsampled.add( dims );
+		}
+
+		final AffineTransform transform = new AffineTransform( n );
+		Align< FloatType > align = null;
+
+		for ( int level = templates.size() - 1; level >= 0; --level )
+		{
+			final long time = System.currentTimeMillis();
+
+			align = new Align<>( templates.get( level ), new ArrayImgFactory<>( new FloatType() ), warpFunction, memoryLean );
+			align.setMonitoring( monitor );
+			transform.set( align.align( images.get( level ), transform, maxIterations, minParameterChange, service ) );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Lucas-Kanade pyramid level " + level + " (" +
+					Util.printInterval( templates.get( level ) ) + "): " + align.getNumIterations() + " iterations, " +
+					( System.currentTimeMillis() - time ) + " ms, " + align.getStopReason() );
+
+			// to the coordinates of the next finer level: x_f = S x_c, A_f = S A_c S^-1
+			if ( level > 0 )
+			{
+				final AffineTransform scale = new AffineTransform( n );
+				for ( int d = 0; d < n; ++d )
+				{
+					final boolean ds = downsampled.get( level - 1 )[ d ];
+					scale.set( ds ? 2.0 : 1.0, d, d );
+					scale.set( ds ? 0.5 : 0.0, d, n );
+				}
+
+				final AffineTransform next = scale.inverse().copy();
+				next.preConcatenate( transform );
+				next.preConcatenate( scale );
+				transform.set( next );
+			}
+		}
+
+		return align;
+	}
+
+	/**
+	 * Downsample 2x by averaging pairs of pixels (2x, 2x+1) in the selected dimensions.
+	 *
+	 * @param img the image
+	 * @param downsampleInDim which dimensions to downsample
+	 * @return the downsampled image
+	 */
+	public static ArrayImg< FloatType, FloatArray > downsample2x( final ArrayImg< FloatType, FloatArray > img, final boolean[] downsampleInDim )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( img );
+		float[] data = img.update( null ).getCurrentStorageArray();
+
+		for ( int d = 0; d < dims.length; ++d )
+		{
+			if ( !downsampleInDim[ d ] )
+				continue;
+
+			// stride of dimension d and number of hyperplanes above it
+			int stride = 1;
+			for ( int e = 0; e < d; ++e )
+				stride *= dims[ e ];
+
+			int outer = 1;
+			for ( int e = d + 1; e < dims.length; ++e )
+				outer *= dims[ e ];
+
+			final int size = (int) dims[ d ];
+			final int newSize = size / 2;
+			final float[] out = new float[ stride * newSize * outer ];
+
+			for ( int o = 0; o < outer; ++o )
+				for ( int c = 0; c < newSize; ++c )
 				{
-					double gradT = 0;
-					final Cursor< FloatType > err = Views.flatIterable( error ).cursor();
-					for ( final FloatType t : Views.flatIterable( Views.hyperSlice( descent, n, pInner ) ) )
-						gradT += t.getRealDouble() * err.next().getRealDouble();
-					gradient[pInner] = gradT;
-					return null;
+					final int i0 = ( o * size + 2 * c ) * stride;
+					final int i1 = i0 + stride;
+					final int j = ( o * newSize + c ) * stride;
 
+					for ( int i = 0; i < stride; ++i )
+						out[ j + i ] = 0.5f * ( data[ i0 + i ] + data[ i1 + i ] );
 				}
-			};
 
-			calls.add( callable );
+			data = out;
+			dims[ d ] = newSize;
+		}
 
+		return ArrayImgs.floats( data, dims );
+	}
+
+	/*
+	 * one iteration in a single parallel pass: every block of pixels computes the difference between the warped
+	 * image and the template and accumulates all components of the gradient (steepest descent values times error)
+	 * in its own double[], these are summed up at the end
+	 */
+	double alignStep(final RandomAccessibleInterval< T > image, ExecutorService service)
+	{
+		final RealRandomAccessible< T > interpolated = Views.interpolate( Views.extendBorder( image ), new NLinearInterpolatorFactory< T >() );
+		final RandomAccessible< T > warped = RealViews.affine( interpolated, currentTransform );
+
+		final long size = Views.iterable( template ).size();
+		final int nTasks = (int) Math.max( 1, Math.min( size, Runtime.getRuntime().availableProcessors() * 2 ) );
+		final long stepSize = size / nTasks;
+
+		final List< Callable< double[] > > tasks = new ArrayList<>();
+		for ( int iO = 0; iO < nTasks; iO++ )
+		{
+			final int i = iO;
+			tasks.add( () ->
+			{
+				final Cursor< T > cw = Views.flatIterable( Views.interval( warped, template ) ).cursor();
+				final Cursor< T > ct = Views.flatIterable( template ).localizingCursor();
+				final double[] deriv = new double[numParameters];
+				final double[] gradT = new double[numParameters];
+
+				cw.jumpFwd( stepSize * i );
+				ct.jumpFwd( stepSize * i );
+
+				// steepest descent values are either read from the descent images or computed on the fly
+				final List< Cursor< FloatType > > descents = new ArrayList<>();
+				final RandomAccess< T > r;
+				final double[] gradient;
+
+				if ( memoryLean )
+				{
+					r = Views.extendBorder( template ).randomAccess();
+					gradient = new double[n];
+				}
+				else
+				{
+					r = null;
+					gradient = null;
+					for ( int p = 0; p < numParameters; ++p )
+					{
+						final Cursor< FloatType > c = Views.flatIterable( Views.hyperSlice( descent, n, p ) ).cursor();
+						c.jumpFwd( stepSize * i );
+						descents.add( c );
+					}
+				}
+
+				final long end = i == nTasks - 1 ? size - stepSize * i : stepSize;
+				for ( long count = 0; count < end; ++count )
+				{
+					final double err = cw.next().getRealDouble() - ct.next().getRealDouble();
+
+					if ( memoryLean )
+						steepestDescent( ct, r, warpFunction, gradient, deriv );
+					else
+						for ( int p = 0; p < numParameters; ++p )
+							deriv[p] = descents.get( p ).next().getRealDouble();
+
+					for ( int p = 0; p < numParameters; ++p )
+						gradT[p] += deriv[p] * err;
+				}
+
+				return gradT;
+			} );
 		}
 
-		List<Future<Void>> futures = null;
+		// compute transform parameter update
+		final double[] gradient = new double[numParameters];
 
 		try
 		{
-			futures = service.invokeAll( calls );
-			for (Future<Void> f : futures)
-				f.get();
+			for ( final Future< double[] > f : service.invokeAll( tasks ) )
+			{
+				final double[] gradT = f.get();
+				for ( int p = 0; p < numParameters; ++p )
+					gradient[p] += gradT[p];
+			}
 		}
 		catch ( InterruptedException | ExecutionException e)
 		{
@@ -376,80 +839,6 @@ public class Align<T extends RealType< T >>
 			gradient( source, Views.hyperSlice( target, n, d ), d );
 	}
 
-	/**
-	 * Compute the pixel-wise difference between an affine-transformed source
-	 * image and a target image.
-	 *
-	 * @param source
-	 *            The source image.
-	 * @param transform
-	 *            A coordinate transformation to apply to the source image.
-	 * @param target
-	 *            The target image.
-	 * @param difference
-	 *            Output image. The pixel-wise difference between the
-	 *            transformed source image and the target image is stored here.
-	 * @param service
-	 *            thread pool for difference calculation
-	 * @param nTasks
-	 *            number of image parts that are processed in parallel
-	 * @param <T> pixel type source
-	 * @param <S> pixel type target
-	 */
-	public static < T extends RealType< T >,  S extends RealType< S > > void computeDifference(
-			final RandomAccessible< T > source,
-			final AffineTransform transform,
-			final RandomAccessible< T > target,
-			final RandomAccessibleInterval< S > difference,
-			final ExecutorService service,
-			final int nTasks)
-	{
-		final RealRandomAccessible< T > interpolated = Views.interpolate( source, new NLinearInterpolatorFactory< T >() );
-		final RandomAccessible< T > warped = RealViews.affine( interpolated, transform );
-
-		final long stepSize = Views.iterable( difference ).size() / nTasks;
-
-		final List<Callable< Void >> tasks = new ArrayList<>();
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		for (int iO = 0; iO<nTasks; iO++)
-		{
-			tasks.add( new Callable< Void >()
-			{
-				@Override
-				public Void call() throws Exception
-				{
-					final int i = ai.getAndIncrement();
-					final Cursor< T > cw = Views.flatIterable( Views.interval( warped, difference ) ).cursor();
-					final Cursor< T > ct = Views.flatIterable( Views.interval( target, difference ) ).cursor();
-					final Cursor< S > cd = Views.flatIterable( difference ).cursor();
-
-					cw.jumpFwd( stepSize * i );
-					ct.jumpFwd( stepSize * i );
-					cd.jumpFwd( stepSize * i );
-
-					final long end = i == nTasks - 1 ? Views.iterable( difference ).size() - stepSize * i : stepSize;
-					int count = 0;
-					while (count++ < end)
-					{
-						cd.next().setReal( ( cw.next().getRealDouble() - ct.next().getRealDouble() ));
-					}
-					return null;
-				}
-			} );
-		}
-
-		try
-		{
-			List< Future< Void > > futures = service.invokeAll( tasks );
-			for (Future< Void > f: futures)
-				f.get();
-		}
-		catch ( InterruptedException | ExecutionException e )
-		{
-			e.printStackTrace();
-		}
-	}
-
 
 	public static void main(String[] args)
 	{
@@ -46,6 +46,15 @@ public class LucasKanadeParameters
 	public boolean manualNumTasks;
 	public int numTasks;
 
+	// solve on an image pyramid first (each level downsampled 2x more, see Align.alignMultiResolution), 1 = only at full resolution
+	public int numPyramidLevels = 1;
+
+	// do not store the steepest descent images, compute them on the fly in every iteration (slower, much less memory)
+	public boolean memoryLean = false;
+
+	// stop iterating early if the alignment diverges, stagnates or leaves the image (see Align.StopReason)
+	public boolean earlyTermination = false;
+
 	public LucasKanadeParameters(WarpFunctionType modelType, int maxNumIterations, double minParameterChange, boolean showExpertGrouping, boolean manualNumTasks, int numTasks)
 	{
 		this.modelType = modelType;
@@ -87,6 +96,9 @@ public class LucasKanadeParameters
 		gd.addNumericField( "minimum_parameter_change_for_convergence", 0.01, 2, 10, "" );
 		if (askForModelType)
 			gd.addChoice( "transformation_type", modelChoices, modelChoices[0] );
+		gd.addNumericField( "pyramid_levels (1 = off, each level downsampled 2x)", 1, 0 );
+		gd.addCheckbox( "memory_lean_mode (slower, for large overlaps)", false );
+		gd.addCheckbox( "stop_early_on_divergence_or_stagnation", false );
 		gd.addCheckbox( "manually set number of parallel tasks", false );
 		gd.addNumericField( "number of parallel tasks", (int) Math.max( 2, Threads.numThreads() / 6 ), 0 );
 		gd.addCheckbox( "show_expert_grouping_options", false );
@@ -109,11 +121,20 @@ public class LucasKanadeParameters
 		else
 			modelType = defaultModelType;
 
+		final int numPyramidLevels = Math.max( 1, (int) gd.getNextNumber() );
+		final boolean memoryLean = gd.getNextBoolean();
+		final boolean earlyTermination = gd.getNextBoolean();
+
 		boolean manualNumTasks = gd.getNextBoolean();
 		int numTasks = (int) (manualNumTasks ? gd.getNextNumber() : Math.max( 2, Threads.numThreads() / 6 ));
 		boolean expertGrouping = gd.getNextBoolean();
 
-		return new LucasKanadeParameters(modelType, nIterations, minParameterChance, expertGrouping, manualNumTasks, numTasks);
+		final LucasKanadeParameters params = new LucasKanadeParameters(modelType, nIterations, minParameterChance, expertGrouping, manualNumTasks, numTasks);
+		params.numPyramidLevels = numPyramidLevels;
+		params.memoryLean = memoryLean;
+		params.earlyTermination = earlyTermination;
+
+		return params;
 	}
 
 	/**
@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.lucaskanade;
+
+import net.imglib2.util.ValuePair;
+import net.preibisch.stitcher.algorithm.lucaskanade.Align.StopReason;
+
+/**
+ * Transform and correlation of a Lucas-Kanade alignment, together with why and after how many iterations
+ * it stopped (at full resolution).
+ *
+ * @param <A> transform type
+ */
+public class LucasKanadeShift< A > extends ValuePair< A, Double >
+{
+	private final StopReason stopReason;
+	private final int numIterations;
+
+	public LucasKanadeShift( final A transform, final Double correlation, final StopReason stopReason, final int numIterations )
+	{
+		super( transform, correlation );
+		this.stopReason = stopReason;
+		this.numIterations = numIterations;
+	}
+
+	public StopReason getStopReason() { return stopReason; }
+	public int getNumIterations() { return numIterations; }
+}
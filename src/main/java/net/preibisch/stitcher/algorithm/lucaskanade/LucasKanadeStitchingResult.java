@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.lucaskanade;
+
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.lucaskanade.Align.StopReason;
+
+/**
+ * Pairwise result of a Lucas-Kanade alignment, additionally reports why and after how many iterations it stopped.
+ *
+ * @param <C> view id type
+ */
+public class LucasKanadeStitchingResult< C extends Comparable< C > > extends PairwiseStitchingResult< C >
+{
+	private final StopReason stopReason;
+	private final int numIterations;
+
+	public LucasKanadeStitchingResult(
+			final Pair< Group< C >, Group< C > > pair,
+			final RealInterval boundingBox,
+			final AffineGet transform,
+			final double r,
+			final double hash,
+			final StopReason stopReason,
+			final int numIterations )
+	{
+		super( pair, boundingBox, transform, r, hash );
+		this.stopReason = stopReason;
+		this.numIterations = numIterations;
+	}
+
+	public StopReason getStopReason() { return stopReason; }
+	public int getNumIterations() { return numIterations; }
+}
@@ -171,7 +171,8 @@ public class CalculatePCPopup extends JMenuItem implements ExplorerWindowSetable
 						return;
 
 					if (method == Method.PHASECORRELATION)
-						Calculate_Pairwise_Shifts.processPhaseCorrelation( (SpimData2) panel.getSpimData(), filteringAndGrouping, params, dsFactors );
+						Calculate_Pairwise_Shifts.processPhaseCorrelation( (SpimData2) panel.getSpimData(), filteringAndGrouping, params, dsFactors,
+								Calculate_Pairwise_Shifts.createResultStore( panel.xml().toString() ) );
 					if (method == Method.LUCASKANADE)
 						Calculate_Pairwise_Shifts.processLucasKanade( (SpimData2) panel.getSpimData(), filteringAndGrouping, LKParams, dsFactors );
 
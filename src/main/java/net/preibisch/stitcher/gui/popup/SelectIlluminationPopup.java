@@ -72,6 +72,7 @@ import net.preibisch.mvrecon.fiji.spimdata.pointspreadfunctions.PointSpreadFunct
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.StitchingExecutors;
 import net.preibisch.stitcher.algorithm.illuminationselection.BrightestViewSelection;
 import net.preibisch.stitcher.algorithm.illuminationselection.IlluminationSelectionPreviewGUI;
 import net.preibisch.stitcher.algorithm.illuminationselection.MeanGradientMagnitudeViewSelection;
@@ -247,7 +248,7 @@ public class SelectIlluminationPopup extends JMenuItem implements ExplorerWindow
 		final ExecutorService service;
 
 		if ( viewSelection.runMultithreaded() )
-			service = Executors.newFixedThreadPool(Math.max( 2, Runtime.getRuntime().availableProcessors() ));
+			service = StitchingExecutors.getComputePool();
 		else
 			service = Executors.newFixedThreadPool( 1 );
 
@@ -281,7 +282,10 @@ public class SelectIlluminationPopup extends JMenuItem implements ExplorerWindow
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		service.shutdown();
+
+		// the shared compute pool stays alive
+		if ( !viewSelection.runMultithreaded() )
+			service.shutdown();
 
 		IJ.showProgress( 1.0 );
 
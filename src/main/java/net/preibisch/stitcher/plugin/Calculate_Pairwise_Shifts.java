@@ -71,6 +71,7 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.globalopt.PairwiseResultStore;
 import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters.WarpFunctionType;
@@ -89,6 +90,12 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 	private static boolean expertAlgorithmParameters;
 	private static int defaultMethodIdx = 0;
 
+	// checkpoint the results next to the XML while computing (Phase Correlation only)
+	public static boolean defaultStoreResults = false;
+
+	// reuse the stored results of pairs that did not change since the last (possibly interrupted) run, implies storing them
+	public static boolean defaultReuseStoredResults = false;
+
 	@Override
 	public void run(String arg)
 	{
@@ -108,6 +115,8 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		gd.addChoice( "method", methodChoices, methodChoices[defaultMethodIdx] );
 		gd.addCheckbox( "show_expert_grouping_options", expertGrouping );
 		gd.addCheckbox( "show_expert_algorithm_parameters", expertAlgorithmParameters );
+		gd.addCheckbox( "store_pairwise_results_next_to_XML (Phase Correlation, allows to resume an interrupted run)", defaultStoreResults );
+		gd.addCheckbox( "resume / only_compute_changed_pairs (Phase Correlation, uses the stored results)", defaultReuseStoredResults );
 
 		gd.showDialog();
 		if(gd.wasCanceled())
@@ -116,6 +125,8 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		defaultMethodIdx = gd.getNextChoiceIndex();
 		expertGrouping = gd.getNextBoolean();
 		expertAlgorithmParameters = gd.getNextBoolean();
+		defaultStoreResults = gd.getNextBoolean();
+		defaultReuseStoredResults = gd.getNextBoolean();
 
 		// Defaults for grouping
 		// the default grouping by channels and illuminations
@@ -152,7 +163,8 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			if (defaultMethodIdx == 0) // Phase Correlation
 			{
 				PairwiseStitchingParameters params = expertAlgorithmParameters ? PairwiseStitchingParameters.askUserForParameters() : new PairwiseStitchingParameters();
-				if (!processPhaseCorrelation( data, grouping, params, ds ))
+				final PairwiseResultStore store = createResultStore( result.getXMLFileName() );
+				if (!processPhaseCorrelation( data, grouping, params, ds, store ))
 					return;
 			}
 			else if (defaultMethodIdx == 1) // Lucas-Kanade
@@ -168,6 +180,24 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		new XmlIoSpimData2().saveWithFilename( data, result.getXMLFileName() );
 	}
 	
+	/**
+	 * @param xmlFileName the XML the results belong to
+	 * @return the store to checkpoint (and, if {@link #defaultReuseStoredResults}, reuse) pairwise results,
+	 * null if neither storing nor reusing results was selected or the store cannot be created
+	 */
+	public static PairwiseResultStore createResultStore( final String xmlFileName )
+	{
+		if ( !defaultStoreResults && !defaultReuseStoredResults )
+			return null;
+
+		final PairwiseResultStore store = PairwiseResultStore.forXML( xmlFileName );
+
+		if ( store != null )
+			store.reuseResults = defaultReuseStoredResults;
+
+		return store;
+	}
+
 	public static void main(String[] args)
 	{
 		new Calculate_Pairwise_Shifts().run( "Test ..." );
@@ -178,36 +208,45 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
 			PairwiseStitchingParameters params,
 			long[] dsFactors)
+	{
+		return processPhaseCorrelation( data, filteringAndGrouping, params, dsFactors, null );
+	}
+
+	/**
+	 * compute the pairwise shifts of all overlapping comparisons using phase correlation
+	 * and replace the old results of those comparisons
+	 * @param data the SpimData
+	 * @param filteringAndGrouping the filtering and grouping
+	 * @param params the pairwise stitching parameters
+	 * @param dsFactors the downsampling
+	 * @param store persistent store of results, only pairs that changed since they were stored are computed (can be null)
+	 * @return true if successful
+	 */
+	public static boolean processPhaseCorrelation(
+			SpimData2 data,
+			SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
+			PairwiseStitchingParameters params,
+			long[] dsFactors,
+			PairwiseResultStore store)
 	{
 		// getpairs to compare
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finding pairs to compute overlap ... " );
 
-		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getComparisons();
+		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getOverlappingComparisons();
 
 		// calculate
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing overlap ... " );
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
 				(List< Pair< Group< ViewId >, Group< ViewId > > >) pairs, params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
 				filteringAndGrouping.getSpimData().getSequenceDescription(), filteringAndGrouping.getGroupedViewAggregator(),
-				dsFactors );
+				dsFactors, store );
 
-		// remove old results
+		if ( results == null )
+			return false;
 
-		// this is just a cast of pairs to Group<ViewId>
+		// remove old results
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Organizing resuls ... " );
-
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>( p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>( p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		}).collect( Collectors.toList() );
-
-		for (ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs)
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
+		removeOldResults( data, filteringAndGrouping );
 
 		// update StitchingResults with Results
 		for ( final PairwiseStitchingResult< ViewId > psr : results )
@@ -229,7 +268,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 	{
 		// getpairs to compare
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping
-				.getComparisons();
+				.getOverlappingComparisons();
 
 		// calculate
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairsLK(
@@ -242,21 +281,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 				new ProgressWriterIJ());
 
 		// remove old results
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>(
-					p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>(
-					p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		} ).collect( Collectors.toList() );
-
-		for ( ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs )
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
+		removeOldResults( data, filteringAndGrouping );
 
 		// update StitchingResults with Results
 		for ( final PairwiseStitchingResult< ViewId > psr : results )
@@ -271,6 +296,19 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 	}
 
 
+	/**
+	 * remove the pairwise results of all comparisons of the current filtering and grouping (in both orders),
+	 * including those that do not overlap anymore and are thus not recomputed
+	 * @param data the SpimData
+	 * @param filteringAndGrouping the filtering and grouping
+	 */
+	public static void removeOldResults(
+			final SpimData2 data,
+			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping )
+	{
+		data.getStitchingResults().getPairwiseResults().keySet().removeIf( filteringAndGrouping.getComparisonPredicate() );
+	}
+
 	public static boolean processInterestPoint(final SpimData2 data,
 			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
 			boolean existingInterestPoints)
@@ -323,26 +361,12 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		if ( !brp.pwr.parseDialog( gd ) )
 			return false;
 
-		// get all possible group pairs
+		// get all overlapping group pairs
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping
-				.getComparisons();
+				.getOverlappingComparisons();
 
 		// remove old results
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>(
-					p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>(
-					p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		} ).collect( Collectors.toList() );
-
-		for ( ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs )
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
+		removeOldResults( data, filteringAndGrouping );
 
 		// remove non-overlapping comparisons
 		final List< Pair< Group< ViewId >, Group< ViewId > > > removedPairs = TransformationTools
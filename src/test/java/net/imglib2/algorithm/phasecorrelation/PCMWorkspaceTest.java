@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import net.imglib2.FinalDimensions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PCMWorkspaceTest
+{
+	private long maxPooledBytes;
+
+	@Before
+	public void setUp()
+	{
+		maxPooledBytes = PCMWorkspace.maxPooledBytes;
+		PCMWorkspace.clearPool();
+	}
+
+	@After
+	public void tearDown()
+	{
+		PCMWorkspace.clearPool();
+		PCMWorkspace.maxPooledBytes = maxPooledBytes;
+	}
+
+	@Test
+	public void testReuse()
+	{
+		final PCMWorkspace ws1 = PCMWorkspace.acquire( new FinalDimensions( 50, 40 ) );
+		assertEquals( 0, PCMWorkspace.getPooledBytes() );
+		ws1.release();
+		assertEquals( ws1.getBytes(), PCMWorkspace.getPooledBytes() );
+
+		// same padded size, the buffers are reused
+		final PCMWorkspace ws2 = PCMWorkspace.acquire( new FinalDimensions( 50, 40 ) );
+		assertSame( ws1, ws2 );
+		assertSame( ws1.getPCM(), ws2.getPCM() );
+		assertEquals( 0, PCMWorkspace.getPooledBytes() );
+
+		// in use, so a second one is created
+		final PCMWorkspace ws3 = PCMWorkspace.acquire( new FinalDimensions( 50, 40 ) );
+		assertNotSame( ws2, ws3 );
+
+		// different size
+		final PCMWorkspace ws4 = PCMWorkspace.acquire( new FinalDimensions( 200, 40 ) );
+		assertFalse( Arrays.equals( ws2.getPaddedDimensions(), ws4.getPaddedDimensions() ) );
+
+		ws2.release();
+		ws3.close();
+		ws4.release();
+
+		// releasing twice does not add it twice
+		ws4.release();
+		assertEquals( ws2.getBytes() + ws3.getBytes() + ws4.getBytes(), PCMWorkspace.getPooledBytes() );
+
+		PCMWorkspace.clearPool();
+		assertEquals( 0, PCMWorkspace.getPooledBytes() );
+		assertNotSame( ws2, PCMWorkspace.acquire( new FinalDimensions( 50, 40 ) ) );
+	}
+
+	@Test
+	public void testMaxPooledBytes()
+	{
+		final PCMWorkspace ws1 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ) );
+		final PCMWorkspace ws2 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ) );
+
+		// room for one of them
+		PCMWorkspace.maxPooledBytes = ws1.getBytes() + ws1.getBytes() / 2;
+
+		ws1.release();
+		ws2.release();
+		assertEquals( ws1.getBytes(), PCMWorkspace.getPooledBytes() );
+
+		// the pooled one is reused, the other one was dropped
+		final PCMWorkspace ws3 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ) );
+		final PCMWorkspace ws4 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ) );
+		assertSame( ws1, ws3 );
+		assertNotSame( ws2, ws4 );
+		assertNotSame( ws1, ws4 );
+
+		// nothing is pooled at all
+		PCMWorkspace.maxPooledBytes = 0;
+		ws3.release();
+		ws4.release();
+		assertEquals( 0, PCMWorkspace.getPooledBytes() );
+	}
+
+	@Test
+	public void testPoolBytesOfAcquire()
+	{
+		final PCMWorkspace ws1 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ), 0 );
+		final PCMWorkspace ws2 = PCMWorkspace.acquire( new FinalDimensions( 64, 64 ), 2 * ws1.getBytes() );
+
+		// the pool size given to acquire wins over the default
+		PCMWorkspace.maxPooledBytes = 4 * ws1.getBytes();
+		ws1.release();
+		assertEquals( 0, PCMWorkspace.getPooledBytes() );
+
+		PCMWorkspace.maxPooledBytes = 0;
+		ws2.release();
+		assertEquals( ws2.getBytes(), PCMWorkspace.getPooledBytes() );
+		assertSame( ws2, PCMWorkspace.acquire( new FinalDimensions( 64, 64 ) ) );
+	}
+}
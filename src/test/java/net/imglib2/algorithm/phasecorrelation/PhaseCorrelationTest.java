@@ -22,19 +22,27 @@
 package net.imglib2.algorithm.phasecorrelation;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineRandomAccessible;
@@ -184,4 +192,183 @@ public class PhaseCorrelationTest {
 	}
 	
 	
+	@Test
+	public void testFusedNormalizeConjugateMultiply() {
+
+		final long[] dims = new long[] {21, 20, 19};
+		final ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+		final Img< ComplexFloatType > fft1 = PhaseCorrelationBenchmark.randomComplex( dims, seed );
+		final Img< ComplexFloatType > fft2 = PhaseCorrelationBenchmark.randomComplex( dims, seed + 1 );
+
+		// a pixel below the normalization threshold
+		fft1.firstElement().setComplexNumber( 0, 0 );
+
+		// separate passes
+		final Img< ComplexFloatType > copy1 = ArrayImgs.complexFloats( dims );
+		final Img< ComplexFloatType > copy2 = ArrayImgs.complexFloats( dims );
+		PhaseCorrelation2Util.normalizeInterval( fft1, copy1, service );
+		PhaseCorrelation2Util.normalizeInterval( fft2, copy2, service );
+		PhaseCorrelation2Util.complexConjInterval( copy2, copy2, service );
+		PhaseCorrelation2Util.multiplyComplexIntervals( copy1, copy2, copy1, service );
+
+		// fused on float[]
+		final Img< ComplexFloatType > fused = ArrayImgs.complexFloats( dims );
+		PhaseCorrelation2Util.normalizeConjugateMultiplyInterval( fft1, fft2, fused, service );
+
+		// fused, generic fallback
+		final Img< ComplexFloatType > fusedCell = new CellImgFactory<>( new ComplexFloatType(), 8 ).create( dims );
+		PhaseCorrelation2Util.normalizeConjugateMultiplyInterval( fft1, fft2, fusedCell, service );
+
+		final Cursor< ComplexFloatType > cExpected = copy1.cursor();
+		final RandomAccess< ComplexFloatType > raFused = fused.randomAccess();
+		final RandomAccess< ComplexFloatType > raFusedCell = fusedCell.randomAccess();
+
+		while ( cExpected.hasNext() )
+		{
+			cExpected.fwd();
+			raFused.setPosition( cExpected );
+			raFusedCell.setPosition( cExpected );
+
+			assertEquals( cExpected.get().getRealFloat(), raFused.get().getRealFloat(), 1e-6 );
+			assertEquals( cExpected.get().getImaginaryFloat(), raFused.get().getImaginaryFloat(), 1e-6 );
+			assertEquals( cExpected.get().getRealFloat(), raFusedCell.get().getRealFloat(), 1e-6 );
+			assertEquals( cExpected.get().getImaginaryFloat(), raFusedCell.get().getImaginaryFloat(), 1e-6 );
+		}
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testIntegralImageCrossCorrelation() {
+
+		final ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final Random rnd = new Random( seed );
+
+		final Img< FloatType > img1 = ArrayImgs.floats( 40, 30, 20 );
+		final Img< FloatType > img2 = ArrayImgs.floats( 35, 33, 18 );
+		for ( final FloatType t : img1 )
+			t.set( rnd.nextFloat() );
+		for ( final FloatType t : img2 )
+			t.set( rnd.nextFloat() + 10 );
+
+		// correlated overlap for one of the shifts
+		final Cursor< FloatType > c = Views.interval( img2, new long[] {0, 0, 0}, new long[] {29, 25, 17} ).localizingCursor();
+		final RandomAccess< FloatType > ra1 = img1.randomAccess();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			ra1.setPosition( c );
+			ra1.move( new long[] {10, 4, 2} );
+			c.get().set( ra1.get().get() * 2 + 10 );
+		}
+
+		final long[][] shifts = new long[][] { {10, 4, 2}, {0, 0, 0}, {-5, 3, -1}, {39, 29, 19}, {-30, -20, 0} };
+
+		final ArrayList< PhaseCorrelationPeak2 > peaks = new ArrayList<>();
+		final ArrayList< PhaseCorrelationPeak2 > peaksIntegral = new ArrayList<>();
+		for ( final long[] shift : shifts )
+		{
+			final PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( new Point( shift ), 0 );
+			p.setShift( new Point( shift ) );
+			peaks.add( p );
+			peaksIntegral.add( new PhaseCorrelationPeak2( p ) );
+		}
+
+		PhaseCorrelation2Util.calculateCrossCorrParallel( peaks, img1, img2, 2, service, false, false );
+		PhaseCorrelation2Util.calculateCrossCorrParallel( peaksIntegral, img1, img2, 2, service, false, true );
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			assertEquals( peaks.get( i ).getnPixel(), peaksIntegral.get( i ).getnPixel() );
+			assertEquals( peaks.get( i ).getCrossCorr(), peaksIntegral.get( i ).getCrossCorr(), 1e-4 );
+		}
+
+		assertEquals( 1.0, peaksIntegral.get( 0 ).getCrossCorr(), 1e-4 );
+		assertEquals( Double.NEGATIVE_INFINITY, peaksIntegral.get( 3 ).getCrossCorr(), 0 );
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testOrderedPeakVerification() {
+
+		final ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final Random rnd = new Random( seed );
+
+		// img2 is a shifted crop of img1 plus noise
+		final Img< FloatType > img1 = ArrayImgs.floats( 50, 40, 30 );
+		for ( final FloatType t : img1 )
+			t.set( rnd.nextFloat() );
+
+		final Img< FloatType > img2 = ArrayImgs.floats( 40, 30, 25 );
+		final Cursor< FloatType > c = img2.localizingCursor();
+		final RandomAccess< FloatType > ra1 = img1.randomAccess();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			ra1.setPosition( c );
+			ra1.move( new long[] {7, 3, 1} );
+			c.get().set( ra1.get().get() + 0.2f * rnd.nextFloat() );
+		}
+
+		final ArrayList< PhaseCorrelationPeak2 > peaks = new ArrayList<>();
+		for ( int i = 0; i < 40; ++i )
+		{
+			final long[] shift = new long[] { rnd.nextInt( 60 ) - 30, rnd.nextInt( 50 ) - 25, rnd.nextInt( 40 ) - 20 };
+			final PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( new Point( shift ), rnd.nextDouble() );
+			p.setShift( new Point( shift ) );
+			peaks.add( p );
+		}
+
+		final PhaseCorrelationPeak2 correct = new PhaseCorrelationPeak2( new Point( 7, 3, 1 ), 0.5 );
+		correct.setShift( new Point( 7, 3, 1 ) );
+		peaks.add( correct );
+
+		final ArrayList< PhaseCorrelationPeak2 > peaksOrdered = new ArrayList<>();
+		final ArrayList< PhaseCorrelationPeak2 > peaksOrderedNoIntegral = new ArrayList<>();
+		for ( final PhaseCorrelationPeak2 p : peaks )
+		{
+			peaksOrdered.add( new PhaseCorrelationPeak2( p ) );
+			peaksOrderedNoIntegral.add( new PhaseCorrelationPeak2( p ) );
+		}
+
+		final long minOverlap = 1000;
+		PhaseCorrelation2Util.calculateCrossCorrParallel( peaks, img1, img2, minOverlap, service, false );
+
+		final PeakVerificationStatistics stats = new PeakVerificationStatistics();
+		PhaseCorrelation2Util.calculateCrossCorrOrdered( peaksOrdered, img1, img2, minOverlap, service, false, true, stats );
+
+		// without integral images, nothing is aborted early
+		final PeakVerificationStatistics statsNoIntegral = new PeakVerificationStatistics();
+		PhaseCorrelation2Util.calculateCrossCorrOrdered( peaksOrderedNoIntegral, img1, img2, minOverlap, service, false, false, statsNoIntegral );
+
+		final PhaseCorrelationPeak2.ComparatorByCrossCorrelation cmp = new PhaseCorrelationPeak2.ComparatorByCrossCorrelation();
+		final PhaseCorrelationPeak2 best = Collections.max( peaks, cmp );
+		final PhaseCorrelationPeak2 bestOrdered = Collections.max( peaksOrdered, cmp );
+
+		final long[] shift = new long[ 3 ];
+		final long[] shiftOrdered = new long[ 3 ];
+		best.getShift().localize( shift );
+		bestOrdered.getShift().localize( shiftOrdered );
+
+		assertArrayEquals( new long[] {7, 3, 1}, shiftOrdered );
+		assertArrayEquals( shift, shiftOrdered );
+		assertEquals( best.getCrossCorr(), bestOrdered.getCrossCorr(), 1e-4 );
+
+		assertEquals( peaks.size(), stats.candidates.get() );
+		assertEquals( stats.candidates.get(), stats.skippedOverlap.get() + stats.pruned.get() + stats.verified.get() );
+
+		final PhaseCorrelationPeak2 bestNoIntegral = Collections.max( peaksOrderedNoIntegral, cmp );
+		final long[] shiftNoIntegral = new long[ 3 ];
+		bestNoIntegral.getShift().localize( shiftNoIntegral );
+		assertArrayEquals( shift, shiftNoIntegral );
+		assertEquals( best.getCrossCorr(), bestNoIntegral.getCrossCorr(), 1e-4 );
+		assertEquals( 0, statsNoIntegral.pruned.get() );
+		assertEquals( stats.skippedOverlap.get(), statsNoIntegral.skippedOverlap.get() );
+		assertEquals( statsNoIntegral.candidates.get(), statsNoIntegral.skippedOverlap.get() + statsNoIntegral.verified.get() );
+
+		service.shutdown();
+	}
+
 }
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopKExtremaTest
+{
+	public static long seed = 2381;
+
+	private ExecutorService service;
+
+	@Before
+	public void setUp()
+	{
+		service = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	private static Img< FloatType > createRandom( final Random rnd, final long... dims )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() );
+		return img;
+	}
+
+	private static void assertSameMaxima( final ArrayList< Pair< Localizable, Double > > expected, final ArrayList< Pair< Localizable, Double > > found )
+	{
+		assertEquals( expected.size(), found.size() );
+
+		final int n = expected.isEmpty() ? 0 : expected.get( 0 ).getA().numDimensions();
+		final long[] posExpected = new long[ n ];
+		final long[] posFound = new long[ n ];
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertEquals( expected.get( i ).getB(), found.get( i ).getB() );
+
+			expected.get( i ).getA().localize( posExpected );
+			found.get( i ).getA().localize( posFound );
+			assertArrayEquals( posExpected, posFound );
+		}
+	}
+
+	@Test
+	public void testMatchesFourNeighborhoodExtrema()
+	{
+		final Random rnd = new Random( seed );
+
+		// 1000 is more than the number of maxima
+		for ( final Img< FloatType > img : Arrays.asList( createRandom( rnd, 50, 50 ), createRandom( rnd, 31, 17, 9 ) ) )
+			for ( final int maxN : new int[] { 1, 5, 50, 1000 } )
+				assertSameMaxima(
+						FourNeighborhoodExtrema.findMax( Views.extendPeriodic( img ), img, maxN ),
+						TopKExtrema.findMax( img, maxN, service ) );
+	}
+
+	@Test
+	public void testCornerPeaks()
+	{
+		final Random rnd = new Random( seed );
+		final Img< FloatType > img = createRandom( rnd, 50, 50 );
+
+		// maxima at the corners are only found with periodic boundaries
+		final RandomAccess< FloatType > ra = img.randomAccess();
+		for ( final long[] corner : new long[][] { { 0, 0 }, { 0, 49 }, { 49, 0 }, { 49, 49 } } )
+		{
+			ra.setPosition( corner );
+			ra.get().set( (float) ( rnd.nextDouble() + 1.0 ) );
+		}
+
+		final ArrayList< Pair< Localizable, Double > > found = TopKExtrema.findMax( img, 4, service );
+		assertSameMaxima( FourNeighborhoodExtrema.findMax( Views.extendPeriodic( img ), img, 4 ), found );
+
+		for ( final Pair< Localizable, Double > max : found )
+			assertTrue( max.getB() >= 1.0 );
+	}
+
+	@Test
+	public void testNoMaxima()
+	{
+		final Img< FloatType > img = createRandom( new Random( seed ), 20, 20 );
+
+		assertTrue( TopKExtrema.findMax( img, 0, service ).isEmpty() );
+		assertTrue( TopKExtrema.findMax( img, -1, service ).isEmpty() );
+
+		// also if the image is not an ArrayImg
+		assertTrue( TopKExtrema.findMax( Views.interval( img, img ), 0, service ).isEmpty() );
+	}
+}
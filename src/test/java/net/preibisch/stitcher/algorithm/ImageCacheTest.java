@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+public class ImageCacheTest
+{
+	// 10x10 floats
+	private static final long imgBytes = 400;
+
+	private static RandomAccessibleInterval< FloatType > createImage()
+	{
+		return ArrayImgs.floats( 10, 10 );
+	}
+
+	@Test
+	public void testEstimateBytes()
+	{
+		assertEquals( imgBytes, ImageCache.estimateBytes( createImage() ) );
+		assertEquals( 200, ImageCache.estimateBytes( ArrayImgs.unsignedShorts( 10, 10 ) ) );
+		assertEquals( 100, ImageCache.estimateBytes( ArrayImgs.unsignedBytes( 10, 10 ) ) );
+		assertEquals( 8 * 100, ImageCache.estimateBytes( ArrayImgs.complexFloats( 10, 10 ) ) );
+	}
+
+	@Test
+	public void testByteBound()
+	{
+		final ImageCache< String > cache = new ImageCache<>( 3 * imgBytes );
+
+		cache.put( "a", createImage() );
+		cache.put( "b", createImage() );
+		cache.put( "c", createImage() );
+
+		assertEquals( 3, cache.size() );
+		assertEquals( 3 * imgBytes, cache.getCurrentBytes() );
+		assertEquals( 0, cache.getEvictions() );
+
+		// putting a fourth image evicts one
+		cache.put( "d", createImage() );
+
+		assertEquals( 3, cache.size() );
+		assertEquals( 3 * imgBytes, cache.getCurrentBytes() );
+		assertEquals( 1, cache.getEvictions() );
+
+		// replacing an image does not count it twice
+		cache.put( "d", createImage() );
+		assertEquals( 3 * imgBytes, cache.getCurrentBytes() );
+
+		// an image larger than the cache is not cached and evicts nothing
+		cache.put( "large", ArrayImgs.floats( 100, 100 ) );
+		assertNull( cache.getIfPresent( "large" ) );
+		assertEquals( 3, cache.size() );
+
+		cache.remove( "d" );
+		assertEquals( 2 * imgBytes, cache.getCurrentBytes() );
+
+		cache.clear();
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.getCurrentBytes() );
+	}
+
+	@Test
+	public void testEvictionOrder()
+	{
+		final ImageCache< String > cache = new ImageCache<>( 3 * imgBytes );
+
+		final RandomAccessibleInterval< FloatType > a = createImage();
+		cache.put( "a", a );
+		cache.put( "b", createImage() );
+		cache.put( "c", createImage() );
+
+		// using a makes b the least recently used
+		assertSame( a, cache.getIfPresent( "a" ) );
+
+		cache.put( "d", createImage() );
+		assertNull( cache.getIfPresent( "b" ) );
+		assertNotNull( cache.getIfPresent( "c" ) );
+		assertNotNull( cache.getIfPresent( "a" ) );
+
+		// now d is the least recently used
+		cache.put( "e", createImage() );
+		assertNull( cache.getIfPresent( "d" ) );
+		assertNotNull( cache.getIfPresent( "a" ) );
+		assertNotNull( cache.getIfPresent( "c" ) );
+		assertNotNull( cache.getIfPresent( "e" ) );
+
+		// a larger image evicts as many as needed, the least recently used first
+		cache.put( "f", ArrayImgs.floats( 10, 20 ) );
+		assertNull( cache.getIfPresent( "a" ) );
+		assertNull( cache.getIfPresent( "c" ) );
+		assertNotNull( cache.getIfPresent( "e" ) );
+		assertNotNull( cache.getIfPresent( "f" ) );
+		assertTrue( cache.getCurrentBytes() <= cache.getMaxBytes() );
+	}
+
+	@Test
+	public void testGetLoadsOnce()
+	{
+		final ImageCache< String > cache = new ImageCache<>( 3 * imgBytes );
+		final AtomicInteger loads = new AtomicInteger();
+
+		final RandomAccessibleInterval< FloatType > first = cache.get( "a", () -> { loads.incrementAndGet(); return createImage(); } );
+		final RandomAccessibleInterval< FloatType > second = cache.get( "a", () -> { loads.incrementAndGet(); return createImage(); } );
+
+		assertSame( first, second );
+		assertEquals( 1, loads.get() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 1, cache.getHits() );
+
+		// nothing to cache if the loader fails
+		assertNull( cache.get( "b", () -> null ) );
+		assertEquals( 1, cache.size() );
+	}
+
+	@Test( timeout = 20000 )
+	public void testConcurrentGetLoadsOnce() throws InterruptedException, ExecutionException
+	{
+		final ImageCache< String > cache = new ImageCache<>( 3 * imgBytes );
+		final AtomicInteger loads = new AtomicInteger();
+		final int numThreads = 8;
+		final CountDownLatch start = new CountDownLatch( 1 );
+
+		final List< Callable< RandomAccessibleInterval< FloatType > > > tasks = new ArrayList<>();
+		for ( int i = 0; i < numThreads; ++i )
+			tasks.add( () ->
+			{
+				start.await();
+				return cache.get( "a", () ->
+				{
+					loads.incrementAndGet();
+
+					// slow loading, so the other threads ask while it is in flight
+					try { Thread.sleep( 100 ); } catch ( final InterruptedException e ) {}
+
+					return createImage();
+				});
+			});
+
+		final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			final List< Future< RandomAccessibleInterval< FloatType > > > futures = new ArrayList<>();
+			for ( final Callable< RandomAccessibleInterval< FloatType > > task : tasks )
+				futures.add( service.submit( task ) );
+
+			start.countDown();
+
+			final RandomAccessibleInterval< FloatType > first = futures.get( 0 ).get();
+			for ( final Future< RandomAccessibleInterval< FloatType > > f : futures )
+				assertSame( first, f.get() );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertEquals( 1, loads.get() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( numThreads - 1, cache.getHits() );
+	}
+
+	@Test
+	public void testFailedLoadIsNotCached()
+	{
+		final ImageCache< String > cache = new ImageCache<>( 3 * imgBytes );
+
+		try
+		{
+			cache.get( "a", () -> { throw new IllegalStateException( "failed" ); } );
+			fail( "expected the exception of the loader" );
+		}
+		catch ( final IllegalStateException e ) {}
+
+		// the next request loads again
+		final RandomAccessibleInterval< FloatType > img = createImage();
+		assertSame( img, cache.get( "a", () -> img ) );
+		assertEquals( 2, cache.getMisses() );
+	}
+}
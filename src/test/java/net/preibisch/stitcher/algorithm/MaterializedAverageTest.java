@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaterializedAverageTest
+{
+	public static long seed = 5421;
+
+	// odd sizes, so the blocks do not divide the image evenly
+	private static final long[] dims = new long[] { 37, 29, 11 };
+
+	private ExecutorService service;
+	private int blockSize;
+
+	@Before
+	public void setUp()
+	{
+		service = Executors.newFixedThreadPool( 3 );
+
+		// a few planes per block, so we test more than one block
+		blockSize = MaterializedAverage.blockSize;
+		MaterializedAverage.blockSize = (int) ( 3 * dims[ 0 ] * dims[ 1 ] );
+	}
+
+	@After
+	public void tearDown()
+	{
+		service.shutdown();
+		MaterializedAverage.blockSize = blockSize;
+	}
+
+	private static < T extends RealType< T > > Img< T > fillRandom( final Img< T > img, final Random rnd )
+	{
+		for ( final T t : img )
+			t.setReal( rnd.nextInt( 4000 ) + rnd.nextDouble() );
+		return img;
+	}
+
+	/**
+	 * @return the average like GroupedViewAggregator computes it without materializing
+	 */
+	private static < T extends RealType< T > > RandomAccessibleInterval< T > averagedRandomAccessible( final List< RandomAccessibleInterval< T > > rais )
+	{
+		final AveragedRandomAccessible< T > avg = new AveragedRandomAccessible<>( rais.get( 0 ).numDimensions() );
+		for ( final RandomAccessibleInterval< T > rai : rais )
+			avg.addRAble( Views.extendZero( Views.zeroMin( rai ) ) );
+
+		return Views.interval( avg, Views.zeroMin( rais.get( 0 ) ) );
+	}
+
+	private static < A extends RealType< A >, B extends RealType< B > > void assertImagesEqual(
+			final RandomAccessibleInterval< A > expected,
+			final RandomAccessibleInterval< B > actual,
+			final double delta )
+	{
+		assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) );
+
+		final Cursor< A > ce = Views.flatIterable( Views.zeroMin( expected ) ).cursor();
+		final Cursor< B > ca = Views.flatIterable( Views.zeroMin( actual ) ).cursor();
+
+		while ( ce.hasNext() )
+		{
+			final double e = ce.next().getRealDouble();
+			final double a = ca.next().getRealDouble();
+			assertEquals( "at " + Util.printCoordinates( ce ), e, a, delta * Math.max( 1, Math.abs( e ) ) );
+		}
+	}
+
+	@Test
+	public void testUnsignedShort()
+	{
+		final Random rnd = new Random( seed );
+		final List< RandomAccessibleInterval< UnsignedShortType > > rais = new ArrayList<>();
+		rais.add( fillRandom( ArrayImgs.unsignedShorts( dims ), rnd ) );
+		rais.add( fillRandom( ArrayImgs.unsignedShorts( dims ), rnd ) );
+
+		final RandomAccessibleInterval< UnsignedShortType > avg = MaterializedAverage.average( rais, null, service );
+
+		assertTrue( UnsignedShortType.class.isInstance( Util.getTypeFromInterval( avg ) ) );
+
+		// the average of two integers is exact in float, so the rounding is the same
+		assertImagesEqual( averagedRandomAccessible( rais ), avg, 0 );
+	}
+
+	@Test
+	public void testFloat()
+	{
+		final Random rnd = new Random( seed );
+		final List< RandomAccessibleInterval< FloatType > > rais = new ArrayList<>();
+		rais.add( fillRandom( ArrayImgs.floats( dims ), rnd ) );
+		rais.add( fillRandom( ArrayImgs.floats( dims ), rnd ) );
+
+		// a view that is not zero-min and smaller than the first one
+		rais.add( Views.translate( fillRandom( ArrayImgs.floats( 30, 20, 11 ), rnd ), 5, -3, 2 ) );
+
+		final RandomAccessibleInterval< FloatType > avg = MaterializedAverage.average( rais, null, service );
+
+		assertTrue( FloatType.class.isInstance( Util.getTypeFromInterval( avg ) ) );
+		assertImagesEqual( averagedRandomAccessible( rais ), avg, 1e-5 );
+
+		// the same without an executor service
+		assertImagesEqual( averagedRandomAccessible( rais ), MaterializedAverage.average( rais, null, null ), 1e-5 );
+	}
+
+	@Test
+	public void testGenericType()
+	{
+		final Random rnd = new Random( seed );
+		final List< RandomAccessibleInterval< DoubleType > > rais = new ArrayList<>();
+		rais.add( fillRandom( ArrayImgs.doubles( dims ), rnd ) );
+		rais.add( fillRandom( ArrayImgs.doubles( dims ), rnd ) );
+		rais.add( fillRandom( ArrayImgs.doubles( dims ), rnd ) );
+
+		final RandomAccessibleInterval< DoubleType > avg = MaterializedAverage.average( rais, null, service );
+
+		assertTrue( DoubleType.class.isInstance( Util.getTypeFromInterval( avg ) ) );
+
+		// the sum is computed in float
+		assertImagesEqual( averagedRandomAccessible( rais ), avg, 1e-5 );
+	}
+
+	@Test
+	public void testWeights()
+	{
+		final Random rnd = new Random( seed );
+		final List< RandomAccessibleInterval< FloatType > > rais = new ArrayList<>();
+		rais.add( fillRandom( ArrayImgs.floats( dims ), rnd ) );
+		rais.add( fillRandom( ArrayImgs.floats( dims ), rnd ) );
+
+		// equal weights are the plain average
+		assertImagesEqual( averagedRandomAccessible( rais ), MaterializedAverage.average( rais, new double[] { 2, 2 }, service ), 1e-5 );
+
+		final double[] weights = new double[] { 1, 3 };
+		final Img< DoubleType > expected = ArrayImgs.doubles( dims );
+		final Cursor< DoubleType > c = expected.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			double sum = 0;
+			for ( int i = 0; i < rais.size(); ++i )
+				sum += weights[ i ] * rais.get( i ).getAt( c ).getRealDouble();
+			c.get().set( sum / Arrays.stream( weights ).sum() );
+		}
+
+		assertImagesEqual( expected, MaterializedAverage.average( rais, weights, service ), 1e-5 );
+	}
+
+	@Test
+	public void testRestrictedProxies()
+	{
+		final Random rnd = new Random( seed );
+		final TestImgLoader imgLoader = new TestImgLoader();
+		imgLoader.addSetup( 0, fillRandom( ArrayImgs.unsignedShorts( dims ), rnd ) );
+		imgLoader.addSetup( 1, fillRandom( ArrayImgs.unsignedShorts( dims ), rnd ) );
+
+		final long[] ds = new long[] { 1, 1, 1 };
+		final List< RandomAccessibleInterval< UnsignedShortType > > rais = new ArrayList<>();
+		rais.add( new RAIProxy<>( imgLoader, new ViewId( 0, 0 ), ds, null, new FinalInterval( new long[] { 20, 0, 0 }, new long[] { 36, 28, 10 } ) ) );
+		rais.add( new RAIProxy<>( imgLoader, new ViewId( 0, 1 ), ds, null, new FinalInterval( new long[] { 25, 5, 2 }, new long[] { 40, 28, 8 } ) ) );
+
+		// only the union of the restrictions is computed, the result is still zero outside
+		final RandomAccessibleInterval< UnsignedShortType > avg = MaterializedAverage.average( rais, null, service );
+		assertImagesEqual( averagedRandomAccessible( rais ), avg, 0 );
+		assertEquals( 0, avg.getAt( 0, 0, 0 ).get() );
+
+		// with an unrestricted view, all of it is computed
+		final List< RandomAccessibleInterval< UnsignedShortType > > mixed = new ArrayList<>();
+		mixed.add( rais.get( 0 ) );
+		mixed.add( new RAIProxy<>( imgLoader, new ViewId( 0, 1 ), ds ) );
+		assertImagesEqual( averagedRandomAccessible( mixed ), MaterializedAverage.average( mixed, null, service ), 0 );
+
+		// restrictions that do not overlap the view
+		final List< RandomAccessibleInterval< UnsignedShortType > > outside = new ArrayList<>();
+		outside.add( new RAIProxy<>( imgLoader, new ViewId( 0, 0 ), ds, null, new FinalInterval( new long[] { 50, 0, 0 }, new long[] { 60, 28, 10 } ) ) );
+		assertNull( MaterializedAverage.average( outside, null, service ) );
+	}
+}
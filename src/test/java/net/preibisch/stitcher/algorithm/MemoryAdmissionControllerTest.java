@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MemoryAdmissionControllerTest
+{
+	@Test
+	public void testAdmission()
+	{
+		final MemoryAdmissionController admission = new MemoryAdmissionController( 100 );
+
+		assertTrue( admission.tryAcquire( 60 ) );
+		assertFalse( admission.tryAcquire( 60 ) );
+		assertTrue( admission.tryAcquire( 40 ) );
+		assertEquals( 100, admission.getUsed() );
+
+		admission.release( 60 );
+		admission.release( 40 );
+		assertEquals( 0, admission.getRunning() );
+
+		// larger than the whole budget, but nothing else is running
+		assertTrue( admission.tryAcquire( 1000 ) );
+		assertFalse( admission.tryAcquire( 1 ) );
+		admission.release( 1000 );
+
+		assertEquals( 1000, admission.getPeakUsed() );
+	}
+
+	@Test
+	public void testLoadedViewsAreCounted()
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final long[] overlap = new long[] { 100, 100, 20 };
+		final long[] loaded = new long[] { 124, 124, 44 };
+		final long viewBytes = 124 * 124 * 44 * 2;
+
+		final long single = MemoryAdmissionController.estimatePairBytes( overlap, loaded, loaded, 1, 1, 2, params );
+		final long groups = MemoryAdmissionController.estimatePairBytes( overlap, loaded, loaded, 2, 2, 2, params );
+
+		// one more view per group and the float image the views of a group are combined into
+		assertEquals( single + 2 * viewBytes + 2 * ( viewBytes / 2 ) * 4, groups );
+	}
+
+	@Test
+	public void testFloatCopiesAreCounted()
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final long[] overlap = new long[] { 100, 100, 20 };
+		final long[] loaded = new long[] { 124, 124, 44 };
+		final long floatCopies = 2 * 100 * 100 * 20 * 4;
+
+		final boolean floatFastPath = PairwiseStitching.floatFastPath;
+
+		try
+		{
+			PairwiseStitching.floatFastPath = false;
+			final long withoutCopies = MemoryAdmissionController.estimatePairBytes( overlap, loaded, loaded, 1, 1, 2, params );
+
+			PairwiseStitching.floatFastPath = true;
+			assertEquals( withoutCopies + floatCopies, MemoryAdmissionController.estimatePairBytes( overlap, loaded, loaded, 1, 1, 2, params ) );
+
+			// the integral images reuse the copies and add four double tables of the overlap size
+			params.useIntegralImages = true;
+			assertEquals( withoutCopies + floatCopies + 4 * floatCopies, MemoryAdmissionController.estimatePairBytes( overlap, loaded, loaded, 1, 1, 2, params ) );
+		}
+		finally
+		{
+			PairwiseStitching.floatFastPath = floatFastPath;
+		}
+	}
+}
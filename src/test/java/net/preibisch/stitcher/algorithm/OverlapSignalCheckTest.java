@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Test;
+
+public class OverlapSignalCheckTest
+{
+	public static long seed = 3453;
+
+	// the threshold a user would typically choose
+	public static double minOverlapSignal = 0.05;
+
+	// the overlap is the right part of the view (x >= 30)
+	private static final Interval overlap = new FinalInterval( new long[] { 30, 0, 0 }, new long[] { 39, 39, 9 } );
+
+	/**
+	 * @param texturedOverlap whether the overlap contains structure or only constant background
+	 * @return view with texture outside the overlap and constant background or texture inside
+	 */
+	private static Img< UnsignedShortType > createView( final boolean texturedOverlap )
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 40, 40, 10 );
+		final Random rnd = new Random( seed );
+
+		final Cursor< UnsignedShortType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			if ( c.getLongPosition( 0 ) < overlap.min( 0 ) || texturedOverlap )
+				c.get().set( 100 + rnd.nextInt( 1000 ) );
+			else
+				c.get().set( 100 );
+		}
+
+		return img;
+	}
+
+	private static RAIProxy< UnsignedShortType > createProxy( final Img< UnsignedShortType > img, final List< RAIProxy< ? > > proxies )
+	{
+		final TestImgLoader imgLoader = new TestImgLoader();
+		imgLoader.addSetup( 0, img );
+
+		final RAIProxy< UnsignedShortType > proxy = new RAIProxy<>( imgLoader, new ViewId( 0, 0 ), new long[] { 1, 1, 1 }, null, overlap );
+		proxies.add( proxy );
+		return proxy;
+	}
+
+	@Test
+	public void testBackgroundOverlap()
+	{
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+		final RAIProxy< UnsignedShortType > proxy = createProxy( createView( false ), proxies );
+
+		// the loaded image is zero outside of the overlap, looking at all of it would see a lot of signal
+		assertTrue( OverlapSignalCheck.relativeStandardDeviation( proxy ) > minOverlapSignal );
+
+		final Interval restriction = OverlapSignalCheck.getRestriction( proxies );
+		assertNotNull( restriction );
+		assertTrue( OverlapSignalCheck.relativeStandardDeviation( proxy, restriction ) < minOverlapSignal );
+	}
+
+	@Test
+	public void testTexturedOverlap()
+	{
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+		final RAIProxy< UnsignedShortType > proxy = createProxy( createView( true ), proxies );
+
+		final Interval restriction = OverlapSignalCheck.getRestriction( proxies );
+		assertTrue( OverlapSignalCheck.relativeStandardDeviation( proxy, restriction ) > minOverlapSignal );
+	}
+
+	@Test
+	public void testRestrictionUnion()
+	{
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+		proxies.add( new RAIProxy<>( null, new ViewId( 0, 0 ), new long[] { 1, 1, 1 }, null, new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 4, 4, 4 } ) ) );
+		proxies.add( new RAIProxy<>( null, new ViewId( 0, 1 ), new long[] { 1, 1, 1 }, null, new FinalInterval( new long[] { 2, 3, 4 }, new long[] { 9, 9, 9 } ) ) );
+
+		final Interval union = OverlapSignalCheck.getRestriction( proxies );
+		assertArrayEquals( new long[] { 0, 0, 0 }, new long[] { union.min( 0 ), union.min( 1 ), union.min( 2 ) } );
+		assertArrayEquals( new long[] { 9, 9, 9 }, new long[] { union.max( 0 ), union.max( 1 ), union.max( 2 ) } );
+
+		// an unrestricted proxy loads the whole view
+		proxies.add( new RAIProxy<>( null, new ViewId( 0, 2 ), new long[] { 1, 1, 1 } ) );
+		assertNull( OverlapSignalCheck.getRestriction( proxies ) );
+	}
+
+	@Test
+	public void testRelativeStandardDeviation()
+	{
+		// mean 2, standard deviation 1
+		assertEquals( 0.5, OverlapSignalCheck.relativeStandardDeviation( ArrayImgs.floats( new float[] { 1, 3, 1, 3 }, 2, 2 ) ), 1e-9 );
+
+		// constant and empty images have no signal
+		assertEquals( 0, OverlapSignalCheck.relativeStandardDeviation( ArrayImgs.floats( new float[] { 5, 5, 5 }, 3 ) ), 0 );
+		assertEquals( 0, OverlapSignalCheck.relativeStandardDeviation( ArrayImgs.floats( new float[] { 0, 0 }, 2 ) ), 0 );
+
+		// structure around a mean of zero
+		assertEquals( Double.POSITIVE_INFINITY, OverlapSignalCheck.relativeStandardDeviation( ArrayImgs.floats( new float[] { -1, 1 }, 2 ) ), 0 );
+	}
+
+	@Test
+	public void testCoarsestDownsampling()
+	{
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 64, 64, 16 }, 10, 2, seed );
+		final TestStitchingData data = new TestStitchingData( volume, new long[] { 64, 64, 16 },
+				new long[][] { { 0, 0, 0 } }, new double[][] { { 0, 0, 0 } },
+				new double[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 8, 8, 2 } } );
+
+		// the coarsest mipmap level
+		final RealInterval large = new FinalRealInterval( new double[] { 0, 0, 0 }, new double[] { 100, 100, 20 } );
+		assertArrayEquals( new long[] { 8, 8, 2 },
+				OverlapSignalCheck.getCoarsestDownsampling( data.getGroup( 0 ), data.getSequenceDescription(), new long[] { 1, 1, 1 }, large ) );
+
+		// less where the overlap would get too small
+		final RealInterval thin = new FinalRealInterval( new double[] { 0, 0, 0 }, new double[] { 30, 100, 10 } );
+		assertArrayEquals( new long[] { 2, 8, 1 },
+				OverlapSignalCheck.getCoarsestDownsampling( data.getGroup( 0 ), data.getSequenceDescription(), new long[] { 1, 1, 1 }, thin ) );
+
+		// never less than the downsampling selected for the registration
+		assertArrayEquals( new long[] { 16, 8, 2 },
+				OverlapSignalCheck.getCoarsestDownsampling( data.getGroup( 0 ), data.getSequenceDescription(), new long[] { 16, 1, 1 }, large ) );
+	}
+
+	@Test
+	public void testGetSignal()
+	{
+		// two tiles of random blobs that overlap by 32 pixels
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 160, 64, 16 }, 200, 3, seed );
+		final TestStitchingData data = new TestStitchingData( volume, new long[] { 96, 64, 16 },
+				new long[][] { { 0, 0, 0 }, { 64, 0, 0 } }, new double[][] { { 0, 0, 0 }, { 64, 0, 0 } },
+				new double[][] { { 1, 1, 1 }, { 2, 2, 1 } } );
+
+		final double signal = OverlapSignalCheck.getSignal( data.getGroup( 0 ), data.getGroup( 1 ), data.getViewRegistrations(),
+				data.getSequenceDescription(), new GroupedViewAggregator(), new long[] { 1, 1, 1 }, StitchingExecutors.getComputePool() );
+
+		assertTrue( "signal " + signal, signal > minOverlapSignal );
+	}
+
+	@Test
+	public void testGetSignalWithoutOverlap()
+	{
+		// two tiles that do not overlap, the signal is unknown (and not low)
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 320, 64, 16 }, 200, 3, seed );
+		final TestStitchingData data = new TestStitchingData( volume, new long[] { 96, 64, 16 },
+				new long[][] { { 0, 0, 0 }, { 200, 0, 0 } }, new double[][] { { 0, 0, 0 }, { 200, 0, 0 } },
+				new double[][] { { 1, 1, 1 } } );
+
+		final double signal = OverlapSignalCheck.getSignal( data.getGroup( 0 ), data.getGroup( 1 ), data.getViewRegistrations(),
+				data.getSequenceDescription(), new GroupedViewAggregator(), new long[] { 1, 1, 1 }, StitchingExecutors.getComputePool() );
+
+		assertTrue( Double.isNaN( signal ) );
+		assertFalse( signal < minOverlapSignal );
+	}
+}
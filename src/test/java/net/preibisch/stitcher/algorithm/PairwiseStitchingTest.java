@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+public class PairwiseStitchingTest
+{
+	public static long seed = 8723;
+
+	@Test
+	public void testBlocksCoverInterval()
+	{
+		final Interval interval = new FinalInterval( new long[] { 10, 20, 0 }, new long[] { 109, 89, 0 } );
+
+		// 4 x 3 x 1 blocks are needed to cover it
+		final int numTotal = 12;
+		final Img< BitType > covered = ArrayImgs.bits( Intervals.dimensionsAsLongArray( interval ) );
+
+		for ( int i = 0; i < numTotal; ++i )
+		{
+			final Interval block = PairwiseStitching.getBlock( interval, 32, 100, i );
+
+			assertNotNull( block );
+			assertTrue( Intervals.contains( interval, block ) );
+			assertArrayEquals( new long[] { 32, 32, 1 }, Intervals.dimensionsAsLongArray( block ) );
+
+			for ( final BitType t : Views.interval( Views.translate( covered, Intervals.minAsLongArray( interval ) ), block ) )
+				t.set( true );
+		}
+
+		for ( final BitType t : covered )
+			assertTrue( t.get() );
+
+		// there are no more blocks than needed to cover it
+		assertNull( PairwiseStitching.getBlock( interval, 32, 100, numTotal ) );
+
+		// fewer blocks than needed are spread over the interval, there are no more than requested
+		for ( int i = 0; i < 5; ++i )
+			assertTrue( Intervals.contains( interval, PairwiseStitching.getBlock( interval, 32, 5, i ) ) );
+
+		assertNull( PairwiseStitching.getBlock( interval, 32, 5, 5 ) );
+		assertNull( PairwiseStitching.getBlock( interval, 32, 5, 6 ) );
+	}
+
+	@Test
+	public void testConsensusRejectsOutlier()
+	{
+		final List< Pair< Translation, Double > > results = new ArrayList<>();
+		results.add( new ValuePair<>( new Translation( 5.0, 1.0, 0.0 ), 0.5 ) );
+		results.add( new ValuePair<>( new Translation( 5.5, 1.0, 0.0 ), 0.5 ) );
+		results.add( new ValuePair<>( new Translation( 4.5, 1.0, 0.0 ), 0.5 ) );
+
+		// a single block with a better correlation than any of the others, but far off
+		results.add( new ValuePair<>( new Translation( 30.0, -10.0, 2.0 ), 0.9 ) );
+
+		final Pair< Translation, Double > consensus = PairwiseStitching.consensus( results, 2.0 );
+
+		assertNotNull( consensus );
+		assertEquals( 5.0, consensus.getA().getTranslation( 0 ), 1e-9 );
+		assertEquals( 1.0, consensus.getA().getTranslation( 1 ), 1e-9 );
+		assertEquals( 0.0, consensus.getA().getTranslation( 2 ), 1e-9 );
+		assertEquals( 0.5, consensus.getB(), 1e-9 );
+
+		assertNull( PairwiseStitching.consensus( new ArrayList<>(), 2.0 ) );
+	}
+
+	@Test
+	public void testBlockwiseMatchesWholeOverlap()
+	{
+		// two tiles that truly overlap by 192 pixels, but the registration says 187 pixels
+		final double error = 5;
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 320, 128, 8 }, 600, 3, seed );
+		final RandomAccessibleInterval< UnsignedShortType > input1 = Views.zeroMin( Views.interval( volume, new long[] { 0, 0, 0 }, new long[] { 255, 127, 7 } ) );
+		final RandomAccessibleInterval< UnsignedShortType > input2 = Views.zeroMin( Views.interval( volume, new long[] { 64, 0, 0 }, new long[] { 319, 127, 7 } ) );
+		final Translation t1 = new Translation( 0.0, 0.0, 0.0 );
+		final Translation t2 = new Translation( 64 + error, 0.0, 0.0 );
+
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final Pair< Translation, Double > whole = PairwiseStitching.getShift( input1, input2, t1, t2, params, StitchingExecutors.getComputePool() );
+
+		params.numBlocks = 4;
+		params.blockSize = 64;
+		final Pair< Translation, Double > blockwise = PairwiseStitching.getShiftBlockwise( input1, input2, t1, t2, params, StitchingExecutors.getComputePool() );
+
+		assertNotNull( whole );
+		assertNotNull( blockwise );
+
+		assertEquals( error, Math.abs( whole.getA().getTranslation( 0 ) ), 0.5 );
+
+		for ( int d = 0; d < 3; ++d )
+			assertEquals( whole.getA().getTranslation( d ), blockwise.getA().getTranslation( d ), 0.5 );
+
+		assertTrue( blockwise.getB() > 0.9 );
+	}
+}
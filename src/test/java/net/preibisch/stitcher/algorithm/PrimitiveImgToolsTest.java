@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+public class PrimitiveImgToolsTest
+{
+	public static long seed = 6234;
+
+	private static final long[] dims = new long[] { 37, 23, 7 };
+
+	// does not start or end at the borders of the 8x7x3 cells of the cell images
+	private static final Interval interval = new FinalInterval( new long[] { 5, 3, 1 }, new long[] { 29, 19, 5 } );
+
+	private static < T extends RealType< T > > void fill( final Iterable< T > img )
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final T t : img )
+			t.setReal( rnd.nextInt( 65536 ) );
+	}
+
+	/*
+	 * the reference: a plain cursor copy
+	 */
+	private static < T extends RealType< T > > float[] cursorCopy( final RandomAccessibleInterval< T > img, final Interval interval )
+	{
+		final float[] data = new float[ (int) Intervals.numElements( interval ) ];
+
+		int i = 0;
+		for ( final T t : Views.flatIterable( Views.interval( img, interval ) ) )
+			data[ i++ ] = t.getRealFloat();
+
+		return data;
+	}
+
+	/*
+	 * copyToFloat equals the cursor copy (with and without a thread pool) and, for the supported types, uses the primitive arrays
+	 */
+	private static < T extends RealType< T > > void assertCopy( final RandomAccessibleInterval< T > img, final Interval interval, final boolean primitive, final String message )
+	{
+		final float[] expected = cursorCopy( img, interval );
+
+		assertArrayEquals( message, Intervals.dimensionsAsLongArray( interval ),
+				Intervals.dimensionsAsLongArray( PrimitiveImgTools.copyToFloat( img, interval, null ) ) );
+		assertArrayEquals( message, expected, PrimitiveImgTools.getFloatStorage( PrimitiveImgTools.copyToFloat( img, interval, null ) ), 0 );
+		assertArrayEquals( message, expected,
+				PrimitiveImgTools.getFloatStorage( PrimitiveImgTools.copyToFloat( img, interval, StitchingExecutors.getComputePool() ) ), 0 );
+
+		assertEquals( message, primitive,
+				PrimitiveImgTools.copyPrimitive( img, interval, new float[ (int) Intervals.numElements( interval ) ], null ) );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > void assertCopies( final T type, final boolean primitive )
+	{
+		final String name = type.getClass().getSimpleName();
+
+		final Img< T > arrayImg = new ArrayImgFactory<>( type ).create( dims );
+		fill( arrayImg );
+		assertCopy( arrayImg, interval, primitive, name + " ArrayImg" );
+
+		final Img< T > cellImg = new CellImgFactory<>( type, 8, 7, 3 ).create( dims );
+		fill( cellImg );
+		assertCopy( cellImg, interval, primitive, name + " CellImg" );
+		assertCopy( cellImg, new FinalInterval( dims ), primitive, name + " CellImg, whole image" );
+
+		for ( final Img< T > img : Arrays.asList( arrayImg, cellImg ) )
+		{
+			// nested views: crop, zero-min, translate and a zero extension that is not needed
+			final RandomAccessibleInterval< T > view = Views.interval(
+					Views.extendZero( Views.translate( Views.zeroMin( Views.interval( img, new long[] { 2, 1, 1 }, new long[] { 35, 22, 6 } ) ), 10, -4, 3 ) ),
+					new FinalInterval( new long[] { 10, -4, 3 }, new long[] { 43, 17, 8 } ) );
+			assertCopy( view, new FinalInterval( new long[] { 12, -2, 4 }, new long[] { 40, 15, 8 } ), primitive, name + " views" );
+
+			// the zero extension is needed, always generic
+			assertCopy( Views.interval( Views.extendZero( img ), new long[] { -3, -2, -1 }, new long[] { 39, 24, 8 } ),
+					new FinalInterval( new long[] { -3, 5, -1 }, new long[] { 20, 24, 3 } ), false, name + " extended" );
+		}
+	}
+
+	@Test
+	public void testUnsignedShort()
+	{
+		assertCopies( new UnsignedShortType(), true );
+	}
+
+	@Test
+	public void testFloat()
+	{
+		assertCopies( new FloatType(), true );
+	}
+
+	@Test
+	public void testUnsupportedType()
+	{
+		// other types take the generic path
+		assertCopies( new DoubleType(), false );
+	}
+
+	@Test
+	public void testRAIProxy()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( dims );
+		fill( img );
+
+		final TestImgLoader imgLoader = new TestImgLoader();
+		imgLoader.addSetup( 0, img );
+
+		// the whole view
+		assertCopy( new RAIProxy< UnsignedShortType >( imgLoader, new ViewId( 0, 0 ), new long[] { 1, 1, 1 } ), interval, true, "proxy" );
+
+		// only the restriction is loaded, the image is zero (an extension) outside of it
+		final RAIProxy< UnsignedShortType > restricted = new RAIProxy<>( imgLoader, new ViewId( 0, 0 ), new long[] { 1, 1, 1 }, null, interval );
+		assertCopy( restricted, interval, true, "restricted proxy" );
+		assertCopy( restricted, new FinalInterval( dims ), false, "restricted proxy, whole image" );
+	}
+}
@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
+
+import org.junit.Test;
+
+public class RAIProxyTest
+{
+	public static long seed = 7319;
+
+	private static final ViewId viewId = new ViewId( 0, 0 );
+
+	/**
+	 * a random view with three mipmap levels
+	 */
+	private static TestImgLoader createImgLoader()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 64, 48, 12 );
+		final Random rnd = new Random( seed );
+		for ( final UnsignedShortType t : img )
+			t.set( rnd.nextInt( 4096 ) );
+
+		final TestImgLoader imgLoader = new TestImgLoader( new double[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 2 } } );
+		imgLoader.addSetup( viewId.getViewSetupId(), img );
+		return imgLoader;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static RandomAccessibleInterval< UnsignedShortType > openAndDownsample( final TestImgLoader imgLoader, final long[] ds )
+	{
+		return (RandomAccessibleInterval< UnsignedShortType >) DownsampleTools.openAndDownsample( imgLoader, viewId, ds, false ).getA();
+	}
+
+	/*
+	 * the restricted image has the size of the whole downsampled image, equals it within the restriction and is zero outside
+	 */
+	private static void assertRestrictedEqualsCrop(
+			final RandomAccessibleInterval< UnsignedShortType > full,
+			final RandomAccessibleInterval< UnsignedShortType > restricted,
+			final Interval restriction,
+			final String message )
+	{
+		assertNotNull( message, restricted );
+		assertArrayEquals( message, Intervals.dimensionsAsLongArray( full ), Intervals.dimensionsAsLongArray( restricted ) );
+
+		final Interval inside = Intervals.intersect( restriction, Views.zeroMin( full ) );
+		final RandomAccess< UnsignedShortType > rf = Views.zeroMin( full ).randomAccess();
+
+		final Cursor< UnsignedShortType > c = Views.iterable( Views.zeroMin( restricted ) ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			final int value = c.next().get();
+
+			if ( Intervals.contains( inside, c ) )
+			{
+				rf.setPosition( c );
+				assertEquals( message, rf.get().get(), value );
+			}
+			else
+			{
+				assertEquals( message, 0, value );
+			}
+		}
+	}
+
+	@Test
+	public void testRestrictedEqualsCrop()
+	{
+		final TestImgLoader imgLoader = createImgLoader();
+
+		// mipmap levels as they are, power of two on top of a level, and more than the coarsest level
+		final long[][] downsampleFactors = new long[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 2 }, { 2, 2, 2 }, { 8, 8, 2 }, { 8, 8, 4 } };
+
+		for ( final long[] ds : downsampleFactors )
+		{
+			final RandomAccessibleInterval< UnsignedShortType > full = openAndDownsample( imgLoader, ds );
+			final long[] max = Intervals.maxAsLongArray( Views.zeroMin( full ) );
+
+			// inside, the whole image, and partially outside of the image
+			final Interval[] restrictions = new Interval[] {
+					new FinalInterval( new long[] { 1, 1, 0 }, new long[] { max[ 0 ] / 2, max[ 1 ] - 1, max[ 2 ] } ),
+					new FinalInterval( new long[] { 0, 0, 0 }, max ),
+					new FinalInterval( new long[] { max[ 0 ] / 2, -5, -1 }, new long[] { max[ 0 ] + 10, max[ 1 ] / 2, max[ 2 ] + 1 } ) };
+
+			for ( final Interval restriction : restrictions )
+			{
+				final String message = "ds=" + ds[ 0 ] + "," + ds[ 1 ] + "," + ds[ 2 ] + " restriction=" + Util.printInterval( restriction );
+
+				assertRestrictedEqualsCrop( full, RAIProxy.openAndDownsampleRestricted( imgLoader, viewId, ds, restriction ), restriction, message );
+
+				// the same through a proxy
+				final RAIProxy< UnsignedShortType > proxy = new RAIProxy<>( imgLoader, viewId, ds, null, restriction );
+				assertRestrictedEqualsCrop( full, proxy, restriction, message );
+			}
+		}
+	}
+
+	@Test
+	public void testRestrictionOutsideOfImage()
+	{
+		final TestImgLoader imgLoader = createImgLoader();
+		final Interval outside = new FinalInterval( new long[] { 100, 0, 0 }, new long[] { 110, 10, 5 } );
+
+		assertNull( RAIProxy.openAndDownsampleRestricted( imgLoader, viewId, new long[] { 2, 2, 1 }, outside ) );
+
+		// the proxy falls back to loading everything
+		final RAIProxy< UnsignedShortType > proxy = new RAIProxy<>( imgLoader, viewId, new long[] { 2, 2, 1 }, null, outside );
+		assertRestrictedEqualsCrop( openAndDownsample( imgLoader, new long[] { 2, 2, 1 } ), proxy, new FinalInterval( Intervals.dimensionsAsLongArray( proxy ) ), "fallback" );
+	}
+
+	@Test
+	public void testReleaseAndCache()
+	{
+		final TestImgLoader imgLoader = createImgLoader();
+		final ImageCache< RAIProxy.Key > cache = new ImageCache<>( Long.MAX_VALUE );
+		final long[] ds = new long[] { 2, 2, 1 };
+
+		final RAIProxy< UnsignedShortType > proxy = new RAIProxy<>( imgLoader, viewId, ds, cache );
+		assertFalse( proxy.isLoaded() );
+
+		final long[] dims = Intervals.dimensionsAsLongArray( proxy );
+		assertTrue( proxy.isLoaded() );
+		assertEquals( 1, cache.getMisses() );
+
+		// released pixels stay in the cache, the next access does not load them again
+		proxy.release();
+		assertFalse( proxy.isLoaded() );
+		assertArrayEquals( dims, Intervals.dimensionsAsLongArray( proxy ) );
+		assertTrue( proxy.isLoaded() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 1, cache.getHits() );
+
+		// close releases as well
+		proxy.close();
+		assertFalse( proxy.isLoaded() );
+
+		// a restricted proxy uses the whole view if it is cached already
+		final RAIProxy< UnsignedShortType > restricted = new RAIProxy<>( imgLoader, viewId, ds, cache, new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 5, 5, 5 } ) );
+		assertArrayEquals( dims, Intervals.dimensionsAsLongArray( restricted ) );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 1, cache.size() );
+	}
+
+	@Test
+	public void testLocalInterval()
+	{
+		// the view is at x = 100, downsampled by 2 in x and y
+		final AffineTransform3D model = new AffineTransform3D();
+		model.setTranslation( 100, 0, 0 );
+		final ViewRegistration vr = new ViewRegistration( 0, 0, model );
+
+		final AffineTransform3D dsCorrectionT = new AffineTransform3D();
+		dsCorrectionT.set( 2, 0, 0 );
+		dsCorrectionT.set( 2, 1, 1 );
+
+		final Interval local = RAIProxy.getLocalInterval(
+				new FinalRealInterval( new double[] { 110, 20, 3 }, new double[] { 131, 40, 7 } ), vr, dsCorrectionT, 1 );
+
+		assertArrayEquals( new long[] { 4, 9, 2 }, Intervals.minAsLongArray( local ) );
+		assertArrayEquals( new long[] { 17, 21, 8 }, Intervals.maxAsLongArray( local ) );
+	}
+
+	@Test
+	public void testFindMipmapLevel()
+	{
+		final AffineTransform3D[] mipmaps = new AffineTransform3D[ 3 ];
+		for ( int level = 0; level < 3; ++level )
+		{
+			final double f = 1 << level;
+			mipmaps[ level ] = new AffineTransform3D();
+			mipmaps[ level ].set( f, 0, 0, 0.5 * ( f - 1 ), 0, f, 0, 0.5 * ( f - 1 ), 0, 0, 1, 0 );
+		}
+
+		// level 1 followed by 2x in xy (level 2 has the same scaling, but another offset)
+		final AffineTransform3D ds = mipmaps[ 1 ].copy();
+		final AffineTransform3D additional = new AffineTransform3D();
+		additional.set( 2, 0, 0, 0, 0, 2, 0, 0, 0, 0, 1, 0 );
+		ds.concatenate( additional );
+		assertEquals( 1, RAIProxy.findMipmapLevel( mipmaps, ds ) );
+
+		// the same scaling with another offset does not come from any level
+		final AffineTransform3D shifted = ds.copy();
+		shifted.set( shifted.get( 0, 3 ) + 0.25, 0, 3 );
+		assertEquals( -1, RAIProxy.findMipmapLevel( mipmaps, shifted ) );
+	}
+}
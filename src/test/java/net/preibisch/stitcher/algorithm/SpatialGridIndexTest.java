@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpatialGridIndexTest
+{
+	public static long seed = 8812;
+
+	private ExecutorService service;
+
+	@Before
+	public void setUp()
+	{
+		service = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	/*
+	 * tiles of the given sizes at the given positions (one view per tile, translation only)
+	 */
+	private static class Tiles
+	{
+		final SequenceDescription sd;
+		final ViewRegistrations vrs;
+		final List< Group< ViewId > > groups = new ArrayList<>();
+
+		Tiles( final long[][] sizes, final double[][] positions )
+		{
+			final List< ViewSetup > setups = new ArrayList<>();
+			final Map< ViewId, ViewRegistration > registrations = new HashMap<>();
+
+			for ( int i = 0; i < sizes.length; ++i )
+			{
+				setups.add( new ViewSetup( i, "setup " + i, new FinalDimensions( sizes[ i ] ), new FinalVoxelDimensions( "px", 1, 1, 1 ),
+						new Tile( i ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+				final AffineTransform3D model = new AffineTransform3D();
+				model.setTranslation( positions[ i ] );
+				registrations.put( new ViewId( 0, i ), new ViewRegistration( 0, i, model ) );
+
+				groups.add( new Group< ViewId >( Arrays.asList( new ViewId( 0, i ) ) ) );
+			}
+
+			sd = new SequenceDescription( new TimePoints( Arrays.asList( new TimePoint( 0 ) ) ), setups, null, null );
+			vrs = new ViewRegistrations( registrations );
+		}
+
+		List< RealInterval > getBounds()
+		{
+			final List< RealInterval > bounds = new ArrayList<>();
+			for ( final Group< ViewId > group : groups )
+				bounds.add( SpatialGridIndex.getBounds( group.getViews(), sd, vrs ) );
+			return bounds;
+		}
+
+		/*
+		 * the overlapping pairs like before the index: all pairs, each checked with BoundingBoxMaximalGroupOverlap
+		 */
+		Set< String > getAllPairsOverlapping()
+		{
+			final Set< String > overlapping = new HashSet<>();
+			for ( int i = 0; i < groups.size(); ++i )
+				for ( int j = i + 1; j < groups.size(); ++j )
+				{
+					final List< Set< ViewId > > pairAsGroups = new ArrayList<>();
+					pairAsGroups.add( groups.get( i ).getViews() );
+					pairAsGroups.add( groups.get( j ).getViews() );
+
+					if ( new BoundingBoxMaximalGroupOverlap< ViewId >( pairAsGroups, sd, vrs ).estimate( "max overlap" ) != null )
+						overlapping.add( i + "," + j );
+				}
+			return overlapping;
+		}
+
+		/*
+		 * the overlapping pairs with the index: candidates from the grid, then filterNonOverlappingPairs
+		 */
+		Set< String > getIndexedOverlapping( final ExecutorService service )
+		{
+			final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+			for ( final int[] candidate : new SpatialGridIndex( getBounds() ).getIntersectingPairs( service ) )
+				pairs.add( new ValuePair<>( groups.get( candidate[ 0 ] ), groups.get( candidate[ 1 ] ) ) );
+
+			TransformationTools.filterNonOverlappingPairs( pairs, vrs, sd );
+
+			final Set< String > overlapping = new HashSet<>();
+			for ( final Pair< Group< ViewId >, Group< ViewId > > pair : pairs )
+				overlapping.add( groups.indexOf( pair.getA() ) + "," + groups.indexOf( pair.getB() ) );
+			return overlapping;
+		}
+	}
+
+	/*
+	 * random tiles, mostly small ones and a few large ones
+	 */
+	private static Tiles createRandomTiles( final int numTiles, final boolean is2d, final Random rnd )
+	{
+		final long[][] sizes = new long[ numTiles ][];
+		final double[][] positions = new double[ numTiles ][];
+
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			final boolean large = rnd.nextInt( 5 ) == 0;
+			sizes[ i ] = new long[] {
+					large ? 150 + rnd.nextInt( 250 ) : 40 + rnd.nextInt( 40 ),
+					large ? 150 + rnd.nextInt( 250 ) : 40 + rnd.nextInt( 40 ),
+					is2d ? 1 : 10 + rnd.nextInt( 40 ) };
+
+			// integer positions, so many tiles touch or overlap by exactly one pixel
+			positions[ i ] = new double[] { rnd.nextInt( 1000 ), rnd.nextInt( 1000 ), is2d ? 0 : rnd.nextInt( 100 ) };
+		}
+
+		return new Tiles( sizes, positions );
+	}
+
+	private static Set< String > bruteForce( final List< ? extends RealInterval > bounds )
+	{
+		final Set< String > pairs = new HashSet<>();
+		for ( int i = 0; i < bounds.size(); ++i )
+			for ( int j = i + 1; j < bounds.size(); ++j )
+				if ( bounds.get( i ) == null || bounds.get( j ) == null ||
+						SpatialGridIndex.intersect( bounds.get( i ), bounds.get( j ), SpatialGridIndex.tolerance ) )
+					pairs.add( i + "," + j );
+		return pairs;
+	}
+
+	private static Set< String > toSet( final List< int[] > pairs )
+	{
+		final Set< String > set = new HashSet<>();
+		for ( final int[] pair : pairs )
+		{
+			assertTrue( pair[ 0 ] < pair[ 1 ] );
+			assertTrue( set.add( pair[ 0 ] + "," + pair[ 1 ] ) );
+		}
+		return set;
+	}
+
+	@Test
+	public void testIndexMatchesBruteForce()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final boolean is2d : new boolean[] { false, true } )
+		{
+			final List< RealInterval > bounds = createRandomTiles( 200, is2d, rnd ).getBounds();
+
+			// unknown bounds intersect everything
+			bounds.set( 17, null );
+			bounds.set( 123, null );
+
+			assertEquals( bruteForce( bounds ), toSet( new SpatialGridIndex( bounds ).getIntersectingPairs( service ) ) );
+		}
+	}
+
+	@Test
+	public void testToleranceBoundary()
+	{
+		final RealInterval a = new FinalRealInterval( new double[] { 0, 0 }, new double[] { 99, 99 } );
+		final double t = SpatialGridIndex.tolerance;
+
+		assertTrue( SpatialGridIndex.intersect( a, new FinalRealInterval( new double[] { 99 + t, 0 }, new double[] { 199 + t, 99 } ), t ) );
+		assertFalse( SpatialGridIndex.intersect( a, new FinalRealInterval( new double[] { 99 + t + 1e-6, 0 }, new double[] { 199 + t, 99 } ), t ) );
+		assertFalse( SpatialGridIndex.intersect( a, new FinalRealInterval( new double[] { 0, -100 - t - 1e-6 }, new double[] { 99, -t - 1e-6 } ), t ) );
+
+		// boxes at exactly the tolerance, just beyond it and touching, across cell boundaries (cell size is the median size)
+		final List< RealInterval > bounds = new ArrayList<>();
+		final double[] gaps = new double[] { -1, 0, 0.5, t, t + 1e-6, 2, t, 0 };
+		double x = 0;
+		for ( final double gap : gaps )
+		{
+			bounds.add( new FinalRealInterval( new double[] { x, 0 }, new double[] { x + 99, 99 } ) );
+			x += 99 + gap;
+		}
+		bounds.add( new FinalRealInterval( new double[] { x, 0 }, new double[] { x + 99, 99 } ) );
+
+		assertEquals( bruteForce( bounds ), toSet( new SpatialGridIndex( bounds ).getIntersectingPairs( service ) ) );
+	}
+
+	@Test
+	public void testOverlappingPairsMatchAllPairs()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final boolean is2d : new boolean[] { false, true } )
+		{
+			final Tiles tiles = createRandomTiles( 80, is2d, rnd );
+			assertEquals( tiles.getAllPairsOverlapping(), tiles.getIndexedOverlapping( service ) );
+		}
+	}
+
+	@Test
+	public void testOverlappingPairsAtBoundary()
+	{
+		// a 100x100 tile and tiles next to it that overlap by one pixel, touch or are a bit apart
+		final double[] offsets = new double[] { 98, 99, 99.5, 100, 100.5, 101, 102 };
+		final long[][] sizes = new long[ 2 * offsets.length + 1 ][];
+		final double[][] positions = new double[ sizes.length ][];
+
+		sizes[ 0 ] = new long[] { 100, 100, 1 };
+		positions[ 0 ] = new double[] { 0, 0, 0 };
+
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			// a small one to the right and a large one below (that covers the first one in x)
+			sizes[ 2 * i + 1 ] = new long[] { 30, 30, 1 };
+			positions[ 2 * i + 1 ] = new double[] { offsets[ i ], 0, 0 };
+			sizes[ 2 * i + 2 ] = new long[] { 400, 50, 1 };
+			positions[ 2 * i + 2 ] = new double[] { -150, offsets[ i ], 0 };
+		}
+
+		final Tiles tiles = new Tiles( sizes, positions );
+		assertEquals( tiles.getAllPairsOverlapping(), tiles.getIndexedOverlapping( service ) );
+	}
+}
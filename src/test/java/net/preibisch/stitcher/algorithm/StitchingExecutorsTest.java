@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StitchingExecutorsTest
+{
+	private ForkJoinPool pool;
+
+	// tasks running right now, the maximum of it and the bytes they use (guarded by this)
+	private int running;
+	private int maxRunning;
+	private long runningBytes;
+	private boolean overBudget;
+
+	@Before
+	public void setUp()
+	{
+		pool = StitchingExecutors.createPool( 8 );
+		resetCounters();
+	}
+
+	@After
+	public void tearDown()
+	{
+		pool.shutdownNow();
+	}
+
+	protected synchronized void resetCounters()
+	{
+		running = 0;
+		maxRunning = 0;
+		runningBytes = 0;
+		overBudget = false;
+	}
+
+	@Test( timeout = 20000 )
+	public void testMaxInFlight() throws InterruptedException, ExecutionException
+	{
+		final int numTasks = 40;
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+		for ( int i = 0; i < numTasks; ++i )
+			tasks.add( createTask( i ) );
+
+		final Thread caller = Thread.currentThread();
+		final List< Integer > results = new ArrayList<>();
+
+		StitchingExecutors.invokeBounded( tasks, 3, pool, result ->
+		{
+			assertSame( caller, Thread.currentThread() );
+			results.add( result );
+		});
+
+		assertEquals( numTasks, results.size() );
+		assertEquals( numTasks * ( numTasks - 1 ) / 2, results.stream().mapToInt( Integer::intValue ).sum() );
+		assertTrue( "max in flight: " + maxRunning, maxRunning <= 3 );
+		assertTrue( maxRunning >= 1 );
+		assertEquals( 0, running );
+
+		// at least one task at a time, even for maxInFlight <= 0
+		resetCounters();
+		results.clear();
+
+		StitchingExecutors.invokeBounded( tasks.subList( 0, 5 ), 0, pool, results::add );
+
+		assertEquals( 5, results.size() );
+		assertEquals( 1, maxRunning );
+	}
+
+	@Test( timeout = 20000 )
+	public void testMemoryAdmission() throws InterruptedException, ExecutionException
+	{
+		final long budget = 100;
+		final MemoryAdmissionController admission = new MemoryAdmissionController( budget );
+
+		// mixed sizes, some of them larger than the whole budget (they have to run alone)
+		final long[] bytes = new long[] { 40, 40, 40, 150, 10, 60, 60, 30, 1000, 40, 40, 20, 20, 20, 20, 90, 10, 40 };
+
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+		for ( int i = 0; i < bytes.length; ++i )
+			tasks.add( createTask( i, bytes[ i ], budget ) );
+
+		final List< Integer > results = new ArrayList<>();
+
+		StitchingExecutors.invokeBounded( tasks, 8, bytes, admission, pool, results::add );
+
+		assertEquals( bytes.length, results.size() );
+		assertEquals( bytes.length * ( bytes.length - 1 ) / 2, results.stream().mapToInt( Integer::intValue ).sum() );
+
+		assertFalse( "tasks over the budget ran together", overBudget );
+		assertTrue( maxRunning <= 8 );
+		assertEquals( 1000, admission.getPeakUsed() );
+
+		// everything was released again
+		assertEquals( 0, admission.getUsed() );
+		assertEquals( 0, admission.getRunning() );
+		assertEquals( 0, running );
+	}
+
+	@Test( timeout = 20000 )
+	public void testAdmissionLimitsInFlight() throws InterruptedException, ExecutionException
+	{
+		// only two tasks fit into memory, although four would be allowed
+		final MemoryAdmissionController admission = new MemoryAdmissionController( 100 );
+		final long[] bytes = new long[ 20 ];
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+
+		for ( int i = 0; i < bytes.length; ++i )
+		{
+			bytes[ i ] = 45;
+			tasks.add( createTask( i, bytes[ i ], admission.getBudget() ) );
+		}
+
+		final List< Integer > results = new ArrayList<>();
+
+		StitchingExecutors.invokeBounded( tasks, 4, bytes, admission, pool, results::add );
+
+		assertEquals( bytes.length, results.size() );
+		assertTrue( "max in flight: " + maxRunning, maxRunning <= 2 );
+		assertTrue( admission.getPeakUsed() <= 90 );
+		assertFalse( overBudget );
+		assertEquals( 0, admission.getRunning() );
+	}
+
+	@Test( timeout = 20000 )
+	public void testFailingTask() throws InterruptedException
+	{
+		final MemoryAdmissionController admission = new MemoryAdmissionController( 100 );
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+		tasks.add( createTask( 0, 50, 100 ) );
+		tasks.add( () -> { throw new IllegalStateException( "failed" ); } );
+		tasks.add( createTask( 2, 50, 100 ) );
+
+		final List< Integer > results = new ArrayList<>();
+
+		try
+		{
+			StitchingExecutors.invokeBounded( tasks, 1, new long[] { 50, 50, 50 }, admission, pool, results::add );
+			fail( "expected an ExecutionException" );
+		}
+		catch ( final ExecutionException e )
+		{
+			assertTrue( e.getCause() instanceof IllegalStateException );
+		}
+
+		// the first task was collected, the failed one released its memory and slot, the third one was never started
+		assertEquals( 1, results.size() );
+		assertEquals( 0, admission.getUsed() );
+		assertEquals( 0, admission.getRunning() );
+		assertEquals( 0, running );
+	}
+
+	@Test( timeout = 20000 )
+	public void testSubtasksOnSamePool() throws InterruptedException, ExecutionException
+	{
+		// all workers of a small pool are busy with tasks that wait for subtasks on the same pool
+		pool.shutdownNow();
+		pool = StitchingExecutors.createPool( 2 );
+
+		final int numTasks = 12;
+		final int numSubtasks = 6;
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+
+		for ( int i = 0; i < numTasks; ++i )
+		{
+			final int offset = i * numSubtasks;
+
+			tasks.add( () ->
+			{
+				final List< Callable< Integer > > subtasks = new ArrayList<>();
+				for ( int j = 0; j < numSubtasks; ++j )
+					subtasks.add( createTask( offset + j ) );
+
+				int sum = 0;
+				for ( final Future< Integer > f : pool.invokeAll( subtasks ) )
+					sum += f.get();
+
+				return sum;
+			});
+		}
+
+		final AtomicInteger sum = new AtomicInteger();
+
+		StitchingExecutors.invokeBounded( tasks, 4, pool, sum::addAndGet );
+
+		final int n = numTasks * numSubtasks;
+		assertEquals( n * ( n - 1 ) / 2, sum.get() );
+	}
+
+	/**
+	 * @return a task that keeps track of how many tasks are running at the same time, and returns i
+	 */
+	protected Callable< Integer > createTask( final int i )
+	{
+		return createTask( i, 0, Long.MAX_VALUE );
+	}
+
+	/**
+	 * @return a task that keeps track of how many tasks (and bytes) are running at the same time, and returns i
+	 */
+	protected Callable< Integer > createTask( final int i, final long bytes, final long budget )
+	{
+		return () ->
+		{
+			synchronized ( this )
+			{
+				++running;
+				runningBytes += bytes;
+				maxRunning = Math.max( maxRunning, running );
+
+				// more than one task is only allowed if they fit into the budget together
+				if ( running > 1 && runningBytes > budget )
+					overBudget = true;
+			}
+
+			Thread.sleep( 2 );
+
+			synchronized ( this )
+			{
+				--running;
+				runningBytes -= bytes;
+			}
+
+			return i;
+		};
+	}
+}
@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * In-memory multi-resolution image loader for tests: every setup has one image (at timepoint 0), the
+ * mipmap levels are computed by averaging blocks of the full resolution image.
+ */
+public class TestImgLoader implements MultiResolutionImgLoader
+{
+	private final Map< Integer, SetupLoader > setups = new HashMap<>();
+	private final double[][] mipmapResolutions;
+
+	/**
+	 * @param mipmapResolutions the (integer) downsampling factors of the mipmap levels, the first one must be 1,1,1
+	 */
+	public TestImgLoader( final double[][] mipmapResolutions )
+	{
+		this.mipmapResolutions = mipmapResolutions;
+	}
+
+	public TestImgLoader()
+	{
+		this( new double[][] { { 1, 1, 1 } } );
+	}
+
+	public void addSetup( final int setupId, final Img< UnsignedShortType > img )
+	{
+		setups.put( setupId, new SetupLoader( img ) );
+	}
+
+	@Override
+	public MultiResolutionSetupImgLoader< UnsignedShortType > getSetupImgLoader( final int setupId )
+	{
+		return setups.get( setupId );
+	}
+
+	/**
+	 * @param img the image
+	 * @param factors downsampling factors
+	 * @return img downsampled by averaging blocks of the given size (incomplete blocks at the end are dropped)
+	 */
+	public static Img< UnsignedShortType > downsampleBlocks( final RandomAccessibleInterval< UnsignedShortType > img, final long[] factors )
+	{
+		final int n = img.numDimensions();
+		final long[] dims = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			dims[ d ] = img.dimension( d ) / factors[ d ];
+
+		final Img< UnsignedShortType > out = ArrayImgs.unsignedShorts( dims );
+		final RandomAccess< UnsignedShortType > ra = img.randomAccess();
+		final long[] pos = new long[ n ];
+		final long[] offset = new long[ n ];
+
+		long blockSize = 1;
+		for ( int d = 0; d < n; ++d )
+			blockSize *= factors[ d ];
+
+		final Cursor< UnsignedShortType > c = out.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			double sum = 0;
+			for ( long i = 0; i < blockSize; ++i )
+			{
+				long rest = i;
+				for ( int d = 0; d < n; ++d )
+				{
+					offset[ d ] = rest % factors[ d ];
+					rest /= factors[ d ];
+					pos[ d ] = img.min( d ) + c.getLongPosition( d ) * factors[ d ] + offset[ d ];
+				}
+
+				ra.setPosition( pos );
+				sum += ra.get().get();
+			}
+
+			c.get().set( (int) Math.round( sum / blockSize ) );
+		}
+
+		return out;
+	}
+
+	private class SetupLoader implements MultiResolutionSetupImgLoader< UnsignedShortType >
+	{
+		private final Img< UnsignedShortType >[] levels;
+
+		@SuppressWarnings("unchecked")
+		public SetupLoader( final Img< UnsignedShortType > img )
+		{
+			this.levels = new Img[ mipmapResolutions.length ];
+
+			for ( int level = 0; level < mipmapResolutions.length; ++level )
+			{
+				final long[] factors = new long[ img.numDimensions() ];
+				for ( int d = 0; d < factors.length; ++d )
+					factors[ d ] = Math.round( mipmapResolutions[ level ][ d ] );
+
+				levels[ level ] = level == 0 ? img : downsampleBlocks( img, factors );
+			}
+		}
+
+		@Override
+		public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final ImgLoaderHint... hints )
+		{
+			return getImage( timepointId, 0, hints );
+		}
+
+		@Override
+		public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return levels[ level ];
+		}
+
+		@Override
+		public RandomAccessibleInterval< FloatType > getFloatImage( final int timepointId, final boolean normalize, final ImgLoaderHint... hints )
+		{
+			return getFloatImage( timepointId, 0, normalize, hints );
+		}
+
+		@Override
+		public RandomAccessibleInterval< FloatType > getFloatImage( final int timepointId, final int level, final boolean normalize, final ImgLoaderHint... hints )
+		{
+			return Converters.convert( (RandomAccessibleInterval< UnsignedShortType >) levels[ level ], ( a, b ) -> b.setReal( a.getRealFloat() ), new FloatType() );
+		}
+
+		@Override
+		public UnsignedShortType getImageType()
+		{
+			return new UnsignedShortType();
+		}
+
+		@Override
+		public Dimensions getImageSize( final int timepointId )
+		{
+			return getImageSize( timepointId, 0 );
+		}
+
+		@Override
+		public Dimensions getImageSize( final int timepointId, final int level )
+		{
+			return new FinalDimensions( levels[ level ] );
+		}
+
+		@Override
+		public VoxelDimensions getVoxelSize( final int timepointId )
+		{
+			return new FinalVoxelDimensions( "px", 1, 1, 1 );
+		}
+
+		@Override
+		public double[][] getMipmapResolutions()
+		{
+			return mipmapResolutions;
+		}
+
+		@Override
+		public AffineTransform3D[] getMipmapTransforms()
+		{
+			final AffineTransform3D[] transforms = new AffineTransform3D[ mipmapResolutions.length ];
+
+			for ( int level = 0; level < mipmapResolutions.length; ++level )
+			{
+				final double[] f = mipmapResolutions[ level ];
+				transforms[ level ] = new AffineTransform3D();
+				transforms[ level ].set(
+						f[ 0 ], 0, 0, ( f[ 0 ] - 1 ) / 2,
+						0, f[ 1 ], 0, ( f[ 1 ] - 1 ) / 2,
+						0, 0, f[ 2 ], ( f[ 2 ] - 1 ) / 2 );
+			}
+
+			return transforms;
+		}
+
+		@Override
+		public int numMipmapLevels()
+		{
+			return mipmapResolutions.length;
+		}
+	}
+}
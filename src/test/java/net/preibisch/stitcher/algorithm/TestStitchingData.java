@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Synthetic tiled dataset for tests: tiles are cut from one volume of random blobs at known positions,
+ * the registrations place them at (possibly wrong) positions. All views are at timepoint 0, one tile per setup.
+ */
+public class TestStitchingData
+{
+	private final TestImgLoader imgLoader;
+	private final SequenceDescription sd;
+	private final ViewRegistrations vrs;
+	private final List< ViewId > viewIds;
+
+	/**
+	 * @param volume the volume to cut the tiles from
+	 * @param tileSize size of the tiles
+	 * @param truePositions position of every tile in the volume
+	 * @param registeredPositions position of every tile according to the registrations
+	 * @param mipmapResolutions mipmap levels of the image loader
+	 */
+	public TestStitchingData(
+			final Img< UnsignedShortType > volume,
+			final long[] tileSize,
+			final long[][] truePositions,
+			final double[][] registeredPositions,
+			final double[][] mipmapResolutions )
+	{
+		this.imgLoader = new TestImgLoader( mipmapResolutions );
+		this.viewIds = new ArrayList<>();
+
+		final List< ViewSetup > setups = new ArrayList<>();
+		final Map< ViewId, ViewRegistration > registrations = new HashMap<>();
+
+		for ( int i = 0; i < truePositions.length; ++i )
+		{
+			final long[] max = new long[ tileSize.length ];
+			for ( int d = 0; d < max.length; ++d )
+				max[ d ] = truePositions[ i ][ d ] + tileSize[ d ] - 1;
+
+			// copy, so every tile is an independent zero-min image
+			final Img< UnsignedShortType > tile = ArrayImgs.unsignedShorts( tileSize );
+			final Cursor< UnsignedShortType > out = tile.cursor();
+			for ( final UnsignedShortType t : Views.flatIterable( Views.interval( volume, truePositions[ i ], max ) ) )
+				out.next().set( t );
+
+			imgLoader.addSetup( i, tile );
+
+			setups.add( new ViewSetup( i, "setup " + i, new FinalDimensions( tileSize ), new FinalVoxelDimensions( "px", 1, 1, 1 ),
+					new Tile( i, "Tile" + i, registeredPositions[ i ] ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+			final AffineTransform3D model = new AffineTransform3D();
+			model.setTranslation( registeredPositions[ i ] );
+
+			final ViewId viewId = new ViewId( 0, i );
+			registrations.put( viewId, new ViewRegistration( 0, i, model ) );
+			viewIds.add( viewId );
+		}
+
+		this.sd = new SequenceDescription( new TimePoints( Arrays.asList( new TimePoint( 0 ) ) ), setups, imgLoader, null );
+		this.vrs = new ViewRegistrations( registrations );
+	}
+
+	/**
+	 * @param dims size of the volume
+	 * @param numBlobs number of gaussian blobs
+	 * @param sigma size of the blobs
+	 * @param seed random seed
+	 * @return volume with a constant background and randomly placed blobs of random brightness
+	 */
+	public static Img< UnsignedShortType > createBlobs( final long[] dims, final int numBlobs, final double sigma, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final int n = dims.length;
+		final double[][] centers = new double[ numBlobs ][ n ];
+		final double[] brightness = new double[ numBlobs ];
+
+		for ( int i = 0; i < numBlobs; ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				centers[ i ][ d ] = rnd.nextDouble() * dims[ d ];
+			brightness[ i ] = 500 + rnd.nextDouble() * 2000;
+		}
+
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( dims );
+		final double radius = 4 * sigma;
+
+		final Cursor< UnsignedShortType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			double v = 100;
+			for ( int i = 0; i < numBlobs; ++i )
+			{
+				double dist2 = 0;
+				for ( int d = 0; d < n && dist2 <= radius * radius; ++d )
+				{
+					final double diff = c.getDoublePosition( d ) - centers[ i ][ d ];
+					dist2 += diff * diff;
+				}
+
+				if ( dist2 <= radius * radius )
+					v += brightness[ i ] * Math.exp( -dist2 / ( 2 * sigma * sigma ) );
+			}
+
+			c.get().set( (int) Math.min( 65535, Math.round( v ) ) );
+		}
+
+		return img;
+	}
+
+	public TestImgLoader getImgLoader() { return imgLoader; }
+	public SequenceDescription getSequenceDescription() { return sd; }
+	public ViewRegistrations getViewRegistrations() { return vrs; }
+	public List< ViewId > getViewIds() { return viewIds; }
+
+	/**
+	 * @param i index of the tile
+	 * @return group containing only the view of the tile
+	 */
+	public Group< ViewId > getGroup( final int i )
+	{
+		return new Group< ViewId >( Arrays.asList( viewIds.get( i ) ) );
+	}
+}
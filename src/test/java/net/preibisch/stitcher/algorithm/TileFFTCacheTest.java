@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.phasecorrelation.PCMWorkspace;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileFFTCacheTest
+{
+	public static long seed = 5113;
+
+	private static final int[] extension = new int[] { 10, 10, 4 };
+
+	private ExecutorService service;
+
+	@Before
+	public void setUp()
+	{
+		service = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		service.shutdown();
+		PCMWorkspace.clearPool();
+	}
+
+	private static Img< FloatType > createRandom( final Random rnd )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 40, 30, 8 );
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() * 1000 );
+		return img;
+	}
+
+	private static Img< FloatType > copy( final RandomAccessibleInterval< FloatType > img )
+	{
+		final Img< FloatType > out = ArrayImgs.floats( Intervals.dimensionsAsLongArray( img ) );
+		final Cursor< FloatType > c = out.cursor();
+		for ( final FloatType t : Views.flatIterable( img ) )
+			c.next().set( t );
+		return out;
+	}
+
+	private static float[] copyPCM( final PCMWorkspace ws )
+	{
+		try
+		{
+			return ws.getPCM().update( null ).getCurrentStorageArray().clone();
+		}
+		finally
+		{
+			ws.release();
+		}
+	}
+
+	private static void assertPCMEquals( final float[] expected, final float[] actual )
+	{
+		assertEquals( expected.length, actual.length );
+
+		float max = 0;
+		for ( final float v : expected )
+			max = Math.max( max, Math.abs( v ) );
+
+		for ( int i = 0; i < expected.length; ++i )
+			assertEquals( "at " + i, expected[ i ], actual[ i ], 1e-6 * max );
+	}
+
+	@Test
+	public void testCachedEqualsUncached()
+	{
+		final Random rnd = new Random( seed );
+		final Img< FloatType > a = createRandom( rnd );
+		final Img< FloatType > b = createRandom( rnd );
+		final Img< FloatType > c = createRandom( rnd );
+		final Interval interval = new FinalInterval( a );
+
+		final float[] pcmAB = copyPCM( PhaseCorrelation2.calculatePCMPooled( a, b, extension, service ) );
+		final float[] pcmAC = copyPCM( PhaseCorrelation2.calculatePCMPooled( a, c, extension, service ) );
+
+		final TileFFTCache cache = new TileFFTCache( Long.MAX_VALUE );
+
+		// transforms both
+		assertPCMEquals( pcmAB, copyPCM( cache.calculatePCM( "a", interval, a, "b", interval, b, extension, service ) ) );
+
+		// both cached
+		assertPCMEquals( pcmAB, copyPCM( cache.calculatePCM( "a", interval, a, "b", interval, b, extension, service ) ) );
+
+		// the cached transform of a is reused with a new tile (and not modified by the previous pairs)
+		assertPCMEquals( pcmAC, copyPCM( cache.calculatePCM( "a", interval, a, "c", interval, c, extension, service ) ) );
+
+		assertTrue( cache.getStatistics(), cache.getStatistics().startsWith( "3 hits, 3 misses" ) );
+	}
+
+	@Test
+	public void testDifferentIntervalsAreNotShared()
+	{
+		final Random rnd = new Random( seed );
+		final Img< FloatType > a = createRandom( rnd );
+		final Img< FloatType > b = createRandom( rnd );
+
+		// the same tile, but another part of it
+		final Interval part = new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 19, 29, 7 } );
+		final Img< FloatType > aPart = copy( Views.interval( a, part ) );
+		final Img< FloatType > bPart = copy( Views.interval( b, part ) );
+
+		final TileFFTCache cache = new TileFFTCache( Long.MAX_VALUE );
+		final Interval interval = new FinalInterval( a );
+
+		copyPCM( cache.calculatePCM( "a", interval, a, "b", interval, b, extension, service ) );
+
+		assertPCMEquals(
+				copyPCM( PhaseCorrelation2.calculatePCMPooled( aPart, bPart, extension, service ) ),
+				copyPCM( cache.calculatePCM( "a", part, aPart, "b", part, bPart, extension, service ) ) );
+
+		assertTrue( cache.getStatistics(), cache.getStatistics().startsWith( "0 hits, 4 misses" ) );
+	}
+}
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ViewBrightnessTest
+{
+	public static long seed = 9512;
+
+	private static final ViewId viewId = new ViewId( 0, 0 );
+
+	private int maxSamples;
+
+	@Before
+	public void setUp()
+	{
+		maxSamples = ViewBrightness.maxSamples;
+		ViewBrightness.clear();
+	}
+
+	@After
+	public void tearDown()
+	{
+		ViewBrightness.maxSamples = maxSamples;
+		ViewBrightness.clear();
+	}
+
+	/*
+	 * an image loader without mipmaps
+	 */
+	private static BasicImgLoader createImgLoader( final Img< UnsignedShortType > img )
+	{
+		return new BasicImgLoader()
+		{
+			@Override
+			public BasicSetupImgLoader< ? > getSetupImgLoader( final int setupId )
+			{
+				return new BasicSetupImgLoader< UnsignedShortType >()
+				{
+					@Override
+					public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final ImgLoaderHint... hints )
+					{
+						return img;
+					}
+
+					@Override
+					public UnsignedShortType getImageType()
+					{
+						return new UnsignedShortType();
+					}
+				};
+			}
+		};
+	}
+
+	private static Img< UnsignedShortType > createImg()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 64, 48, 8 );
+		final Random rnd = new Random( seed );
+
+		for ( final UnsignedShortType t : img )
+			t.set( 100 + rnd.nextInt( 1000 ) );
+
+		return img;
+	}
+
+	private static double mean( final RandomAccessibleInterval< UnsignedShortType > img )
+	{
+		double sum = 0;
+		long n = 0;
+
+		for ( final UnsignedShortType t : Views.iterable( img ) )
+		{
+			sum += t.get();
+			++n;
+		}
+
+		return sum / n;
+	}
+
+	@Test
+	public void testCoarsestMipmapLevel()
+	{
+		final TestImgLoader imgLoader = new TestImgLoader( new double[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 2 } } );
+		imgLoader.addSetup( 0, createImg() );
+
+		final double expected = mean( imgLoader.getSetupImgLoader( 0 ).getImage( 0, 2 ) );
+
+		assertEquals( expected, ViewBrightness.getMeanIntensity( imgLoader, viewId ), 1e-9 );
+	}
+
+	@Test
+	public void testFullResolutionFallback()
+	{
+		final Img< UnsignedShortType > img = createImg();
+
+		// all pixels
+		ViewBrightness.maxSamples = (int) img.size();
+		assertEquals( mean( img ), ViewBrightness.getMeanIntensity( createImgLoader( img ), viewId ), 1e-9 );
+
+		// a regular sample of the pixels
+		ViewBrightness.maxSamples = 1000;
+		final double sampled = ViewBrightness.getMeanIntensity( createImgLoader( img ), viewId );
+		assertEquals( ViewBrightness.getSampledMean( img, 1000 ), sampled, 1e-9 );
+		assertEquals( mean( img ), sampled, 0.05 * mean( img ) );
+	}
+
+	@Test
+	public void testMemoPerImgLoader()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 16, 16, 4 );
+		img.forEach( t -> t.set( 100 ) );
+
+		final BasicImgLoader imgLoader = createImgLoader( img );
+		assertEquals( 100, ViewBrightness.getMeanIntensity( imgLoader, viewId ), 0 );
+
+		// the intensity of a view is only computed once per image loader
+		img.forEach( t -> t.set( 200 ) );
+		assertEquals( 100, ViewBrightness.getMeanIntensity( imgLoader, viewId ), 0 );
+
+		// another image loader (e.g. after reloading the dataset) does not see it
+		assertEquals( 200, ViewBrightness.getMeanIntensity( createImgLoader( img ), viewId ), 0 );
+
+		// until it is cleared
+		ViewBrightness.clear();
+		assertEquals( 200, ViewBrightness.getMeanIntensity( imgLoader, viewId ), 0 );
+	}
+
+	@Test
+	public void testSampledMean()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 10, 10 );
+		int i = 0;
+		for ( final UnsignedShortType t : img )
+			t.set( i++ );
+
+		// every 10th pixel: 0, 10, ..., 90
+		assertEquals( 45, ViewBrightness.getSampledMean( img, 10 ), 1e-9 );
+
+		// all of them
+		assertEquals( 49.5, ViewBrightness.getSampledMean( img, 100 ), 1e-9 );
+		assertEquals( 49.5, ViewBrightness.getSampledMean( img, 1000 ), 1e-9 );
+	}
+}
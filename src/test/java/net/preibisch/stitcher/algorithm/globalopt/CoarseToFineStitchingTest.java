@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import net.imglib2.RealInterval;
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Pair;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.StitchingExecutors;
+import net.preibisch.stitcher.algorithm.TestStitchingData;
+
+import org.junit.Test;
+
+public class CoarseToFineStitchingTest
+{
+	public static long seed = 2374;
+
+	/**
+	 * @param error how much the registration of the second tile is off in x
+	 * @return two tiles that truly overlap by 192 pixels, but the registration says 192 - error pixels
+	 */
+	private static TestStitchingData createData( final double error )
+	{
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 320, 64, 8 }, 300, 3, seed );
+
+		return new TestStitchingData( volume, new long[] { 256, 64, 8 },
+				new long[][] { { 0, 0, 0 }, { 64, 0, 0 } },
+				new double[][] { { 0, 0, 0 }, { 64 + error, 0, 0 } },
+				new double[][] { { 1, 1, 1 }, { 2, 2, 1 } } );
+	}
+
+	private static double[] getTranslation( final Pair< Pair< AffineGet, Double >, RealInterval > result )
+	{
+		final AffineGet t = result.getA().getA();
+		return new double[] { t.get( 0, 3 ), t.get( 1, 3 ), t.get( 2, 3 ) };
+	}
+
+	private static Pair< Pair< AffineGet, Double >, RealInterval > computeStitching( final TestStitchingData data, final int levels )
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		params.coarseToFineLevels = levels;
+
+		return TransformationTools.computeStitching( data.getGroup( 0 ), data.getGroup( 1 ), data.getViewRegistrations(), params,
+				data.getSequenceDescription(), new GroupedViewAggregator(), new long[] { 1, 1, 1 }, StitchingExecutors.getComputePool() );
+	}
+
+	/*
+	 * the pyramid (three levels) has to find the same shift as a single level, which corrects the error
+	 */
+	private static void assertPyramidMatchesSingleLevel( final double error )
+	{
+		final TestStitchingData data = createData( error );
+
+		final Pair< Pair< AffineGet, Double >, RealInterval > single = computeStitching( data, 1 );
+		final Pair< Pair< AffineGet, Double >, RealInterval > pyramid = computeStitching( data, 3 );
+
+		assertNotNull( single );
+		assertNotNull( pyramid );
+
+		final double[] shiftSingle = getTranslation( single );
+		final double[] shiftPyramid = getTranslation( pyramid );
+
+		assertEquals( error, Math.abs( shiftSingle[ 0 ] ), 0.5 );
+
+		for ( int d = 0; d < 3; ++d )
+			assertEquals( shiftSingle[ d ], shiftPyramid[ d ], 0.5 );
+
+		assertTrue( pyramid.getA().getB() > 0.9 );
+	}
+
+	@Test
+	public void testPyramidMatchesSingleLevel()
+	{
+		// the shift stays within the margin loaded around the overlap
+		assertPyramidMatchesSingleLevel( 6 );
+	}
+
+	@Test
+	public void testShiftLargerThanMargin()
+	{
+		// the shift has to be found at the coarsest level and is much larger than the margin loaded around the overlap,
+		// so the overlap grows once the shift is applied and the finer levels need pixels outside of the original overlap
+		final double error = 40;
+		assertTrue( error > 2 * TransformationTools.overlapLoadingMargin );
+
+		assertPyramidMatchesSingleLevel( error );
+	}
+
+	@Test
+	public void testCoarseToFineMargin()
+	{
+		final long margin = TransformationTools.overlapLoadingMargin;
+
+		assertEquals( margin, TransformationTools.getCoarseToFineMargin( new double[] { 0, 0, 0 }, new long[] { 4, 4, 1 } ) );
+
+		// the largest shift (in pixels of the level) counts, rounded up
+		assertEquals( margin + 10, TransformationTools.getCoarseToFineMargin( new double[] { 40, -4, 0 }, new long[] { 4, 4, 1 } ) );
+		assertEquals( margin + 11, TransformationTools.getCoarseToFineMargin( new double[] { 41, 0, 0 }, new long[] { 4, 4, 1 } ) );
+		assertEquals( margin + 3, TransformationTools.getCoarseToFineMargin( new double[] { 0, 0, -2.5 }, new long[] { 1, 1, 1 } ) );
+	}
+}
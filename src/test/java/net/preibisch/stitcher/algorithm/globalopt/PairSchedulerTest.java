@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.TestStitchingData;
+
+import org.junit.Test;
+
+public class PairSchedulerTest
+{
+	public static long seed = 1267;
+
+	private static final int numX = 5, numY = 4;
+
+	/**
+	 * a grid of small tiles (the images do not matter for the order)
+	 */
+	private static TestStitchingData createData()
+	{
+		final long[][] truePositions = new long[ numX * numY ][];
+		final double[][] registeredPositions = new double[ numX * numY ][];
+
+		for ( int y = 0; y < numY; ++y )
+			for ( int x = 0; x < numX; ++x )
+			{
+				truePositions[ y * numX + x ] = new long[] { x * 8, y * 8, 0 };
+				registeredPositions[ y * numX + x ] = new double[] { x * 100, y * 100, 0 };
+			}
+
+		return new TestStitchingData( TestStitchingData.createBlobs( new long[] { numX * 8 + 8, numY * 8 + 8, 2 }, 10, 2, seed ),
+				new long[] { 16, 16, 2 }, truePositions, registeredPositions, new double[][] { { 1, 1, 1 } } );
+	}
+
+	/**
+	 * @return all pairs of direct neighbors in random order, one of them twice
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > createPairs( final TestStitchingData data )
+	{
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+
+		for ( int y = 0; y < numY; ++y )
+			for ( int x = 0; x < numX; ++x )
+			{
+				if ( x + 1 < numX )
+					pairs.add( new ValuePair<>( data.getGroup( y * numX + x ), data.getGroup( y * numX + x + 1 ) ) );
+				if ( y + 1 < numY )
+					pairs.add( new ValuePair<>( data.getGroup( y * numX + x ), data.getGroup( ( y + 1 ) * numX + x ) ) );
+			}
+
+		pairs.add( new ValuePair<>( data.getGroup( 0 ), data.getGroup( 1 ) ) );
+
+		Collections.shuffle( pairs, new Random( seed ) );
+		return pairs;
+	}
+
+	private static Map< Object, Integer > count( final List< ? > list )
+	{
+		final Map< Object, Integer > counts = new IdentityHashMap<>();
+		for ( final Object o : list )
+			counts.merge( o, 1, Integer::sum );
+		return counts;
+	}
+
+	@Test
+	public void testPermutation()
+	{
+		final TestStitchingData data = createData();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = createPairs( data );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > copy = new ArrayList<>( pairs );
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > ordered =
+				PairScheduler.orderSpatially( pairs, data.getViewRegistrations(), data.getSequenceDescription() );
+
+		// every pair (object) exactly as often as in the input, the input is not modified
+		assertEquals( pairs.size(), ordered.size() );
+		assertEquals( count( pairs ), count( ordered ) );
+		assertEquals( copy, pairs );
+
+		// the order only depends on the positions
+		assertEquals( ordered, PairScheduler.orderSpatially( pairs, data.getViewRegistrations(), data.getSequenceDescription() ) );
+	}
+
+	@Test
+	public void testFewPairs()
+	{
+		final TestStitchingData data = createData();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>( createPairs( data ).subList( 0, 2 ) );
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > ordered =
+				PairScheduler.orderSpatially( pairs, data.getViewRegistrations(), data.getSequenceDescription() );
+
+		assertEquals( pairs, ordered );
+		assertNotSame( pairs, ordered );
+
+		assertTrue( PairScheduler.orderSpatially( new ArrayList< Pair< Group< ViewId >, Group< ViewId > > >(),
+				data.getViewRegistrations(), data.getSequenceDescription() ).isEmpty() );
+	}
+
+	@Test
+	public void testCenter()
+	{
+		final TestStitchingData data = createData();
+
+		// tile 7 is at (200, 100, 0) and 16x16x2 pixels large
+		assertArrayEquals( new double[] { 207.5, 107.5, 0.5 }, PairScheduler.getCenter( data.getGroup( 7 ), data.getViewRegistrations(), data.getSequenceDescription() ), 1e-9 );
+	}
+
+	@Test
+	public void testMortonCode()
+	{
+		final double[] min = new double[] { 0, 0, 0 };
+		final double[] max = new double[] { 100, 100, 100 };
+
+		assertEquals( 0, PairScheduler.mortonCode( min, min, max ) );
+		assertEquals( Long.MAX_VALUE, PairScheduler.mortonCode( max, min, max ) );
+
+		// bit 3b+d is bit b of dimension d
+		assertEquals( 1, PairScheduler.mortonCode( new double[] { 100, 0, 0 }, min, max ) & 7 );
+		assertEquals( 2, PairScheduler.mortonCode( new double[] { 0, 100, 0 }, min, max ) & 7 );
+		assertEquals( 4, PairScheduler.mortonCode( new double[] { 0, 0, 100 }, min, max ) & 7 );
+
+		// no extent in a dimension
+		assertEquals( 0, PairScheduler.mortonCode( new double[] { 5, 5, 5 }, new double[] { 5, 5, 5 }, new double[] { 5, 5, 5 } ) );
+	}
+}
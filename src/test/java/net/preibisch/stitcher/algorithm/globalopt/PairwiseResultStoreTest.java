@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PairwiseResultStoreTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Pair< Group< ViewId >, Group< ViewId > > getPair( final int setupA, final int setupB )
+	{
+		return new ValuePair<>(
+				new Group< ViewId >( Arrays.asList( new ViewId( 0, setupA ) ) ),
+				new Group< ViewId >( Arrays.asList( new ViewId( 0, setupB ) ) ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > getResult( final Pair< Group< ViewId >, Group< ViewId > > pair, final double shift )
+	{
+		final AffineTransform3D t = new AffineTransform3D();
+		t.setTranslation( shift, -2 * shift, 0.5 );
+
+		return new PairwiseStitchingResult<>( pair, new FinalRealInterval( new double[] { 0, 1, 2 }, new double[] { 10, 11, 12.5 } ), t, 0.75, 1234.5 );
+	}
+
+	private File getFile()
+	{
+		return new File( folder.getRoot(), "dataset.xml" + PairwiseResultStore.fileExtension );
+	}
+
+	private List< String > readLines() throws IOException
+	{
+		return Files.readAllLines( getFile().toPath(), StandardCharsets.UTF_8 );
+	}
+
+	@Test
+	public void testLineRoundTrip()
+	{
+		final PairwiseResultStore.Entry entry = new PairwiseResultStore.Entry( "key", 0.75, 1234.5,
+				new double[] { 1, 0, 0, 3.25, 0, 1, 0, -1, 0, 0, 1, 1e-7 }, new double[] { 0, 1, 2 }, new double[] { 10, 11, 12.5 } );
+
+		final Pair< String, PairwiseResultStore.Entry > parsed = PairwiseResultStore.parseLine( PairwiseResultStore.toLine( "0,1|0,2", entry ) );
+
+		assertEquals( "0,1|0,2", parsed.getA() );
+		assertEquals( "key", parsed.getB().key );
+		assertEquals( 0.75, parsed.getB().r, 0 );
+		assertEquals( 1234.5, parsed.getB().hash, 0 );
+		assertArrayEquals( entry.transform, parsed.getB().transform, 0 );
+		assertArrayEquals( entry.min, parsed.getB().min, 0 );
+		assertArrayEquals( entry.max, parsed.getB().max, 0 );
+
+		// no shift found
+		final Pair< String, PairwiseResultStore.Entry > empty = PairwiseResultStore.parseLine(
+				PairwiseResultStore.toLine( "0,1|0,2", new PairwiseResultStore.Entry( "key", Double.NaN, 0, null, null, null ) ) );
+		assertEquals( "key", empty.getB().key );
+		assertTrue( empty.getB().isEmpty() );
+
+		// broken lines
+		assertNull( PairwiseResultStore.parseLine( "R\t0,1|0,2\tkey\t0.75" ) );
+		assertNull( PairwiseResultStore.parseLine( "R\t0,1|0,2\tkey\tx\t1\t1,0,0,0,0,1,0,0,0,0,1,0\t-\t-" ) );
+		assertNull( PairwiseResultStore.parseLine( "R\t0,1|0,2\tkey\t1\t1\t1,0,0,0\t-\t-" ) );
+		assertNull( PairwiseResultStore.parseLine( "" ) );
+	}
+
+	@Test
+	public void testStoreAndReload()
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+		final String pairId = PairwiseResultStore.getPairId( pair );
+
+		final PairwiseResultStore store = new PairwiseResultStore( getFile() );
+		store.put( pairId, "key1", getResult( pair, 3 ) );
+		store.put( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), "key2", null );
+		store.close();
+
+		final PairwiseResultStore reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 2, reloaded.size() );
+		assertTrue( reloaded.contains( pairId, "key1" ) );
+		assertFalse( reloaded.contains( pairId, "key2" ) );
+		assertTrue( reloaded.contains( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), "key2" ) );
+
+		final PairwiseStitchingResult< ViewId > result = reloaded.get( pairId, "key1", pair );
+		assertEquals( 0.75, result.r(), 0 );
+		assertEquals( 1234.5, result.getHash(), 0 );
+		assertArrayEquals( getResult( pair, 3 ).getTransform().getRowPackedCopy(), result.getTransform().getRowPackedCopy(), 0 );
+		assertArrayEquals( new double[] { 10, 11, 12.5 }, result.getBoundingBox().maxAsDoubleArray(), 0 );
+
+		// the pair was computed, but no shift was found
+		assertNull( reloaded.get( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), "key2", getPair( 1, 2 ) ) );
+	}
+
+	@Test
+	public void testChangedKeyReplacesPair()
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+		final String pairId = PairwiseResultStore.getPairId( pair );
+
+		// e.g. the registrations changed between runs
+		final PairwiseResultStore store = new PairwiseResultStore( getFile() );
+		store.put( pairId, "old", getResult( pair, 3 ) );
+		store.put( pairId, "new", getResult( pair, 4 ) );
+		store.close();
+
+		final PairwiseResultStore reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 1, reloaded.size() );
+		assertFalse( reloaded.contains( pairId, "old" ) );
+		assertNull( reloaded.get( pairId, "old", pair ) );
+		assertEquals( 4, reloaded.get( pairId, "new", pair ).getTransform().get( 0, 3 ), 0 );
+	}
+
+	@Test
+	public void testIncompleteLastLine() throws IOException
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+		final String pairId = PairwiseResultStore.getPairId( pair );
+
+		final PairwiseResultStore store = new PairwiseResultStore( getFile() );
+		store.put( pairId, "key1", getResult( pair, 3 ) );
+		store.close();
+
+		// crash while writing the next line, cut within the last number
+		final String complete = PairwiseResultStore.toLine( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), new PairwiseResultStore.Entry( "key2", 0.5, 1, getResult( pair, 3 ).getTransform().getRowPackedCopy(),
+				new double[] { 0, 1, 2 }, new double[] { 10, 11, 12.5 } ) );
+		try ( final FileWriter out = new FileWriter( getFile(), true ) )
+		{
+			out.write( complete.substring( 0, complete.length() - 1 ) );
+		}
+
+		final PairwiseResultStore reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 1, reloaded.size() );
+		assertTrue( reloaded.contains( pairId, "key1" ) );
+
+		// appending starts a new line
+		reloaded.put( PairwiseResultStore.getPairId( getPair( 2, 3 ) ), "key3", null );
+		reloaded.close();
+
+		final List< String > lines = readLines();
+		assertEquals( 3, lines.size() );
+		assertEquals( "N\t" + PairwiseResultStore.getPairId( getPair( 2, 3 ) ) + "\tkey3", lines.get( 2 ) );
+
+		assertEquals( 2, new PairwiseResultStore( getFile() ).size() );
+	}
+
+	@Test
+	public void testFailures()
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+		final String pairId = PairwiseResultStore.getPairId( pair );
+
+		final PairwiseResultStore store = new PairwiseResultStore( getFile() );
+		store.putFailure( pairId, new OutOfMemoryError( "Java heap space\nat line" ) );
+		store.putFailure( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), new RuntimeException( "failed" ) );
+		store.close();
+
+		PairwiseResultStore reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 0, reloaded.size() );
+		assertEquals( 2, reloaded.getFailures().size() );
+		assertFalse( reloaded.getFailures().get( pairId ).contains( "\n" ) );
+
+		// succeeding later removes the failure
+		reloaded.put( pairId, "key1", getResult( pair, 3 ) );
+		reloaded.close();
+
+		reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 1, reloaded.size() );
+		assertEquals( 1, reloaded.getFailures().size() );
+		assertFalse( reloaded.getFailures().containsKey( pairId ) );
+	}
+
+	@Test
+	public void testCompaction() throws IOException
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+		final String pairId = PairwiseResultStore.getPairId( pair );
+
+		final PairwiseResultStore store = new PairwiseResultStore( getFile() );
+		for ( int i = 0; i < 500; ++i )
+			store.put( pairId, "key" + i, getResult( pair, i ) );
+		store.putFailure( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), new RuntimeException( "failed" ) );
+		store.close();
+
+		assertEquals( 501, readLines().size() );
+
+		// opening rewrites the file with only the current lines
+		final PairwiseResultStore reloaded = new PairwiseResultStore( getFile() );
+		assertEquals( 2, readLines().size() );
+		assertFalse( new File( getFile().getAbsolutePath() + ".tmp" ).exists() );
+
+		assertTrue( reloaded.contains( pairId, "key499" ) );
+		assertEquals( 1, reloaded.getFailures().size() );
+
+		final PairwiseResultStore compacted = new PairwiseResultStore( getFile() );
+		assertEquals( 1, compacted.size() );
+		assertEquals( 499, compacted.get( pairId, "key499", pair ).getTransform().get( 0, 3 ), 0 );
+	}
+
+	@Test
+	public void testWriteFailure()
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = getPair( 0, 1 );
+
+		// the directory does not exist, so every write fails
+		final PairwiseResultStore store = new PairwiseResultStore( new File( new File( folder.getRoot(), "missing" ), "dataset.xml" + PairwiseResultStore.fileExtension ) );
+		store.put( PairwiseResultStore.getPairId( pair ), "key1", getResult( pair, 3 ) );
+
+		assertTrue( store.writeFailed() );
+
+		// writing is not retried, but the results are still available
+		store.put( PairwiseResultStore.getPairId( getPair( 1, 2 ) ), "key2", null );
+		store.putFailure( PairwiseResultStore.getPairId( getPair( 2, 3 ) ), new RuntimeException( "failed" ) );
+		store.close();
+
+		assertTrue( store.writeFailed() );
+		assertEquals( 2, store.size() );
+		assertTrue( store.contains( PairwiseResultStore.getPairId( pair ), "key1" ) );
+		assertFalse( store.getFile().exists() );
+	}
+}
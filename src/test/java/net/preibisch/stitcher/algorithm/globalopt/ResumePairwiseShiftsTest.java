@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.TestStitchingData;
+import net.preibisch.stitcher.plugin.Calculate_Pairwise_Shifts;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumePairwiseShiftsTest
+{
+	public static long seed = 9823;
+
+	// a shift that phase correlation would never find in the test data
+	public static double storedShift = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * four correctly registered tiles in a row, neighbors overlap by 64 pixels
+	 */
+	private static TestStitchingData createData()
+	{
+		final Img< UnsignedShortType > volume = TestStitchingData.createBlobs( new long[] { 576, 64, 8 }, 400, 3, seed );
+
+		return new TestStitchingData( volume, new long[] { 192, 64, 8 },
+				new long[][] { { 0, 0, 0 }, { 128, 0, 0 }, { 256, 0, 0 }, { 384, 0, 0 } },
+				new double[][] { { 0, 0, 0 }, { 128, 0, 0 }, { 256, 0, 0 }, { 384, 0, 0 } },
+				new double[][] { { 1, 1, 1 } } );
+	}
+
+	private static Pair< Group< ViewId >, Group< ViewId > > getPair( final TestStitchingData data, final int a, final int b )
+	{
+		return new ValuePair<>( data.getGroup( a ), data.getGroup( b ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > getResult( final List< PairwiseStitchingResult< ViewId > > results, final int a, final int b )
+	{
+		for ( final PairwiseStitchingResult< ViewId > psr : results )
+			if ( psr.pair().getA().getViews().contains( new ViewId( 0, a ) ) && psr.pair().getB().getViews().contains( new ViewId( 0, b ) ) )
+				return psr;
+
+		return null;
+	}
+
+	@Test
+	public void testResumeComputesOnlyMissingAndFailedPairs()
+	{
+		final TestStitchingData data = createData();
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final GroupedViewAggregator gva = new GroupedViewAggregator();
+		final long[] ds = new long[] { 1, 1, 1 };
+		final File file = new File( folder.getRoot(), "dataset.xml" + PairwiseResultStore.fileExtension );
+
+		final Pair< Group< ViewId >, Group< ViewId > > pair01 = getPair( data, 0, 1 );
+		final Pair< Group< ViewId >, Group< ViewId > > pair12 = getPair( data, 1, 2 );
+		final Pair< Group< ViewId >, Group< ViewId > > pair23 = getPair( data, 2, 3 );
+
+		// the interrupted run: one pair was done, one failed, the last one was not computed yet
+		final AffineTransform3D stored = new AffineTransform3D();
+		stored.setTranslation( storedShift, 0, 0 );
+
+		final PairwiseResultStore interrupted = new PairwiseResultStore( file );
+		interrupted.put( PairwiseResultStore.getPairId( pair01 ), PairwiseResultStore.getKey( pair01, data.getViewRegistrations(), params, gva, ds ),
+				new PairwiseStitchingResult<>( pair01, new FinalRealInterval( new double[] { 128, 0, 0 }, new double[] { 191, 63, 7 } ), stored, 0.99, 0 ) );
+		interrupted.putFailure( PairwiseResultStore.getPairId( pair12 ), new OutOfMemoryError( "Java heap space" ) );
+		interrupted.close();
+
+		final PairwiseResultStore store = new PairwiseResultStore( file );
+		store.reuseResults = true;
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>( Arrays.asList( pair01, pair12, pair23 ) );
+		final List< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs( pairs, params, data.getViewRegistrations(),
+				data.getSequenceDescription(), gva, ds, store );
+
+		assertNotNull( results );
+		assertEquals( 3, results.size() );
+
+		// reused, not computed again
+		assertEquals( storedShift, getResult( results, 0, 1 ).getTransform().get( 0, 3 ), 0 );
+
+		// computed (the tiles are registered correctly already)
+		for ( final PairwiseStitchingResult< ViewId > psr : Arrays.asList( getResult( results, 1, 2 ), getResult( results, 2, 3 ) ) )
+		{
+			assertNotNull( psr );
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( 0, psr.getTransform().get( d, 3 ), 0.5 );
+		}
+
+		// all pairs are stored now, the failure is resolved
+		final PairwiseResultStore resumed = new PairwiseResultStore( file );
+		assertEquals( 3, resumed.size() );
+		assertEquals( 0, resumed.getFailures().size() );
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : Arrays.asList( pair01, pair12, pair23 ) )
+			assertTrue( resumed.contains( PairwiseResultStore.getPairId( pair ), PairwiseResultStore.getKey( pair, data.getViewRegistrations(), params, gva, ds ) ) );
+	}
+
+	@Test
+	public void testStoringIsOptIn()
+	{
+		final String xml = new File( folder.getRoot(), "dataset.xml" ).getAbsolutePath();
+
+		final boolean store = Calculate_Pairwise_Shifts.defaultStoreResults;
+		final boolean reuse = Calculate_Pairwise_Shifts.defaultReuseStoredResults;
+
+		try
+		{
+			Calculate_Pairwise_Shifts.defaultStoreResults = false;
+			Calculate_Pairwise_Shifts.defaultReuseStoredResults = false;
+			assertNull( Calculate_Pairwise_Shifts.createResultStore( xml ) );
+
+			Calculate_Pairwise_Shifts.defaultStoreResults = true;
+			final PairwiseResultStore checkpoint = Calculate_Pairwise_Shifts.createResultStore( xml );
+			assertNotNull( checkpoint );
+			assertFalse( checkpoint.reuseResults );
+
+			Calculate_Pairwise_Shifts.defaultStoreResults = false;
+			Calculate_Pairwise_Shifts.defaultReuseStoredResults = true;
+			assertTrue( Calculate_Pairwise_Shifts.createResultStore( xml ).reuseResults );
+		}
+		finally
+		{
+			Calculate_Pairwise_Shifts.defaultStoreResults = store;
+			Calculate_Pairwise_Shifts.defaultReuseStoredResults = reuse;
+		}
+	}
+}
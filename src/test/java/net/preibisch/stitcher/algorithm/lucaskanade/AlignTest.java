@@ -0,0 +1,378 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2025 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.lucaskanade;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.LinAlgHelpers;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlignTest
+{
+	public static long seed = 6347;
+
+	private static final long[] dims = new long[] { 48, 48, 32 };
+
+	// integer shift, so the image warped by the true transform is exactly the template (the blobs are away from the border)
+	private static final double[] shift = new double[] { 3, -2, 1 };
+
+	// larger images for the pyramid tests (three levels with the default minimal size)
+	private static final long[] pyramidDims = new long[] { 64, 64, 32 };
+
+	private ExecutorService service;
+	private double divergenceTolerance;
+	private int stagnationIterations;
+
+	@Before
+	public void setUp()
+	{
+		service = Executors.newFixedThreadPool( 2 );
+		divergenceTolerance = Align.divergenceTolerance;
+		stagnationIterations = Align.stagnationIterations;
+	}
+
+	@After
+	public void tearDown()
+	{
+		service.shutdown();
+		Align.divergenceTolerance = divergenceTolerance;
+		Align.stagnationIterations = stagnationIterations;
+	}
+
+	/**
+	 * @param dims size of the image
+	 * @param offset position of the blobs
+	 * @return a few gaussian blobs at random positions (at least 12 pixels from the border) + offset
+	 */
+	public static ArrayImg< FloatType, FloatArray > createBlobs( final long[] dims, final double[] offset )
+	{
+		final double[] inverse = new double[ offset.length ];
+		for ( int d = 0; d < offset.length; ++d )
+			inverse[ d ] = -offset[ d ];
+
+		return createWarpedBlobs( dims, translation( inverse ) );
+	}
+
+	/**
+	 * @param dims size of the image
+	 * @param transform maps the pixels of the image to the coordinates of the blobs
+	 * @return the blobs of {@link #createBlobs(long[], double[])} (without offset) at transform( x ) for every pixel x
+	 */
+	public static ArrayImg< FloatType, FloatArray > createWarpedBlobs( final long[] dims, final AffineGet transform )
+	{
+		final int n = dims.length;
+		final Random rnd = new Random( seed );
+		final int numBlobs = 12;
+		final double sigma = 2.5;
+		final double[][] centers = new double[ numBlobs ][ n ];
+		for ( int i = 0; i < numBlobs; ++i )
+			for ( int d = 0; d < n; ++d )
+				centers[ i ][ d ] = 12 + rnd.nextDouble() * ( dims[ d ] - 24 );
+
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( dims );
+		final double[] pos = new double[ n ];
+		final Cursor< FloatType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			c.localize( pos );
+			transform.apply( pos, pos );
+
+			double v = 10;
+			for ( int i = 0; i < numBlobs; ++i )
+			{
+				double dist2 = 0;
+				for ( int d = 0; d < n; ++d )
+				{
+					final double diff = pos[ d ] - centers[ i ][ d ];
+					dist2 += diff * diff;
+				}
+				v += 100 * ( i + 1 ) * Math.exp( -dist2 / ( 2 * sigma * sigma ) );
+			}
+
+			c.get().set( (float) v );
+		}
+
+		return img;
+	}
+
+	public static AffineTransform translation( final double[] t )
+	{
+		final AffineTransform transform = new AffineTransform( t.length );
+		for ( int d = 0; d < t.length; ++d )
+			transform.set( t[ d ], d, t.length );
+		return transform;
+	}
+
+	/**
+	 * @return x -&gt; A ( x - center ) + center + t, a slight scaling, shearing and rotation around the center of the image
+	 */
+	private static AffineTransform createAffine( final long[] dims )
+	{
+		final double[][] a = new double[][] {
+			{ 1.02, 0.01, 0.0 },
+			{ -0.015, 0.99, 0.005 },
+			{ 0.0, 0.01, 1.01 } };
+		final double[] t = new double[] { 1.0, -1.5, 0.5 };
+
+		final AffineTransform transform = new AffineTransform( 3 );
+		for ( int r = 0; r < 3; ++r )
+		{
+			double offset = t[ r ];
+			for ( int c = 0; c < 3; ++c )
+			{
+				final double center = ( dims[ c ] - 1 ) / 2.0;
+				transform.set( a[ r ][ c ], r, c );
+				offset += ( r == c ? center : 0 ) - a[ r ][ c ] * center;
+			}
+			transform.set( offset, r, 3 );
+		}
+
+		return transform;
+	}
+
+	/*
+	 * compare two transforms by where they map the corners and the center of the image
+	 */
+	private static void assertTransformsEqual( final String message, final AffineGet expected, final AffineGet actual, final long[] dims, final double tolerance )
+	{
+		final int n = dims.length;
+		final double[] p = new double[ n ];
+		final double[] e = new double[ n ];
+		final double[] a = new double[ n ];
+
+		for ( int corner = 0; corner <= ( 1 << n ); ++corner )
+		{
+			for ( int d = 0; d < n; ++d )
+				p[ d ] = corner == ( 1 << n ) ? ( dims[ d ] - 1 ) / 2.0 : ( ( corner >> d ) & 1 ) * ( dims[ d ] - 1 );
+
+			expected.apply( p, e );
+			actual.apply( p, a );
+
+			assertTrue( message + ": " + LinAlgHelpers.distance( e, a ) + " px apart", LinAlgHelpers.distance( e, a ) < tolerance );
+		}
+	}
+
+	/*
+	 * recover a known transform with the original path (single level, not memory-lean), on a pyramid and memory-lean,
+	 * all of them have to find the true transform and agree with the original path
+	 */
+	private void testRecovery( final WarpFunction warp, final AffineGet truth, final ArrayImg< FloatType, FloatArray > image, final double tolerance )
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( pyramidDims, new double[ pyramidDims.length ] );
+
+		final AffineTransform reference = Align.alignMultiResolution( template, image, warp, 1, 500, 1e-4, false, false, service ).getCurrentTransform().copy();
+		assertTransformsEqual( "single level", truth, reference, pyramidDims, tolerance );
+
+		for ( final int numLevels : new int[] { 1, 3 } )
+			for ( final boolean memoryLean : new boolean[] { false, true } )
+			{
+				final AffineTransform result = Align.alignMultiResolution( template, image, warp, numLevels, 500, 1e-4, memoryLean, false, service ).getCurrentTransform();
+				final String message = warp.getClass().getSimpleName() + ", " + numLevels + " levels, memoryLean=" + memoryLean;
+
+				assertTransformsEqual( message, truth, result, pyramidDims, tolerance );
+				assertTransformsEqual( message, reference, result, pyramidDims, tolerance );
+			}
+	}
+
+	@Test
+	public void testRecoverTranslation()
+	{
+		final AffineTransform truth = translation( new double[] { -shift[ 0 ], -shift[ 1 ], -shift[ 2 ] } );
+		testRecovery( new TranslationWarp( 3 ), truth, createBlobs( pyramidDims, shift ), 0.1 );
+	}
+
+	@Test
+	public void testRecoverAffine()
+	{
+		final AffineTransform truth = createAffine( pyramidDims );
+		testRecovery( new AffineWarp( 3 ), truth, createWarpedBlobs( pyramidDims, truth ), 0.25 );
+	}
+
+	/*
+	 * one iteration like before the single pass reduction: the difference image first, then one reduction per parameter
+	 */
+	private static AffineTransform twoPassStep( final Align< FloatType > align, final ArrayImg< FloatType, FloatArray > image )
+	{
+		final int n = align.n;
+
+		final RandomAccessible< FloatType > warped = RealViews.affine(
+				Views.interpolate( Views.extendBorder( image ), new NLinearInterpolatorFactory< FloatType >() ), align.currentTransform );
+
+		final ArrayImg< FloatType, FloatArray > error = ArrayImgs.floats( Intervals.dimensionsAsLongArray( align.template ) );
+		final Cursor< FloatType > cw = Views.flatIterable( Views.interval( warped, align.template ) ).cursor();
+		final Cursor< FloatType > ct = Views.flatIterable( align.template ).cursor();
+		for ( final FloatType t : error )
+			t.setReal( cw.next().getRealDouble() - ct.next().getRealDouble() );
+
+		final double[] gradient = new double[ align.numParameters ];
+		for ( int p = 0; p < align.numParameters; ++p )
+		{
+			final Cursor< FloatType > ce = error.cursor();
+			for ( final FloatType t : Views.flatIterable( Views.hyperSlice( align.descent, n, p ) ) )
+				gradient[ p ] += t.getRealDouble() * ce.next().getRealDouble();
+		}
+
+		final double[] dp = new double[ align.numParameters ];
+		LinAlgHelpers.mult( align.Hinv, gradient, dp );
+
+		final AffineTransform result = align.currentTransform.copy();
+		result.preConcatenate( align.warpFunction.getAffine( dp ) );
+		return result;
+	}
+
+	@Test
+	public void testStepMatchesTwoPassReference()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+
+		for ( final WarpFunction warp : new WarpFunction[] { new TranslationWarp( 3 ), new AffineWarp( 3 ) } )
+		{
+			final ArrayImg< FloatType, FloatArray > image = warp instanceof TranslationWarp ?
+					createBlobs( dims, shift ) : createWarpedBlobs( dims, createAffine( dims ) );
+
+			final Align< FloatType > reference = new Align<>( template, new ArrayImgFactory<>( new FloatType() ), warp );
+			final AffineTransform expected = twoPassStep( reference, image );
+
+			for ( final boolean memoryLean : new boolean[] { false, true } )
+			{
+				final Align< FloatType > align = new Align<>( template, new ArrayImgFactory<>( new FloatType() ), warp, memoryLean );
+				align.alignStep( image, service );
+
+				assertArrayEquals( warp.getClass().getSimpleName() + ", memoryLean=" + memoryLean,
+						expected.getRowPackedCopy(), align.getCurrentTransform().getRowPackedCopy(), 1e-4 );
+			}
+		}
+	}
+
+	private static Align< FloatType > createAlign( final ArrayImg< FloatType, FloatArray > template )
+	{
+		final Align< FloatType > align = new Align<>( template, new ArrayImgFactory<>( new FloatType() ), new TranslationWarp( template.numDimensions() ) );
+		align.setMonitoring( true );
+		return align;
+	}
+
+	@Test
+	public void testConverged()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+		final ArrayImg< FloatType, FloatArray > image = createBlobs( dims, shift );
+
+		final Align< FloatType > align = createAlign( template );
+		final AffineTransform result = align.align( image, 200, 0.001, service );
+
+		assertEquals( Align.StopReason.CONVERGED, align.getStopReason() );
+		assertTrue( align.didConverge() );
+
+		// the warped image at x is the image at x + shift
+		for ( int d = 0; d < dims.length; ++d )
+			assertEquals( -shift[ d ], result.get( d, dims.length ), 0.05 );
+	}
+
+	@Test
+	public void testMaxIterationsWithoutMonitoring()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+		final Align< FloatType > align = createAlign( template );
+		align.setMonitoring( false );
+
+		align.align( createBlobs( dims, shift ), 2, 0, service );
+
+		assertEquals( Align.StopReason.MAX_ITERATIONS, align.getStopReason() );
+		assertFalse( align.didConverge() );
+		assertEquals( 2, align.getNumIterations() );
+	}
+
+	@Test
+	public void testDivergedKeepsBestTransform()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+		final ArrayImg< FloatType, FloatArray > image = createBlobs( dims, shift );
+
+		// every iteration counts as worse than the best one
+		Align.divergenceTolerance = -1;
+
+		final Align< FloatType > align = createAlign( template );
+		final double initialCorrelation = align.getSubsampledCorrelation( image );
+		align.align( image, 200, 0, service );
+
+		assertEquals( Align.StopReason.DIVERGED, align.getStopReason() );
+		assertFalse( align.didConverge() );
+		assertEquals( Align.divergenceIterations, align.getNumIterations() );
+
+		// the transform with the best correlation is kept, which is at least as good as the start
+		assertTrue( align.getSubsampledCorrelation( image ) >= initialCorrelation );
+	}
+
+	@Test
+	public void testStagnatedKeepsInitialTransform()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+		final AffineTransform initial = translation( new double[] { -shift[ 0 ], -shift[ 1 ], -shift[ 2 ] } );
+
+		// starting at the solution nothing gets better than the initial transform (and a parameter change of 0 is never reached)
+		final Align< FloatType > align = createAlign( template );
+		final AffineTransform result = align.align( createBlobs( dims, shift ), initial, 200, 0, service );
+
+		assertEquals( Align.StopReason.STAGNATED, align.getStopReason() );
+		assertTrue( align.didConverge() );
+		assertEquals( Align.stagnationIterations, align.getNumIterations() );
+		assertArrayEquals( initial.getRowPackedCopy(), result.getRowPackedCopy(), 0 );
+	}
+
+	@Test
+	public void testOutOfBoundsKeepsBestTransform()
+	{
+		final ArrayImg< FloatType, FloatArray > template = createBlobs( dims, new double[ dims.length ] );
+
+		// the center of the template is far outside of the image
+		final AffineTransform initial = translation( new double[] { -1000, 0, 0 } );
+
+		final Align< FloatType > align = createAlign( template );
+		final AffineTransform result = align.align( createBlobs( dims, shift ), initial, 200, 0, service );
+
+		assertEquals( Align.StopReason.OUT_OF_BOUNDS, align.getStopReason() );
+		assertFalse( align.didConverge() );
+		assertEquals( 1, align.getNumIterations() );
+		assertArrayEquals( initial.getRowPackedCopy(), result.getRowPackedCopy(), 0 );
+	}
+}